@@ -0,0 +1,74 @@
+package io.agora.ard.ktv.analysis;
+
+/**
+ * Everything {@code SongAnalyzer} (in the song-tools module) knows about one song, as
+ * written to a {@link SongSidecar}.
+ */
+public class SongAnalysis {
+    public static final int SECTION_INSTRUMENTAL = 0;
+    public static final int SECTION_VOCAL = 1;
+
+    final int durationMs;
+    final float integratedLufs;
+    final float bpm;
+    final int hopMs;
+    final short[] pitch; // per hop, MIDI note x 100, 0 unvoiced
+    final int[] beatsMs;
+    final int[] sectionStartsMs;
+    final int[] sectionKinds;
+
+    SongAnalysis(int durationMs, float integratedLufs, float bpm, int hopMs, short[] pitch,
+                 int[] beatsMs, int[] sectionStartsMs, int[] sectionKinds) {
+        this.durationMs = durationMs;
+        this.integratedLufs = integratedLufs;
+        this.bpm = bpm;
+        this.hopMs = hopMs;
+        this.pitch = pitch;
+        this.beatsMs = beatsMs;
+        this.sectionStartsMs = sectionStartsMs;
+        this.sectionKinds = sectionKinds;
+    }
+
+    public int durationMs() {
+        return durationMs;
+    }
+
+    public float integratedLufs() {
+        return integratedLufs;
+    }
+
+    public float bpm() {
+        return bpm;
+    }
+
+    public int beatCount() {
+        return beatsMs.length;
+    }
+
+    public int sectionCount() {
+        return sectionKinds.length;
+    }
+
+    public int vocalSections() {
+        int n = 0;
+        for (int kind : sectionKinds) {
+            if (kind == SECTION_VOCAL) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return share of hops with a pitch, 0..1
+     */
+    public float voicedShare() {
+        int n = 0;
+        for (short p : pitch) {
+            if (p != 0) {
+                n++;
+            }
+        }
+        return pitch.length > 0 ? (float) n / pitch.length : 0f;
+    }
+}
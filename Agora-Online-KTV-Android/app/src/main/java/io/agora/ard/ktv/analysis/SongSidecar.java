@@ -0,0 +1,219 @@
+package io.agora.ard.ktv.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Per song analysis results in a file next to the MV ({@code <media>.ktva}), memory-mapped by
+ * the app and read in place.
+ * <p>
+ * Layout, big endian: a 48 byte header (magic, format version, analyser version, duration ms,
+ * integrated LUFS, BPM, hop ms, then pitch, beat and section counts, CRC32 of the whole file
+ * with this field zero), the pitch contour as one short per hop (MIDI note x 100, 0
+ * unvoiced), beat times as ms, and sections as (start ms, kind). A reader rejects another format
+ * version; {@link #analyzerVersion()} tells the batch tool whether a sidecar is stale.
+ * Writing the same analysis always gives the same bytes.
+ */
+public class SongSidecar {
+    public static final String SUFFIX = ".ktva";
+
+    static final int MAGIC = 0x4B545641; // KTVA
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+    private static final int CRC_OFFSET = 40;
+
+    private final ByteBuffer mMap;
+    private final int mPitchCount;
+    private final int mBeatCount;
+    private final int mSectionCount;
+    private final int mBeatsOff;
+    private final int mSectionsOff;
+
+    private SongSidecar(ByteBuffer map) throws IOException {
+        if (map.capacity() < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("not a song sidecar, or format " + (map.capacity() >= 8 ? map.getInt(4) : -1));
+        }
+        mMap = map;
+        mPitchCount = map.getInt(28);
+        mBeatCount = map.getInt(32);
+        mSectionCount = map.getInt(36);
+        mBeatsOff = HEADER_BYTES + mPitchCount * 2;
+        mSectionsOff = mBeatsOff + mBeatCount * 4;
+        if (map.capacity() < mSectionsOff + mSectionCount * 8) {
+            throw new IOException("truncated song sidecar");
+        }
+    }
+
+    public static File fileFor(File media) {
+        return new File(media.getPath() + SUFFIX);
+    }
+
+    public static SongSidecar open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new SongSidecar(map);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the sidecar of a local media file (a path or file: URL), null for streams or
+     * if there is none
+     */
+    public static SongSidecar forMedia(String url) {
+        if (url == null || url.contains("://") && !url.startsWith("file://")) {
+            return null;
+        }
+        File file = fileFor(new File(url.startsWith("file://") ? url.substring(7) : url));
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return open(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void write(File file, SongAnalysis a, int analyzerVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + a.pitch.length * 2
+                + a.beatsMs.length * 4 + a.sectionKinds.length * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(analyzerVersion);
+        out.writeInt(a.durationMs);
+        out.writeFloat(a.integratedLufs);
+        out.writeFloat(a.bpm);
+        out.writeInt(a.hopMs);
+        out.writeInt(a.pitch.length);
+        out.writeInt(a.beatsMs.length);
+        out.writeInt(a.sectionKinds.length);
+        out.writeInt(0); // crc, patched below
+        out.writeInt(0);
+        for (short p : a.pitch) {
+            out.writeShort(p);
+        }
+        for (int ms : a.beatsMs) {
+            out.writeInt(ms);
+        }
+        for (int i = 0; i < a.sectionKinds.length; i++) {
+            out.writeInt(a.sectionStartsMs[i]);
+            out.writeInt(a.sectionKinds[i]);
+        }
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer.wrap(data).putInt(CRC_OFFSET, (int) crc.getValue());
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    public int analyzerVersion() {
+        return mMap.getInt(8);
+    }
+
+    public int durationMs() {
+        return mMap.getInt(12);
+    }
+
+    public float integratedLufs() {
+        return mMap.getFloat(16);
+    }
+
+    public float bpm() {
+        return mMap.getFloat(20);
+    }
+
+    public int hopMs() {
+        return mMap.getInt(24);
+    }
+
+    public int crc() {
+        return mMap.getInt(CRC_OFFSET);
+    }
+
+    /**
+     * @return MIDI note x 100 at {@code ms} into the song, 0 where nobody sings
+     */
+    public int pitchAt(long ms) {
+        long i = ms / hopMs();
+        return i >= 0 && i < mPitchCount ? mMap.getShort(HEADER_BYTES + (int) i * 2) : 0;
+    }
+
+    public int beatCount() {
+        return mBeatCount;
+    }
+
+    public int beatMs(int i) {
+        return mMap.getInt(mBeatsOff + i * 4);
+    }
+
+    /**
+     * @return index of the first beat at or after {@code ms}, {@link #beatCount()} if none
+     */
+    public int nextBeat(long ms) {
+        int lo = 0;
+        int hi = mBeatCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (beatMs(mid) < ms) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public int sectionCount() {
+        return mSectionCount;
+    }
+
+    public int sectionStartMs(int i) {
+        return mMap.getInt(mSectionsOff + i * 8);
+    }
+
+    /**
+     * @return one of the {@code SongAnalysis.SECTION_} kinds
+     */
+    public int sectionKind(int i) {
+        return mMap.getInt(mSectionsOff + i * 8 + 4);
+    }
+
+    /**
+     * @return index of the section playing at {@code ms}, -1 before the first
+     */
+    public int sectionAt(long ms) {
+        int lo = 0;
+        int hi = mSectionCount - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sectionStartMs(mid) <= ms) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,59 @@
+package io.agora.ard.ktv.audio;
+
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Ordered list of {@link AudioProcessor}s run on one stream.
+ * <p>
+ * Every stage is timed per block into {@code audio.<chain>.<stage>.block_us}, which is how
+ * the cost of a stage is compared against the block period on a real device.
+ * Stages are added at setup time; the stage array is copied on write so the audio thread
+ * never sees a half built chain.
+ */
+public class AudioChain {
+    public static final long[] BLOCK_US_BOUNDS = new long[]{
+            25, 50, 100, 200, 300, 500, 1000, 2000, 5000, 10000, 20000};
+
+    private static final class Stage {
+        final AudioProcessor processor;
+        final Histogram time;
+
+        Stage(AudioProcessor processor, Histogram time) {
+            this.processor = processor;
+            this.time = time;
+        }
+    }
+
+    private final String mName;
+    private volatile Stage[] mStages = new Stage[0];
+
+    public AudioChain(String name) {
+        this.mName = name;
+    }
+
+    public synchronized void add(String stageName, AudioProcessor processor) {
+        Stage[] stages = new Stage[mStages.length + 1];
+        System.arraycopy(mStages, 0, stages, 0, mStages.length);
+        stages[mStages.length] = new Stage(processor,
+                Metrics.histogram("audio." + mName + "." + stageName + ".block_us", BLOCK_US_BOUNDS));
+        mStages = stages;
+    }
+
+    public void process(float[] data, int frames, int channels) {
+        Stage[] stages = mStages;
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            long start = System.nanoTime();
+            stage.processor.process(data, frames, channels);
+            stage.time.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    public void reset() {
+        Stage[] stages = mStages;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].processor.reset();
+        }
+    }
+}
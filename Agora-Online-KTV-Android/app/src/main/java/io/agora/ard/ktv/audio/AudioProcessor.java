@@ -0,0 +1,21 @@
+package io.agora.ard.ktv.audio;
+
+/**
+ * One stage of the app side audio pipeline.
+ * <p>
+ * Stages work in place on interleaved float samples and are called on the audio (or decode)
+ * thread, so {@link #process} must not allocate, lock or block.
+ */
+public interface AudioProcessor {
+    /**
+     * @param data     interleaved samples, modified in place
+     * @param frames   samples per channel in data
+     * @param channels channel count
+     */
+    void process(float[] data, int frames, int channels);
+
+    /**
+     * Forgets internal history, e.g. on a song switch.
+     */
+    void reset();
+}
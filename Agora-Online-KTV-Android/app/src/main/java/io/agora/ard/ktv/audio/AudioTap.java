@@ -0,0 +1,95 @@
+package io.agora.ard.ktv.audio;
+
+/**
+ * One named capture point on the audio path.
+ * <p>
+ * While disarmed, {@link #capture} costs one volatile read. {@link AudioTaps#arm} allocates
+ * the buffer off the audio thread; the audio thread then only copies into it, and once it is
+ * full, its deadline has passed (or {@link AudioTaps#dump} is called) the owning
+ * {@link AudioTaps} writes it out on its own thread. Samples are kept as float so clipping before the final 16-bit conversion stays
+ * visible in the dump.
+ */
+public final class AudioTap {
+    final String mName;
+    final int mSampleRate;
+    final int mChannels;
+
+    private final AudioTaps mOwner;
+    private volatile boolean mArmed;
+    volatile float[] mBuffer;
+    volatile int mPosition;
+    volatile boolean mFull;
+    volatile long mDeadlineNs;
+
+    AudioTap(AudioTaps owner, String name, int sampleRate, int channels) {
+        mOwner = owner;
+        mName = name;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public boolean isArmed() {
+        return mArmed;
+    }
+
+    /**
+     * Captures 16-bit interleaved PCM, called on the audio thread.
+     */
+    public void capture(byte[] pcm, int numOfSamples, int channels) {
+        if (!mArmed) {
+            return;
+        }
+        float[] buffer = mBuffer;
+        if (buffer == null || channels != mChannels) {
+            return;
+        }
+        int pos = mPosition;
+        int n = Math.min(numOfSamples * channels, buffer.length - pos);
+        for (int i = 0, b = 0; i < n; i++, b += 2) {
+            buffer[pos + i] = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * (1f / 32768f);
+        }
+        advance(pos + n, buffer.length);
+    }
+
+    /**
+     * Captures float interleaved samples, called on the audio thread.
+     */
+    public void capture(float[] data, int frames, int channels) {
+        if (!mArmed) {
+            return;
+        }
+        float[] buffer = mBuffer;
+        if (buffer == null || channels != mChannels) {
+            return;
+        }
+        int pos = mPosition;
+        int n = Math.min(frames * channels, buffer.length - pos);
+        System.arraycopy(data, 0, buffer, pos, n);
+        advance(pos + n, buffer.length);
+    }
+
+    private void advance(int pos, int length) {
+        mPosition = pos;
+        if (pos >= length) {
+            finish();
+        }
+    }
+
+    void arm(float[] buffer, long deadlineNs) {
+        mPosition = 0;
+        mFull = false;
+        mDeadlineNs = deadlineNs;
+        mBuffer = buffer;
+        mArmed = true;
+    }
+
+    // hands the capture over to the dump thread
+    void finish() {
+        mArmed = false;
+        mFull = true;
+    }
+}
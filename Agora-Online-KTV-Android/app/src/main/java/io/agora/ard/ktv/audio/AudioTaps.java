@@ -0,0 +1,242 @@
+package io.agora.ard.ktv.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.runtime.MemoryBudget;
+
+/**
+ * The diagnostic {@link AudioTap}s of {@link KtvAudioPipeline}, in signal order, and the
+ * I/O lane task that writes their captures out as 32-bit float WAV files to the directory set
+ * by {@link #setDumpDirectory} (the engine log directory, see
+ * {@link io.agora.ard.ktv.model.WorkerThread}). The task only runs while a tap is armed and
+ * polls for finished captures, so the audio thread never has to hand anything over.
+ * <p>
+ * A tap only fills while audio passes it: the effects tap sees nothing while the voice gate is
+ * closed. Every capture therefore also ends
+ * {@link #DEADLINE_SLACK_MS} after the time it was armed for, and whatever it holds by then
+ * is written out.
+ * <p>
+ * Capture buffers are large (a 10 s capture of every tap is ~11 MB), so arming asks the
+ * {@link MemoryBudget} first and is refused when it does not fit; under pressure the budget
+ * ends running captures early through {@link #finishAll}.
+ */
+public class AudioTaps {
+    private final static Logger log = LoggerFactory.getLogger(AudioTaps.class);
+
+    public static final String MIC_IN = "mic_in";
+    public static final String AFTER_EFFECTS = "after_effects";
+    public static final String ENGINE_OUT = "engine_out";
+
+    private static final int MAX_SECONDS = 60;
+    private static final long POLL_MS = 200;
+    private static final long DEADLINE_SLACK_MS = 1000;
+
+    final AudioTap mMicIn;
+    final AudioTap mAfterEffects;
+    final AudioTap mEngineOut;
+    private final AudioTap[] mAll;
+
+    private volatile File mDirectory;
+    private Lane.Task mDumper;
+
+    private final Counter mDumps = Metrics.counter("audio.tap.dumps");
+    private final Counter mDumpErrors = Metrics.counter("audio.tap.dump_errors");
+    private final Counter mRefused = Metrics.counter("audio.tap.refused");
+
+    AudioTaps(int sampleRate, int channels) {
+        mMicIn = new AudioTap(this, MIC_IN, sampleRate, channels);
+        mAfterEffects = new AudioTap(this, AFTER_EFFECTS, sampleRate, channels);
+        mEngineOut = new AudioTap(this, ENGINE_OUT, sampleRate, channels);
+        mAll = new AudioTap[]{mMicIn, mAfterEffects, mEngineOut};
+    }
+
+    public void setDumpDirectory(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the tap, null for an unknown name
+     */
+    public AudioTap tap(String name) {
+        for (AudioTap tap : mAll) {
+            if (tap.mName.equals(name)) {
+                return tap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts capturing the next {@code seconds} of audio passing the tap. Ignored while the
+     * tap is armed or its last capture is still being written.
+     */
+    public synchronized void arm(String name, int seconds) {
+        AudioTap tap = tap(name);
+        if (tap == null || tap.isArmed() || tap.mFull) {
+            return;
+        }
+        seconds = Math.max(1, Math.min(MAX_SECONDS, seconds));
+        int samples = seconds * tap.mSampleRate * tap.mChannels;
+        if (!MemoryBudget.get().reserve(MemoryBudget.PRIORITY_DIAGNOSTIC, samples * 4L)) {
+            mRefused.inc();
+            log.warn("tap " + name + " not armed, " + seconds + "s does not fit the memory budget");
+            return;
+        }
+        ensureDumper();
+        tap.arm(new float[samples], System.nanoTime() + (seconds * 1000L + DEADLINE_SLACK_MS) * 1000000L);
+        log.debug("tap armed " + name + " " + seconds + "s");
+    }
+
+    public void armAll(int seconds) {
+        for (AudioTap tap : mAll) {
+            arm(tap.mName, seconds);
+        }
+    }
+
+    /**
+     * Writes out what an armed tap has captured so far, for stages that saw little traffic.
+     */
+    public void dump(String name) {
+        AudioTap tap = tap(name);
+        if (tap != null && tap.isArmed()) {
+            tap.finish();
+        }
+    }
+
+    /**
+     * @return heap held by capture buffers, including finished ones not written out yet
+     */
+    public long sizeBytes() {
+        long bytes = 0;
+        for (AudioTap tap : mAll) {
+            float[] buffer = tap.mBuffer;
+            if (buffer != null) {
+                bytes += buffer.length * 4L;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Ends every running capture now; what was captured is still written out, after which
+     * the buffers are released.
+     *
+     * @return bytes released once the dumps are written
+     */
+    public long finishAll() {
+        long bytes = 0;
+        for (AudioTap tap : mAll) {
+            float[] buffer = tap.mBuffer;
+            if (tap.isArmed() && buffer != null) {
+                tap.finish();
+                bytes += buffer.length * 4L;
+            }
+        }
+        return bytes;
+    }
+
+    private void ensureDumper() {
+        if (mDumper != null) {
+            return;
+        }
+        mDumper = KtvRuntime.get().io().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                boolean busy = false;
+                long now = System.nanoTime();
+                for (AudioTap tap : mAll) {
+                    if (tap.isArmed() && now - tap.mDeadlineNs >= 0) {
+                        tap.finish();
+                    }
+                    if (tap.mFull) {
+                        write(tap);
+                    }
+                    busy |= tap.isArmed();
+                }
+                if (!busy) {
+                    stopDumper();
+                }
+            }
+        }, POLL_MS, POLL_MS);
+    }
+
+    private synchronized void stopDumper() {
+        for (AudioTap tap : mAll) {
+            if (tap.isArmed() || tap.mFull) {
+                return; // armed again meanwhile
+            }
+        }
+        mDumper.cancel();
+        mDumper = null;
+    }
+
+    private void write(AudioTap tap) {
+        float[] buffer = tap.mBuffer;
+        int count = tap.mPosition;
+        tap.mBuffer = null;
+        tap.mFull = false;
+        if (buffer == null) {
+            return;
+        }
+        if (count == 0) {
+            log.info("tap " + tap.mName + " saw no audio, nothing dumped");
+            return;
+        }
+
+        File dir = mDirectory;
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            mDumpErrors.inc();
+            log.warn("no tap dump directory " + dir + ", dropped " + tap.mName);
+            return;
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "tap_" + tap.mName + "_" + stamp + ".wav");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            int dataBytes = count * 4;
+            int frameBytes = tap.mChannels * 4;
+            ByteBuffer b = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(0x46464952).putInt(36 + dataBytes).putInt(0x45564157); // RIFF, WAVE
+            b.putInt(0x20746D66).putInt(16).putShort((short) 3).putShort((short) tap.mChannels); // fmt, IEEE float
+            b.putInt(tap.mSampleRate).putInt(tap.mSampleRate * frameBytes).putShort((short) frameBytes).putShort((short) 32);
+            b.putInt(0x61746164).putInt(dataBytes); // data
+            for (int i = 0; i < count; i++) {
+                if (!b.hasRemaining()) {
+                    out.write(b.array(), 0, b.position());
+                    b.clear();
+                }
+                b.putFloat(buffer[i]);
+            }
+            out.write(b.array(), 0, b.position());
+            mDumps.inc();
+            log.info("tap " + tap.mName + " dumped to " + file + ", " + count / tap.mChannels + " frames");
+        } catch (IOException e) {
+            mDumpErrors.inc();
+            log.error("tap dump failed " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How much of the block period the app's audio callbacks use, summed over a window that the
+ * reader ends with {@link #drain}. Callbacks on any thread may {@link #record}; a callback
+ * longer than the late threshold counts as late, since the engine has little time left to
+ * hand the frame on.
+ */
+public class CallbackLoad {
+    private final long mPeriodUs;
+    private final long mLateUs;
+    private final AtomicLong mBusyUs = new AtomicLong();
+    private final AtomicLong mCallbacks = new AtomicLong();
+    private final AtomicLong mLate = new AtomicLong();
+    private long mWindowStartNs = System.nanoTime();
+
+    /**
+     * @param periodUs block period of one callback
+     */
+    public CallbackLoad(long periodUs) {
+        mPeriodUs = periodUs;
+        mLateUs = periodUs / 2;
+    }
+
+    public void record(long us) {
+        mBusyUs.addAndGet(us);
+        mCallbacks.incrementAndGet();
+        if (us > mLateUs) {
+            mLate.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ends the window. Not thread-safe against other readers.
+     *
+     * @param out [0] busy share of the window in percent, [1] average callback as percent of
+     *            the period, [2] late callbacks in per mille
+     */
+    public void drain(int[] out) {
+        long now = System.nanoTime();
+        long windowUs = Math.max(1, (now - mWindowStartNs) / 1000);
+        mWindowStartNs = now;
+        long busy = mBusyUs.getAndSet(0);
+        long callbacks = mCallbacks.getAndSet(0);
+        long late = mLate.getAndSet(0);
+        out[0] = (int) (busy * 100 / windowUs);
+        out[1] = callbacks > 0 ? (int) (busy * 100 / (callbacks * mPeriodUs)) : 0;
+        out[2] = callbacks > 0 ? (int) (late * 1000 / callbacks) : 0;
+    }
+}
@@ -0,0 +1,83 @@
+package io.agora.ard.ktv.audio;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Turns the accompaniment down while a co-singer sings, so their voice sits on top of it.
+ * <p>
+ * KTVKit mixes the song natively and only exposes its volume
+ * ({@link io.agora.ard.ktv.model.KtvPlayer#adjustAccompanyVolume}), so this computes a gain
+ * for {@link io.agora.ard.ktv.model.AccompanyVolume} rather than processing samples. It is
+ * keyed off the engine's volume indications ({@link #onVolumes}), one every
+ * {@link #INDICATION_MS}: a remote user at {@link #VOICE_THRESHOLD} or more drops the gain to
+ * {@link #setDepthDb the depth} at once, and it comes back by {@link #RELEASE_DB_PER_S} once
+ * nobody was heard for {@link #HOLD_MS}. The gain moves in steps of one indication, which is
+ * as often as the player's volume should be set.
+ * <p>
+ * The local singer does not key it: the engine reports the local level (uid 0) with the song
+ * KTVKit mixes into the mic already in it, so it never falls silent while a song plays.
+ * <p>
+ * Called on the engine's callback thread only.
+ */
+public class Ducker {
+    public static final int INDICATION_MS = 200;
+    public static final float DEFAULT_DEPTH_DB = 6f;
+    public static final int VOICE_THRESHOLD = 40; // engine volume, 0..255
+    private static final long HOLD_MS = 600;
+    private static final float RELEASE_DB_PER_S = 6f;
+
+    private volatile float mDepthDb = DEFAULT_DEPTH_DB;
+    private volatile boolean mEnabled = true;
+    private long mVoicedAtMs;
+    private boolean mEverVoiced;
+    private long mLastMs;
+    private float mAttenuationDb;
+
+    private final Counter mDucked = Metrics.counter("audio.duck.ducked_indications");
+
+    /**
+     * @param db attenuation while a co-singer sings, 0 disables ducking
+     */
+    public void setDepthDb(float db) {
+        mDepthDb = Math.max(0f, db);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @param uids    speaker uids, 0 is the local user; only the first {@code count} are valid
+     * @param volumes 0..255, parallel to uids
+     * @return linear gain for the accompaniment, 1 when not ducked
+     */
+    public float onVolumes(int[] uids, int[] volumes, int count, long nowMs) {
+        for (int i = 0; i < count; i++) {
+            if (uids[i] != 0 && volumes[i] >= VOICE_THRESHOLD) {
+                mVoicedAtMs = nowMs;
+                mEverVoiced = true;
+                break;
+            }
+        }
+        boolean keyed = mEnabled && mEverVoiced && nowMs - mVoicedAtMs < HOLD_MS;
+        float target = keyed ? mDepthDb : 0f;
+        if (target >= mAttenuationDb) {
+            mAttenuationDb = target;
+        } else {
+            mAttenuationDb = Math.max(target, mAttenuationDb - RELEASE_DB_PER_S * (nowMs - mLastMs) / 1000f);
+        }
+        mLastMs = nowMs;
+        if (keyed) {
+            mDucked.inc();
+        }
+        return gain();
+    }
+
+    /**
+     * @return the gain {@link #onVolumes} last returned
+     */
+    public float gain() {
+        return (float) Math.pow(10, -mAttenuationDb / 20);
+    }
+}
@@ -0,0 +1,88 @@
+package io.agora.ard.ktv.audio;
+
+/**
+ * In place radix-2 complex FFT of a fixed size.
+ * <p>
+ * Twiddle factors and the bit reversal permutation are computed once in the constructor, so
+ * {@link #forward} and {@link #inverse} only touch the caller's arrays. One instance must not
+ * be shared between threads running transforms at the same time.
+ */
+public final class Fft {
+    private final int mSize;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mReverse;
+
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("fft size must be a power of two: " + size);
+        }
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double phase = -2 * Math.PI * i / size;
+            mCos[i] = (float) Math.cos(phase);
+            mSin[i] = (float) Math.sin(phase);
+        }
+        mReverse = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void forward(float[] re, float[] im) {
+        transform(re, im, false);
+    }
+
+    /**
+     * Inverse transform including the 1/N scaling.
+     */
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, true);
+        float scale = 1f / mSize;
+        for (int i = 0; i < mSize; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(float[] re, float[] im, boolean inverse) {
+        int n = mSize;
+        for (int i = 0; i < n; i++) {
+            int j = mReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        float sign = inverse ? -1f : 1f;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1;
+            int step = n / len;
+            for (int start = 0; start < n; start += len) {
+                for (int k = 0, t = 0; k < half; k++, t += step) {
+                    float wr = mCos[t];
+                    float wi = sign * mSin[t];
+                    int a = start + k;
+                    int b = a + half;
+                    float xr = re[b] * wr - im[b] * wi;
+                    float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package io.agora.ard.ktv.audio;
+
+import io.agora.ard.ktv.audio.effect.Reverb;
+import io.agora.ard.ktv.audio.effect.VoiceEffects;
+import io.agora.ard.ktv.audio.record.PerformanceRecorder;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.ConstantApp;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.MemoryBudget;
+import io.agora.rtc.IAudioFrameObserver;
+
+/**
+ * App side raw audio path. The engine has a single audio frame observer and KTVKit takes it to
+ * mix the song into the mic frames, so this one is only attached
+ * ({@link io.agora.ard.ktv.model.WorkerThread#attachAudioPipeline}) while no KTVKit exists.
+ * KTVKit never hands the decoded song to Java, so nothing in here touches the accompaniment.
+ * <p>
+ * Mic frames arrive in {@link #onRecordFrame} (READ_WRITE mode) and go through
+ * {@link #voiceChain()} (vocal effects); when every voice effect is bypassed the frame is not
+ * even converted.
+ * <p>
+ * A {@link VoiceActivityDetector} sits in front of it. While the singer is silent the voice
+ * chain is skipped and the mic frame goes to the engine as it came; the gate only saves
+ * processing, it never writes the frame. {@code audio.record.block_us} shows what a callback
+ * costs on average.
+ * <p>
+ * The frame as it leaves the callback is what {@link #recorder()} records. {@link #taps()}
+ * capture the path at three points for diagnostics, {@link #latency()} measures the round trip
+ * from the playback frame to the mic. It is the only stage that writes playback frames, which
+ * are READ_ONLY except while it runs
+ * ({@link io.agora.ard.ktv.model.WorkerThread#measureLatency}).
+ * <p>
+ * The mic callback reports its time to {@link #load()}; a {@link QualityGovernor} reads it and
+ * turns optional stages down through {@link #applyQualityTier} when time or heat runs short.
+ * <p>
+ * Nothing in here allocates once the first frame of the largest size has been seen. The
+ * buffers that matter are registered with the {@link MemoryBudget}: the recorder ring as an
+ * idle buffer and the taps as diagnostics.
+ */
+public class KtvAudioPipeline implements IAudioFrameObserver {
+    private static final int BLOCK_FRAMES = ConstantApp.AUDIO_SAMPLES_PER_CALL / ConstantApp.AUDIO_CHANNELS;
+
+    private static final int VAD_HANGOVER_BLOCKS = 30; // 300 ms
+    // a reverb tail that has decayed below -60 dBFS counts as ended, and a noisy room ends it
+    // after a hall's decay time at the latest
+    private static final float EFFECT_TAIL_FLOOR = 1e-3f;
+    private static final int MAX_EFFECT_TAIL_BLOCKS = 300; // 3 s
+    private static final int RECORDER_RING_BYTES = 1 << 21; // ~10 s at 48 kHz stereo
+    private static final long BLOCK_PERIOD_US = 1000000L * BLOCK_FRAMES / ConstantApp.AUDIO_SAMPLE_RATE;
+
+    private final AudioChain mVoiceChain = new AudioChain("voice");
+    private final VoiceEffects mVoiceEffects;
+    private final LevelMeter mVoiceMeter = new LevelMeter(ConstantApp.AUDIO_SAMPLE_RATE);
+    private final PerformanceRecorder mRecorder = new PerformanceRecorder(ConstantApp.AUDIO_SAMPLE_RATE,
+            ConstantApp.AUDIO_CHANNELS, RECORDER_RING_BYTES);
+    private final LatencyEstimator mLatency = new LatencyEstimator(ConstantApp.AUDIO_SAMPLE_RATE);
+    private final AudioTaps mTaps = new AudioTaps(ConstantApp.AUDIO_SAMPLE_RATE, ConstantApp.AUDIO_CHANNELS);
+    private final VoiceActivityDetector mVad = new VoiceActivityDetector(VAD_HANGOVER_BLOCKS);
+    private final Histogram mRecordTime = Metrics.histogram("audio.record.block_us", AudioChain.BLOCK_US_BOUNDS);
+    private final CallbackLoad mLoad = new CallbackLoad(BLOCK_PERIOD_US);
+
+    private float[] mVoice = new float[ConstantApp.AUDIO_SAMPLES_PER_CALL];
+
+    private volatile boolean mVoiceGateEnabled = true;
+
+    // record thread only: blocks the voice effects may still ring after the gate closed
+    private int mEffectTail;
+
+    // the engine may switch callback threads (route change), each new one is tuned once
+    private Thread mRecordThread;
+    private Thread mPlaybackThread;
+
+    public KtvAudioPipeline() {
+        mVoiceEffects = new VoiceEffects(ConstantApp.AUDIO_SAMPLE_RATE, ConstantApp.AUDIO_CHANNELS, ConstantApp.AUDIO_SAMPLES_PER_CALL);
+        mVoiceEffects.install(mVoiceChain);
+        mVoiceChain.add("meter", mVoiceMeter);
+        registerMemory();
+    }
+
+    private void registerMemory() {
+        MemoryBudget budget = MemoryBudget.get();
+        budget.register("audio.recorder", MemoryBudget.PRIORITY_IDLE_BUFFER, true, new MemoryBudget.Component() {
+            @Override
+            public long sizeBytes() {
+                return mRecorder.ringBytes();
+            }
+
+            @Override
+            public long shrink(long bytes) {
+                return mRecorder.releaseIfIdle();
+            }
+        });
+        budget.register("audio.taps", MemoryBudget.PRIORITY_DIAGNOSTIC, true, new MemoryBudget.Component() {
+            @Override
+            public long sizeBytes() {
+                return mTaps.sizeBytes();
+            }
+
+            @Override
+            public long shrink(long bytes) {
+                return mTaps.finishAll();
+            }
+        });
+    }
+
+    @Override
+    public boolean onRecordFrame(byte[] samples, int numOfSamples, int bytesPerSample, int channels, int samplesPerSec) {
+        if (bytesPerSample != 2 || channels != ConstantApp.AUDIO_CHANNELS) {
+            return true;
+        }
+        if (Thread.currentThread() != mRecordThread) {
+            mRecordThread = Thread.currentThread();
+            KtvRuntime.get().adoptAudioThread();
+        }
+        long start = System.nanoTime();
+        mTaps.mMicIn.capture(samples, numOfSamples, channels);
+        mLatency.onRecord(samples, numOfSamples, channels);
+        processRecordFrame(samples, numOfSamples, channels);
+        mRecorder.write(samples, numOfSamples, channels);
+        long us = (System.nanoTime() - start) / 1000;
+        mRecordTime.record(us);
+        mLoad.record(us);
+        return true;
+    }
+
+    private void processRecordFrame(byte[] samples, int numOfSamples, int channels) {
+        boolean voiced = !mVoiceGateEnabled || mVad.detect(samples, numOfSamples, channels);
+        if (voiced) {
+            mEffectTail = mVoiceEffects.isBypassed() ? 0 : MAX_EFFECT_TAIL_BLOCKS;
+        }
+        // the hangover is shorter than a hall reverb, so a closed gate keeps the effects running
+        // until they rang out instead of cutting them off mid tail
+        boolean tail = !voiced && mEffectTail > 0;
+        if (!voiced && !tail) {
+            mVoiceMeter.publishSilence();
+            return;
+        } else if (mVoiceEffects.isBypassed() && !mVoiceMeter.isEnabled()) {
+            return;
+        }
+        int count = numOfSamples * channels;
+        if (mVoice.length < count) {
+            mVoice = new float[count];
+        }
+        Pcm.toFloat(samples, count, mVoice);
+        mVoiceChain.process(mVoice, numOfSamples, channels);
+        mTaps.mAfterEffects.capture(mVoice, numOfSamples, channels);
+        if (tail && (--mEffectTail == 0 || peak(mVoice, count) < EFFECT_TAIL_FLOOR)) {
+            // rung out: start the next phrase from clean effect state
+            mEffectTail = 0;
+            mVoiceChain.reset();
+        }
+        Pcm.toPcm16(mVoice, count, samples);
+    }
+
+    private static float peak(float[] data, int count) {
+        float peak = 0f;
+        for (int i = 0; i < count; i++) {
+            float v = Math.abs(data[i]);
+            if (v > peak) {
+                peak = v;
+            }
+        }
+        return peak;
+    }
+
+    @Override
+    public boolean onPlaybackFrame(byte[] samples, int numOfSamples, int bytesPerSample, int channels, int samplesPerSec) {
+        if (Thread.currentThread() != mPlaybackThread) {
+            mPlaybackThread = Thread.currentThread();
+            KtvRuntime.get().adoptAudioThread();
+        }
+        if (bytesPerSample == 2) {
+            mLatency.onPlayback(samples, numOfSamples, channels);
+            mTaps.mEngineOut.capture(samples, numOfSamples, channels);
+        }
+        return true;
+    }
+
+    /**
+     * Sets how much optional processing the device can afford, one of the
+     * {@link QualityGovernor} tiers. The user's preset is kept and comes back in full at
+     * {@link QualityGovernor#TIER_FULL}:
+     * <ul>
+     * <li>reduced: half the reverb combs, meter at half rate</li>
+     * <li>low: as reduced, meter at quarter rate</li>
+     * <li>minimal: no reverb, meter at an eighth of the rate</li>
+     * </ul>
+     */
+    public void applyQualityTier(int tier) {
+        int combs;
+        int meterInterval;
+        switch (tier) {
+            case QualityGovernor.TIER_REDUCED:
+                combs = Reverb.maxCombs() / 2;
+                meterInterval = 2;
+                break;
+            case QualityGovernor.TIER_LOW:
+                combs = Reverb.maxCombs() / 2;
+                meterInterval = 4;
+                break;
+            case QualityGovernor.TIER_MINIMAL:
+                combs = 0;
+                meterInterval = 8;
+                break;
+            default:
+                combs = Reverb.maxCombs();
+                meterInterval = 1;
+                break;
+        }
+        mVoiceEffects.setReverbCombs(combs);
+        mVoiceMeter.setPublishInterval(meterInterval);
+    }
+
+    /**
+     * @param enabled false sends every mic frame through the full path
+     */
+    public void setVoiceGateEnabled(boolean enabled) {
+        mVoiceGateEnabled = enabled;
+    }
+
+    public AudioChain voiceChain() {
+        return mVoiceChain;
+    }
+
+    public VoiceEffects voiceEffects() {
+        return mVoiceEffects;
+    }
+
+    public LevelMeter voiceMeter() {
+        return mVoiceMeter;
+    }
+
+    public PerformanceRecorder recorder() {
+        return mRecorder;
+    }
+
+    public CallbackLoad load() {
+        return mLoad;
+    }
+
+    public LatencyEstimator latency() {
+        return mLatency;
+    }
+
+    public AudioTaps taps() {
+        return mTaps;
+    }
+}
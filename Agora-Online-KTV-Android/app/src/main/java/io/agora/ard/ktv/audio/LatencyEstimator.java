@@ -0,0 +1,227 @@
+package io.agora.ard.ktv.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+
+/**
+ * Measures the acoustic round trip from the playback callback to the record callback.
+ * <p>
+ * {@link #start} arms a logarithmic sine sweep that {@link #onPlayback} mixes into the next
+ * playback frames. {@link #onRecord} collects the mic from the same moment on; when
+ * {@link #CAPTURE_FRAMES} are in, a task on the runtime's background lane (it polls, so the
+ * audio thread hands nothing over) cross-correlates the capture with the
+ * sweep through one FFT and reports the lag of the strongest peak. The two callbacks tick on
+ * different threads, so the capture start is related to the playback start through
+ * {@link System#nanoTime()} taken in each callback.
+ * <p>
+ * Confidence is {@code 1 - second / first}, the two largest correlation peaks at least
+ * {@link #PEAK_EXCLUSION_MS} apart: close to 1 for a clean loop, close to 0 when the sweep was
+ * not heard (headset, muted speaker) or drowned in noise.
+ */
+public class LatencyEstimator {
+    private final static Logger log = LoggerFactory.getLogger(LatencyEstimator.class);
+
+    public interface Listener {
+        /**
+         * Called on the background lane.
+         *
+         * @param latencyMs {@link #LATENCY_UNKNOWN} with confidence 0 if the measurement timed out
+         */
+        void onLatencyMeasured(int latencyMs, float confidence);
+    }
+
+    public static final int LATENCY_UNKNOWN = -1;
+
+    private static final int CAPTURE_FRAMES = 1 << 16; // ~1.4 s at 48 kHz
+    private static final float SWEEP_SECONDS = 0.3f;
+    private static final float SWEEP_LOW_HZ = 200f;
+    private static final float SWEEP_HIGH_HZ = 8000f;
+    private static final float SWEEP_LEVEL = 0.5f;
+    private static final int PEAK_EXCLUSION_MS = 3;
+    private static final long POLL_MS = 50;
+    // the capture takes ~1.4 s once the sweep plays; callbacks that never come end it here
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int ANALYZING = 2;
+
+    private final int mSampleRate;
+    private final float[] mSweep;
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private volatile Listener mListener;
+    private float[] mCapture;
+    private int mPlayPos;
+    private volatile long mPlayStartNs;
+    private volatile long mCaptureStartNs;
+    private int mCapturePos;
+    private Lane.Task mAnalyzer;
+
+    private final Gauge mLatencyGauge = Metrics.gauge("audio.latency.round_trip_ms");
+    private final Gauge mConfidenceGauge = Metrics.gauge("audio.latency.confidence_pct");
+
+    public LatencyEstimator(int sampleRate) {
+        mSampleRate = sampleRate;
+        int n = (int) (SWEEP_SECONDS * sampleRate);
+        mSweep = new float[n];
+        double k = Math.log(SWEEP_HIGH_HZ / SWEEP_LOW_HZ);
+        double duration = SWEEP_SECONDS;
+        for (int i = 0; i < n; i++) {
+            double t = i / (double) sampleRate;
+            double phase = 2 * Math.PI * SWEEP_LOW_HZ * duration / k * (Math.exp(t / duration * k) - 1);
+            // short fades so the edges do not click
+            double fade = Math.min(1, Math.min(i, n - 1 - i) / (0.005 * sampleRate));
+            mSweep[i] = (float) (SWEEP_LEVEL * fade * Math.sin(phase));
+        }
+    }
+
+    /**
+     * Starts one measurement, ignored while another one runs.
+     */
+    public synchronized boolean start(Listener listener) {
+        if (mState.get() != IDLE) {
+            return false;
+        }
+        if (mCapture == null) {
+            mCapture = new float[CAPTURE_FRAMES];
+        }
+        mListener = listener;
+        mPlayPos = 0;
+        mPlayStartNs = 0;
+        mCapturePos = 0;
+        mState.set(RUNNING);
+        final long deadlineNs = System.nanoTime() + TIMEOUT_MS * 1000000L;
+        mAnalyzer = KtvRuntime.get().io().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (mState.get() == ANALYZING) {
+                    mAnalyzer.cancel();
+                    analyze(mCaptureStartNs - mPlayStartNs);
+                } else if (System.nanoTime() - deadlineNs >= 0 && mState.compareAndSet(RUNNING, IDLE)) {
+                    mAnalyzer.cancel();
+                    timedOut();
+                }
+            }
+        }, POLL_MS, POLL_MS);
+        log.debug("latency measurement started");
+        return true;
+    }
+
+    public boolean isRunning() {
+        return mState.get() != IDLE;
+    }
+
+    /**
+     * Playback callback, mixes the sweep into the frame.
+     */
+    public void onPlayback(byte[] pcm, int numOfSamples, int channels) {
+        if (mState.get() != RUNNING || mPlayPos >= mSweep.length) {
+            return;
+        }
+        if (mPlayPos == 0) {
+            mPlayStartNs = System.nanoTime();
+        }
+        int n = Math.min(numOfSamples, mSweep.length - mPlayPos);
+        for (int i = 0; i < n; i++) {
+            int v = Math.round(mSweep[mPlayPos + i] * 32767f);
+            for (int c = 0; c < channels; c++) {
+                int b = (i * channels + c) * 2;
+                int s = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) + v;
+                s = s > Short.MAX_VALUE ? Short.MAX_VALUE : (s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+                pcm[b] = (byte) s;
+                pcm[b + 1] = (byte) (s >> 8);
+            }
+        }
+        mPlayPos += n;
+    }
+
+    /**
+     * Record callback, collects the first channel of the mic.
+     */
+    public void onRecord(byte[] pcm, int numOfSamples, int channels) {
+        if (mState.get() != RUNNING || mPlayStartNs == 0) {
+            return;
+        }
+        if (mCapturePos == 0) {
+            mCaptureStartNs = System.nanoTime();
+        }
+        int n = Math.min(numOfSamples, CAPTURE_FRAMES - mCapturePos);
+        for (int i = 0; i < n; i++) {
+            int b = i * channels * 2;
+            mCapture[mCapturePos + i] = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * (1f / 32768f);
+        }
+        mCapturePos += n;
+        if (mCapturePos >= CAPTURE_FRAMES) {
+            mState.compareAndSet(RUNNING, ANALYZING);
+        }
+    }
+
+    private void timedOut() {
+        mConfidenceGauge.set(0);
+        log.warn("latency measurement timed out, " + (mPlayStartNs == 0 ? "sweep never played" : "captured " + mCapturePos + " frames"));
+        Listener listener = mListener;
+        mListener = null;
+        if (listener != null) {
+            listener.onLatencyMeasured(LATENCY_UNKNOWN, 0f);
+        }
+    }
+
+    private void analyze(long offsetNs) {
+        int n = CAPTURE_FRAMES * 2; // zero padded, no circular wrap
+        float[] mr = new float[n];
+        float[] mi = new float[n];
+        float[] sr = new float[n];
+        float[] si = new float[n];
+        System.arraycopy(mCapture, 0, mr, 0, CAPTURE_FRAMES);
+        System.arraycopy(mSweep, 0, sr, 0, mSweep.length);
+        Fft fft = new Fft(n);
+        fft.forward(mr, mi);
+        fft.forward(sr, si);
+        // correlation = IFFT(M * conj(S))
+        for (int k = 0; k < n; k++) {
+            float re = mr[k] * sr[k] + mi[k] * si[k];
+            float im = mi[k] * sr[k] - mr[k] * si[k];
+            mr[k] = re;
+            mi[k] = im;
+        }
+        fft.inverse(mr, mi);
+
+        int best = 0;
+        float bestValue = 0f;
+        for (int i = 0; i < CAPTURE_FRAMES; i++) {
+            float v = Math.abs(mr[i]);
+            if (v > bestValue) {
+                bestValue = v;
+                best = i;
+            }
+        }
+        int exclusion = PEAK_EXCLUSION_MS * mSampleRate / 1000;
+        float second = 0f;
+        for (int i = 0; i < CAPTURE_FRAMES; i++) {
+            if (Math.abs(i - best) > exclusion) {
+                second = Math.max(second, Math.abs(mr[i]));
+            }
+        }
+        float confidence = bestValue > 0f ? 1f - second / bestValue : 0f;
+        long lagNs = best * 1000000000L / mSampleRate + offsetNs;
+        int latencyMs = (int) (lagNs / 1000000L);
+
+        mLatencyGauge.set(latencyMs);
+        mConfidenceGauge.set((long) (confidence * 100));
+        log.info("round trip latency " + latencyMs + " ms, confidence " + confidence);
+        Listener listener = mListener;
+        mListener = null;
+        mState.set(IDLE);
+        if (listener != null) {
+            listener.onLatencyMeasured(latencyMs, confidence);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.Arrays;
+
+/**
+ * RMS, peak and a coarse log spaced spectrum of a stream, published through a
+ * {@link MeterExchange} for the UI.
+ * <p>
+ * Levels are computed every block, the spectrum only every {@link #SPECTRUM_DECIMATION}th
+ * block (~25 Hz, plenty for a display) on the mono sum. The signal is not modified, so the
+ * meter is added as the last stage of a chain. While nobody looks ({@link #setEnabled}) it
+ * returns right away; {@link #setPublishInterval} lowers the rate further when CPU is short.
+ */
+public class LevelMeter implements AudioProcessor {
+    private static final int FFT_SIZE = 512;
+    private static final int SPECTRUM_DECIMATION = 4;
+    private static final float LOW_HZ = 60f;
+    private static final float HIGH_HZ = 16000f;
+
+    private final MeterExchange mExchange = new MeterExchange();
+    private final Fft mFft = new Fft(FFT_SIZE);
+    private final float[] mRe = new float[FFT_SIZE];
+    private final float[] mIm = new float[FFT_SIZE];
+    private final float[] mWindow = new float[FFT_SIZE];
+    private final int[] mBandEdges = new int[MeterReading.BANDS + 1];
+    private final float[] mBandsDb = new float[MeterReading.BANDS];
+    private int mBlocks;
+    private int mSkipped;
+    private volatile int mPublishInterval = 1;
+    private volatile boolean mEnabled;
+
+    public LevelMeter(int sampleRate) {
+        for (int i = 0; i < FFT_SIZE; i++) {
+            mWindow[i] = (float) (0.5 * (1 - Math.cos(2 * Math.PI * i / FFT_SIZE)));
+        }
+        double ratio = Math.pow(HIGH_HZ / LOW_HZ, 1d / MeterReading.BANDS);
+        for (int b = 0; b <= MeterReading.BANDS; b++) {
+            double hz = LOW_HZ * Math.pow(ratio, b);
+            mBandEdges[b] = Math.max(1, Math.min(FFT_SIZE / 2, (int) Math.round(hz * FFT_SIZE / sampleRate)));
+        }
+        Arrays.fill(mBandsDb, MeterReading.FLOOR_DB);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param blocks measure and publish only every this many blocks, 1 for every block
+     */
+    public void setPublishInterval(int blocks) {
+        mPublishInterval = Math.max(1, blocks);
+    }
+
+    public MeterExchange exchange() {
+        return mExchange;
+    }
+
+    private static float db(double power) {
+        return power > 1e-9 ? Math.max(MeterReading.FLOOR_DB, (float) (10 * Math.log10(power))) : MeterReading.FLOOR_DB;
+    }
+
+    @Override
+    public void process(float[] data, int frames, int channels) {
+        if (!mEnabled) {
+            return;
+        }
+        if (++mSkipped < mPublishInterval) {
+            return;
+        }
+        mSkipped = 0;
+        int count = frames * channels;
+        double sum = 0;
+        float peak = 0f;
+        for (int i = 0; i < count; i++) {
+            float v = data[i];
+            sum += v * v;
+            float a = Math.abs(v);
+            if (a > peak) {
+                peak = a;
+            }
+        }
+        mBlocks += mPublishInterval;
+        if (mBlocks >= SPECTRUM_DECIMATION) {
+            mBlocks = 0;
+            spectrum(data, frames, channels);
+        }
+
+        MeterReading r = mExchange.beginWrite();
+        r.rmsDb = db(count > 0 ? sum / count : 0);
+        r.peakDb = db(peak * peak);
+        System.arraycopy(mBandsDb, 0, r.bandsDb, 0, MeterReading.BANDS);
+        mExchange.publish();
+    }
+
+    private void spectrum(float[] data, int frames, int channels) {
+        int n = Math.min(frames, FFT_SIZE);
+        float scale = 1f / channels;
+        for (int i = 0; i < n; i++) {
+            float mono = 0f;
+            for (int c = 0; c < channels; c++) {
+                mono += data[i * channels + c];
+            }
+            mRe[i] = mono * scale * mWindow[i];
+        }
+        Arrays.fill(mRe, n, FFT_SIZE, 0f);
+        Arrays.fill(mIm, 0f);
+        mFft.forward(mRe, mIm);
+        float norm = 4f / (FFT_SIZE * FFT_SIZE);
+        for (int b = 0; b < MeterReading.BANDS; b++) {
+            double power = 0;
+            int end = Math.max(mBandEdges[b] + 1, mBandEdges[b + 1]);
+            for (int k = mBandEdges[b]; k < end; k++) {
+                power += mRe[k] * mRe[k] + mIm[k] * mIm[k];
+            }
+            mBandsDb[b] = db(power * norm);
+        }
+    }
+
+    /**
+     * Publishes a silent reading without looking at any samples, for gated blocks.
+     */
+    public void publishSilence() {
+        if (!mEnabled) {
+            return;
+        }
+        Arrays.fill(mBandsDb, MeterReading.FLOOR_DB);
+        MeterReading r = mExchange.beginWrite();
+        r.rmsDb = MeterReading.FLOOR_DB;
+        r.peakDb = MeterReading.FLOOR_DB;
+        Arrays.fill(r.bandsDb, MeterReading.FLOOR_DB);
+        mExchange.publish();
+    }
+
+    @Override
+    public void reset() {
+        mBlocks = 0;
+        mSkipped = 0;
+        Arrays.fill(mBandsDb, MeterReading.FLOOR_DB);
+    }
+}
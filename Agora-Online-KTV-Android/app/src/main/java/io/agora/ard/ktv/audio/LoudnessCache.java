@@ -0,0 +1,131 @@
+package io.agora.ard.ktv.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent media URL to normalization gain table, memory-mapped.
+ * <p>
+ * Layout: a 16 byte header (magic, version, capacity) followed by fixed 16 byte slots of
+ * (64-bit FNV-1a hash of the URL, gain dB, measured LUFS), open addressing with linear
+ * probing. A full probe sequence overwrites its first slot, so the file never grows.
+ * The file is mapped on first use; if that fails the cache just stays empty.
+ */
+public class LoudnessCache {
+    private final static Logger log = LoggerFactory.getLogger(LoudnessCache.class);
+
+    private static final int MAGIC = 0x4B54564C; // KTVL
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_PROBES = 16;
+
+    private final File mFile;
+    private final int mCapacity;
+    private MappedByteBuffer mMap;
+    private boolean mOpened;
+
+    /**
+     * @param capacity number of slots, a power of two
+     */
+    public LoudnessCache(File file, int capacity) {
+        if ((capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.mFile = file;
+        this.mCapacity = capacity;
+    }
+
+    private MappedByteBuffer map() {
+        if (mOpened) {
+            return mMap;
+        }
+        mOpened = true;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            long size = HEADER_BYTES + (long) mCapacity * SLOT_BYTES;
+            boolean fresh = raf.length() != size;
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != mCapacity) {
+                for (int i = 0; i < size; i += 8) {
+                    map.putLong(i, 0L);
+                }
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, mCapacity);
+            }
+            mMap = map;
+        } catch (IOException e) {
+            log.warn("loudness cache unavailable " + mFile, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close(); // the mapping stays valid
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return mMap;
+    }
+
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h; // 0 marks an empty slot
+    }
+
+    /**
+     * @return cached gain in dB, or NaN if the URL was never measured
+     */
+    public synchronized float getGainDb(String url) {
+        MappedByteBuffer map = map();
+        if (map == null) {
+            return Float.NaN;
+        }
+        long h = hash(url);
+        int mask = mCapacity - 1;
+        for (int p = 0; p < MAX_PROBES; p++) {
+            int off = HEADER_BYTES + (((int) h + p) & mask) * SLOT_BYTES;
+            long stored = map.getLong(off);
+            if (stored == h) {
+                return map.getFloat(off + 8);
+            }
+            if (stored == 0) {
+                break;
+            }
+        }
+        return Float.NaN;
+    }
+
+    public synchronized void put(String url, float gainDb, float lufs) {
+        MappedByteBuffer map = map();
+        if (map == null) {
+            return;
+        }
+        long h = hash(url);
+        int mask = mCapacity - 1;
+        int target = HEADER_BYTES + ((int) h & mask) * SLOT_BYTES;
+        for (int p = 0; p < MAX_PROBES; p++) {
+            int off = HEADER_BYTES + (((int) h + p) & mask) * SLOT_BYTES;
+            long stored = map.getLong(off);
+            if (stored == h || stored == 0) {
+                target = off;
+                break;
+            }
+        }
+        map.putFloat(target + 8, gainDb);
+        map.putFloat(target + 12, lufs);
+        map.putLong(target, h);
+    }
+}
@@ -0,0 +1,154 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.audio.effect.Biquad;
+
+/**
+ * Incremental integrated loudness (EBU R128 / ITU-R BS.1770) of a stereo stream.
+ * <p>
+ * Samples are K-weighted, mean square energy is collected in 100 ms steps and every 400 ms
+ * window (75% overlap) lands in a 0.1 LU histogram. The gated integrated loudness can be read
+ * at any time from the histogram, so memory stays constant however long the song is.
+ * The K-weighting coefficients are the BS.1770 ones for 48 kHz.
+ */
+public class LoudnessMeter {
+    public static final float SILENCE_LUFS = -70f;
+
+    private static final float MAX_LUFS = 5f;
+    private static final float BIN_LU = 0.1f;
+    private static final int BINS = (int) ((MAX_LUFS - SILENCE_LUFS) / BIN_LU);
+    private static final int STEPS_PER_BLOCK = 4;
+    private static final float RELATIVE_GATE_LU = -10f;
+
+    private static final double[] BIN_ENERGY = new double[BINS];
+
+    static {
+        for (int i = 0; i < BINS; i++) {
+            BIN_ENERGY[i] = energy(SILENCE_LUFS + (i + 0.5f) * BIN_LU);
+        }
+    }
+
+    private final Biquad mShelf;
+    private final Biquad mHighPass;
+    private final int mStepFrames;
+    private final double[] mSteps = new double[STEPS_PER_BLOCK];
+    private final long[] mHistogram = new long[BINS];
+    private float[] mWeighted;
+
+    private int mStepIndex;
+    private int mStepsSeen;
+    private int mStepFill;
+    private double mStepSum;
+
+    public LoudnessMeter(int sampleRate, int channels, int maxSamples) {
+        mShelf = new Biquad(channels);
+        mShelf.setCoefficients(1.53512485958697, -2.69169618940638, 1.19839281085285,
+                -1.69065929318241, 0.73248077421585);
+        mHighPass = new Biquad(channels);
+        mHighPass.setCoefficients(1.0, -2.0, 1.0, -1.99004745483398, 0.99007225036621);
+        mStepFrames = sampleRate / 10;
+        mWeighted = new float[maxSamples];
+    }
+
+    private static double energy(float lufs) {
+        return Math.pow(10, (lufs + 0.691) / 10d);
+    }
+
+    private static float lufs(double energy) {
+        return (float) (-0.691 + 10 * Math.log10(energy));
+    }
+
+    /**
+     * Measures without touching data.
+     */
+    public void add(float[] data, int frames, int channels) {
+        int count = frames * channels;
+        if (mWeighted.length < count) {
+            mWeighted = new float[count];
+        }
+        float[] w = mWeighted;
+        System.arraycopy(data, 0, w, 0, count);
+        mShelf.process(w, frames);
+        mHighPass.process(w, frames);
+
+        for (int i = 0; i < frames; i++) {
+            int base = i * channels;
+            for (int c = 0; c < channels; c++) {
+                mStepSum += w[base + c] * w[base + c];
+            }
+            if (++mStepFill == mStepFrames) {
+                closeStep();
+            }
+        }
+    }
+
+    private void closeStep() {
+        mSteps[mStepIndex] = mStepSum / mStepFrames;
+        mStepIndex = (mStepIndex + 1) % STEPS_PER_BLOCK;
+        mStepSum = 0;
+        mStepFill = 0;
+        if (++mStepsSeen < STEPS_PER_BLOCK) {
+            return;
+        }
+        double block = 0;
+        for (int i = 0; i < STEPS_PER_BLOCK; i++) {
+            block += mSteps[i];
+        }
+        block /= STEPS_PER_BLOCK;
+        if (block <= 0) {
+            return;
+        }
+        int bin = (int) ((lufs(block) - SILENCE_LUFS) / BIN_LU);
+        if (bin >= 0) {
+            mHistogram[bin < BINS ? bin : BINS - 1]++;
+        }
+    }
+
+    /**
+     * @return gated integrated loudness in LUFS, {@link #SILENCE_LUFS} if nothing was above
+     * the absolute gate yet
+     */
+    public float integratedLufs() {
+        double sum = 0;
+        long n = 0;
+        for (int i = 0; i < BINS; i++) {
+            sum += mHistogram[i] * BIN_ENERGY[i];
+            n += mHistogram[i];
+        }
+        if (n == 0) {
+            return SILENCE_LUFS;
+        }
+        float gate = lufs(sum / n) + RELATIVE_GATE_LU;
+        int start = Math.max(0, (int) ((gate - SILENCE_LUFS) / BIN_LU));
+        sum = 0;
+        n = 0;
+        for (int i = start; i < BINS; i++) {
+            sum += mHistogram[i] * BIN_ENERGY[i];
+            n += mHistogram[i];
+        }
+        return n == 0 ? SILENCE_LUFS : lufs(sum / n);
+    }
+
+    /**
+     * @return seconds of audio above the absolute gate measured so far
+     */
+    public float measuredSeconds() {
+        long n = 0;
+        for (int i = 0; i < BINS; i++) {
+            n += mHistogram[i];
+        }
+        return n / 10f;
+    }
+
+    public void reset() {
+        mShelf.reset();
+        mHighPass.reset();
+        Arrays.fill(mSteps, 0);
+        Arrays.fill(mHistogram, 0);
+        mStepIndex = 0;
+        mStepsSeen = 0;
+        mStepFill = 0;
+        mStepSum = 0;
+    }
+}
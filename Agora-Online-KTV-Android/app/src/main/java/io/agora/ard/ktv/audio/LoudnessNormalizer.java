@@ -0,0 +1,75 @@
+package io.agora.ard.ktv.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.agora.ard.ktv.analysis.SongSidecar;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+
+/**
+ * Finds the gain that brings a song to {@link #TARGET_LUFS}, for the player's accompaniment
+ * volume (see {@link io.agora.ard.ktv.model.AccompanyVolume}).
+ * <p>
+ * KTVKit keeps the decoded song in native code, so nothing is measured while it plays. The
+ * loudness comes from the song's {@link SongSidecar}, written by the batch analyser, and the
+ * gain is kept in the {@link LoudnessCache} so a replay does not open the sidecar again. A song
+ * with neither plays at unity gain.
+ * <p>
+ * The cache and the sidecar are only touched on the runtime's I/O lane, which also calls the
+ * {@link Listener}.
+ */
+public class LoudnessNormalizer {
+    private final static Logger log = LoggerFactory.getLogger(LoudnessNormalizer.class);
+
+    // leaves room for the voice on top of the accompaniment
+    public static final float TARGET_LUFS = -18f;
+
+    private static final float MIN_GAIN_DB = -12f;
+    private static final float MAX_GAIN_DB = 6f;
+
+    public interface Listener {
+        /**
+         * @param gain linear, 1 when the song's loudness is not known
+         */
+        void onSongGain(String url, float gain);
+    }
+
+    private final LoudnessCache mCache;
+    private final Gauge mGainGauge = Metrics.gauge("audio.loudness.gain_centi_db");
+
+    public LoudnessNormalizer(LoudnessCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Looks the song up in the cache, then in its sidecar, on the I/O lane.
+     */
+    public void startSong(final String url, final Listener listener) {
+        KtvRuntime.get().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                float gainDb = mCache.getGainDb(url);
+                if (Float.isNaN(gainDb)) {
+                    SongSidecar sidecar = SongSidecar.forMedia(url);
+                    if (sidecar != null) {
+                        float lufs = sidecar.integratedLufs();
+                        gainDb = gainDbFor(lufs);
+                        mCache.put(url, gainDb, lufs);
+                    }
+                }
+                log.debug("startSong " + url + " gain " + gainDb + " dB");
+                if (Float.isNaN(gainDb)) {
+                    gainDb = 0f;
+                }
+                mGainGauge.set((long) (gainDb * 100));
+                listener.onSongGain(url, (float) Math.pow(10, gainDb / 20d));
+            }
+        });
+    }
+
+    static float gainDbFor(float lufs) {
+        return Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, TARGET_LUFS - lufs));
+    }
+}
@@ -0,0 +1,44 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free single slot hand over of {@link MeterReading}s from the audio thread to the UI,
+ * a triple buffer.
+ * <p>
+ * The writer fills {@link #beginWrite()} and swaps it in with {@link #publish()}, the reader
+ * takes the newest reading with {@link #poll()}. Neither side ever waits or allocates, and a
+ * slow reader simply skips readings. One writer thread and one reader thread only.
+ */
+public final class MeterExchange {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final MeterReading[] mBuffers = new MeterReading[]{
+            new MeterReading(), new MeterReading(), new MeterReading()};
+    // index of the middle buffer, plus FRESH when it holds an unread reading
+    private final AtomicInteger mState = new AtomicInteger(1);
+    private int mBack = 0; // writer side
+    private int mFront = 2; // reader side
+    private long mSequence;
+
+    public MeterReading beginWrite() {
+        return mBuffers[mBack];
+    }
+
+    public void publish() {
+        mBuffers[mBack].sequence = ++mSequence;
+        mBack = mState.getAndSet(mBack | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * @return the newest reading, or null if nothing was published since the last poll
+     */
+    public MeterReading poll() {
+        if ((mState.get() & FRESH) == 0) {
+            return null;
+        }
+        mFront = mState.getAndSet(mFront) & INDEX_MASK;
+        return mBuffers[mFront];
+    }
+}
@@ -0,0 +1,21 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.Arrays;
+
+/**
+ * One published meter value. Instances are owned by a {@link MeterExchange} and reused; a
+ * reading returned by {@link MeterExchange#poll()} stays valid until the next poll.
+ */
+public final class MeterReading {
+    public static final int BANDS = 16;
+    public static final float FLOOR_DB = -90f;
+
+    public float rmsDb = FLOOR_DB;
+    public float peakDb = FLOOR_DB;
+    public final float[] bandsDb = new float[BANDS];
+    public long sequence;
+
+    MeterReading() {
+        Arrays.fill(bandsDb, FLOOR_DB);
+    }
+}
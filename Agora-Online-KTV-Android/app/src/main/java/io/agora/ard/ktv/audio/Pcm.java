@@ -0,0 +1,39 @@
+package io.agora.ard.ktv.audio;
+
+/**
+ * Conversion between the engine's 16-bit little endian PCM and the float samples used inside
+ * the audio pipeline. Floats are in [-1, 1), interleaved exactly like the source bytes.
+ */
+public final class Pcm {
+    private static final float SCALE = 1f / 32768f;
+
+    private Pcm() {
+    }
+
+    /**
+     * @param count number of samples (all channels), not bytes
+     */
+    public static void toFloat(byte[] src, int count, float[] dst) {
+        for (int i = 0, b = 0; i < count; i++, b += 2) {
+            dst[i] = (short) ((src[b] & 0xFF) | (src[b + 1] << 8)) * SCALE;
+        }
+    }
+
+    /**
+     * Writes the samples back with hard clipping.
+     *
+     * @param count number of samples (all channels), not bytes
+     */
+    public static void toPcm16(float[] src, int count, byte[] dst) {
+        for (int i = 0, b = 0; i < count; i++, b += 2) {
+            int v = (int) (src[i] * 32768f);
+            if (v > Short.MAX_VALUE) {
+                v = Short.MAX_VALUE;
+            } else if (v < Short.MIN_VALUE) {
+                v = Short.MIN_VALUE;
+            }
+            dst[b] = (byte) v;
+            dst[b + 1] = (byte) (v >> 8);
+        }
+    }
+}
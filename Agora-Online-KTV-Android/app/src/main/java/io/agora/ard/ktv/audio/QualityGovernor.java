@@ -0,0 +1,199 @@
+package io.agora.ard.ktv.audio;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.runtime.PowerSensors;
+
+/**
+ * Steps optional audio processing down when the device runs hot, low on battery or short of
+ * callback time, and back up when it recovers, so a long session loses some polish instead of
+ * glitching.
+ * <p>
+ * Every sample ({@link #start}) rates three signals from 0 (fine) to 3 (critical): callback
+ * load from {@link CallbackLoad}, battery temperature, and battery level with power save
+ * mode. The worst of them is the tier the device can afford. A worse tier is taken after two
+ * samples in a row, or at once if callbacks are already running late. A better tier is only
+ * taken one step at a time after {@link #UP_SAMPLES} samples in a row that are fine even
+ * against stricter thresholds, which keeps a device hovering at a limit from switching back
+ * and forth. What each tier turns down is up to the {@link Listener}; see
+ * {@link KtvAudioPipeline#applyQualityTier}.
+ * <p>
+ * Tier changes count in {@code power.tier.down} / {@code power.tier.up}, the current tier
+ * and the inputs are the {@code power.*} gauges.
+ */
+public class QualityGovernor {
+    private static final EventLog.Event EV_TIER = EventLog.event(EventLog.INFO, "governor: tier {} -> {}, stress {}");
+
+    public static final int TIER_FULL = 0;
+    public static final int TIER_REDUCED = 1;
+    public static final int TIER_LOW = 2;
+    public static final int TIER_MINIMAL = 3;
+
+    static final int DOWN_SAMPLES = 2;
+    static final int UP_SAMPLES = 15;
+
+    // thresholds for stress 1, 2, 3
+    private static final int[] LOAD_PCT = new int[]{25, 40, 60}; // average callback, % of period
+    private static final int[] LATE_PER_MILLE = new int[]{2, 5, 20};
+    private static final int[] TEMPERATURE_DECI_C = new int[]{390, 420, 450};
+    private static final int[] BATTERY_PCT = new int[]{15, 5}; // when not charging
+    // how much better a sample must be to count towards stepping up
+    private static final int UP_LOAD_MARGIN_PCT = 20;
+    private static final int UP_TEMPERATURE_MARGIN = 20;
+    private static final int UP_BATTERY_MARGIN = 5;
+
+    /**
+     * Called on the governor's lane when the tier changes, and once from {@link #start}.
+     */
+    public interface Listener {
+        void onTierChanged(int tier);
+    }
+
+    private final PowerSensors mSensors;
+    private final CallbackLoad mLoad;
+    private final Listener mListener;
+    private final PowerSensors.Reading mReading = new PowerSensors.Reading();
+    private final int[] mLoadSample = new int[3];
+
+    private volatile int mTier = TIER_FULL;
+    private int mDownCount;
+    private int mUpCount;
+    private Lane.Task mTask;
+
+    private final Counter mDown = Metrics.counter("power.tier.down");
+    private final Counter mUp = Metrics.counter("power.tier.up");
+    private final Gauge mTierGauge = Metrics.gauge("power.tier");
+    private final Gauge mLoadGauge = Metrics.gauge("power.load_pct");
+    private final Gauge mLateGauge = Metrics.gauge("power.late_per_mille");
+    private final Gauge mTemperatureGauge = Metrics.gauge("power.temperature_deci_c");
+    private final Gauge mBatteryGauge = Metrics.gauge("power.battery_pct");
+
+    public QualityGovernor(PowerSensors sensors, CallbackLoad load, Listener listener) {
+        mSensors = sensors;
+        mLoad = load;
+        mListener = listener;
+    }
+
+    /**
+     * Samples every {@code periodMs} on {@code lane}, starting from {@link #TIER_FULL}.
+     */
+    public synchronized void start(Lane lane, long periodMs) {
+        stop();
+        mTier = TIER_FULL;
+        mDownCount = 0;
+        mUpCount = 0;
+        mTierGauge.set(TIER_FULL);
+        mListener.onTierChanged(TIER_FULL);
+        mLoad.drain(mLoadSample);
+        mTask = lane.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, periodMs, periodMs);
+    }
+
+    public synchronized void stop() {
+        if (mTask != null) {
+            mTask.cancel();
+            mTask = null;
+        }
+    }
+
+    public int tier() {
+        return mTier;
+    }
+
+    synchronized void sample() {
+        mSensors.read(mReading);
+        mLoad.drain(mLoadSample);
+        mLoadGauge.set(mLoadSample[1]);
+        mLateGauge.set(mLoadSample[2]);
+        mTemperatureGauge.set(mReading.temperatureDeciC);
+        mBatteryGauge.set(mReading.batteryPercent);
+        evaluate(mReading, mLoadSample[1], mLoadSample[2]);
+    }
+
+    /**
+     * One decision step, on the sampling thread.
+     */
+    void evaluate(PowerSensors.Reading r, int loadPct, int latePerMille) {
+        int loadStress = loadStress(loadPct, latePerMille, 0);
+        int stress = Math.max(loadStress, Math.max(temperatureStress(r, 0), batteryStress(r, 0)));
+        int tier = mTier;
+        if (stress > tier) {
+            mUpCount = 0;
+            if (++mDownCount >= DOWN_SAMPLES || loadStress == TIER_MINIMAL) {
+                setTier(stress, stress);
+            }
+            return;
+        }
+        mDownCount = 0;
+        int relaxed = Math.max(loadStress(loadPct, latePerMille, UP_LOAD_MARGIN_PCT),
+                Math.max(temperatureStress(r, UP_TEMPERATURE_MARGIN), batteryStress(r, UP_BATTERY_MARGIN)));
+        if (relaxed < tier) {
+            if (++mUpCount >= UP_SAMPLES) {
+                setTier(tier - 1, relaxed);
+            }
+        } else {
+            mUpCount = 0;
+        }
+    }
+
+    private void setTier(int tier, int stress) {
+        EventLog.log(EV_TIER, mTier, tier, stress);
+        if (tier > mTier) {
+            mDown.inc();
+        } else {
+            mUp.inc();
+        }
+        mTier = tier;
+        mDownCount = 0;
+        mUpCount = 0;
+        mTierGauge.set(tier);
+        mListener.onTierChanged(tier);
+    }
+
+    private static int level(int value, int[] thresholds, int margin) {
+        int stress = 0;
+        for (int i = 0; i < thresholds.length; i++) {
+            if (value >= thresholds[i] - margin) {
+                stress = i + 1;
+            }
+        }
+        return stress;
+    }
+
+    /**
+     * @param marginPct thresholds lowered by this share of themselves
+     */
+    private static int loadStress(int loadPct, int latePerMille, int marginPct) {
+        int stress = 0;
+        for (int i = 0; i < LOAD_PCT.length; i++) {
+            if (loadPct >= LOAD_PCT[i] * (100 - marginPct) / 100
+                    || latePerMille >= LATE_PER_MILLE[i] * (100 - marginPct) / 100) {
+                stress = i + 1;
+            }
+        }
+        return stress;
+    }
+
+    private static int temperatureStress(PowerSensors.Reading r, int margin) {
+        return r.temperatureDeciC == PowerSensors.UNKNOWN ? 0 : level(r.temperatureDeciC, TEMPERATURE_DECI_C, margin);
+    }
+
+    private static int batteryStress(PowerSensors.Reading r, int margin) {
+        int stress = r.powerSave ? 1 : 0;
+        if (!r.charging) {
+            for (int i = 0; i < BATTERY_PCT.length; i++) {
+                if (r.batteryPercent <= BATTERY_PCT[i] + margin) {
+                    stress = Math.max(stress, i + 1);
+                }
+            }
+        }
+        return stress;
+    }
+}
@@ -0,0 +1,125 @@
+package io.agora.ard.ktv.audio;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Cheap per block voice activity decision for the mic path.
+ * <p>
+ * Block energy is read straight from the 16-bit PCM and compared with an adaptive noise
+ * floor. Blocks clearly above the floor count as voice right away; blocks only moderately
+ * above it are checked for spectral flatness as well (voice is tonal, fans and hiss are
+ * flat), which is the only case where an FFT runs. A hangover keeps the decision on for a
+ * while after the last voiced block so word endings are not chopped; effect tails are left
+ * to the caller.
+ */
+public class VoiceActivityDetector {
+    private static final int FFT_SIZE = 512;
+    private static final float MIN_FLOOR_DB = -80f;
+    private static final float FLOOR_RISE_DB = 0.05f; // per block, floor follows slowly upwards
+    private static final float LOUD_MARGIN_DB = 20f;
+    private static final float VOICE_MARGIN_DB = 9f;
+    private static final float MAX_FLATNESS = 0.5f;
+
+    private final Fft mFft = new Fft(FFT_SIZE);
+    private final float[] mRe = new float[FFT_SIZE];
+    private final float[] mIm = new float[FFT_SIZE];
+    private final float[] mWindow = new float[FFT_SIZE];
+    private final int mHangoverBlocks;
+
+    private float mNoiseFloorDb = -60f;
+    private int mHangover;
+    private boolean mVoiced;
+
+    private final Counter mVoicedBlocks = Metrics.counter("audio.vad.voiced_blocks");
+    private final Counter mSilentBlocks = Metrics.counter("audio.vad.silent_blocks");
+    private final Gauge mFloorGauge = Metrics.gauge("audio.vad.noise_floor_db");
+
+    /**
+     * @param hangoverBlocks blocks to stay active after the last voiced one
+     */
+    public VoiceActivityDetector(int hangoverBlocks) {
+        mHangoverBlocks = hangoverBlocks;
+        for (int i = 0; i < FFT_SIZE; i++) {
+            mWindow[i] = (float) (0.5 * (1 - Math.cos(2 * Math.PI * i / FFT_SIZE)));
+        }
+    }
+
+    /**
+     * @return true if the block (or the hangover after it) contains voice
+     */
+    public boolean detect(byte[] pcm, int numOfSamples, int channels) {
+        int count = numOfSamples * channels;
+        double sum = 0;
+        for (int b = 0, end = count * 2; b < end; b += 2) {
+            int v = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8));
+            sum += v * v;
+        }
+        float db = (float) (10 * Math.log10(sum / count / (32768d * 32768d) + 1e-12));
+
+        boolean voice;
+        if (db > mNoiseFloorDb + LOUD_MARGIN_DB) {
+            voice = true;
+        } else if (db > mNoiseFloorDb + VOICE_MARGIN_DB) {
+            voice = flatness(pcm, numOfSamples, channels) < MAX_FLATNESS;
+        } else {
+            voice = false;
+        }
+
+        // the floor drops at once to quieter blocks and creeps up otherwise
+        if (db < mNoiseFloorDb) {
+            mNoiseFloorDb = Math.max(MIN_FLOOR_DB, db);
+        } else if (!voice) {
+            mNoiseFloorDb += FLOOR_RISE_DB;
+        }
+        mFloorGauge.set((long) mNoiseFloorDb);
+
+        if (voice) {
+            mHangover = mHangoverBlocks;
+        } else if (mHangover > 0) {
+            mHangover--;
+            voice = true;
+        }
+        mVoiced = voice;
+        if (voice) {
+            mVoicedBlocks.inc();
+        } else {
+            mSilentBlocks.inc();
+        }
+        return voice;
+    }
+
+    // geometric over arithmetic mean of the power spectrum, 0 for a pure tone, 1 for white noise
+    private float flatness(byte[] pcm, int numOfSamples, int channels) {
+        int frames = Math.min(numOfSamples, FFT_SIZE);
+        for (int i = 0; i < frames; i++) {
+            int b = i * channels * 2;
+            mRe[i] = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * mWindow[i];
+        }
+        Arrays.fill(mRe, frames, FFT_SIZE, 0f);
+        Arrays.fill(mIm, 0f);
+        mFft.forward(mRe, mIm);
+
+        double logSum = 0;
+        double sum = 0;
+        int bins = FFT_SIZE / 2;
+        for (int k = 1; k <= bins; k++) {
+            double p = mRe[k] * mRe[k] + mIm[k] * mIm[k] + 1e-3;
+            logSum += Math.log(p);
+            sum += p;
+        }
+        return (float) (Math.exp(logSum / bins) / (sum / bins));
+    }
+
+    public boolean isVoiced() {
+        return mVoiced;
+    }
+
+    public void reset() {
+        mHangover = 0;
+        mVoiced = false;
+    }
+}
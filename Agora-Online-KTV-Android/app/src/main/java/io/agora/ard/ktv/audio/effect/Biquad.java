@@ -0,0 +1,118 @@
+package io.agora.ard.ktv.audio.effect;
+
+/**
+ * Second order IIR section (RBJ audio EQ cookbook), transposed direct form II, one state pair
+ * per channel.
+ * <p>
+ * The setters publish a new immutable coefficient set that {@link #process} picks up with one
+ * volatile read at the start of its next block, so coefficients can be changed from any
+ * thread without locking the audio thread or tearing a block.
+ */
+public final class Biquad {
+    private static final class Coefficients {
+        final float b0, b1, b2, a1, a2;
+
+        Coefficients(float b0, float b1, float b2, float a1, float a2) {
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+    }
+
+    private static final Coefficients FLAT = new Coefficients(1f, 0f, 0f, 0f, 0f);
+
+    private final int mChannels;
+    private final float[] mZ1;
+    private final float[] mZ2;
+
+    private volatile Coefficients mCoefficients = FLAT;
+
+    public Biquad(int channels) {
+        mChannels = channels;
+        mZ1 = new float[channels];
+        mZ2 = new float[channels];
+    }
+
+    public void setPeaking(float sampleRate, float freq, float q, float gainDb) {
+        double a = Math.pow(10, gainDb / 40d);
+        double w = 2 * Math.PI * freq / sampleRate;
+        double alpha = Math.sin(w) / (2 * q);
+        double cos = Math.cos(w);
+        stage(1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a);
+    }
+
+    public void setLowShelf(float sampleRate, float freq, float gainDb) {
+        shelf(sampleRate, freq, gainDb, true);
+    }
+
+    public void setHighShelf(float sampleRate, float freq, float gainDb) {
+        shelf(sampleRate, freq, gainDb, false);
+    }
+
+    public void setHighPass(float sampleRate, float freq, float q) {
+        double w = 2 * Math.PI * freq / sampleRate;
+        double alpha = Math.sin(w) / (2 * q);
+        double cos = Math.cos(w);
+        stage((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Raw coefficients, already normalized to a0 = 1.
+     */
+    public void setCoefficients(double b0, double b1, double b2, double a1, double a2) {
+        stage(b0, b1, b2, 1, a1, a2);
+    }
+
+    public void setFlat() {
+        mCoefficients = FLAT;
+    }
+
+    // shelf slope S = 1
+    private void shelf(float sampleRate, float freq, float gainDb, boolean low) {
+        double a = Math.pow(10, gainDb / 40d);
+        double w = 2 * Math.PI * freq / sampleRate;
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / 2 * Math.sqrt(2);
+        double sq = 2 * Math.sqrt(a) * alpha;
+        double s = low ? 1 : -1;
+        stage(a * ((a + 1) - s * (a - 1) * cos + sq),
+                s * 2 * a * ((a - 1) - s * (a + 1) * cos),
+                a * ((a + 1) - s * (a - 1) * cos - sq),
+                (a + 1) + s * (a - 1) * cos + sq,
+                -s * 2 * ((a - 1) + s * (a + 1) * cos),
+                (a + 1) + s * (a - 1) * cos - sq);
+    }
+
+    private void stage(double b0, double b1, double b2, double a0, double a1, double a2) {
+        mCoefficients = new Coefficients((float) (b0 / a0), (float) (b1 / a0), (float) (b2 / a0),
+                (float) (a1 / a0), (float) (a2 / a0));
+    }
+
+    public void process(float[] data, int frames) {
+        final Coefficients k = mCoefficients;
+        final int channels = mChannels;
+        final float b0 = k.b0, b1 = k.b1, b2 = k.b2, a1 = k.a1, a2 = k.a2;
+        for (int c = 0; c < channels; c++) {
+            float z1 = mZ1[c];
+            float z2 = mZ2[c];
+            for (int i = c, end = frames * channels; i < end; i += channels) {
+                float x = data[i];
+                float y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                data[i] = y;
+            }
+            mZ1[c] = z1;
+            mZ2[c] = z2;
+        }
+    }
+
+    public void reset() {
+        for (int c = 0; c < mChannels; c++) {
+            mZ1[c] = 0f;
+            mZ2[c] = 0f;
+        }
+    }
+}
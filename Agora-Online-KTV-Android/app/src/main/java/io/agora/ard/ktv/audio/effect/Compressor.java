@@ -0,0 +1,133 @@
+package io.agora.ard.ktv.audio.effect;
+
+import io.agora.ard.ktv.audio.AudioProcessor;
+
+/**
+ * Stereo linked feed-forward compressor followed by a hard ceiling limiter.
+ * <p>
+ * The gain is computed from a peak envelope with separate attack and release and is itself
+ * smoothed, so parameter changes from {@link #configure} glide instead of stepping. The
+ * envelope, smoothing and limiter run per sample; the gain the envelope asks for, the only
+ * part that needs a log and a power, is worked out every {@link #CONTROL_FRAMES} frames
+ * (a third of a millisecond at 48 kHz), which the 5 ms gain smoothing cannot tell apart from
+ * doing it per sample. {@link #configure} publishes an immutable parameter set that the audio
+ * thread picks up with one volatile read per block.
+ */
+public class Compressor implements AudioProcessor {
+    private static final float GAIN_SMOOTH_MS = 5f;
+    private static final int CONTROL_FRAMES = 16;
+
+    private static final class Settings {
+        final float thresholdDb;
+        final float slope; // 1 - 1 / ratio
+        final float attackCoef;
+        final float releaseCoef;
+        final float makeup;
+        final float ceiling;
+
+        Settings(float thresholdDb, float slope, float attackCoef, float releaseCoef, float makeup, float ceiling) {
+            this.thresholdDb = thresholdDb;
+            this.slope = slope;
+            this.attackCoef = attackCoef;
+            this.releaseCoef = releaseCoef;
+            this.makeup = makeup;
+            this.ceiling = ceiling;
+        }
+    }
+
+    private final float mSampleRate;
+    private final float mGainCoef;
+
+    private volatile Settings mSettings;
+
+    private float mEnvelope;
+    private float mGain = 1f;
+    private float mTarget = 1f;
+    private int mUntilControl;
+
+    public Compressor(int sampleRate) {
+        mSampleRate = sampleRate;
+        mGainCoef = coef(GAIN_SMOOTH_MS);
+        configure(0f, 1f, 5f, 100f, 0f, 0f);
+    }
+
+    private float coef(float ms) {
+        return (float) Math.exp(-1000d / (ms * mSampleRate));
+    }
+
+    /**
+     * @param thresholdDb level above which the compressor acts, dBFS
+     * @param ratio       input/output slope above the threshold, 1 for none
+     * @param makeupDb    gain after compression
+     * @param ceilingDb   limiter ceiling, dBFS
+     */
+    public void configure(float thresholdDb, float ratio, float attackMs, float releaseMs,
+                          float makeupDb, float ceilingDb) {
+        mSettings = new Settings(thresholdDb, 1f - 1f / Math.max(1f, ratio), coef(attackMs), coef(releaseMs),
+                (float) Math.pow(10, makeupDb / 20d), (float) Math.pow(10, ceilingDb / 20d));
+    }
+
+    private static float targetGain(Settings s, float env) {
+        float target = s.makeup;
+        if (env > 1e-6f && s.slope > 0f) {
+            float overDb = 20f * (float) Math.log10(env) - s.thresholdDb;
+            if (overDb > 0f) {
+                target *= (float) Math.pow(10, -overDb * s.slope / 20f);
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public void process(float[] data, int frames, int channels) {
+        final Settings s = mSettings;
+        final float attack = s.attackCoef;
+        final float release = s.releaseCoef;
+        final float ceiling = s.ceiling;
+        final float gainCoef = mGainCoef;
+        float env = mEnvelope;
+        float gain = mGain;
+        float target = mTarget;
+        int untilControl = mUntilControl;
+        for (int i = 0; i < frames; i++) {
+            int base = i * channels;
+            float peak = 0f;
+            for (int c = 0; c < channels; c++) {
+                float a = Math.abs(data[base + c]);
+                if (a > peak) {
+                    peak = a;
+                }
+            }
+            float coef = peak > env ? attack : release;
+            env = coef * env + (1f - coef) * peak;
+
+            if (--untilControl <= 0) {
+                target = targetGain(s, env);
+                untilControl = CONTROL_FRAMES;
+            }
+            gain = gainCoef * gain + (1f - gainCoef) * target;
+
+            for (int c = 0; c < channels; c++) {
+                float y = data[base + c] * gain;
+                if (y > ceiling) {
+                    y = ceiling;
+                } else if (y < -ceiling) {
+                    y = -ceiling;
+                }
+                data[base + c] = y;
+            }
+        }
+        mEnvelope = env;
+        mGain = gain;
+        mTarget = target;
+        mUntilControl = untilControl;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0f;
+        mGain = mSettings.makeup;
+        mTarget = mGain;
+        mUntilControl = 0;
+    }
+}
@@ -0,0 +1,76 @@
+package io.agora.ard.ktv.audio.effect;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.audio.AudioProcessor;
+
+/**
+ * Wraps one effect so it can be switched on and off mid-stream without a click.
+ * <p>
+ * Switching crossfades between the dry and the processed signal over one block. Once faded
+ * out the effect is not called at all, which is the bypass fast path; it is reset before it
+ * fades back in so no stale tail leaks through.
+ */
+public final class EffectSlot implements AudioProcessor {
+    private final AudioProcessor mEffect;
+    private float[] mDry;
+    private volatile boolean mEnabled;
+    private float mMix; // 0 dry .. 1 wet, as of the end of the last block
+
+    public EffectSlot(AudioProcessor effect, int maxSamples) {
+        this.mEffect = effect;
+        this.mDry = new float[maxSamples];
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return true while the effect is fully out of the signal path
+     */
+    public boolean isBypassed() {
+        return !mEnabled && mMix == 0f;
+    }
+
+    @Override
+    public void process(float[] data, int frames, int channels) {
+        float target = mEnabled ? 1f : 0f;
+        if (target == 0f && mMix == 0f) {
+            return;
+        }
+        if (target == 1f && mMix == 1f) {
+            mEffect.process(data, frames, channels);
+            return;
+        }
+        if (mMix == 0f) {
+            mEffect.reset();
+        }
+        int count = frames * channels;
+        if (mDry.length < count) {
+            mDry = new float[count];
+        }
+        System.arraycopy(data, 0, mDry, 0, count);
+        mEffect.process(data, frames, channels);
+        float step = (target - mMix) / frames;
+        float mix = mMix;
+        for (int i = 0; i < frames; i++) {
+            mix += step;
+            for (int c = 0; c < channels; c++) {
+                int s = i * channels + c;
+                data[s] = mDry[s] + (data[s] - mDry[s]) * mix;
+            }
+        }
+        mMix = target;
+    }
+
+    @Override
+    public void reset() {
+        mEffect.reset();
+        Arrays.fill(mDry, 0f);
+    }
+}
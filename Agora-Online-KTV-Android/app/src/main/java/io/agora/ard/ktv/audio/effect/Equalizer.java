@@ -0,0 +1,55 @@
+package io.agora.ard.ktv.audio.effect;
+
+import io.agora.ard.ktv.audio.AudioProcessor;
+
+/**
+ * Vocal EQ: rumble high-pass, low shelf, presence peak and air shelf.
+ */
+public class Equalizer implements AudioProcessor {
+    private static final float HIGH_PASS_HZ = 80f;
+    private static final float LOW_SHELF_HZ = 200f;
+    private static final float PRESENCE_HZ = 3000f;
+    private static final float PRESENCE_Q = 1f;
+    private static final float AIR_HZ = 10000f;
+
+    private final float mSampleRate;
+    private final Biquad mHighPass;
+    private final Biquad mLow;
+    private final Biquad mPresence;
+    private final Biquad mAir;
+
+    public Equalizer(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mHighPass = new Biquad(channels);
+        mLow = new Biquad(channels);
+        mPresence = new Biquad(channels);
+        mAir = new Biquad(channels);
+        mHighPass.setHighPass(mSampleRate, HIGH_PASS_HZ, 0.707f);
+        configure(0f, 0f, 0f);
+    }
+
+    /**
+     * Gains in dB, applied from the next block on.
+     */
+    public void configure(float lowDb, float presenceDb, float airDb) {
+        mLow.setLowShelf(mSampleRate, LOW_SHELF_HZ, lowDb);
+        mPresence.setPeaking(mSampleRate, PRESENCE_HZ, PRESENCE_Q, presenceDb);
+        mAir.setHighShelf(mSampleRate, AIR_HZ, airDb);
+    }
+
+    @Override
+    public void process(float[] data, int frames, int channels) {
+        mHighPass.process(data, frames);
+        mLow.process(data, frames);
+        mPresence.process(data, frames);
+        mAir.process(data, frames);
+    }
+
+    @Override
+    public void reset() {
+        mHighPass.reset();
+        mLow.reset();
+        mPresence.reset();
+        mAir.reset();
+    }
+}
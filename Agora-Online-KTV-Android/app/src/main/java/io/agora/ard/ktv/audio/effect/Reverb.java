@@ -0,0 +1,190 @@
+package io.agora.ard.ktv.audio.effect;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.audio.AudioProcessor;
+
+/**
+ * Freeverb style reverb: eight damped feedback combs and four allpasses per channel, the
+ * right channel detuned by a fixed spread for width. Delay lines are sized for the sample
+ * rate in the constructor; the dry signal is kept and the reverb is added on top.
+ * <p>
+ * Wet level changes are ramped over one block, room size and damping are picked up at the
+ * start of the next block. {@link #setCombCount} trades density for CPU: fewer combs give a
+ * grainier tail at about the same level, none passes the signal through dry.
+ */
+public class Reverb implements AudioProcessor {
+    private static final int[] COMB_TUNING = new int[]{1116, 1188, 1277, 1356, 1422, 1491, 1557, 1617};
+    private static final int[] ALLPASS_TUNING = new int[]{556, 441, 341, 225};
+    private static final int STEREO_SPREAD = 23;
+    private static final float TUNING_RATE = 44100f;
+    private static final float FIXED_GAIN = 0.015f;
+    private static final float SCALE_ROOM = 0.28f;
+    private static final float OFFSET_ROOM = 0.7f;
+    private static final float SCALE_DAMP = 0.4f;
+    private static final float ALLPASS_FEEDBACK = 0.5f;
+
+    private static final class Comb {
+        final float[] buffer;
+        int index;
+        float store;
+
+        Comb(int size) {
+            buffer = new float[size];
+        }
+
+        float process(float input, float feedback, float damp) {
+            float output = buffer[index];
+            store = output * (1f - damp) + store * damp;
+            buffer[index] = input + store * feedback;
+            if (++index >= buffer.length) {
+                index = 0;
+            }
+            return output;
+        }
+
+        void clear() {
+            Arrays.fill(buffer, 0f);
+            store = 0f;
+        }
+    }
+
+    private static final class Allpass {
+        final float[] buffer;
+        int index;
+
+        Allpass(int size) {
+            buffer = new float[size];
+        }
+
+        float process(float input) {
+            float buffered = buffer[index];
+            buffer[index] = input + buffered * ALLPASS_FEEDBACK;
+            if (++index >= buffer.length) {
+                index = 0;
+            }
+            return buffered - input;
+        }
+
+        void clear() {
+            Arrays.fill(buffer, 0f);
+        }
+    }
+
+    private final Comb[] mCombL = new Comb[COMB_TUNING.length];
+    private final Comb[] mCombR = new Comb[COMB_TUNING.length];
+    private final Allpass[] mAllpassL = new Allpass[ALLPASS_TUNING.length];
+    private final Allpass[] mAllpassR = new Allpass[ALLPASS_TUNING.length];
+
+    private volatile float mRoomSize = 0.5f;
+    private volatile float mDamping = 0.5f;
+    private volatile float mWetTarget;
+    private volatile float mWidth = 1f;
+    private volatile int mCombCount = COMB_TUNING.length;
+    private float mWet;
+    private int mActiveCombs = COMB_TUNING.length;
+
+    public Reverb(int sampleRate) {
+        float scale = sampleRate / TUNING_RATE;
+        for (int i = 0; i < COMB_TUNING.length; i++) {
+            mCombL[i] = new Comb((int) (COMB_TUNING[i] * scale));
+            mCombR[i] = new Comb((int) ((COMB_TUNING[i] + STEREO_SPREAD) * scale));
+        }
+        for (int i = 0; i < ALLPASS_TUNING.length; i++) {
+            mAllpassL[i] = new Allpass((int) (ALLPASS_TUNING[i] * scale));
+            mAllpassR[i] = new Allpass((int) ((ALLPASS_TUNING[i] + STEREO_SPREAD) * scale));
+        }
+    }
+
+    /**
+     * @param roomSize 0..1
+     * @param damping  0..1, high frequency absorption
+     * @param wet      reverb level added to the dry signal
+     * @param width    0 mono .. 1 full stereo
+     */
+    public void configure(float roomSize, float damping, float wet, float width) {
+        mRoomSize = roomSize;
+        mDamping = damping;
+        mWetTarget = wet;
+        mWidth = width;
+    }
+
+    public static int maxCombs() {
+        return COMB_TUNING.length;
+    }
+
+    /**
+     * @param count combs per channel, 0 .. {@link #maxCombs()}; picked up at the next block
+     */
+    public void setCombCount(int count) {
+        mCombCount = Math.max(0, Math.min(COMB_TUNING.length, count));
+    }
+
+    @Override
+    public void process(float[] data, int frames, int channels) {
+        final int combs = mCombCount;
+        if (combs != mActiveCombs) {
+            // combs coming back in start from silence rather than an old tail
+            for (int c = mActiveCombs; c < combs; c++) {
+                mCombL[c].clear();
+                mCombR[c].clear();
+            }
+            if (mActiveCombs == 0) {
+                for (int a = 0; a < mAllpassL.length; a++) {
+                    mAllpassL[a].clear();
+                    mAllpassR[a].clear();
+                }
+            }
+            mActiveCombs = combs;
+        }
+        if (combs == 0) {
+            return;
+        }
+        final float combGain = (float) Math.sqrt((double) COMB_TUNING.length / combs);
+        final float feedback = mRoomSize * SCALE_ROOM + OFFSET_ROOM;
+        final float damp = mDamping * SCALE_DAMP;
+        final float width = mWidth;
+        final float wetStep = (mWetTarget - mWet) / frames;
+        final boolean stereo = channels >= 2;
+        float wet = mWet;
+        for (int i = 0; i < frames; i++) {
+            int base = i * channels;
+            float inL = data[base];
+            float inR = stereo ? data[base + 1] : inL;
+            float input = (inL + inR) * FIXED_GAIN * combGain;
+
+            float outL = 0f;
+            float outR = 0f;
+            for (int c = 0; c < combs; c++) {
+                outL += mCombL[c].process(input, feedback, damp);
+                outR += mCombR[c].process(input, feedback, damp);
+            }
+            for (int a = 0; a < mAllpassL.length; a++) {
+                outL = mAllpassL[a].process(outL);
+                outR = mAllpassR[a].process(outR);
+            }
+
+            wet += wetStep;
+            float wet1 = wet * (width / 2f + 0.5f);
+            float wet2 = wet * ((1f - width) / 2f);
+            data[base] = inL + outL * wet1 + outR * wet2;
+            if (stereo) {
+                data[base + 1] = inR + outR * wet1 + outL * wet2;
+            }
+        }
+        mWet = wet;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mCombL.length; i++) {
+            mCombL[i].clear();
+            mCombR[i].clear();
+        }
+        for (int i = 0; i < mAllpassL.length; i++) {
+            mAllpassL[i].clear();
+            mAllpassR[i].clear();
+        }
+        mWet = mWetTarget;
+    }
+}
@@ -0,0 +1,74 @@
+package io.agora.ard.ktv.audio.effect;
+
+import io.agora.ard.ktv.audio.AudioChain;
+
+/**
+ * The vocal effect graph: EQ, then compressor/limiter, then reverb.
+ * <p>
+ * Each effect sits in its own {@link EffectSlot} and is added to the voice {@link AudioChain}
+ * as a separate stage, so what every effect costs shows up in its own timing histogram.
+ * {@link #setPreset} may be called from the UI thread while audio is running: parameters are
+ * picked up at block boundaries and switching effects on or off crossfades over one block.
+ */
+public class VoiceEffects {
+    private static final float ATTACK_MS = 5f;
+    private static final float RELEASE_MS = 120f;
+    private static final float CEILING_DB = -1f;
+    private static final float REVERB_WIDTH = 1f;
+
+    private final Equalizer mEqualizer;
+    private final Compressor mCompressor;
+    private final Reverb mReverb;
+    private final EffectSlot mEqSlot;
+    private final EffectSlot mCompressorSlot;
+    private final EffectSlot mReverbSlot;
+
+    private volatile VoicePreset mPreset = VoicePreset.OFF;
+
+    /**
+     * @param maxSamples largest block expected, all channels
+     */
+    public VoiceEffects(int sampleRate, int channels, int maxSamples) {
+        mEqualizer = new Equalizer(sampleRate, channels);
+        mCompressor = new Compressor(sampleRate);
+        mReverb = new Reverb(sampleRate);
+        mEqSlot = new EffectSlot(mEqualizer, maxSamples);
+        mCompressorSlot = new EffectSlot(mCompressor, maxSamples);
+        mReverbSlot = new EffectSlot(mReverb, maxSamples);
+    }
+
+    public void install(AudioChain chain) {
+        chain.add("eq", mEqSlot);
+        chain.add("compressor", mCompressorSlot);
+        chain.add("reverb", mReverbSlot);
+    }
+
+    public void setPreset(VoicePreset preset) {
+        mEqualizer.configure(preset.lowDb, preset.presenceDb, preset.airDb);
+        mCompressor.configure(preset.thresholdDb, preset.ratio, ATTACK_MS, RELEASE_MS,
+                preset.makeupDb, CEILING_DB);
+        mReverb.configure(preset.roomSize, preset.damping, preset.wet, REVERB_WIDTH);
+        mEqSlot.setEnabled(preset.eq);
+        mCompressorSlot.setEnabled(preset.compressor);
+        mReverbSlot.setEnabled(preset.reverb);
+        mPreset = preset;
+    }
+
+    /**
+     * @param combs see {@link Reverb#setCombCount}, the preset's reverb settings are kept
+     */
+    public void setReverbCombs(int combs) {
+        mReverb.setCombCount(combs);
+    }
+
+    public VoicePreset getPreset() {
+        return mPreset;
+    }
+
+    /**
+     * @return true when no effect touches the signal, the caller may skip the chain entirely
+     */
+    public boolean isBypassed() {
+        return mEqSlot.isBypassed() && mCompressorSlot.isBypassed() && mReverbSlot.isBypassed();
+    }
+}
@@ -0,0 +1,57 @@
+package io.agora.ard.ktv.audio.effect;
+
+/**
+ * Named set of vocal effect parameters, see {@link VoiceEffects#setPreset}.
+ */
+public final class VoicePreset {
+    public static final VoicePreset OFF = new VoicePreset("off", false, 0f, 0f, 0f,
+            false, 0f, 1f, 0f, false, 0f, 0f, 0f);
+    public static final VoicePreset KTV = new VoicePreset("ktv", true, -1f, 2f, 2f,
+            true, -18f, 3f, 4f, true, 0.6f, 0.4f, 0.25f);
+    public static final VoicePreset STUDIO = new VoicePreset("studio", true, -2f, 3f, 3f,
+            true, -20f, 4f, 6f, true, 0.3f, 0.6f, 0.12f);
+    public static final VoicePreset HALL = new VoicePreset("hall", true, 0f, 1f, 2f,
+            true, -16f, 2.5f, 3f, true, 0.9f, 0.3f, 0.35f);
+
+    public static final VoicePreset[] ALL = new VoicePreset[]{OFF, KTV, STUDIO, HALL};
+
+    public final String name;
+
+    public final boolean eq;
+    public final float lowDb;
+    public final float presenceDb;
+    public final float airDb;
+
+    public final boolean compressor;
+    public final float thresholdDb;
+    public final float ratio;
+    public final float makeupDb;
+
+    public final boolean reverb;
+    public final float roomSize;
+    public final float damping;
+    public final float wet;
+
+    public VoicePreset(String name, boolean eq, float lowDb, float presenceDb, float airDb,
+                       boolean compressor, float thresholdDb, float ratio, float makeupDb,
+                       boolean reverb, float roomSize, float damping, float wet) {
+        this.name = name;
+        this.eq = eq;
+        this.lowDb = lowDb;
+        this.presenceDb = presenceDb;
+        this.airDb = airDb;
+        this.compressor = compressor;
+        this.thresholdDb = thresholdDb;
+        this.ratio = ratio;
+        this.makeupDb = makeupDb;
+        this.reverb = reverb;
+        this.roomSize = roomSize;
+        this.damping = damping;
+        this.wet = wet;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,119 @@
+package io.agora.ard.ktv.audio.record;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads back a compressed recording (see {@link PerformanceRecorder#COMPRESSED_MAGIC}) as
+ * 16-bit interleaved PCM, one writer block at a time.
+ */
+public final class KwvReader implements Closeable {
+    private final DataInputStream mIn;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrames;
+    private final LosslessCodec mCodec;
+    private byte[] mPayload = new byte[0];
+    private int mFramesRead;
+
+    public KwvReader(File file) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (readIntLe() != PerformanceRecorder.COMPRESSED_MAGIC) {
+                throw new IOException("not a compressed recording " + file);
+            }
+            mSampleRate = readIntLe();
+            mChannels = readShortLe();
+            int bits = readShortLe();
+            mFrames = readIntLe();
+            if ((mChannels != 1 && mChannels != 2) || bits != 16 || mFrames < 0) {
+                throw new IOException("unsupported recording " + file + ": " + mChannels + " channels, " + bits + " bits");
+            }
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+        mCodec = new LosslessCodec(mChannels, PerformanceRecorder.BLOCK_FRAMES);
+    }
+
+    public int sampleRate() {
+        return mSampleRate;
+    }
+
+    public int channels() {
+        return mChannels;
+    }
+
+    /**
+     * @return frames in the file, as patched in when the recording was finished
+     */
+    public int frames() {
+        return mFrames;
+    }
+
+    /**
+     * Bytes {@link #read} needs for one block.
+     */
+    public int maxBlockBytes() {
+        return PerformanceRecorder.BLOCK_FRAMES * mChannels * 2;
+    }
+
+    /**
+     * Decodes the next block into {@code pcm}, at least {@link #maxBlockBytes()} long.
+     *
+     * @return frames decoded, 0 at the end of the recording
+     * @throws IOException on a truncated or corrupt block
+     */
+    public int read(byte[] pcm) throws IOException {
+        if (mFramesRead >= mFrames) {
+            return 0;
+        }
+        int frames = readIntLe();
+        int size = readIntLe();
+        if (frames <= 0 || frames > PerformanceRecorder.BLOCK_FRAMES || frames > mFrames - mFramesRead
+                || size < 0 || size > LosslessCodec.maxEncodedBytes(mChannels, frames)) {
+            throw new IOException("corrupt block at frame " + mFramesRead + ": " + frames + " frames, " + size + " bytes");
+        }
+        if (mPayload.length < size) {
+            mPayload = new byte[LosslessCodec.maxEncodedBytes(mChannels, PerformanceRecorder.BLOCK_FRAMES)];
+        }
+        mIn.readFully(mPayload, 0, size);
+        try {
+            mCodec.decode(mPayload, frames, pcm);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupt block at frame " + mFramesRead, e);
+        }
+        mFramesRead += frames;
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private int readIntLe() throws IOException {
+        int b0 = mIn.read();
+        int b1 = mIn.read();
+        int b2 = mIn.read();
+        int b3 = mIn.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new EOFException();
+        }
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private int readShortLe() throws IOException {
+        int b0 = mIn.read();
+        int b1 = mIn.read();
+        if ((b0 | b1) < 0) {
+            throw new EOFException();
+        }
+        return (short) (b0 | (b1 << 8));
+    }
+}
@@ -0,0 +1,79 @@
+package io.agora.ard.ktv.audio.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append only file writer over a sliding memory mapped window. Appends are plain memory
+ * copies; the kernel writes the pages back on its own schedule, so a slow storage device
+ * shows up as page cache pressure instead of a blocked write call. The file grows one window
+ * at a time and is cut back to the real length on {@link #close}.
+ */
+final class MappedFileWriter implements Closeable {
+    private static final int WINDOW = 4 << 20;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mLength;
+
+    MappedFileWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        map(0);
+    }
+
+    private void map(long start) throws IOException {
+        if (mWindow != null) {
+            mWindow.force();
+        }
+        mWindowStart = start;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, start, WINDOW);
+    }
+
+    void write(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!mWindow.hasRemaining()) {
+                map(mWindowStart + WINDOW);
+            }
+            int n = Math.min(length, mWindow.remaining());
+            mWindow.put(src, offset, n);
+            offset += n;
+            length -= n;
+            mLength += n;
+        }
+    }
+
+    /**
+     * Overwrites already written bytes, for headers that are only known at the end.
+     */
+    void writeAt(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mWindow != null) {
+                mWindow.force();
+                mWindow = null;
+            }
+            mChannel.truncate(mLength);
+        } finally {
+            mFile.close();
+        }
+    }
+}
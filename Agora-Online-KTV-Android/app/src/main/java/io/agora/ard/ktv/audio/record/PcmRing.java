@@ -0,0 +1,81 @@
+package io.agora.ard.ktv.audio.record;
+
+/**
+ * Single producer single consumer byte ring between the audio callback and the recorder's
+ * writer thread. Neither side blocks or allocates; a write that does not fit is refused as a
+ * whole so the stream only ever loses complete blocks.
+ */
+final class PcmRing {
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    private volatile long mWritePos;
+    private volatile long mReadPos;
+
+    /**
+     * @param capacity bytes, a power of two
+     */
+    PcmRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("ring capacity must be a power of two " + capacity);
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if there is not room for all of {@code length}, nothing is written then
+     */
+    boolean offer(byte[] src, int length) {
+        long w = mWritePos;
+        if (length > mBuffer.length - (int) (w - mReadPos)) {
+            return false;
+        }
+        int at = (int) (w & mMask);
+        int first = Math.min(length, mBuffer.length - at);
+        System.arraycopy(src, 0, mBuffer, at, first);
+        if (first < length) {
+            System.arraycopy(src, first, mBuffer, 0, length - first);
+        }
+        mWritePos = w + length;
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return bytes copied into dst, at most {@code max}
+     */
+    int drain(byte[] dst, int max) {
+        long r = mReadPos;
+        int n = Math.min(max, (int) (mWritePos - r));
+        if (n <= 0) {
+            return 0;
+        }
+        int at = (int) (r & mMask);
+        int first = Math.min(n, mBuffer.length - at);
+        System.arraycopy(mBuffer, at, dst, 0, first);
+        if (first < n) {
+            System.arraycopy(mBuffer, 0, dst, first, n - first);
+        }
+        mReadPos = r + n;
+        return n;
+    }
+
+    int available() {
+        return (int) (mWritePos - mReadPos);
+    }
+
+    /**
+     * Consumer side, forgets everything queued.
+     */
+    void skipAll() {
+        mReadPos = mWritePos;
+    }
+}
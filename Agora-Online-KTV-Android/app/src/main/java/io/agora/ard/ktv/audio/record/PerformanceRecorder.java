@@ -0,0 +1,344 @@
+package io.agora.ard.ktv.audio.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.agora.ard.ktv.audio.AudioChain;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.runtime.MemoryBudget;
+
+/**
+ * Records the final mixed mic frames to a file in the background.
+ * <p>
+ * The audio thread only copies each frame into a {@link PcmRing}; a periodic task on the
+ * runtime's I/O lane ({@link KtvRuntime#io()}) drains the ring into a {@link MappedFileWriter}, either as a plain WAV file or, in
+ * compressed mode, as blocks of {@link LosslessCodec} output (see {@link #COMPRESSED_MAGIC}
+ * for the layout). The ring holds several seconds, so storage stalls are absorbed without
+ * touching the audio thread. If the ring does fill up the frame is dropped as a whole, counted
+ * in {@code audio.recorder.dropped_frames}, logged by the drain task and reported to the
+ * {@link Listener}; nothing is ever dropped silently.
+ * <p>
+ * {@link #stop} returns at once; the I/O lane drains what is left, finishes the file and then
+ * calls the {@link Listener}. A recording started while the last one is still finishing gets
+ * a ring of its own.
+ * <p>
+ * The ring is allocated on the first recording and kept for the next one, unless the
+ * {@link MemoryBudget} asks for it back ({@link #releaseIfIdle}) between recordings.
+ */
+public class PerformanceRecorder {
+    private final static Logger log = LoggerFactory.getLogger(PerformanceRecorder.class);
+
+    public interface Listener {
+        /**
+         * Called on the I/O lane once the file is complete.
+         *
+         * @param droppedFrames frames lost to a full ring, 0 if none
+         */
+        void onRecordingFinished(File file, long droppedFrames);
+    }
+
+    /**
+     * Compressed file layout, little endian: magic, sample rate (int), channels (short),
+     * bits per sample (short), total frames (int, patched on stop), then per block the frame
+     * count (int, at most 4096), the payload size (int) and the payload. {@link KwvReader}
+     * reads it back.
+     */
+    public static final int COMPRESSED_MAGIC = 0x3156574B; // "KWV1"
+
+    private static final int WAV_HEADER_BYTES = 44;
+    private static final int COMPRESSED_HEADER_BYTES = 16;
+    static final int BLOCK_FRAMES = 4096;
+    private static final long POLL_MS = 20; // a fraction of the ring
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrameBytes;
+    private final int mRingBytes;
+    private volatile PcmRing mRing;
+
+    private volatile boolean mRecording;
+    private Drainer mDrainer;
+    private Lane.Task mDrainTask;
+    private volatile int mFinishing; // stopped drainers the I/O lane has not finished yet
+    private int mStarting; // starts between their reservation and the new drainer
+    private volatile long mDroppedFrames;
+
+    private final Counter mDropped = Metrics.counter("audio.recorder.dropped_frames");
+    private final Counter mWritten = Metrics.counter("audio.recorder.written_frames");
+    private final Counter mIoErrors = Metrics.counter("audio.recorder.io_errors");
+    private final Gauge mRingFill = Metrics.gauge("audio.recorder.ring_fill_pct");
+    private final Histogram mWriteTime = Metrics.histogram("audio.recorder.write_us", AudioChain.BLOCK_US_BOUNDS);
+
+    /**
+     * @param ringBytes ring size, a power of two; allocated on the first {@link #start}
+     */
+    public PerformanceRecorder(int sampleRate, int channels, int ringBytes) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrameBytes = channels * 2;
+        mRingBytes = ringBytes;
+    }
+
+    /**
+     * Starts a new recording, stopping a running one first.
+     *
+     * @param compressed {@link LosslessCodec} blocks instead of WAV
+     * @throws IOException if the file can not be created, or a new ring does not fit the
+     *                     {@link MemoryBudget}
+     */
+    public void start(File file, boolean compressed) throws IOException {
+        boolean needsRing;
+        synchronized (this) {
+            // keeps releaseIfIdle from handing our own ring to the reservation below
+            mStarting++;
+            needsRing = needsRing();
+        }
+        try {
+            // outside our lock, the budget calls releaseIfIdle with its own lock held
+            if (needsRing && !MemoryBudget.get().reserve(MemoryBudget.PRIORITY_ESSENTIAL, mRingBytes)) {
+                throw new IOException("no memory for a " + (mRingBytes >> 10) + " KB recorder ring");
+            }
+            startLocked(file, compressed);
+        } finally {
+            synchronized (this) {
+                mStarting--;
+            }
+        }
+    }
+
+    // a running or finishing drainer keeps the ring it has
+    private boolean needsRing() {
+        return mRing == null || mDrainer != null || mFinishing > 0;
+    }
+
+    private synchronized void startLocked(File file, boolean compressed) throws IOException {
+        stop(null);
+        if (needsRing()) {
+            // the finishing drainer keeps the old ring
+            mRing = new PcmRing(mRingBytes);
+        }
+        mRing.skipAll();
+        mDroppedFrames = 0;
+
+        Sink sink = compressed ? new CompressedSink(file) : new WavSink(file);
+        mRecording = true;
+        mDrainer = new Drainer(file, sink, mRing);
+        mDrainTask = KtvRuntime.get().io().scheduleAtFixedRate(mDrainer, POLL_MS, POLL_MS);
+        log.info("recording to " + file + (compressed ? " (compressed)" : ""));
+    }
+
+    /**
+     * Called on the audio thread with the final frame, never blocks.
+     */
+    public void write(byte[] pcm, int numOfSamples, int channels) {
+        // releaseIfIdle may drop the ring right after a stop
+        PcmRing ring = mRing;
+        if (!mRecording || ring == null || channels != mChannels) {
+            return;
+        }
+        if (!ring.offer(pcm, numOfSamples * mFrameBytes)) {
+            mDroppedFrames += numOfSamples;
+            mDropped.add(numOfSamples);
+        }
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    /**
+     * @return heap held by the ring, 0 before the first recording or once released
+     */
+    public long ringBytes() {
+        PcmRing ring = mRing;
+        return ring != null ? ring.capacity() : 0;
+    }
+
+    /**
+     * Drops the ring unless a recording is running, finishing or starting; the next
+     * {@link #start} allocates it again.
+     *
+     * @return bytes released
+     */
+    public synchronized long releaseIfIdle() {
+        if (mRecording || mDrainer != null || mFinishing > 0 || mStarting > 0 || mRing == null) {
+            return 0;
+        }
+        long bytes = mRing.capacity();
+        mRing = null;
+        return bytes;
+    }
+
+    /**
+     * Stops taking frames and returns; the file is finished on the I/O lane.
+     *
+     * @param listener told when the file is complete, may be null
+     * @return false if nothing was recording
+     */
+    public synchronized boolean stop(final Listener listener) {
+        final Drainer drainer = mDrainer;
+        if (drainer == null) {
+            return false;
+        }
+        mRecording = false;
+        mDrainTask.cancel();
+        mDrainer = null;
+        mDrainTask = null;
+        mFinishing++;
+        final long dropped = mDroppedFrames;
+        KtvRuntime.get().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                drainer.finish();
+                synchronized (PerformanceRecorder.this) {
+                    mFinishing--;
+                }
+                if (listener != null) {
+                    listener.onRecordingFinished(drainer.mFile, dropped);
+                }
+            }
+        });
+        return true;
+    }
+
+    // runs on the I/O lane only
+    private final class Drainer implements Runnable {
+        private final File mFile;
+        private final Sink mSink;
+        private final PcmRing mSource;
+        private final byte[] mChunk = new byte[BLOCK_FRAMES * mFrameBytes];
+        private long mReportedDrops;
+        private boolean mClosed;
+
+        Drainer(File file, Sink sink, PcmRing source) {
+            mFile = file;
+            mSink = sink;
+            mSource = source;
+        }
+
+        @Override
+        public void run() {
+            if (mClosed) {
+                return;
+            }
+            try {
+                mRingFill.set(100L * mSource.available() / mSource.capacity());
+                int n;
+                while ((n = mSource.drain(mChunk, mChunk.length)) > 0) {
+                    long start = System.nanoTime();
+                    mSink.write(mChunk, n / mFrameBytes);
+                    mWriteTime.record((System.nanoTime() - start) / 1000);
+                    mWritten.add(n / mFrameBytes);
+                }
+                long dropped = mDroppedFrames;
+                if (dropped != mReportedDrops) {
+                    log.warn("recorder ring overflow, " + dropped + " frames dropped so far");
+                    mReportedDrops = dropped;
+                }
+            } catch (IOException e) {
+                mIoErrors.inc();
+                synchronized (PerformanceRecorder.this) {
+                    if (mDrainer == this) {
+                        mRecording = false;
+                    }
+                }
+                log.error("recording failed", e);
+                close();
+            }
+        }
+
+        void finish() {
+            run();
+            close();
+        }
+
+        private void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mSink.close();
+            } catch (IOException e) {
+                mIoErrors.inc();
+                log.error("recording not finalized", e);
+            }
+        }
+    }
+
+    private interface Sink {
+        void write(byte[] pcm, int frames) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final class WavSink implements Sink {
+        private final MappedFileWriter mOut;
+
+        WavSink(File file) throws IOException {
+            mOut = new MappedFileWriter(file);
+            mOut.write(new byte[WAV_HEADER_BYTES], 0, WAV_HEADER_BYTES);
+        }
+
+        @Override
+        public void write(byte[] pcm, int frames) throws IOException {
+            mOut.write(pcm, 0, frames * mFrameBytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            int dataBytes = (int) (mOut.length() - WAV_HEADER_BYTES);
+            ByteBuffer h = ByteBuffer.allocate(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(0x46464952).putInt(36 + dataBytes).putInt(0x45564157); // RIFF, WAVE
+            h.putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) mChannels); // fmt, PCM
+            h.putInt(mSampleRate).putInt(mSampleRate * mFrameBytes).putShort((short) mFrameBytes).putShort((short) 16);
+            h.putInt(0x61746164).putInt(dataBytes); // data
+            h.flip();
+            mOut.writeAt(0, h);
+            mOut.close();
+        }
+    }
+
+    private final class CompressedSink implements Sink {
+        private final MappedFileWriter mOut;
+        private final LosslessCodec mCodec = new LosslessCodec(mChannels, BLOCK_FRAMES);
+        private final byte[] mEncoded = new byte[LosslessCodec.maxEncodedBytes(mChannels, BLOCK_FRAMES)];
+        private final ByteBuffer mBlockHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private long mFrames;
+
+        CompressedSink(File file) throws IOException {
+            mOut = new MappedFileWriter(file);
+            mOut.write(new byte[COMPRESSED_HEADER_BYTES], 0, COMPRESSED_HEADER_BYTES);
+        }
+
+        @Override
+        public void write(byte[] pcm, int frames) throws IOException {
+            int size = mCodec.encode(pcm, frames, mEncoded);
+            mBlockHeader.clear();
+            mBlockHeader.putInt(frames).putInt(size);
+            mOut.write(mBlockHeader.array(), 0, 8);
+            mOut.write(mEncoded, 0, size);
+            mFrames += frames;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteBuffer h = ByteBuffer.allocate(COMPRESSED_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(COMPRESSED_MAGIC).putInt(mSampleRate).putShort((short) mChannels).putShort((short) 16);
+            h.putInt((int) mFrames);
+            h.flip();
+            mOut.writeAt(0, h);
+            mOut.close();
+        }
+    }
+}
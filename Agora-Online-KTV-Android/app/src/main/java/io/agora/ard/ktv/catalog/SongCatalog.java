@@ -0,0 +1,422 @@
+package io.agora.ard.ktv.catalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * The song catalogue, searched in place in a memory-mapped file written by
+ * {@link SongCatalogWriter}. Opening maps the file and checks the header, nothing is parsed;
+ * a search touches a few pages and allocates only the strings of the songs it shows.
+ * <p>
+ * Layout, big endian, all offsets from the start of the file:
+ * <pre>
+ * header   magic, version, song count, then the offsets of the sections below
+ * songs    16 bytes per song: title, artist and url offsets into the pool, popularity
+ * pool     u16 length + UTF-8, per string
+ * keys     song id per search key, in key order
+ * trie     radix trie over the keys, children first, the root last. Node: u16 label length,
+ *          label chars, first and end index into keys of the keys below it, u8 count of
+ *          precomputed best songs + their ids, u16 child count + (first char, offset) sorted
+ * grams    sorted (bigram, start index into gram postings), plus an end marker
+ * postings song ids per bigram, ascending
+ * </pre>
+ * Search keys per song are the normalized title and artist (see {@link #normalize}), their
+ * pinyin run together and their initials, so "zjl", "zhoujielun" and "周杰伦" all find the
+ * same artist. {@link #prefixSearch} walks the trie and ranks the songs below the node by
+ * popularity; nodes with many keys below carry their best songs precomputed, so a one
+ * letter prefix costs as little as a long one. {@link #fuzzySearch} matches the query's
+ * bigrams (the text padded with a marker on both ends) against the song texts and takes the
+ * ones sharing most of them, which forgives a typo or two; equal matches go by popularity.
+ * Only the rarest of the query's bigrams are merged, the common ones are probed by binary
+ * search, and no score is kept per song. Times go to
+ * {@code catalog.prefix_us} and {@code catalog.fuzzy_us}.
+ */
+public class SongCatalog {
+    static final int MAGIC = 0x4B545643; // KTVC
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int SONG_BYTES = 16;
+    static final char PAD = '\u0001';
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_QUERY_GRAMS = 64;
+    private static final float MIN_GRAM_SHARE = 0.5f;
+    private static final long[] SEARCH_US_BOUNDS = new long[]{
+            10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000};
+
+    private final ByteBuffer mMap;
+    private final int mSongCount;
+    private final int mSongsOff;
+    private final int mKeysOff;
+    private final int mRootOff;
+    private final int mGramCount;
+    private final int mGramsOff;
+    private final int mPostingsOff;
+
+    private final Histogram mPrefixTime = Metrics.histogram("catalog.prefix_us", SEARCH_US_BOUNDS);
+    private final Histogram mFuzzyTime = Metrics.histogram("catalog.fuzzy_us", SEARCH_US_BOUNDS);
+
+    SongCatalog(ByteBuffer map) throws IOException {
+        if (map.capacity() < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("not a song catalogue, or version " + (map.capacity() >= 8 ? map.getInt(4) : -1));
+        }
+        mMap = map;
+        mSongCount = map.getInt(8);
+        mSongsOff = map.getInt(12);
+        mKeysOff = map.getInt(20);
+        mRootOff = map.getInt(24);
+        mGramCount = map.getInt(28);
+        mGramsOff = map.getInt(32);
+        mPostingsOff = map.getInt(36);
+    }
+
+    /**
+     * Maps {@code file} read only; the mapping outlives the file descriptor.
+     */
+    public static SongCatalog open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new SongCatalog(map);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Lower case letters and digits only, so case, spaces and punctuation never decide a
+     * match. Writer and searches both go through this.
+     */
+    public static String normalize(CharSequence text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    public int size() {
+        return mSongCount;
+    }
+
+    public String title(int song) {
+        return string(mMap.getInt(mSongsOff + song * SONG_BYTES));
+    }
+
+    public String artist(int song) {
+        return string(mMap.getInt(mSongsOff + song * SONG_BYTES + 4));
+    }
+
+    public String url(int song) {
+        return string(mMap.getInt(mSongsOff + song * SONG_BYTES + 8));
+    }
+
+    public int popularity(int song) {
+        return mMap.getInt(mSongsOff + song * SONG_BYTES + 12);
+    }
+
+    private String string(int off) {
+        int len = mMap.getShort(off) & 0xFFFF;
+        byte[] bytes = new byte[len];
+        ByteBuffer b = mMap.duplicate();
+        b.position(off + 2);
+        b.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Songs with a key starting with {@code prefix}, most popular first.
+     *
+     * @param out song ids, as many as fit
+     * @return number of ids written
+     */
+    public int prefixSearch(String prefix, int[] out) {
+        long start = System.nanoTime();
+        int n = prefixSearch(normalize(prefix), out, 0);
+        mPrefixTime.record((System.nanoTime() - start) / 1000);
+        return n;
+    }
+
+    private int prefixSearch(String key, int[] out, int found) {
+        if (key.isEmpty() || found >= out.length) {
+            return found;
+        }
+        int node = mRootOff;
+        int matched = 0;
+        while (matched < key.length()) {
+            int child = findChild(node, key.charAt(matched));
+            if (child < 0) {
+                return found;
+            }
+            int labelLen = mMap.getShort(child) & 0xFFFF;
+            for (int i = 0; i < labelLen && matched < key.length(); i++, matched++) {
+                if (mMap.getChar(child + 2 + i * 2) != key.charAt(matched)) {
+                    return found;
+                }
+            }
+            node = child;
+        }
+        return best(node, out, found);
+    }
+
+    private int findChild(int node, char c) {
+        int p = node + 2 + (mMap.getShort(node) & 0xFFFF) * 2 + 8;
+        p += 1 + (mMap.get(p) & 0xFF) * 4;
+        int lo = 0;
+        int hi = (mMap.getShort(p) & 0xFFFF) - 1;
+        p += 2;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char m = mMap.getChar(p + mid * 6);
+            if (m < c) {
+                lo = mid + 1;
+            } else if (m > c) {
+                hi = mid - 1;
+            } else {
+                return mMap.getInt(p + mid * 6 + 2);
+            }
+        }
+        return -1;
+    }
+
+    // the node's songs by popularity into out[found..], skipping ids already there
+    private int best(int node, int[] out, int found) {
+        int p = node + 2 + (mMap.getShort(node) & 0xFFFF) * 2;
+        int first = mMap.getInt(p);
+        int end = mMap.getInt(p + 4);
+        int top = mMap.get(p + 8) & 0xFF;
+        if (top > 0 && out.length - found <= top) {
+            for (int i = 0; i < top && found < out.length; i++) {
+                found = append(mMap.getInt(p + 9 + i * 4), out, found);
+            }
+            return found;
+        }
+        int base = found;
+        for (int k = first; k < end; k++) {
+            int song = mMap.getInt(mKeysOff + k * 4);
+            found = rank(song, out, base, found);
+        }
+        return found;
+    }
+
+    private static int append(int song, int[] out, int found) {
+        for (int i = 0; i < found; i++) {
+            if (out[i] == song) {
+                return found;
+            }
+        }
+        out[found] = song;
+        return found + 1;
+    }
+
+    // keeps out[base..found) sorted by popularity, best first, at most out.length entries
+    private int rank(int song, int[] out, int base, int found) {
+        for (int i = 0; i < found; i++) {
+            if (out[i] == song) {
+                return found;
+            }
+        }
+        int pop = popularity(song);
+        int pos = found;
+        while (pos > base && popularity(out[pos - 1]) < pop) {
+            pos--;
+        }
+        if (pos >= out.length) {
+            return found;
+        }
+        int last = Math.min(found, out.length - 1);
+        System.arraycopy(out, pos, out, pos + 1, last - pos);
+        out[pos] = song;
+        return Math.min(found + 1, out.length);
+    }
+
+    /**
+     * Songs whose title, artist or their pinyin share most of the query's bigrams, best
+     * match first, so a misspelled or partly remembered name still finds its song.
+     *
+     * @return number of ids written
+     */
+    public int fuzzySearch(String query, int[] out) {
+        long start = System.nanoTime();
+        int n = fuzzySearch(normalize(query), out, 0);
+        mFuzzyTime.record((System.nanoTime() - start) / 1000);
+        return n;
+    }
+
+    private int fuzzySearch(String text, int[] out, int found) {
+        if (text.isEmpty() || found >= out.length) {
+            return found;
+        }
+        // one cursor per distinct query bigram that exists in the catalogue
+        int[] pos = new int[Math.min(MAX_QUERY_GRAMS, text.length() + 1)];
+        int[] end = new int[pos.length];
+        int grams = 0;
+        int queryGrams = 0;
+        for (int i = 0; i <= text.length() && queryGrams < pos.length; i++) {
+            int gram = gram(text, i);
+            boolean seen = false;
+            for (int j = 0; j < i; j++) {
+                if (gram(text, j) == gram) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (seen) {
+                continue;
+            }
+            queryGrams++;
+            int g = findGram(gram);
+            if (g >= 0) {
+                pos[grams] = mMap.getInt(mGramsOff + g * 8 + 4);
+                end[grams] = mMap.getInt(mGramsOff + (g + 1) * 8 + 4);
+                grams++;
+            }
+        }
+        int need = Math.max(1, (int) Math.ceil(queryGrams * MIN_GRAM_SHARE));
+        if (grams < need) {
+            return found;
+        }
+
+        // a match needs `need` of the lists, so it is in at least one of the shortest
+        // grams - need + 1: candidates come from those, the long lists are only probed
+        for (int i = 1; i < grams; i++) {
+            for (int j = i; j > 0 && end[j] - pos[j] < end[j - 1] - pos[j - 1]; j--) {
+                int t = pos[j];
+                pos[j] = pos[j - 1];
+                pos[j - 1] = t;
+                t = end[j];
+                end[j] = end[j - 1];
+                end[j - 1] = t;
+            }
+        }
+        int shortLists = grams - need + 1;
+
+        // scores of the kept songs, parallel to out[base..found)
+        int base = found;
+        float[] scores = new float[out.length];
+        while (true) {
+            int song = Integer.MAX_VALUE;
+            for (int c = 0; c < shortLists; c++) {
+                if (pos[c] < end[c]) {
+                    song = Math.min(song, mMap.getInt(mPostingsOff + pos[c] * 4));
+                }
+            }
+            if (song == Integer.MAX_VALUE) {
+                break;
+            }
+            int shared = 0;
+            for (int c = 0; c < shortLists; c++) {
+                if (pos[c] < end[c] && mMap.getInt(mPostingsOff + pos[c] * 4) == song) {
+                    shared++;
+                    pos[c]++;
+                }
+            }
+            for (int c = shortLists; c < grams && shared + grams - c >= need; c++) {
+                pos[c] = lowerBound(pos[c], end[c], song);
+                if (pos[c] < end[c] && mMap.getInt(mPostingsOff + pos[c] * 4) == song) {
+                    shared++;
+                }
+            }
+            if (shared >= need) {
+                found = keep(song, (float) shared / queryGrams, out, scores, base, found);
+            }
+        }
+        return found;
+    }
+
+    // first index in postings [from, to) holding a song id not below song
+    private int lowerBound(int from, int to, int song) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mMap.getInt(mPostingsOff + mid * 4) < song) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int keep(int song, float score, int[] out, float[] scores, int base, int found) {
+        for (int i = 0; i < base; i++) {
+            if (out[i] == song) {
+                return found;
+            }
+        }
+        int pos = found;
+        while (pos > base && (scores[pos - 1] < score
+                || (scores[pos - 1] == score && popularity(out[pos - 1]) < popularity(song)))) {
+            pos--;
+        }
+        if (pos >= out.length) {
+            return found;
+        }
+        int last = Math.min(found, out.length - 1);
+        System.arraycopy(out, pos, out, pos + 1, last - pos);
+        System.arraycopy(scores, pos, scores, pos + 1, last - pos);
+        out[pos] = song;
+        scores[pos] = score;
+        return Math.min(found + 1, out.length);
+    }
+
+    /**
+     * Bigram {@code i} of {@code text} padded with {@link #PAD} on both ends, i from 0 to
+     * {@code text.length()}.
+     */
+    static int gram(String text, int i) {
+        char a = i == 0 ? PAD : text.charAt(i - 1);
+        char b = i == text.length() ? PAD : text.charAt(i);
+        return (a << 16) | b;
+    }
+
+    private int findGram(int gram) {
+        int lo = 0;
+        int hi = mGramCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int g = mMap.getInt(mGramsOff + mid * 8);
+            if (g < gram) {
+                lo = mid + 1;
+            } else if (g > gram) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * What the search box shows: prefix matches first, then fuzzy ones to fill up.
+     *
+     * @return number of ids written
+     */
+    public int search(String query, int[] out) {
+        String key = normalize(query);
+        long start = System.nanoTime();
+        int found = prefixSearch(key, out, 0);
+        mPrefixTime.record((System.nanoTime() - start) / 1000);
+        if (found < out.length) {
+            start = System.nanoTime();
+            found = fuzzySearch(key, out, found);
+            mFuzzyTime.record((System.nanoTime() - start) / 1000);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,397 @@
+package io.agora.ard.ktv.catalog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the {@link SongCatalog} file, on the server side or once after a catalogue download;
+ * the layout is described there. Everything is held in memory while building, which is fine
+ * off the device's UI path but is exactly what the app itself never does.
+ * <p>
+ * Pinyin comes with the catalogue data, space separated by syllable ("zhou jie lun"): a
+ * complete character to pinyin table is bigger than the catalogue itself. Titles without
+ * pinyin get initials from their words, so "I Love You" is found by "ily" too.
+ * <p>
+ * From the command line: {@code SongCatalogWriter <songs.tsv> <out>}, one song per line as
+ * title, artist, url, and optionally popularity, title pinyin, artist pinyin, tab separated.
+ */
+public class SongCatalogWriter {
+    private final static Logger log = LoggerFactory.getLogger(SongCatalogWriter.class);
+
+    static final int TOP_SONGS = 32;
+    static final int PRECOMPUTE_OVER = 256; // keys below a node before its best songs are stored
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Song {
+        final String title;
+        final String artist;
+        final String url;
+        final int popularity;
+        final String titlePinyin;
+        final String artistPinyin;
+
+        Song(String title, String artist, String url, int popularity, String titlePinyin, String artistPinyin) {
+            this.title = title;
+            this.artist = artist;
+            this.url = url;
+            this.popularity = popularity;
+            this.titlePinyin = titlePinyin;
+            this.artistPinyin = artistPinyin;
+        }
+    }
+
+    private static final class Key {
+        final String key;
+        final int song;
+
+        Key(String key, int song) {
+            this.key = key;
+            this.song = song;
+        }
+    }
+
+    private final List<Song> mSongs = new ArrayList<>();
+    private String[] mKeys;
+    private int[] mKeySongs;
+    private DataOutputStream mTrie;
+    private int mTrieOff;
+
+    /**
+     * @param popularity higher ranks first
+     * @param titlePinyin syllables separated by spaces, or null
+     * @param artistPinyin syllables separated by spaces, or null
+     */
+    public void add(String title, String artist, String url, int popularity, String titlePinyin, String artistPinyin) {
+        mSongs.add(new Song(title, artist, url, popularity, titlePinyin, artistPinyin));
+    }
+
+    public int size() {
+        return mSongs.size();
+    }
+
+    // run together pinyin, initials of the syllables (or of the words of the text itself)
+    private static void keys(String text, String pinyin, Set<String> out) {
+        out.add(SongCatalog.normalize(text));
+        String words = pinyin != null && !pinyin.trim().isEmpty() ? pinyin : text;
+        if (pinyin != null) {
+            out.add(SongCatalog.normalize(pinyin));
+        }
+        StringBuilder initials = new StringBuilder();
+        int count = 0;
+        for (String w : words.split("[\\s\\p{Punct}]+")) {
+            String n = SongCatalog.normalize(w);
+            if (!n.isEmpty()) {
+                initials.append(n.charAt(0));
+                count++;
+            }
+        }
+        if (count > 1) {
+            out.add(initials.toString());
+        }
+    }
+
+    private static void grams(String text, Set<Integer> out) {
+        String n = SongCatalog.normalize(text);
+        if (n.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i <= n.length(); i++) {
+            out.add(SongCatalog.gram(n, i));
+        }
+    }
+
+    public void write(File file) throws IOException {
+        int count = mSongs.size();
+
+        // strings, shared where they repeat (artists)
+        ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        DataOutputStream pool = new DataOutputStream(poolBytes);
+        Map<String, Integer> pooled = new HashMap<>();
+        int[][] strings = new int[count][3];
+        int poolOff = SongCatalog.HEADER_BYTES + count * SongCatalog.SONG_BYTES;
+
+        List<Key> keys = new ArrayList<>();
+        Map<Integer, IntList> postings = new HashMap<>();
+        Set<String> songKeys = new LinkedHashSet<>();
+        Set<Integer> songGrams = new LinkedHashSet<>();
+        for (int s = 0; s < count; s++) {
+            Song song = mSongs.get(s);
+            strings[s][0] = pool(song.title, pool, pooled, poolOff);
+            strings[s][1] = pool(song.artist, pool, pooled, poolOff);
+            strings[s][2] = pool(song.url, pool, pooled, poolOff);
+
+            songKeys.clear();
+            keys(song.title, song.titlePinyin, songKeys);
+            keys(song.artist, song.artistPinyin, songKeys);
+            for (String k : songKeys) {
+                if (!k.isEmpty()) {
+                    keys.add(new Key(k, s));
+                }
+            }
+
+            songGrams.clear();
+            grams(song.title, songGrams);
+            grams(song.artist, songGrams);
+            grams(song.titlePinyin, songGrams);
+            grams(song.artistPinyin, songGrams);
+            for (Integer g : songGrams) {
+                IntList list = postings.get(g);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(g, list);
+                }
+                list.add(s);
+            }
+        }
+        pool.flush();
+
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key a, Key b) {
+                int c = a.key.compareTo(b.key);
+                return c != 0 ? c : a.song - b.song;
+            }
+        });
+        mKeys = new String[keys.size()];
+        mKeySongs = new int[keys.size()];
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = keys.get(i).key;
+            mKeySongs[i] = keys.get(i).song;
+        }
+        int keysOff = poolOff + poolBytes.size();
+        mTrieOff = keysOff + mKeys.length * 4;
+        ByteArrayOutputStream trieBytes = new ByteArrayOutputStream();
+        mTrie = new DataOutputStream(trieBytes);
+        int root = build(0, mKeys.length, 0, "")[0];
+        mTrie.flush();
+
+        int[] gramKeys = new int[postings.size()];
+        int g = 0;
+        for (Integer gram : postings.keySet()) {
+            gramKeys[g++] = gram;
+        }
+        Arrays.sort(gramKeys);
+        int gramsOff = mTrieOff + trieBytes.size();
+        int postingsOff = gramsOff + (gramKeys.length + 1) * 8;
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(SongCatalog.MAGIC);
+            out.writeInt(SongCatalog.VERSION);
+            out.writeInt(count);
+            out.writeInt(SongCatalog.HEADER_BYTES);
+            out.writeInt(poolOff);
+            out.writeInt(keysOff);
+            out.writeInt(root);
+            out.writeInt(gramKeys.length);
+            out.writeInt(gramsOff);
+            out.writeInt(postingsOff);
+            for (int i = out.size(); i < SongCatalog.HEADER_BYTES; i++) {
+                out.writeByte(0);
+            }
+            for (int s = 0; s < count; s++) {
+                out.writeInt(strings[s][0]);
+                out.writeInt(strings[s][1]);
+                out.writeInt(strings[s][2]);
+                out.writeInt(mSongs.get(s).popularity);
+            }
+            poolBytes.writeTo(out);
+            for (int song : mKeySongs) {
+                out.writeInt(song);
+            }
+            trieBytes.writeTo(out);
+            int start = 0;
+            for (int gram : gramKeys) {
+                out.writeInt(gram);
+                out.writeInt(start);
+                start += postings.get(gram).size;
+            }
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(start);
+            for (int gram : gramKeys) {
+                IntList list = postings.get(gram);
+                for (int i = 0; i < list.size; i++) {
+                    out.writeInt(list.values[i]);
+                }
+            }
+            out.flush();
+        } finally {
+            os.close();
+        }
+        log.info("catalogue " + file + ": " + count + " songs, " + mKeys.length + " keys, "
+                + gramKeys.length + " bigrams, " + file.length() / 1024 + " KB");
+        mKeys = null;
+        mKeySongs = null;
+        mTrie = null;
+    }
+
+    private static int pool(String s, DataOutputStream pool, Map<String, Integer> pooled, int base) throws IOException {
+        if (s == null) {
+            s = "";
+        }
+        Integer off = pooled.get(s);
+        if (off != null) {
+            return off;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        int len = Math.min(bytes.length, 0xFFFF);
+        off = base + pool.size();
+        pool.writeShort(len);
+        pool.write(bytes, 0, len);
+        pooled.put(s, off);
+        return off;
+    }
+
+    /**
+     * Writes the node for keys [lo, hi), which share their first {@code depth} chars, after
+     * all of its children.
+     *
+     * @return the node's offset, then its best songs
+     */
+    private int[] build(int lo, int hi, int depth, String label) throws IOException {
+        int[] top = new int[0];
+        int i = lo;
+        while (i < hi && mKeys[i].length() == depth) {
+            top = merge(top, new int[]{mKeySongs[i]});
+            i++;
+        }
+        List<int[]> children = new ArrayList<>();
+        StringBuilder chars = new StringBuilder();
+        while (i < hi) {
+            char c = mKeys[i].charAt(depth);
+            int j = i + 1;
+            while (j < hi && mKeys[j].charAt(depth) == c) {
+                j++;
+            }
+            // sorted, so the first and last key bound the common prefix of the group
+            String first = mKeys[i];
+            String last = mKeys[j - 1];
+            int end = depth + 1;
+            while (end < first.length() && end < last.length() && first.charAt(end) == last.charAt(end)) {
+                end++;
+            }
+            int[] child = build(i, j, end, first.substring(depth, end));
+            children.add(child);
+            chars.append(c);
+            top = merge(top, Arrays.copyOfRange(child, 1, child.length));
+            i = j;
+        }
+
+        int offset = mTrieOff + mTrie.size();
+        mTrie.writeShort(label.length());
+        mTrie.writeChars(label);
+        mTrie.writeInt(lo);
+        mTrie.writeInt(hi);
+        if (hi - lo > PRECOMPUTE_OVER) {
+            mTrie.writeByte(top.length);
+            for (int song : top) {
+                mTrie.writeInt(song);
+            }
+        } else {
+            mTrie.writeByte(0);
+        }
+        mTrie.writeShort(children.size());
+        for (int c = 0; c < children.size(); c++) {
+            mTrie.writeChar(chars.charAt(c));
+            mTrie.writeInt(children.get(c)[0]);
+        }
+
+        int[] result = new int[top.length + 1];
+        result[0] = offset;
+        System.arraycopy(top, 0, result, 1, top.length);
+        return result;
+    }
+
+    // two best-first lists into one, without duplicates, at most TOP_SONGS long
+    private int[] merge(int[] a, int[] b) {
+        int[] out = new int[Math.min(TOP_SONGS, a.length + b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (n < out.length && (i < a.length || j < b.length)) {
+            int next;
+            if (j >= b.length || (i < a.length && better(a[i], b[j]))) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            boolean seen = false;
+            for (int k = 0; k < n; k++) {
+                if (out[k] == next) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                out[n++] = next;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private boolean better(int a, int b) {
+        int pa = mSongs.get(a).popularity;
+        int pb = mSongs.get(b).popularity;
+        return pa != pb ? pa > pb : a < b;
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            log.error("usage: SongCatalogWriter <songs.tsv> <out>");
+            return;
+        }
+        SongCatalogWriter writer = new SongCatalogWriter();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                if (f.length < 3) {
+                    continue;
+                }
+                writer.add(f[0], f[1], f[2], f.length > 3 ? Integer.parseInt(f[3].trim()) : 0,
+                        f.length > 4 ? f[4] : null, f.length > 5 ? f[5] : null);
+            }
+        } finally {
+            in.close();
+        }
+        long start = System.nanoTime();
+        writer.write(new File(args[1]));
+        log.info("built in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,335 @@
+package io.agora.ard.ktv.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+
+/**
+ * Structured event log for hot paths.
+ * <p>
+ * Each log point is declared once as an {@link Event}, a level plus a format string, and
+ * logged with primitive arguments only. A call whose level is below {@link #setLevel} returns
+ * after one volatile read; an enabled call claims a fixed size slot in a preallocated ring and
+ * copies its arguments in, without allocating or taking a lock. A periodic task on the
+ * runtime's I/O lane formats
+ * the slots lazily and appends them to {@code events.log} in the directory given to
+ * {@link #open}, rotating to {@code events.log.1} .. {@code events.log.N}. When the ring is
+ * full the event is counted in {@code log.dropped} instead of blocking the caller.
+ * <p>
+ * Placeholders, filled from the arguments in order: {@code {}} signed long, {@code {u}}
+ * unsigned 32-bit int (uids), {@code {f}} double passed through {@link #bits(double)},
+ * {@code {s}} the single string/object argument.
+ */
+public final class EventLog {
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    private static final char[] LEVEL_CHARS = {'T', 'D', 'I', 'W', 'E'};
+
+    private static final int CAPACITY = 4096; // slots
+    private static final int MASK = CAPACITY - 1;
+    private static final int ARGS = 3;
+    private static final long MAX_FILE_BYTES = 1 << 20;
+    private static final int MAX_FILES = 3;
+    private static final long FLUSH_MS = 20;
+    private static final long BURST_NS = 50000000L;
+
+    private static volatile int sLevel = DEBUG;
+
+    private static final AtomicLong sHead = new AtomicLong();
+    private static volatile long sTail;
+    private static final AtomicLongArray sPublished = new AtomicLongArray(CAPACITY);
+    private static final int[] sEventIds = new int[CAPACITY];
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final long[] sArgs = new long[CAPACITY * ARGS];
+    private static final Object[] sRefs = new Object[CAPACITY];
+
+    private static Event[] sEvents = new Event[64];
+    private static int sEventCount;
+    private static Writer sWriter;
+    private static volatile File sDirectory;
+
+    private static final Counter sDropped = Metrics.counter("log.dropped");
+    private static final Counter sWritten = Metrics.counter("log.written");
+
+    /**
+     * A declared log point, create once and keep in a static final field.
+     */
+    public static final class Event {
+        final int id;
+        final int level;
+        final String format;
+
+        Event(int id, int level, String format) {
+            this.id = id;
+            this.level = level;
+            this.format = format;
+        }
+
+        public boolean isEnabled() {
+            return level >= sLevel;
+        }
+    }
+
+    private EventLog() {
+    }
+
+    public static synchronized Event event(int level, String format) {
+        if (sEventCount == sEvents.length) {
+            sEvents = Arrays.copyOf(sEvents, sEventCount * 2);
+        }
+        Event e = new Event(sEventCount, level, format);
+        sEvents[sEventCount++] = e;
+        return e;
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    public static void log(Event e) {
+        if (e.level >= sLevel) {
+            put(e, null, 0, 0, 0);
+        }
+    }
+
+    public static void log(Event e, long a) {
+        if (e.level >= sLevel) {
+            put(e, null, a, 0, 0);
+        }
+    }
+
+    public static void log(Event e, long a, long b) {
+        if (e.level >= sLevel) {
+            put(e, null, a, b, 0);
+        }
+    }
+
+    public static void log(Event e, long a, long b, long c) {
+        if (e.level >= sLevel) {
+            put(e, null, a, b, c);
+        }
+    }
+
+    public static void log(Event e, Object ref, long a) {
+        if (e.level >= sLevel) {
+            put(e, ref, a, 0, 0);
+        }
+    }
+
+    public static void log(Event e, Object ref, long a, long b) {
+        if (e.level >= sLevel) {
+            put(e, ref, a, b, 0);
+        }
+    }
+
+    private static void put(Event e, Object ref, long a, long b, long c) {
+        long pos;
+        do {
+            pos = sHead.get();
+            if (pos - sTail >= CAPACITY) {
+                sDropped.inc();
+                return;
+            }
+        } while (!sHead.compareAndSet(pos, pos + 1));
+        int slot = (int) (pos & MASK);
+        sEventIds[slot] = e.id;
+        sTimes[slot] = System.nanoTime();
+        sArgs[slot * ARGS] = a;
+        sArgs[slot * ARGS + 1] = b;
+        sArgs[slot * ARGS + 2] = c;
+        sRefs[slot] = ref;
+        sPublished.lazySet(slot, pos + 1);
+    }
+
+    /**
+     * Starts the writer on the I/O lane, later calls only move the output directory.
+     */
+    public static synchronized void open(File directory) {
+        sDirectory = directory;
+        if (sWriter != null) {
+            return;
+        }
+        sWriter = new Writer();
+        KtvRuntime.get().io().scheduleAtFixedRate(sWriter, 0, FLUSH_MS);
+    }
+
+    private static final class Writer implements Runnable {
+        private final StringBuilder mLine = new StringBuilder(256);
+        private final byte[] mBytes = new byte[64 * 1024];
+        private final long mWallBaseMs = System.currentTimeMillis();
+        private final long mNanoBase = System.nanoTime();
+        private final Calendar mCalendar = Calendar.getInstance();
+        private File mDirectory;
+        private OutputStream mOut;
+        private long mFileBytes;
+        private int mBuffered;
+
+        @Override
+        public void run() {
+            // keep up with a burst, but give other I/O a turn after a while
+            long deadline = System.nanoTime() + BURST_NS;
+            while (drain() > 0 && System.nanoTime() < deadline) {
+                flush();
+            }
+            flush();
+        }
+
+        private int drain() {
+            int n = 0;
+            long tail = sTail;
+            while (true) {
+                int slot = (int) (tail & MASK);
+                if (sPublished.get(slot) != tail + 1) {
+                    break;
+                }
+                Event e;
+                synchronized (EventLog.class) {
+                    e = sEvents[sEventIds[slot]];
+                }
+                format(e, slot);
+                sRefs[slot] = null;
+                sTail = ++tail;
+                append();
+                n++;
+            }
+            sWritten.add(n);
+            return n;
+        }
+
+        private void format(Event e, int slot) {
+            StringBuilder sb = mLine;
+            sb.setLength(0);
+            long wall = mWallBaseMs + (sTimes[slot] - mNanoBase) / 1000000L;
+            mCalendar.setTimeInMillis(wall);
+            pad(sb, mCalendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+            pad(sb, mCalendar.get(Calendar.MINUTE), 2).append(':');
+            pad(sb, mCalendar.get(Calendar.SECOND), 2).append('.');
+            pad(sb, mCalendar.get(Calendar.MILLISECOND), 3).append(' ');
+            sb.append(LEVEL_CHARS[e.level]).append(' ');
+
+            String f = e.format;
+            int arg = 0;
+            for (int i = 0; i < f.length(); i++) {
+                char ch = f.charAt(i);
+                int close = ch == '{' ? f.indexOf('}', i) : -1;
+                if (close < 0 || close - i > 2) {
+                    sb.append(ch);
+                    continue;
+                }
+                char kind = close == i + 1 ? 'd' : f.charAt(i + 1);
+                if (kind == 's') {
+                    sb.append(sRefs[slot]);
+                } else {
+                    long v = arg < ARGS ? sArgs[slot * ARGS + arg] : 0;
+                    arg++;
+                    if (kind == 'u') {
+                        sb.append(v & 0xFFFFFFFFL);
+                    } else if (kind == 'f') {
+                        sb.append(Double.longBitsToDouble(v));
+                    } else {
+                        sb.append(v);
+                    }
+                }
+                i = close;
+            }
+            sb.append('\n');
+        }
+
+        private static StringBuilder pad(StringBuilder sb, int v, int width) {
+            for (int d = v == 0 ? 1 : (int) Math.log10(v) + 1; d < width; d++) {
+                sb.append('0');
+            }
+            return sb.append(v);
+        }
+
+        // lines are ASCII apart from {s} arguments, which are rare and small
+        private void append() {
+            StringBuilder sb = mLine;
+            int len = sb.length();
+            if (mBuffered + len * 3 > mBytes.length) {
+                flush();
+            }
+            for (int i = 0; i < len; i++) {
+                char ch = sb.charAt(i);
+                if (ch < 0x80) {
+                    mBytes[mBuffered++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    mBytes[mBuffered++] = (byte) (0xC0 | (ch >> 6));
+                    mBytes[mBuffered++] = (byte) (0x80 | (ch & 0x3F));
+                } else {
+                    mBytes[mBuffered++] = (byte) (0xE0 | (ch >> 12));
+                    mBytes[mBuffered++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                    mBytes[mBuffered++] = (byte) (0x80 | (ch & 0x3F));
+                }
+            }
+        }
+
+        private void flush() {
+            if (mBuffered == 0) {
+                return;
+            }
+            try {
+                ensureFile();
+                if (mOut != null) {
+                    mOut.write(mBytes, 0, mBuffered);
+                    mOut.flush();
+                    mFileBytes += mBuffered;
+                }
+            } catch (IOException e) {
+                closeQuietly();
+            }
+            mBuffered = 0;
+        }
+
+        private void ensureFile() throws IOException {
+            File dir = sDirectory;
+            if (mOut == null || dir != mDirectory || mFileBytes >= MAX_FILE_BYTES) {
+                closeQuietly();
+                mDirectory = dir;
+                if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+                    return;
+                }
+                File current = new File(dir, "events.log");
+                if (current.length() >= MAX_FILE_BYTES) {
+                    rotate(dir);
+                }
+                mOut = new FileOutputStream(current, true);
+                mFileBytes = current.length();
+            }
+        }
+
+        private static void rotate(File dir) {
+            new File(dir, "events.log." + MAX_FILES).delete();
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                new File(dir, "events.log." + i).renameTo(new File(dir, "events.log." + (i + 1)));
+            }
+            new File(dir, "events.log").renameTo(new File(dir, "events.log.1"));
+        }
+
+        private void closeQuietly() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException ignored) {
+                }
+                mOut = null;
+            }
+        }
+    }
+}
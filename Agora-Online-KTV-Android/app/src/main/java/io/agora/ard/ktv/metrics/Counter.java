@@ -0,0 +1,36 @@
+package io.agora.ard.ktv.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic event counter, safe to bump from the audio thread.
+ */
+public final class Counter {
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    Counter(String name) {
+        this.mName = name;
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public void inc() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+
+    @Override
+    public String toString() {
+        return mName + "=" + mValue.get();
+    }
+}
@@ -0,0 +1,30 @@
+package io.agora.ard.ktv.metrics;
+
+/**
+ * Last-value gauge. Writers overwrite, readers see the latest value.
+ */
+public final class Gauge {
+    private final String mName;
+    private volatile long mValue;
+
+    Gauge(String name) {
+        this.mName = name;
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public void set(long value) {
+        mValue = value;
+    }
+
+    public long get() {
+        return mValue;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "=" + mValue;
+    }
+}
@@ -0,0 +1,80 @@
+package io.agora.ard.ktv.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket histogram. {@link #record} is a binary search plus one atomic add, so it can be
+ * used from the audio and video paths.
+ * <p>
+ * Bucket i counts values v with bounds[i - 1] &lt;= v &lt; bounds[i], the last bucket takes
+ * everything from the last bound upwards.
+ */
+public final class Histogram {
+    private final String mName;
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+
+    Histogram(String name, long[] bounds) {
+        this.mName = name;
+        this.mBounds = bounds.clone();
+        Arrays.sort(this.mBounds);
+        this.mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public void record(long value) {
+        int idx = Arrays.binarySearch(mBounds, value);
+        idx = idx >= 0 ? idx + 1 : -idx - 1;
+        mCounts.incrementAndGet(idx);
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            total += mCounts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return upper bound of the bucket holding the given percentile (the last bound for the
+     * open ended top bucket), 0 if empty
+     */
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p / 100d);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return i < mBounds.length ? mBounds[i] : mBounds[mBounds.length - 1];
+            }
+        }
+        return mBounds[mBounds.length - 1];
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mName).append('{');
+        for (int i = 0; i < mCounts.length(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i == 0 ? "<" + mBounds[0] : ">=" + mBounds[i - 1]).append(':').append(mCounts.get(i));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,87 @@
+package io.agora.ard.ktv.metrics;
+
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide registry of named counters, gauges and histograms.
+ * <p>
+ * Look a metric up once (e.g. in a constructor) and keep the reference, the lookup itself
+ * is not meant for the audio thread.
+ */
+public final class Metrics {
+    private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Gauge> sGauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        Counter c = sCounters.get(name);
+        if (c == null) {
+            Counter created = new Counter(name);
+            c = sCounters.putIfAbsent(name, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge g = sGauges.get(name);
+        if (g == null) {
+            Gauge created = new Gauge(name);
+            g = sGauges.putIfAbsent(name, created);
+            if (g == null) {
+                g = created;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * @param bounds bucket boundaries, only used when the histogram does not exist yet
+     */
+    public static Histogram histogram(String name, long[] bounds) {
+        Histogram h = sHistograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram(name, bounds);
+            h = sHistograms.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * @return all metrics sorted by name, for diagnostics
+     */
+    public static Map<String, Long> snapshot() {
+        TreeMap<String, Long> result = new TreeMap<>();
+        for (Counter c : sCounters.values()) {
+            result.put(c.name(), c.get());
+        }
+        for (Gauge g : sGauges.values()) {
+            result.put(g.name(), g.get());
+        }
+        for (Histogram h : sHistograms.values()) {
+            result.put(h.name() + ".count", h.count());
+            result.put(h.name() + ".p50", h.percentile(50));
+            result.put(h.name() + ".p99", h.percentile(99));
+        }
+        return result;
+    }
+
+    public static void dump(Logger log) {
+        log.info("metrics " + snapshot());
+        for (Histogram h : sHistograms.values()) {
+            log.info(h.toString());
+        }
+    }
+}
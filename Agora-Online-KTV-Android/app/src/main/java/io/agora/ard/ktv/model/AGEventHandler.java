@@ -12,4 +12,6 @@ public interface AGEventHandler{
     void onUserOffline(int uid, int reason);
 
     void onUserJoined(int uid, int elapsed);
+
+    void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume);
 }
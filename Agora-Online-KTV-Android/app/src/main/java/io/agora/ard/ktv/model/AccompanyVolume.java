@@ -0,0 +1,64 @@
+package io.agora.ard.ktv.model;
+
+/**
+ * The accompaniment volume the room sends to {@link KtvPlayer#adjustAccompanyVolume}: the
+ * user's setting times the song's loudness gain
+ * ({@link io.agora.ard.ktv.audio.LoudnessNormalizer}) times the ducking gain
+ * ({@link io.agora.ard.ktv.audio.Ducker}). The player takes 0 to 1, so the
+ * product is clamped there; a loud song turned down always gets its full cut, a quiet one only
+ * as much boost as the user's setting leaves room for.
+ * <p>
+ * UI thread only. The player is only called when the result changes.
+ */
+public class AccompanyVolume {
+    private final KtvPlayer mPlayer;
+    private double mUserVolume;
+    private float mSongGain = 1f;
+    private float mDuckGain = 1f;
+    private double mSent = -1;
+
+    /**
+     * @param userVolume the setting the player starts with, 0 to 1
+     */
+    public AccompanyVolume(KtvPlayer player, double userVolume) {
+        mPlayer = player;
+        mUserVolume = userVolume;
+        mSent = userVolume;
+    }
+
+    public void setUserVolume(double volume) {
+        mUserVolume = volume;
+        apply();
+    }
+
+    /**
+     * @param gain linear, 1 for none
+     */
+    public void setSongGain(float gain) {
+        mSongGain = gain;
+        apply();
+    }
+
+    /**
+     * @param gain linear, 1 for none
+     */
+    public void setDuckGain(float gain) {
+        mDuckGain = gain;
+        apply();
+    }
+
+    /**
+     * @return what the player was last given
+     */
+    public double volume() {
+        return mSent;
+    }
+
+    private void apply() {
+        double volume = Math.max(0d, Math.min(1d, mUserVolume * mSongGain * mDuckGain));
+        if (volume != mSent) {
+            mSent = volume;
+            mPlayer.adjustAccompanyVolume(volume);
+        }
+    }
+}
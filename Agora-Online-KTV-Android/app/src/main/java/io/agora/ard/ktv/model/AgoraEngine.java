@@ -0,0 +1,44 @@
+package io.agora.ard.ktv.model;
+
+import io.agora.rtc.RtcEngine;
+
+public class AgoraEngine implements EngineApi {
+    private final RtcEngine mRtcEngine;
+    private final EngineEventDispatcher mDispatcher;
+
+    public AgoraEngine(RtcEngine rtcEngine, EngineEventDispatcher dispatcher) {
+        this.mRtcEngine = rtcEngine;
+        this.mDispatcher = dispatcher;
+    }
+
+    @Override
+    public void joinChannel(String channel, int uid) {
+        mRtcEngine.joinChannel(null, channel, "OpenLive", uid);
+    }
+
+    @Override
+    public void leaveChannel() {
+        mRtcEngine.leaveChannel();
+        mDispatcher.onLeaveChannel();
+    }
+
+    @Override
+    public void setClientRole(int role) {
+        mRtcEngine.setClientRole(role);
+    }
+
+    @Override
+    public void setParameters(String parameters) {
+        mRtcEngine.setParameters(parameters);
+    }
+
+    @Override
+    public void enableInEarMonitoring(boolean enabled) {
+        mRtcEngine.enableInEarMonitoring(enabled);
+    }
+
+    @Override
+    public void enableAudioVolumeIndication(int intervalMs, int smooth) {
+        mRtcEngine.enableAudioVolumeIndication(intervalMs, smooth);
+    }
+}
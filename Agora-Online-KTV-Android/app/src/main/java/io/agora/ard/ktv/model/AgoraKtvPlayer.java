@@ -0,0 +1,66 @@
+package io.agora.ard.ktv.model;
+
+import io.agora.ktvkit.KTVKit;
+
+public class AgoraKtvPlayer implements KtvPlayer {
+    private final KTVKit mKTVKit;
+
+    public AgoraKtvPlayer(KTVKit ktvKit) {
+        this.mKTVKit = ktvKit;
+    }
+
+    @Override
+    public void openAndPlay(String url) {
+        mKTVKit.openAndPlayVideoFile(url);
+    }
+
+    @Override
+    public void stop() {
+        mKTVKit.stopPlayVideoFile();
+    }
+
+    @Override
+    public void pause() {
+        mKTVKit.pause();
+    }
+
+    @Override
+    public void switchAudioTrack() {
+        mKTVKit.switchAudioTrack();
+    }
+
+    @Override
+    public double getCurrentPosition() {
+        return mKTVKit.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return mKTVKit.getDuration();
+    }
+
+    @Override
+    public void adjustVoiceVolume(double volume) {
+        mKTVKit.adjustVoiceVolume(volume);
+    }
+
+    @Override
+    public void adjustAccompanyVolume(double volume) {
+        mKTVKit.adjustAccompanyVolume(volume);
+    }
+
+    @Override
+    public void muteLocal() {
+        mKTVKit.muteLocalKtvVolume();
+    }
+
+    @Override
+    public void unMuteLocal() {
+        mKTVKit.unMuteLocalKtvVolume();
+    }
+
+    @Override
+    public void resetAudioBuffer() {
+        mKTVKit.resetAudioBuffer();
+    }
+}
@@ -0,0 +1,22 @@
+package io.agora.ard.ktv.model;
+
+/**
+ * Connection state callbacks, kept apart from {@link AGEventHandler} because only the
+ * {@link ReconnectManager} (and diagnostics) care about them.
+ */
+public interface ConnectionEventHandler {
+    /**
+     * The engine lost its connection and is retrying on its own.
+     */
+    void onConnectionInterrupted();
+
+    /**
+     * The engine gave up on the connection.
+     */
+    void onConnectionLost();
+
+    /**
+     * The engine's own retry got back into the channel.
+     */
+    void onRejoinChannelSuccess(String channel, int uid, int elapsed);
+}
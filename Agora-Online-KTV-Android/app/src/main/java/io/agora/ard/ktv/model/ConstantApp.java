@@ -12,6 +12,11 @@ public class ConstantApp {
 
     public static final int MAX_PEER_COUNT = 3;
 
+    // raw audio frame format requested in WorkerThread.configEngine
+    public static final int AUDIO_SAMPLE_RATE = 48000;
+    public static final int AUDIO_CHANNELS = 2;
+    public static final int AUDIO_SAMPLES_PER_CALL = 960;
+
     public static int[] VIDEO_PROFILES = new int[]{
             Constants.VIDEO_PROFILE_120P,
             Constants.VIDEO_PROFILE_180P,
@@ -25,6 +30,9 @@ public class ConstantApp {
     public static class PrefManager {
         public static final String PREF_PROPERTY_PROFILE_IDX = "pref_profile_index";
         public static final String PREF_PROPERTY_UID = "pOCXx_uid";
+        // suffixed with Build.MODEL
+        public static final String PREF_PROPERTY_LATENCY_MS = "pref_latency_ms_";
+        public static final String PREF_PROPERTY_LATENCY_CONFIDENCE = "pref_latency_confidence_";
     }
 
     public static final String ACTION_KEY_CROLE = "C_Role";
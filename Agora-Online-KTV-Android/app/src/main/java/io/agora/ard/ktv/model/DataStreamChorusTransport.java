@@ -0,0 +1,74 @@
+package io.agora.ard.ktv.model;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.sync.ChorusTransport;
+import io.agora.rtc.RtcEngine;
+
+/**
+ * {@link ChorusTransport} over the engine's data stream. The stream is unreliable and
+ * unordered on purpose: a late position message is worse than a lost one, and the sync
+ * already copes with both. It is created on first send, and again after a send fails, as
+ * the engine drops streams when it leaves a channel.
+ */
+public class DataStreamChorusTransport implements ChorusTransport, StreamMessageHandler {
+    private static final EventLog.Event EV_SEND_FAILED = EventLog.event(EventLog.WARN, "chorus stream {} send failed {}");
+
+    private final RtcEngine mRtcEngine;
+    private final EngineEventDispatcher mDispatcher;
+    private volatile Receiver mReceiver;
+    private int mStreamId = -1;
+
+    private final Counter mSent = Metrics.counter("chorus.stream.sent");
+    private final Counter mReceived = Metrics.counter("chorus.stream.received");
+    private final Counter mFailed = Metrics.counter("chorus.stream.failed");
+
+    public DataStreamChorusTransport(RtcEngine rtcEngine, EngineEventDispatcher dispatcher) {
+        mRtcEngine = rtcEngine;
+        mDispatcher = dispatcher;
+        mDispatcher.addStreamMessageHandler(this);
+    }
+
+    @Override
+    public synchronized void send(byte[] message, int length) {
+        if (mStreamId < 0) {
+            mStreamId = mRtcEngine.createDataStream(false, false);
+            if (mStreamId < 0) {
+                mFailed.inc();
+                EventLog.log(EV_SEND_FAILED, 0, mStreamId);
+                return;
+            }
+        }
+        int ret = mRtcEngine.sendStreamMessage(mStreamId, Arrays.copyOf(message, length));
+        if (ret < 0) {
+            mFailed.inc();
+            EventLog.log(EV_SEND_FAILED, mStreamId, ret);
+            mStreamId = -1;
+            return;
+        }
+        mSent.inc();
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    @Override
+    public void onStreamMessage(int uid, int streamId, byte[] data) {
+        long arrivalNs = System.nanoTime();
+        Receiver receiver = mReceiver;
+        if (receiver != null) {
+            mReceived.inc();
+            receiver.onMessage(data, arrivalNs);
+        }
+    }
+
+    public void close() {
+        mDispatcher.removeStreamMessageHandler(this);
+        mReceiver = null;
+    }
+}
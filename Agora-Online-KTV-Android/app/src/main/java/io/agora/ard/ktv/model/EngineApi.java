@@ -0,0 +1,24 @@
+package io.agora.ard.ktv.model;
+
+/**
+ * The engine calls the app makes outside of video setup. {@link AgoraEngine} forwards them to
+ * the real {@link io.agora.rtc.RtcEngine}; {@code SimulatedEngine} in the unit test sources
+ * answers them on the JVM.
+ */
+public interface EngineApi {
+    void joinChannel(String channel, int uid);
+
+    void leaveChannel();
+
+    void setClientRole(int role);
+
+    void setParameters(String parameters);
+
+    void enableInEarMonitoring(boolean enabled);
+
+    /**
+     * Reports who is talking through {@link AGEventHandler#onAudioVolumeIndication} every
+     * {@code intervalMs}, 0 turns it off.
+     */
+    void enableAudioVolumeIndication(int intervalMs, int smooth);
+}
@@ -0,0 +1,267 @@
+package io.agora.ard.ktv.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Fans engine callbacks out to the registered {@link AGEventHandler}s. Kept free of Android
+ * and SDK types so the same dispatch runs behind the real engine
+ * ({@link MyEngineEventHandler}) and behind the simulator.
+ * <p>
+ * The remote users of the current channel are remembered, and a handler added late is told
+ * about them first: a room that claims a prejoined channel registers after the engine already
+ * reported who is there. The user list and the set of handlers a user callback goes to are
+ * taken under one lock, the handlers are called outside it. A user callback that comes in while
+ * a new handler is still being replayed to is queued for that handler and delivered after the
+ * replay, so it sees every user exactly once and in order. The replay runs on the thread that
+ * adds the handler, the callbacks on the engine's.
+ */
+public class EngineEventDispatcher {
+    private final ConcurrentHashMap<AGEventHandler, Integer> mEventHandleList = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ConnectionEventHandler, Integer> mConnectionHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<StreamMessageHandler, Integer> mStreamHandlers = new ConcurrentHashMap<>();
+
+    // uid to what the engine reported about that user, in join order; guards mReplaying too
+    private final LinkedHashMap<Integer, RemoteUser> mRemoteUsers = new LinkedHashMap<>();
+    // handlers being replayed to, with the user callbacks that came in meanwhile
+    private final HashMap<AGEventHandler, List<UserEvent>> mReplaying = new HashMap<>();
+
+    private final Counter mEvents = Metrics.counter("engine.events");
+    private final Counter mReplayed = Metrics.counter("engine.replayed_users");
+
+    private static final class RemoteUser {
+        int joinElapsed;
+        boolean videoDecoded;
+        int width;
+        int height;
+        int decodeElapsed;
+    }
+
+    private interface UserEvent {
+        void deliver(AGEventHandler handler);
+    }
+
+    private static UserEvent userJoined(final int uid, final int elapsed) {
+        return new UserEvent() {
+            @Override
+            public void deliver(AGEventHandler handler) {
+                handler.onUserJoined(uid, elapsed);
+            }
+        };
+    }
+
+    private static UserEvent userOffline(final int uid, final int reason) {
+        return new UserEvent() {
+            @Override
+            public void deliver(AGEventHandler handler) {
+                handler.onUserOffline(uid, reason);
+            }
+        };
+    }
+
+    private static UserEvent videoDecoded(final int uid, final int width, final int height, final int elapsed) {
+        return new UserEvent() {
+            @Override
+            public void deliver(AGEventHandler handler) {
+                handler.onFirstRemoteVideoDecoded(uid, width, height, elapsed);
+            }
+        };
+    }
+
+    /**
+     * Registers the handler and replays the remote users already in the channel to it, on the
+     * calling thread.
+     */
+    public void addEventHandler(AGEventHandler handler) {
+        List<UserEvent> replay = new ArrayList<>();
+        synchronized (mRemoteUsers) {
+            this.mEventHandleList.put(handler, 0);
+            mReplaying.put(handler, new ArrayList<UserEvent>());
+            for (Map.Entry<Integer, RemoteUser> e : mRemoteUsers.entrySet()) {
+                int uid = e.getKey();
+                RemoteUser user = e.getValue();
+                replay.add(userJoined(uid, user.joinElapsed));
+                if (user.videoDecoded) {
+                    replay.add(videoDecoded(uid, user.width, user.height, user.decodeElapsed));
+                }
+                mReplayed.inc();
+            }
+        }
+        while (true) {
+            for (UserEvent event : replay) {
+                event.deliver(handler);
+            }
+            synchronized (mRemoteUsers) {
+                List<UserEvent> queued = mReplaying.get(handler);
+                if (queued == null || queued.isEmpty()) {
+                    mReplaying.remove(handler);
+                    return;
+                }
+                replay = new ArrayList<>(queued);
+                queued.clear();
+            }
+        }
+    }
+
+    public void removeEventHandler(AGEventHandler handler) {
+        synchronized (mRemoteUsers) {
+            this.mEventHandleList.remove(handler);
+            mReplaying.remove(handler);
+        }
+    }
+
+    // under mRemoteUsers: the handlers to call now; those still being replayed to get it queued
+    private List<AGEventHandler> recipientsLocked(UserEvent event) {
+        List<AGEventHandler> now = new ArrayList<>(mEventHandleList.size());
+        for (AGEventHandler handler : mEventHandleList.keySet()) {
+            List<UserEvent> queued = mReplaying.get(handler);
+            if (queued != null) {
+                queued.add(event);
+            } else {
+                now.add(handler);
+            }
+        }
+        return now;
+    }
+
+    private static void deliver(UserEvent event, List<AGEventHandler> handlers) {
+        for (AGEventHandler handler : handlers) {
+            event.deliver(handler);
+        }
+    }
+
+    public void addConnectionHandler(ConnectionEventHandler handler) {
+        this.mConnectionHandlers.put(handler, 0);
+    }
+
+    public void removeConnectionHandler(ConnectionEventHandler handler) {
+        this.mConnectionHandlers.remove(handler);
+    }
+
+    public void addStreamMessageHandler(StreamMessageHandler handler) {
+        this.mStreamHandlers.put(handler, 0);
+    }
+
+    public void removeStreamMessageHandler(StreamMessageHandler handler) {
+        this.mStreamHandlers.remove(handler);
+    }
+
+    public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+        mEvents.inc();
+        synchronized (mRemoteUsers) {
+            mRemoteUsers.clear(); // a new channel, its users are reported again
+        }
+        Iterator<AGEventHandler> it = mEventHandleList.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onJoinChannelSuccess(channel, uid, elapsed);
+        }
+    }
+
+    /**
+     * The app left the channel; its users are forgotten so a later handler is not told about
+     * them. Not passed on, no handler needs it.
+     */
+    public void onLeaveChannel() {
+        synchronized (mRemoteUsers) {
+            mRemoteUsers.clear();
+        }
+    }
+
+    public void onUserJoined(int uid, int elapsed) {
+        mEvents.inc();
+        UserEvent event = userJoined(uid, elapsed);
+        List<AGEventHandler> handlers;
+        synchronized (mRemoteUsers) {
+            RemoteUser user = mRemoteUsers.get(uid);
+            if (user == null) {
+                user = new RemoteUser();
+                mRemoteUsers.put(uid, user);
+            }
+            user.joinElapsed = elapsed;
+            handlers = recipientsLocked(event);
+        }
+        deliver(event, handlers);
+    }
+
+    public void onUserOffline(int uid, int reason) {
+        mEvents.inc();
+        UserEvent event = userOffline(uid, reason);
+        List<AGEventHandler> handlers;
+        synchronized (mRemoteUsers) {
+            mRemoteUsers.remove(uid);
+            handlers = recipientsLocked(event);
+        }
+        deliver(event, handlers);
+    }
+
+    public void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
+        mEvents.inc();
+        UserEvent event = videoDecoded(uid, width, height, elapsed);
+        List<AGEventHandler> handlers;
+        synchronized (mRemoteUsers) {
+            RemoteUser user = mRemoteUsers.get(uid);
+            if (user == null) {
+                user = new RemoteUser();
+                mRemoteUsers.put(uid, user);
+            }
+            user.videoDecoded = true;
+            user.width = width;
+            user.height = height;
+            user.decodeElapsed = elapsed;
+            handlers = recipientsLocked(event);
+        }
+        deliver(event, handlers);
+    }
+
+    /**
+     * @param uids    speaker uids, 0 is the local user; only the first {@code count} are valid
+     * @param volumes 0..255, parallel to uids
+     */
+    public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+        mEvents.inc();
+        Iterator<AGEventHandler> it = mEventHandleList.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onAudioVolumeIndication(uids, volumes, count, totalVolume);
+        }
+    }
+
+    public void onConnectionInterrupted() {
+        mEvents.inc();
+        Iterator<ConnectionEventHandler> it = mConnectionHandlers.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onConnectionInterrupted();
+        }
+    }
+
+    public void onConnectionLost() {
+        mEvents.inc();
+        Iterator<ConnectionEventHandler> it = mConnectionHandlers.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onConnectionLost();
+        }
+    }
+
+    public void onRejoinChannelSuccess(String channel, int uid, int elapsed) {
+        mEvents.inc();
+        Iterator<ConnectionEventHandler> it = mConnectionHandlers.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onRejoinChannelSuccess(channel, uid, elapsed);
+        }
+    }
+
+    public void onStreamMessage(int uid, int streamId, byte[] data) {
+        mEvents.inc();
+        Iterator<StreamMessageHandler> it = mStreamHandlers.keySet().iterator();
+        while (it.hasNext()) {
+            it.next().onStreamMessage(uid, streamId, data);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.agora.ard.ktv.model;
+
+/**
+ * The song player calls the room makes. {@link AgoraKtvPlayer} forwards them to
+ * {@link io.agora.ktvkit.KTVKit}; {@code SimulatedPlayer} in the unit test sources keeps a
+ * clock on the JVM.
+ */
+public interface KtvPlayer {
+    void openAndPlay(String url);
+
+    void stop();
+
+    void pause();
+
+    void switchAudioTrack();
+
+    /**
+     * @return playback position as a fraction of the duration
+     */
+    double getCurrentPosition();
+
+    /**
+     * @return duration in ms
+     */
+    int getDuration();
+
+    void adjustVoiceVolume(double volume);
+
+    void adjustAccompanyVolume(double volume);
+
+    void muteLocal();
+
+    void unMuteLocal();
+
+    void resetAudioBuffer();
+}
@@ -2,11 +2,11 @@ package io.agora.ard.ktv.model;
 
 import android.content.Context;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
+import java.io.IOException;
 
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.trace.TraceWriter;
 import io.agora.rtc.IRtcEngineEventHandler;
 
 /**
@@ -14,53 +14,89 @@ import io.agora.rtc.IRtcEngineEventHandler;
  */
 
 public class MyEngineEventHandler {
+    private static final EventLog.Event EV_USER_JOINED = EventLog.event(EventLog.DEBUG, "onUserJoined {u} {}");
+    private static final EventLog.Event EV_USER_OFFLINE = EventLog.event(EventLog.DEBUG, "onUserOffline {u} {}");
+    private static final EventLog.Event EV_CONNECTION_INTERRUPTED = EventLog.event(EventLog.WARN, "onConnectionInterrupted");
+    private static final EventLog.Event EV_CONNECTION_LOST = EventLog.event(EventLog.WARN, "onConnectionLost");
+    private static final EventLog.Event EV_REJOIN_SUCCESS = EventLog.event(EventLog.INFO, "onRejoinChannelSuccess {s} {u} {}");
+
     public MyEngineEventHandler(Context ctx,EngineConfig config){
         this.mConfig = config;
         this.mContext = ctx;
     }
     private final EngineConfig mConfig;
     private final Context mContext;
-    private final ConcurrentHashMap<AGEventHandler,Integer> mEventHandleList = new ConcurrentHashMap<>();
-    public void addEventHandler(AGEventHandler handler){this.mEventHandleList.put(handler,0);}
+    private final EngineEventDispatcher mDispatcher = new EngineEventDispatcher();
+    public void addEventHandler(AGEventHandler handler){mDispatcher.addEventHandler(handler);}
 
     public void removeEventHandler(AGEventHandler handler){
-        this.mEventHandleList.remove(handler);
+        mDispatcher.removeEventHandler(handler);
+    }
+
+    public EngineEventDispatcher dispatcher() {
+        return mDispatcher;
+    }
+
+    private volatile TraceWriter mTrace;
+
+    /**
+     * Records every callback from here on into {@code file}, for replay with
+     * {@code TraceReplayer} from the unit test sources. A running trace is stopped first.
+     */
+    public synchronized void startTrace(File file) throws IOException {
+        stopTrace();
+        TraceWriter trace = new TraceWriter(file);
+        mDispatcher.addEventHandler(trace);
+        mDispatcher.addConnectionHandler(trace);
+        mTrace = trace;
+    }
+
+    /**
+     * @return the trace file, finished on the I/O lane shortly after; null if none was running
+     */
+    public synchronized File stopTrace() {
+        TraceWriter trace = mTrace;
+        if (trace == null) {
+            return null;
+        }
+        mTrace = null;
+        mDispatcher.removeEventHandler(trace);
+        mDispatcher.removeConnectionHandler(trace);
+        trace.close();
+        return trace.file();
+    }
+
+    /**
+     * @return the running trace, player events are fed into it by the activity, may be null
+     */
+    public TraceWriter trace() {
+        return mTrace;
     }
 
     final IRtcEngineEventHandler mRtcEventHandler = new IRtcEngineEventHandler() {
-        private final Logger log =  LoggerFactory.getLogger(this.getClass());
+        // reused per callback, the engine calls back on a single thread
+        private int[] mSpeakerUids = new int[ConstantApp.MAX_PEER_COUNT + 1];
+        private int[] mSpeakerVolumes = new int[ConstantApp.MAX_PEER_COUNT + 1];
+
         @Override
         public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
             super.onJoinChannelSuccess(channel, uid, elapsed);
-            Iterator<AGEventHandler> it = mEventHandleList.keySet().iterator();
-            while (it.hasNext())
-            {
-                AGEventHandler handler = it.next();
-                handler.onJoinChannelSuccess(channel,uid,elapsed);
-            }
+            mDispatcher.onJoinChannelSuccess(channel, uid, elapsed);
 
         }
 
         @Override
         public void onUserJoined(int uid, int elapsed) {
             super.onUserJoined(uid, elapsed);
-            log.debug("onUserJoined " + (uid & 0xFFFFFFFFL) + " " + elapsed);
-            Iterator <AGEventHandler> it = mEventHandleList.keySet().iterator();
-            while (it.hasNext()){
-                AGEventHandler handler = it.next();
-                handler.onUserJoined(uid,elapsed);
-            }
+            EventLog.log(EV_USER_JOINED, uid, elapsed);
+            mDispatcher.onUserJoined(uid, elapsed);
         }
 
         @Override
         public void onUserOffline(int uid, int reason) {
             super.onUserOffline(uid, reason);
-            log.debug("onUserOffline " + (uid & 0xFFFFFFFFL) + " " + reason);
-            Iterator <AGEventHandler> it = mEventHandleList.keySet().iterator();
-            while (it.hasNext()){
-                AGEventHandler handler = it.next();
-                handler.onUserOffline(uid,reason);
-            }
+            EventLog.log(EV_USER_OFFLINE, uid, reason);
+            mDispatcher.onUserOffline(uid, reason);
 
         }
 
@@ -77,11 +113,49 @@ public class MyEngineEventHandler {
         @Override
         public void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
             super.onFirstRemoteVideoDecoded(uid, width, height, elapsed);
-            Iterator<AGEventHandler> it = mEventHandleList.keySet().iterator();
-            while (it.hasNext()){
-                AGEventHandler handler = it.next();
-                handler.onFirstRemoteVideoDecoded(uid,width,height,elapsed);
+            mDispatcher.onFirstRemoteVideoDecoded(uid, width, height, elapsed);
+        }
+
+        @Override
+        public void onConnectionInterrupted() {
+            super.onConnectionInterrupted();
+            EventLog.log(EV_CONNECTION_INTERRUPTED);
+            mDispatcher.onConnectionInterrupted();
+        }
+
+        @Override
+        public void onConnectionLost() {
+            super.onConnectionLost();
+            EventLog.log(EV_CONNECTION_LOST);
+            mDispatcher.onConnectionLost();
+        }
+
+        @Override
+        public void onRejoinChannelSuccess(String channel, int uid, int elapsed) {
+            super.onRejoinChannelSuccess(channel, uid, elapsed);
+            EventLog.log(EV_REJOIN_SUCCESS, channel, uid, elapsed);
+            mDispatcher.onRejoinChannelSuccess(channel, uid, elapsed);
+        }
+
+        @Override
+        public void onStreamMessage(int uid, int streamId, byte[] data) {
+            super.onStreamMessage(uid, streamId, data);
+            mDispatcher.onStreamMessage(uid, streamId, data);
+        }
+
+        @Override
+        public void onAudioVolumeIndication(AudioVolumeInfo[] speakers, int totalVolume) {
+            super.onAudioVolumeIndication(speakers, totalVolume);
+            int count = speakers == null ? 0 : speakers.length;
+            if (mSpeakerUids.length < count) {
+                mSpeakerUids = new int[count];
+                mSpeakerVolumes = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                mSpeakerUids[i] = speakers[i].uid;
+                mSpeakerVolumes[i] = speakers[i].volume;
             }
+            mDispatcher.onAudioVolumeIndication(mSpeakerUids, mSpeakerVolumes, count, totalVolume);
         }
     };
 
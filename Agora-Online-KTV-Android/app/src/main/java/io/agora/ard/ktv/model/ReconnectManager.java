@@ -0,0 +1,331 @@
+package io.agora.ard.ktv.model;
+
+import java.util.Random;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Gets the app back into its channel after the network drops, without the room being torn
+ * down. Sits in front of the real engine as its {@link EngineApi}, so it knows the channel,
+ * uid and role last asked for; {@link #leaveChannel()} is the only thing that makes it forget.
+ * <p>
+ * On {@link #onConnectionInterrupted()} the engine is first given {@code sdkGraceMs} to
+ * recover by itself. After that, or at once on {@link #onConnectionLost()}, the channel is
+ * left and joined again, with exponential backoff and jitter between attempts so a room
+ * full of clients does not come back in lockstep. Each attempt that sees no join callback
+ * within the attempt timeout leads to the next one; after {@code maxAttempts} the manager
+ * gives up and reports it.
+ * <p>
+ * The player and the views are not touched here. {@link Listener#onRecovered} is where the
+ * room re-aligns the song with the published stream. {@code engine.reconnect.recover_ms} is
+ * the time from the first sign of trouble to being back in the channel.
+ */
+public class ReconnectManager implements EngineApi, AGEventHandler, ConnectionEventHandler {
+    private static final EventLog.Event EV_INTERRUPTED = EventLog.event(EventLog.WARN, "reconnect: interrupted, waiting {} ms for the engine");
+    private static final EventLog.Event EV_ATTEMPT = EventLog.event(EventLog.WARN, "reconnect: attempt {} in {} ms");
+    private static final EventLog.Event EV_RECOVERED = EventLog.event(EventLog.INFO, "reconnect: back in {s} after {} ms, {} attempts");
+    private static final EventLog.Event EV_GAVE_UP = EventLog.event(EventLog.ERROR, "reconnect: gave up after {} attempts, {} ms");
+
+    public static final int STATE_IDLE = 0; // not in a channel
+    public static final int STATE_CONNECTED = 1;
+    public static final int STATE_INTERRUPTED = 2; // engine is retrying on its own
+    public static final int STATE_REJOINING = 3;
+    public static final int STATE_FAILED = 4;
+
+    /**
+     * Runs rejoin steps later on the thread that owns the engine.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+    }
+
+    /**
+     * Called on the engine callback thread or the scheduler's thread.
+     */
+    public interface Listener {
+        void onReconnecting(int attempt);
+
+        /**
+         * @param recoverMs from the first interruption to being back in the channel
+         */
+        void onRecovered(long recoverMs);
+
+        void onGaveUp();
+    }
+
+    private final EngineApi mEngine;
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private final long mSdkGraceMs;
+    private final long mBaseBackoffMs;
+    private final long mMaxBackoffMs;
+    private final long mAttemptTimeoutMs;
+    private final int mMaxAttempts;
+    private volatile Listener mListener;
+
+    private String mChannel;
+    private int mUid;
+    private int mClientRole;
+    private boolean mHasRole;
+
+    private int mState = STATE_IDLE;
+    private int mAttempt;
+    private long mLostAtNs;
+    // bumped on every state change, scheduled steps from an older generation do nothing
+    private int mGeneration;
+
+    private final Histogram mRecoverTime = Metrics.histogram("engine.reconnect.recover_ms",
+            new long[]{500, 1000, 2000, 5000, 10000, 20000, 60000});
+    private final Counter mAttempts = Metrics.counter("engine.reconnect.attempts");
+    private final Counter mSdkRecoveries = Metrics.counter("engine.reconnect.sdk_recovered");
+    private final Counter mFailures = Metrics.counter("engine.reconnect.failures");
+
+    public ReconnectManager(EngineApi engine, Scheduler scheduler) {
+        this(engine, scheduler, new Random(), 4000, 500, 8000, 5000, 8);
+    }
+
+    /**
+     * @param sdkGraceMs       how long the engine may try on its own after an interruption
+     * @param baseBackoffMs    delay before the first rejoin, doubled per attempt
+     * @param maxBackoffMs     cap for the delay
+     * @param attemptTimeoutMs how long a rejoin may take before the next one
+     */
+    public ReconnectManager(EngineApi engine, Scheduler scheduler, Random random, long sdkGraceMs,
+                            long baseBackoffMs, long maxBackoffMs, long attemptTimeoutMs, int maxAttempts) {
+        mEngine = engine;
+        mScheduler = scheduler;
+        mRandom = random;
+        mSdkGraceMs = sdkGraceMs;
+        mBaseBackoffMs = baseBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mAttemptTimeoutMs = attemptTimeoutMs;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int state() {
+        return mState;
+    }
+
+    /**
+     * @return true between the first sign of a drop and getting back or giving up
+     */
+    public synchronized boolean isRecovering() {
+        return mState == STATE_INTERRUPTED || mState == STATE_REJOINING;
+    }
+
+    @Override
+    public synchronized void joinChannel(String channel, int uid) {
+        mChannel = channel;
+        mUid = uid;
+        mGeneration++;
+        mEngine.joinChannel(channel, uid);
+    }
+
+    @Override
+    public synchronized void leaveChannel() {
+        mChannel = null;
+        mState = STATE_IDLE;
+        mGeneration++;
+        mEngine.leaveChannel();
+    }
+
+    @Override
+    public synchronized void setClientRole(int role) {
+        mClientRole = role;
+        mHasRole = true;
+        mEngine.setClientRole(role);
+    }
+
+    @Override
+    public void setParameters(String parameters) {
+        mEngine.setParameters(parameters);
+    }
+
+    @Override
+    public void enableInEarMonitoring(boolean enabled) {
+        mEngine.enableInEarMonitoring(enabled);
+    }
+
+    @Override
+    public void enableAudioVolumeIndication(int intervalMs, int smooth) {
+        mEngine.enableAudioVolumeIndication(intervalMs, smooth);
+    }
+
+    @Override
+    public void onConnectionInterrupted() {
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) {
+                return;
+            }
+            mState = STATE_INTERRUPTED;
+            mLostAtNs = System.nanoTime();
+            mAttempt = 0;
+            final int generation = ++mGeneration;
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    takeOver(generation);
+                }
+            }, mSdkGraceMs);
+        }
+        EventLog.log(EV_INTERRUPTED, mSdkGraceMs);
+    }
+
+    @Override
+    public void onConnectionLost() {
+        int generation;
+        synchronized (this) {
+            if (mState == STATE_CONNECTED) {
+                mState = STATE_INTERRUPTED;
+                mLostAtNs = System.nanoTime();
+                mAttempt = 0;
+            } else if (mState != STATE_INTERRUPTED) {
+                return;
+            }
+            generation = ++mGeneration;
+        }
+        takeOver(generation);
+    }
+
+    @Override
+    public void onRejoinChannelSuccess(String channel, int uid, int elapsed) {
+        recovered(channel, true);
+    }
+
+    @Override
+    public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+        recovered(channel, false);
+    }
+
+    private void recovered(String channel, boolean bySdk) {
+        Listener listener;
+        long recoverMs;
+        int attempts;
+        synchronized (this) {
+            if (mChannel == null || !mChannel.equals(channel)) {
+                return;
+            }
+            int state = mState;
+            mState = STATE_CONNECTED;
+            mGeneration++;
+            if (state != STATE_INTERRUPTED && state != STATE_REJOINING) {
+                return; // first join, or a late callback
+            }
+            recoverMs = (System.nanoTime() - mLostAtNs) / 1000000;
+            attempts = mAttempt;
+            listener = mListener;
+        }
+        mRecoverTime.record(recoverMs);
+        if (bySdk) {
+            mSdkRecoveries.inc();
+        }
+        EventLog.log(EV_RECOVERED, channel, recoverMs, attempts);
+        if (listener != null) {
+            listener.onRecovered(recoverMs);
+        }
+    }
+
+    // on the scheduler's thread
+    private void takeOver(int generation) {
+        synchronized (this) {
+            if (generation != mGeneration || mChannel == null) {
+                return;
+            }
+            mState = STATE_REJOINING;
+        }
+        scheduleAttempt(generation);
+    }
+
+    private void scheduleAttempt(int generation) {
+        final int attempt;
+        final int next;
+        long delay;
+        Listener listener;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            listener = mListener;
+            if (mAttempt >= mMaxAttempts) {
+                mState = STATE_FAILED;
+                mGeneration++;
+                attempt = -1;
+                next = 0;
+                delay = (System.nanoTime() - mLostAtNs) / 1000000;
+            } else {
+                attempt = ++mAttempt;
+                next = ++mGeneration;
+                delay = backoffMs(attempt);
+            }
+        }
+        if (attempt < 0) {
+            mFailures.inc();
+            EventLog.log(EV_GAVE_UP, mMaxAttempts, delay);
+            if (listener != null) {
+                listener.onGaveUp();
+            }
+            return;
+        }
+        EventLog.log(EV_ATTEMPT, attempt, delay);
+        if (listener != null) {
+            listener.onReconnecting(attempt);
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                rejoin(next);
+            }
+        }, delay);
+    }
+
+    // equal jitter: half the exponential step is fixed, the other half random
+    private long backoffMs(int attempt) {
+        long step = mBaseBackoffMs << Math.min(attempt - 1, 16);
+        step = Math.min(step, mMaxBackoffMs);
+        long half = step / 2;
+        return half + (long) (mRandom.nextDouble() * (step - half));
+    }
+
+    private void rejoin(final int generation) {
+        synchronized (this) {
+            if (generation != mGeneration || mState != STATE_REJOINING) {
+                return;
+            }
+            mAttempts.inc();
+            mEngine.leaveChannel();
+            if (mHasRole) {
+                mEngine.setClientRole(mClientRole);
+            }
+            mEngine.joinChannel(mChannel, mUid);
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleAttempt(generation);
+            }
+        }, mAttemptTimeoutMs);
+    }
+
+    @Override
+    public void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
+    }
+
+    @Override
+    public void onUserOffline(int uid, int reason) {
+    }
+
+    @Override
+    public void onUserJoined(int uid, int elapsed) {
+    }
+
+    @Override
+    public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+    }
+}
@@ -0,0 +1,331 @@
+package io.agora.ard.ktv.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Owns which channel the engine is in, so moving between rooms does not have to go through
+ * a full leave, activity teardown and join.
+ * <p>
+ * {@link #switchTo} hops from the current channel straight into another one, keeping uid and
+ * role; the room keeps its engine, KTVKit instance and views. {@link #prejoin} joins a room
+ * speculatively, as audience, while the user is still deciding (the role dialog in the lobby);
+ * {@link #join} then claims it instead of joining again. The engine can be in one channel
+ * only, so a prejoin is only made from outside a channel and is left again if it is not
+ * claimed within {@code prejoinTtlMs}.
+ * <p>
+ * Hop latency is measured from the user leaving one room to being joined in the next:
+ * {@code room.hop.full_ms} for a leave followed by a plain join (the old path, activity
+ * recreated in between), {@code room.hop.prejoined_ms} for the same with the join claimed
+ * from a prejoin, {@code room.hop.switch_ms} for an in-room switch. {@code room.enter_ms} is a
+ * join that does not follow a leave. The switch should come in at the engine's join time
+ * alone, well under half of the full path.
+ */
+public class RoomSwitcher implements AGEventHandler {
+    private static final EventLog.Event EV_PREJOIN = EventLog.event(EventLog.INFO, "rooms: prejoin {s} as {u}");
+    private static final EventLog.Event EV_PREJOIN_DROPPED = EventLog.event(EventLog.INFO, "rooms: prejoin {s} dropped, expired {}");
+    private static final EventLog.Event EV_SWITCH = EventLog.event(EventLog.INFO, "rooms: switch to {s} as {u}");
+    private static final EventLog.Event EV_JOINED = EventLog.event(EventLog.INFO, "rooms: in {s} after {} ms, how {}");
+
+    public static final int HOW_ENTER = 0; // fresh join, not after a leave
+    public static final int HOW_FULL = 1; // leave, then join
+    public static final int HOW_PREJOINED = 2; // leave, then claimed a prejoin
+    public static final int HOW_SWITCH = 3; // switched without leaving the room
+
+    // a join this long after the last leave is an entry, not a hop
+    private static final long HOP_WINDOW_MS = 60000;
+    private static final int HISTORY_SIZE = 8;
+
+    /**
+     * Called on the engine callback thread or the thread calling {@link #join}.
+     */
+    public interface Listener {
+        /**
+         * @param hopMs see the class comment, by {@code how}
+         * @param how   one of the {@code HOW_} constants
+         */
+        void onRoomJoined(String channel, long hopMs, int how);
+    }
+
+    private final EngineApi mEngine;
+    private final ReconnectManager.Scheduler mScheduler;
+    private final long mPrejoinTtlMs;
+    private volatile Listener mListener;
+
+    private String mChannel;
+    private int mUid;
+    private boolean mJoined;
+    private boolean mPrejoined; // in mChannel for a prejoin nobody claimed yet
+    private int mPrejoinGeneration;
+    private int mPendingHow = -1; // waiting for the join callback to report
+    private long mPendingStartNs;
+    private long mLeftAtNs;
+    private final List<String> mHistory = new ArrayList<>();
+
+    private final Histogram mEnterTime = hopHistogram("room.enter_ms");
+    private final Histogram mFullHop = hopHistogram("room.hop.full_ms");
+    private final Histogram mPrejoinedHop = hopHistogram("room.hop.prejoined_ms");
+    private final Histogram mSwitchHop = hopHistogram("room.hop.switch_ms");
+    private final Counter mPrejoinHits = Metrics.counter("room.prejoin.hits");
+    private final Counter mPrejoinMisses = Metrics.counter("room.prejoin.misses");
+    private final Counter mPrejoinExpired = Metrics.counter("room.prejoin.expired");
+
+    private static Histogram hopHistogram(String name) {
+        return Metrics.histogram(name, new long[]{50, 100, 200, 500, 1000, 2000, 5000, 10000});
+    }
+
+    public RoomSwitcher(EngineApi engine, ReconnectManager.Scheduler scheduler) {
+        this(engine, scheduler, 15000);
+    }
+
+    public RoomSwitcher(EngineApi engine, ReconnectManager.Scheduler scheduler, long prejoinTtlMs) {
+        mEngine = engine;
+        mScheduler = scheduler;
+        mPrejoinTtlMs = prejoinTtlMs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized String channel() {
+        return mChannel;
+    }
+
+    /**
+     * Joins {@code channel} ahead of time as {@code role}, unless already in a channel.
+     *
+     * @return false if a channel is already taken
+     */
+    public boolean prejoin(String channel, int uid, int role) {
+        synchronized (this) {
+            if (mChannel != null) {
+                return false;
+            }
+            mChannel = channel;
+            mUid = uid;
+            mJoined = false;
+            mPrejoined = true;
+            mPendingHow = -1;
+            mEngine.setClientRole(role);
+            mEngine.joinChannel(channel, uid);
+            final int generation = ++mPrejoinGeneration;
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(generation);
+                }
+            }, mPrejoinTtlMs);
+        }
+        EventLog.log(EV_PREJOIN, channel, uid);
+        return true;
+    }
+
+    /**
+     * Leaves a prejoin nobody claimed, e.g. the user backed out of the role dialog.
+     */
+    public void cancelPrejoin() {
+        dropPrejoin(-1);
+    }
+
+    private void expire(int generation) {
+        if (dropPrejoin(generation)) {
+            mPrejoinExpired.inc();
+        }
+    }
+
+    private boolean dropPrejoin(int generation) {
+        String channel;
+        synchronized (this) {
+            if (!mPrejoined || (generation >= 0 && generation != mPrejoinGeneration)) {
+                return false;
+            }
+            channel = mChannel;
+            mPrejoined = false;
+            mChannel = null;
+            mJoined = false;
+            mEngine.leaveChannel();
+        }
+        EventLog.log(EV_PREJOIN_DROPPED, channel, generation >= 0 ? 1 : 0);
+        return true;
+    }
+
+    /**
+     * Enters {@code channel}, claiming a prejoin of it if there is one. The role is set by the
+     * caller, before or after.
+     */
+    public void join(String channel, int uid) {
+        long reportMs = -1;
+        int how;
+        Listener listener;
+        synchronized (this) {
+            long now = System.nanoTime();
+            boolean hop = mLeftAtNs != 0 && (now - mLeftAtNs) / 1000000 < HOP_WINDOW_MS;
+            long start = hop ? mLeftAtNs : now;
+            mLeftAtNs = 0;
+            if (mPrejoined && channel.equals(mChannel) && uid == mUid) {
+                mPrejoined = false;
+                mPrejoinGeneration++;
+                mPrejoinHits.inc();
+                how = hop ? HOW_PREJOINED : HOW_ENTER;
+                if (mJoined) {
+                    reportMs = (now - start) / 1000000;
+                } else {
+                    mPendingHow = how;
+                    mPendingStartNs = start;
+                }
+            } else {
+                if (mPrejoined) {
+                    mPrejoined = false;
+                    mPrejoinGeneration++;
+                    mPrejoinMisses.inc();
+                }
+                if (mChannel != null) {
+                    mEngine.leaveChannel();
+                }
+                mChannel = channel;
+                mUid = uid;
+                mJoined = false;
+                how = hop ? HOW_FULL : HOW_ENTER;
+                mPendingHow = how;
+                mPendingStartNs = start;
+                mEngine.joinChannel(channel, uid);
+            }
+            listener = mListener;
+        }
+        if (reportMs >= 0) {
+            report(channel, reportMs, how, listener);
+        }
+    }
+
+    /**
+     * Moves from the current channel to {@code channel} with the same uid and role.
+     *
+     * @return false if not in a channel
+     */
+    public boolean switchTo(String channel) {
+        String from;
+        int uid;
+        synchronized (this) {
+            if (mChannel == null || mPrejoined) {
+                return false;
+            }
+            from = mChannel;
+            if (from.equals(channel)) {
+                return true;
+            }
+            remember(from);
+            mEngine.leaveChannel();
+            mChannel = channel;
+            mJoined = false;
+            mPendingHow = HOW_SWITCH;
+            mPendingStartNs = System.nanoTime();
+            uid = mUid;
+            mEngine.joinChannel(channel, uid);
+        }
+        EventLog.log(EV_SWITCH, channel, uid);
+        return true;
+    }
+
+    /**
+     * Leaves {@code channel}; ignored if it is no longer the current one, so a late leave from
+     * a closing room does not take the next room down.
+     */
+    public void leave(String channel) {
+        synchronized (this) {
+            if (mChannel == null || mPrejoined || (channel != null && !channel.equals(mChannel))) {
+                return;
+            }
+            remember(mChannel);
+            mChannel = null;
+            mJoined = false;
+            mPendingHow = -1;
+            mLeftAtNs = System.nanoTime();
+            mEngine.leaveChannel();
+        }
+    }
+
+    private void remember(String channel) {
+        mHistory.remove(channel);
+        mHistory.add(0, channel);
+        if (mHistory.size() > HISTORY_SIZE) {
+            mHistory.remove(mHistory.size() - 1);
+        }
+    }
+
+    /**
+     * @return the room the user most likely opens next: the latest one other than
+     * {@code current}, or null
+     */
+    public synchronized String predictNext(String current) {
+        for (String channel : mHistory) {
+            if (!channel.equals(current)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+        long hopMs;
+        int how;
+        Listener listener;
+        synchronized (this) {
+            if (mChannel == null || !mChannel.equals(channel)) {
+                return;
+            }
+            mJoined = true;
+            if (mPendingHow < 0) {
+                return; // an unclaimed prejoin, or a rejoin after a drop
+            }
+            how = mPendingHow;
+            mPendingHow = -1;
+            hopMs = (System.nanoTime() - mPendingStartNs) / 1000000;
+            listener = mListener;
+        }
+        report(channel, hopMs, how, listener);
+    }
+
+    private void report(String channel, long hopMs, int how, Listener listener) {
+        switch (how) {
+            case HOW_FULL:
+                mFullHop.record(hopMs);
+                break;
+            case HOW_PREJOINED:
+                mPrejoinedHop.record(hopMs);
+                break;
+            case HOW_SWITCH:
+                mSwitchHop.record(hopMs);
+                break;
+            default:
+                mEnterTime.record(hopMs);
+                break;
+        }
+        EventLog.log(EV_JOINED, channel, hopMs, how);
+        if (listener != null) {
+            listener.onRoomJoined(channel, hopMs, how);
+        }
+    }
+
+    @Override
+    public void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
+    }
+
+    @Override
+    public void onUserOffline(int uid, int reason) {
+    }
+
+    @Override
+    public void onUserJoined(int uid, int elapsed) {
+    }
+
+    @Override
+    public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+    }
+}
@@ -0,0 +1,12 @@
+package io.agora.ard.ktv.model;
+
+/**
+ * Data stream messages from other users in the channel, see
+ * {@link DataStreamChorusTransport}.
+ */
+public interface StreamMessageHandler {
+    /**
+     * Called on the engine callback thread; {@code data} is not reused by the engine.
+     */
+    void onStreamMessage(int uid, int streamId, byte[] data);
+}
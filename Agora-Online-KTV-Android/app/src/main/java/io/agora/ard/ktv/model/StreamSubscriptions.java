@@ -0,0 +1,204 @@
+package io.agora.ard.ktv.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * Decides, per remote uid, whether to receive its high stream, its low stream or no video at
+ * all, from how its view is shown. Broadcasters publish both streams (dual stream mode), so
+ * only viewers that are big enough to need the detail pay for decoding it.
+ * <p>
+ * The room reports every remote view in a pass of {@link #update} calls and ends it with
+ * {@link #commit}: views that are hidden, covered or not reported, and all views while the
+ * room is in the background, get {@link #TIER_AUDIO_ONLY}. Of the visible ones, the largest
+ * {@code maxHigh} whose short side reaches {@code highMinPx} get {@link #TIER_HIGH}, the rest
+ * {@link #TIER_LOW}. A view already on the high stream keeps it down to 80% of that size, so
+ * a view resized around the threshold does not flip between streams. Only changed tiers
+ * are passed to the {@link Applier}.
+ * <p>
+ * Not thread-safe, the room calls it on the UI thread.
+ */
+public class StreamSubscriptions {
+    private static final EventLog.Event EV_TIER = EventLog.event(EventLog.DEBUG, "subscriptions: {u} to tier {}");
+
+    public static final int TIER_AUDIO_ONLY = 0;
+    public static final int TIER_LOW = 1;
+    public static final int TIER_HIGH = 2;
+
+    private static final int TIER_NONE = -1;
+
+    /**
+     * Makes the engine receive a tier; called from {@link #commit} and {@link #reapply}.
+     */
+    public interface Applier {
+        void apply(int uid, int tier);
+    }
+
+    private static final class Entry {
+        final int uid;
+        boolean reported;
+        boolean visible;
+        int width;
+        int height;
+        int tier = TIER_NONE;
+
+        Entry(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    private final Applier mApplier;
+    private final int mHighMinPx;
+    private final int mMaxHigh;
+    private final Map<Integer, Entry> mEntries = new LinkedHashMap<>();
+    private final List<Entry> mCandidates = new ArrayList<>();
+    private boolean mForeground = true;
+
+    private final Counter mChanges = Metrics.counter("video.subscribe.changes");
+    private final Gauge mHigh = Metrics.gauge("video.subscribe.high");
+    private final Gauge mLow = Metrics.gauge("video.subscribe.low");
+    private final Gauge mAudioOnly = Metrics.gauge("video.subscribe.audio_only");
+
+    /**
+     * @param highMinPx short side a visible view needs for the high stream
+     * @param maxHigh   high streams received at most at the same time
+     */
+    public StreamSubscriptions(Applier applier, int highMinPx, int maxHigh) {
+        mApplier = applier;
+        mHighMinPx = highMinPx;
+        mMaxHigh = maxHigh;
+    }
+
+    /**
+     * Reports one view for the pass ending with the next {@link #commit}.
+     *
+     * @param width  visible width in px, ignored if not visible
+     * @param height visible height in px, ignored if not visible
+     */
+    public void update(int uid, boolean visible, int width, int height) {
+        Entry e = mEntries.get(uid);
+        if (e == null) {
+            e = new Entry(uid);
+            mEntries.put(uid, e);
+        }
+        e.reported = true;
+        e.visible = visible;
+        e.width = width;
+        e.height = height;
+    }
+
+    /**
+     * The room went to the background (false) or came back; takes effect on {@link #commit}.
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+    }
+
+    /**
+     * Forgets a uid that left; nothing is applied since the engine drops it anyway.
+     */
+    public void remove(int uid) {
+        mEntries.remove(uid);
+        publish();
+    }
+
+    /**
+     * Forgets every uid, for a new channel.
+     */
+    public void clear() {
+        mEntries.clear();
+        publish();
+    }
+
+    public int tierOf(int uid) {
+        Entry e = mEntries.get(uid);
+        return e != null && e.tier != TIER_NONE ? e.tier : TIER_HIGH;
+    }
+
+    /**
+     * Ends a pass of {@link #update} calls and applies the tiers that changed.
+     */
+    public void commit() {
+        mCandidates.clear();
+        for (Entry e : mEntries.values()) {
+            if (mForeground && e.reported && e.visible && shortSide(e) >= minPxFor(e)) {
+                mCandidates.add(e);
+            }
+        }
+        // largest first, stable for ties so equal views keep their streams
+        for (int i = 1; i < mCandidates.size(); i++) {
+            Entry e = mCandidates.get(i);
+            int j = i - 1;
+            while (j >= 0 && area(mCandidates.get(j)) < area(e)) {
+                mCandidates.set(j + 1, mCandidates.get(j));
+                j--;
+            }
+            mCandidates.set(j + 1, e);
+        }
+        for (Entry e : mEntries.values()) {
+            int tier;
+            if (!mForeground || !e.reported || !e.visible) {
+                tier = TIER_AUDIO_ONLY;
+            } else {
+                int rank = mCandidates.indexOf(e);
+                tier = rank >= 0 && rank < mMaxHigh ? TIER_HIGH : TIER_LOW;
+            }
+            e.reported = false;
+            if (tier != e.tier) {
+                e.tier = tier;
+                mChanges.inc();
+                EventLog.log(EV_TIER, e.uid, tier);
+                mApplier.apply(e.uid, tier);
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Applies every known tier again, after the engine rejoined and lost its subscriptions.
+     */
+    public void reapply() {
+        for (Entry e : mEntries.values()) {
+            if (e.tier != TIER_NONE) {
+                mApplier.apply(e.uid, e.tier);
+            }
+        }
+    }
+
+    private int minPxFor(Entry e) {
+        return e.tier == TIER_HIGH ? mHighMinPx * 4 / 5 : mHighMinPx;
+    }
+
+    private static int shortSide(Entry e) {
+        return Math.min(e.width, e.height);
+    }
+
+    private static long area(Entry e) {
+        return (long) e.width * e.height;
+    }
+
+    private void publish() {
+        int high = 0;
+        int low = 0;
+        int audioOnly = 0;
+        for (Entry e : mEntries.values()) {
+            if (e.tier == TIER_HIGH) {
+                high++;
+            } else if (e.tier == TIER_LOW) {
+                low++;
+            } else if (e.tier == TIER_AUDIO_ONLY) {
+                audioOnly++;
+            }
+        }
+        mHigh.set(high);
+        mLow.set(low);
+        mAudioOnly.set(audioOnly);
+    }
+}
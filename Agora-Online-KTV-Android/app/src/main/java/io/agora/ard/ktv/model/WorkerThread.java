@@ -5,21 +5,28 @@ import android.content.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import android.content.SharedPreferences;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import io.agora.ard.ktv.R;
 
-import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.SurfaceView;
 
 import java.io.File;
 
+import io.agora.ard.ktv.audio.KtvAudioPipeline;
+import io.agora.ard.ktv.audio.LatencyEstimator;
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.HandlerLane;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
 import io.agora.rtc.Constants;
 import io.agora.rtc.RtcEngine;
 import io.agora.rtc.video.VideoCanvas;
@@ -29,6 +36,15 @@ import io.agora.rtc.video.VideoCanvas;
  */
 public class WorkerThread extends Thread {
     private final static Logger log = LoggerFactory.getLogger(WorkerThread.class);
+
+    private static final EventLog.Event EV_WAIT_FOR_READY = EventLog.event(EventLog.TRACE, "wait for WorkerThread");
+    private static final EventLog.Event EV_JOIN_ASYNC = EventLog.event(EventLog.DEBUG, "joinChannel() - worker thread asynchronously {s} {u}");
+    private static final EventLog.Event EV_JOIN = EventLog.event(EventLog.DEBUG, "joinChannel {s} {u}");
+    private static final EventLog.Event EV_PREVIEW_ASYNC = EventLog.event(EventLog.DEBUG, "preview() - worker thread asynchronously {} {u}");
+    private static final EventLog.Event EV_LEAVE_ASYNC = EventLog.event(EventLog.DEBUG, "leaveChannel() - worker thread asynchronously {s}");
+    private static final EventLog.Event EV_LEAVE = EventLog.event(EventLog.DEBUG, "leave channel {s} {}");
+    private static final EventLog.Event EV_CONFIG_ASYNC = EventLog.event(EventLog.DEBUG, "configEngine() - worker thread asynchronous {} {}");
+    private static final EventLog.Event EV_CONFIG = EventLog.event(EventLog.DEBUG, "configEngine {} {}");
     private final Context mContext;
     private static final int ACTION_WORKER_THREAD_QUIT = 0X1010; // quit this thread
 
@@ -40,6 +56,18 @@ public class WorkerThread extends Thread {
 
     private static final int ACTION_WORKER_PREVIEW = 0X2014;
 
+    private static final int ACTION_WORKER_PREJOIN_CHANNEL = 0X2015;
+
+    private static final int ACTION_WORKER_SWITCH_CHANNEL = 0X2016;
+
+    private static final int ACTION_WORKER_SUBSCRIBE_REMOTE = 0X2017;
+
+    private static final int ACTION_WORKER_ATTACH_AUDIO_PIPELINE = 0X2018;
+
+    private static final int ACTION_WORKER_MEASURE_LATENCY = 0X2019;
+
+    private static final int ACTION_WORKER_PLAYBACK_FRAME_MODE = 0X201A;
+
     private static final class WorkerThreadHandler extends Handler {
         private WorkerThread mWorkerThread;
 
@@ -57,6 +85,7 @@ public class WorkerThread extends Thread {
                 log.warn("handler is already released! " + msg.what);
                 return;
             }
+            mWorkerThread.mQueueLatency.record(SystemClock.uptimeMillis() - msg.getWhen());
 
             switch (msg.what) {
                 case ACTION_WORKER_THREAD_QUIT:
@@ -70,6 +99,24 @@ public class WorkerThread extends Thread {
                     String channel = (String) msg.obj;
                     mWorkerThread.leaveChannel(channel);
                     break;
+                case ACTION_WORKER_PREJOIN_CHANNEL:
+                    mWorkerThread.prejoinChannel((String) msg.obj, msg.arg1);
+                    break;
+                case ACTION_WORKER_SWITCH_CHANNEL:
+                    mWorkerThread.switchChannel((String) msg.obj);
+                    break;
+                case ACTION_WORKER_SUBSCRIBE_REMOTE:
+                    mWorkerThread.subscribeRemote(msg.arg1, msg.arg2);
+                    break;
+                case ACTION_WORKER_ATTACH_AUDIO_PIPELINE:
+                    mWorkerThread.attachAudioPipeline(msg.arg1 != 0);
+                    break;
+                case ACTION_WORKER_MEASURE_LATENCY:
+                    mWorkerThread.measureLatency((LatencyEstimator.Listener) msg.obj);
+                    break;
+                case ACTION_WORKER_PLAYBACK_FRAME_MODE:
+                    mWorkerThread.setPlaybackFrameMode(msg.arg1);
+                    break;
                 case ACTION_WORKER_CONFIG_ENGINE:
                     Object[] configData = (Object[]) msg.obj;
                     mWorkerThread.configEngine((int) configData[0], (int) configData[1]);
@@ -85,7 +132,8 @@ public class WorkerThread extends Thread {
     }
 
     private WorkerThreadHandler mWorkerHandler;
-    private boolean mReady;
+    private volatile boolean mReady;
+    private final Runnable mOnReady;
 
     public final void waitForReady() {
         while (!mReady) {
@@ -95,7 +143,7 @@ public class WorkerThread extends Thread {
 
                 e.printStackTrace();
             }
-            log.debug("wait for" + WorkerThread.class.getSimpleName());
+            EventLog.log(EV_WAIT_FOR_READY);
         }
     }
 
@@ -104,18 +152,28 @@ public class WorkerThread extends Thread {
         log.trace("start to run");
         Looper.prepare();
         mWorkerHandler = new WorkerThreadHandler(this);
+        KtvRuntime.get().attachEngine(new HandlerLane("engine", Lane.PRIORITY_DEFAULT, Lane.AFFINITY_ANY, Looper.myLooper()));
         ensureRtcEngineReadyLock();
         mReady = true;
         log.debug(" SDKVERSION " + mRtcEngine.getSdkVersion());
+        if (mOnReady != null) {
+            mOnReady.run();
+        }
         Looper.loop();
 
     }
 
     private RtcEngine mRtcEngine;
+    private EngineApi mEngine;
+    private ReconnectManager mReconnect;
+    private RoomSwitcher mRooms;
+
+    // time messages wait in the looper before they are handled
+    private final Histogram mQueueLatency = Metrics.histogram("worker.queue_latency_ms", new long[]{1, 2, 5, 10, 20, 50, 100, 200, 500, 1000});
 
     public final void joinChannel(final String channel, int uid) {
         if (Thread.currentThread() != this) {
-            log.warn("joinChannel() - worker thread asynchronously" + channel + " " + uid);
+            EventLog.log(EV_JOIN_ASYNC, channel, uid);
             Message envelop = new Message();
             envelop.what = ACTION_WORKER_JOIN_CHANNEL;
             envelop.obj = new String[]{channel};
@@ -124,15 +182,70 @@ public class WorkerThread extends Thread {
             return;
         }
         ensureRtcEngineReadyLock();
-        mRtcEngine.joinChannel(null, channel, "OpenLive", uid);
+        mRooms.join(channel, uid);
         mEngineConfig.mChannel = channel;
-        log.debug("joinChannel" + channel + " " + uid);
+        EventLog.log(EV_JOIN, channel, uid);
+
+    }
 
+    /**
+     * Joins {@code channel} as audience ahead of {@link #joinChannel}, see {@link RoomSwitcher}.
+     */
+    public final void prejoinChannel(final String channel, int uid) {
+        if (Thread.currentThread() != this) {
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_PREJOIN_CHANNEL;
+            envelop.obj = channel;
+            envelop.arg1 = uid;
+            mWorkerHandler.sendMessage(envelop);
+            return;
+        }
+        ensureRtcEngineReadyLock();
+        mRooms.prejoin(channel, uid, Constants.CLIENT_ROLE_AUDIENCE);
+    }
+
+    /**
+     * Moves to {@code channel} without leaving the room, see {@link RoomSwitcher}.
+     */
+    public final void switchChannel(final String channel) {
+        if (Thread.currentThread() != this) {
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_SWITCH_CHANNEL;
+            envelop.obj = channel;
+            mWorkerHandler.sendMessage(envelop);
+            return;
+        }
+        ensureRtcEngineReadyLock();
+        if (mRooms.switchTo(channel)) {
+            mEngineConfig.mChannel = channel;
+        }
+    }
+
+    /**
+     * Receives one of the {@link StreamSubscriptions} tiers from {@code uid}.
+     */
+    public final void subscribeRemote(int uid, int tier) {
+        if (Thread.currentThread() != this) {
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_SUBSCRIBE_REMOTE;
+            envelop.arg1 = uid;
+            envelop.arg2 = tier;
+            mWorkerHandler.sendMessage(envelop);
+            return;
+        }
+        ensureRtcEngineReadyLock();
+        if (tier == StreamSubscriptions.TIER_AUDIO_ONLY) {
+            mRtcEngine.muteRemoteVideoStream(uid, true);
+        } else {
+            // pick the stream before unmuting so the first frames come from the right one
+            mRtcEngine.setRemoteVideoStreamType(uid, tier == StreamSubscriptions.TIER_HIGH ? Constants.VIDEO_STREAM_HIGH : Constants.VIDEO_STREAM_LOW);
+            mRtcEngine.muteRemoteVideoStream(uid, false);
+        }
     }
 
     public final void preview(boolean start, SurfaceView view, int uid) {
         if (Thread.currentThread() != this) {
-            log.warn("preview() - worker thread asynchronously" + start + " " + view + " " + (uid & 0XFFFFFFFFL));
+            EventLog.log(EV_PREVIEW_ASYNC, start ? 1 : 0, uid);
             Message envelop = new Message();
             envelop.what = ACTION_WORKER_PREVIEW;
             envelop.obj = new Object[]{start, view, uid};
@@ -151,18 +264,18 @@ public class WorkerThread extends Thread {
 
     public final void leaveChannel(String channel) {
         if (Thread.currentThread() != this) {
-            log.warn("leaveChannel() - worker thread asynchronously " + channel);
+            EventLog.log(EV_LEAVE_ASYNC, channel, 0);
             Message envelop = new Message();
             envelop.what = ACTION_WORKER_LEAVE_CHANNEL;
             envelop.obj = channel;
             mWorkerHandler.sendMessage(envelop);
             return;
         }
-        if (mRtcEngine != null)
-            mRtcEngine.leaveChannel();
+        if (mRooms != null)
+            mRooms.leave(channel);
         int clientRole = mEngineConfig.mClientRole;
         mEngineConfig.reset();
-        log.debug("leave channel " + channel + " " + clientRole);
+        EventLog.log(EV_LEAVE, channel, clientRole);
     }
 
     private EngineConfig mEngineConfig;
@@ -175,7 +288,7 @@ public class WorkerThread extends Thread {
 
     public final void configEngine(int cRole, int vProfile) {
         if (Thread.currentThread() != this) {
-            log.warn("configEngine() - worker thread asynchronous" + cRole + " " + vProfile);
+            EventLog.log(EV_CONFIG_ASYNC, cRole, vProfile);
             Message envelop = new Message();
             envelop.what = ACTION_WORKER_CONFIG_ENGINE;
             envelop.obj = new Object[]{cRole, vProfile};
@@ -186,16 +299,95 @@ public class WorkerThread extends Thread {
         mEngineConfig.mClientRole = cRole;
         mEngineConfig.mVideoProfile = vProfile;
         mRtcEngine.setVideoProfile(mEngineConfig.mVideoProfile, false);
-        mRtcEngine.setRecordingAudioFrameParameters(48000, 2, Constants.RAW_AUDIO_FRAME_OP_MODE_READ_WRITE, 960);
-        mRtcEngine.setExternalVideoSource(true, false, true);
-        mRtcEngine.setClientRole(cRole);
-        log.debug("configEngine " + cRole + " " + mEngineConfig.mVideoProfile);
+        mEngine.setClientRole(cRole);
+        EventLog.log(EV_CONFIG, cRole, mEngineConfig.mVideoProfile);
     }
 
     public MyEngineEventHandler eventHandler() {
         return mEngineEventHandler;
     }
 
+    private final KtvAudioPipeline mAudioPipeline;
+
+    public KtvAudioPipeline audioPipeline() {
+        return mAudioPipeline;
+    }
+
+    /**
+     * Hands the engine's raw audio frames to {@link #audioPipeline()}, or takes them back.
+     * <p>
+     * The engine has a single audio frame observer. KTVKit.create() installs its own there to
+     * mix the song into the mic frames and KTVKit.destroy() clears it, so only attach while no
+     * KTVKit exists, and detach before creating one.
+     */
+    public final void attachAudioPipeline(boolean attach) {
+        if (Thread.currentThread() != this) {
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_ATTACH_AUDIO_PIPELINE;
+            envelop.arg1 = attach ? 1 : 0;
+            mWorkerHandler.sendMessage(envelop);
+            return;
+        }
+        ensureRtcEngineReadyLock();
+        if (attach) {
+            // the pipeline only reads playback frames, until a latency measurement plays its sweep
+            mRtcEngine.setPlaybackAudioFrameParameters(ConstantApp.AUDIO_SAMPLE_RATE, ConstantApp.AUDIO_CHANNELS, Constants.RAW_AUDIO_FRAME_OP_MODE_READ_ONLY, ConstantApp.AUDIO_SAMPLES_PER_CALL);
+        }
+        mRtcEngine.registerAudioFrameObserver(attach ? mAudioPipeline : null);
+        log.debug("audio pipeline " + (attach ? "attached" : "detached"));
+    }
+
+    /**
+     * Measures the round trip with {@link KtvAudioPipeline#latency()}, which needs
+     * {@link #attachAudioPipeline} to have been called.
+     * <p>
+     * The sweep is mixed into the playback frames, so they are switched to READ_WRITE before
+     * the measurement starts and back to READ_ONLY once it has finished or timed out; the
+     * engine only copies the frames back while a measurement runs.
+     *
+     * @return false if a measurement is already running
+     */
+    public final boolean measureLatency(final LatencyEstimator.Listener listener) {
+        if (Thread.currentThread() != this) {
+            if (mAudioPipeline.latency().isRunning()) {
+                return false;
+            }
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_MEASURE_LATENCY;
+            envelop.obj = listener;
+            mWorkerHandler.sendMessage(envelop);
+            return true;
+        }
+        if (mAudioPipeline.latency().isRunning()) {
+            return false;
+        }
+        setPlaybackFrameMode(Constants.RAW_AUDIO_FRAME_OP_MODE_READ_WRITE);
+        boolean started = mAudioPipeline.latency().start(new LatencyEstimator.Listener() {
+            @Override
+            public void onLatencyMeasured(int latencyMs, float confidence) {
+                setPlaybackFrameMode(Constants.RAW_AUDIO_FRAME_OP_MODE_READ_ONLY);
+                listener.onLatencyMeasured(latencyMs, confidence);
+            }
+        });
+        if (!started) {
+            setPlaybackFrameMode(Constants.RAW_AUDIO_FRAME_OP_MODE_READ_ONLY);
+        }
+        return started;
+    }
+
+    private void setPlaybackFrameMode(int mode) {
+        if (Thread.currentThread() != this) {
+            Message envelop = new Message();
+            envelop.what = ACTION_WORKER_PLAYBACK_FRAME_MODE;
+            envelop.arg1 = mode;
+            mWorkerHandler.sendMessage(envelop);
+            return;
+        }
+        ensureRtcEngineReadyLock();
+        mRtcEngine.setPlaybackAudioFrameParameters(ConstantApp.AUDIO_SAMPLE_RATE, ConstantApp.AUDIO_CHANNELS, mode, ConstantApp.AUDIO_SAMPLES_PER_CALL);
+        log.debug("playback frames " + (mode == Constants.RAW_AUDIO_FRAME_OP_MODE_READ_WRITE ? "read write" : "read only"));
+    }
+
     private RtcEngine ensureRtcEngineReadyLock() {
         if (mRtcEngine == null) {
             String appId = mContext.getString(R.string.agora_app_id);
@@ -211,8 +403,31 @@ public class WorkerThread extends Thread {
             mRtcEngine.setChannelProfile(Constants.CHANNEL_PROFILE_LIVE_BROADCASTING);
             mRtcEngine.enableVideo();
             mRtcEngine.enableAudio();
-            mRtcEngine.setLogFile(Environment.getExternalStorageDirectory() + File.separator + mContext.getPackageName() + "/log/agora-rtc.log");
+            File logDir = new File(Environment.getExternalStorageDirectory() + File.separator + mContext.getPackageName() + "/log");
+            mRtcEngine.setLogFile(logDir + "/agora-rtc.log");
+            mAudioPipeline.taps().setDumpDirectory(logDir);
+            EventLog.open(logDir);
             mRtcEngine.enableDualStreamMode(true);
+            // fixed for the app, set before any join since a prejoin may come before configEngine;
+            // whoever owns the audio frame observer (KTVKit or attachAudioPipeline) writes the mic frames
+            mRtcEngine.setRecordingAudioFrameParameters(ConstantApp.AUDIO_SAMPLE_RATE, ConstantApp.AUDIO_CHANNELS, Constants.RAW_AUDIO_FRAME_OP_MODE_READ_WRITE, ConstantApp.AUDIO_SAMPLES_PER_CALL);
+            mRtcEngine.setExternalVideoSource(true, false, true);
+            mReconnect = new ReconnectManager(new AgoraEngine(mRtcEngine, mEngineEventHandler.dispatcher()), new ReconnectManager.Scheduler() {
+                @Override
+                public void schedule(Runnable task, long delayMs) {
+                    KtvRuntime.get().engine().schedule(task, delayMs);
+                }
+            });
+            mEngineEventHandler.addEventHandler(mReconnect);
+            mEngineEventHandler.dispatcher().addConnectionHandler(mReconnect);
+            mEngine = mReconnect;
+            mRooms = new RoomSwitcher(mEngine, new ReconnectManager.Scheduler() {
+                @Override
+                public void schedule(Runnable task, long delayMs) {
+                    KtvRuntime.get().engine().schedule(task, delayMs);
+                }
+            });
+            mEngineEventHandler.addEventHandler(mRooms);
         }
 
         return mRtcEngine;
@@ -222,6 +437,27 @@ public class WorkerThread extends Thread {
         return mRtcEngine;
     }
 
+    /**
+     * @return the engine behind {@link EngineApi}, for everything but video setup
+     */
+    public EngineApi engine() {
+        return mEngine;
+    }
+
+    /**
+     * @return rejoins the last channel after a network drop, see {@link ReconnectManager}
+     */
+    public ReconnectManager reconnect() {
+        return mReconnect;
+    }
+
+    /**
+     * @return which channel the engine is in, prejoins and room switches
+     */
+    public RoomSwitcher rooms() {
+        return mRooms;
+    }
+
     public final void exit() {
         if (Thread.currentThread() != this) {
             log.warn("exit() - exit app thread asynchronously");
@@ -236,11 +472,16 @@ public class WorkerThread extends Thread {
         log.debug("exit() > end ");
     }
 
-    public WorkerThread(Context context) {
+    /**
+     * @param uid     saved uid, read before the thread is started
+     * @param onReady called on this thread once the engine is created, may be null
+     */
+    public WorkerThread(Context context, int uid, Runnable onReady) {
         this.mContext = context;
+        this.mOnReady = onReady;
         this.mEngineConfig = new EngineConfig();
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        this.mEngineConfig.mUid = pref.getInt(ConstantApp.PrefManager.PREF_PROPERTY_UID, 0);
+        this.mEngineConfig.mUid = uid;
         this.mEngineEventHandler = new MyEngineEventHandler(mContext, this.mEngineConfig);
+        this.mAudioPipeline = new KtvAudioPipeline();
     }
 }
@@ -0,0 +1,45 @@
+package io.agora.ard.ktv.runtime;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Battery level, charger and temperature from the sticky {@link Intent#ACTION_BATTERY_CHANGED}
+ * broadcast, power save mode from {@link PowerManager} on API 21 and up.
+ * <p>
+ * The thermal status API only exists from API 29, beyond what the app compiles against, so
+ * the battery temperature stands in for it: the battery sits next to the SoC and follows it
+ * within a minute or so, which is fast enough for a governor sampling every few seconds.
+ */
+public class AndroidPowerSensors implements PowerSensors {
+    private final Context mContext;
+    private final IntentFilter mFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+    public AndroidPowerSensors(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public void read(Reading out) {
+        Intent battery = mContext.registerReceiver(null, mFilter);
+        if (battery == null) {
+            NONE.read(out);
+            return;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        out.batteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : 100;
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        out.charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+        out.temperatureDeciC = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, UNKNOWN);
+        out.powerSave = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            out.powerSave = pm != null && pm.isPowerSaveMode();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.agora.ard.ktv.runtime;
+
+import android.os.Process;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps lane priorities onto Linux nice values through {@link Process#setThreadPriority}.
+ * <p>
+ * Affinity can not be applied: the framework has no call to pin a thread to a core, and which
+ * cluster a thread runs on is left to the kernel scheduler. Performance lanes only get one
+ * step more favourable a nice value and efficiency lanes one step less, which changes how much
+ * CPU time they get against other threads, not where they run.
+ */
+public class AndroidThreadTuner implements ThreadTuner {
+    private final static Logger log = LoggerFactory.getLogger(AndroidThreadTuner.class);
+
+    @Override
+    public void apply(Lane lane) {
+        int nice;
+        switch (lane.priority()) {
+            case Lane.PRIORITY_URGENT_AUDIO:
+                nice = Process.THREAD_PRIORITY_URGENT_AUDIO;
+                break;
+            case Lane.PRIORITY_DISPLAY:
+                nice = Process.THREAD_PRIORITY_DISPLAY;
+                break;
+            case Lane.PRIORITY_BACKGROUND:
+                nice = Process.THREAD_PRIORITY_BACKGROUND;
+                break;
+            default:
+                nice = Process.THREAD_PRIORITY_DEFAULT;
+                break;
+        }
+        if (nice == Process.THREAD_PRIORITY_URGENT_AUDIO) {
+            // already as high as an app may go
+        } else if (lane.affinity() == Lane.AFFINITY_PERFORMANCE) {
+            nice += Process.THREAD_PRIORITY_MORE_FAVORABLE;
+        } else if (lane.affinity() == Lane.AFFINITY_EFFICIENCY) {
+            nice += Process.THREAD_PRIORITY_LESS_FAVORABLE;
+        }
+        try {
+            Process.setThreadPriority(nice);
+        } catch (SecurityException e) {
+            // urgent audio is not granted to every app on every build
+            log.warn("lane " + lane.name() + " can not run at " + nice + ", staying at " + Process.getThreadPriority(Process.myTid()));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.agora.ard.ktv.runtime;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A {@link Lane} over an existing {@link Looper}: the main looper for the UI bridge, the
+ * {@link io.agora.ard.ktv.model.WorkerThread} looper for engine commands.
+ */
+public class HandlerLane extends Lane {
+    private final Handler mHandler;
+
+    public HandlerLane(String name, int priority, int affinity, Looper looper) {
+        super(name, priority, affinity);
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public boolean isCurrent() {
+        return Looper.myLooper() == mHandler.getLooper();
+    }
+
+    @Override
+    Object post(Runnable task, long delayMs) {
+        mHandler.postDelayed(task, Math.max(0, delayMs));
+        return task;
+    }
+
+    @Override
+    void remove(Object token) {
+        mHandler.removeCallbacks((Runnable) token);
+    }
+}
@@ -0,0 +1,132 @@
+package io.agora.ard.ktv.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * The app's threads, one process wide set of named {@link Lane}s that outlive any room:
+ * <ul>
+ * <li>{@link #audio()}: urgent audio priority, never blocks, sleeps or touches storage. The
+ * engine's audio callback threads join it through {@link #adoptAudioThread()}; its own thread
+ * is for short audio side tasks that must not queue behind anything else.</li>
+ * <li>{@link #engine()}: engine commands, the {@link io.agora.ard.ktv.model.WorkerThread}
+ * looper.</li>
+ * <li>{@link #io()}: background priority, every file write the app makes and heavy work
+ * nobody waits for frame by frame (analysis).</li>
+ * <li>{@link #ui()}: the main looper, for work that ends in a view.</li>
+ * </ul>
+ * The audio and I/O lanes are started on first use and work on the plain JVM too; the
+ * engine and UI lanes exist once the application has attached them.
+ */
+public final class KtvRuntime {
+    private static final KtvRuntime sInstance = new KtvRuntime();
+
+    private volatile ThreadTuner mTuner = ThreadTuner.NONE;
+    private final List<ThreadLane> mThreadLanes = new ArrayList<>();
+    private ThreadLane mAudio;
+    private ThreadLane mIo;
+    private volatile Lane mEngine;
+    private volatile Lane mUi;
+
+    private final Counter mAdopted = Metrics.counter("runtime.audio.adopted_threads");
+
+    private KtvRuntime() {
+    }
+
+    public static KtvRuntime get() {
+        return sInstance;
+    }
+
+    ThreadTuner tuner() {
+        return mTuner;
+    }
+
+    /**
+     * Installs the platform tuner and re-tunes lanes that are already running.
+     */
+    public void setTuner(ThreadTuner tuner) {
+        mTuner = tuner;
+        List<ThreadLane> lanes;
+        synchronized (this) {
+            lanes = new ArrayList<>(mThreadLanes);
+        }
+        for (final ThreadLane lane : lanes) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTuner.apply(lane);
+                }
+            });
+        }
+    }
+
+    public synchronized Lane audio() {
+        if (mAudio == null) {
+            mAudio = startLane("audio", Lane.PRIORITY_URGENT_AUDIO, Lane.AFFINITY_PERFORMANCE);
+        }
+        return mAudio;
+    }
+
+    /**
+     * Tunes the calling thread, one the engine calls audio back on, like the audio lane. Once
+     * per thread, not per callback.
+     */
+    public void adoptAudioThread() {
+        mTuner.apply(audio());
+        mAdopted.inc();
+    }
+
+    public synchronized Lane io() {
+        if (mIo == null) {
+            mIo = startLane("io", Lane.PRIORITY_BACKGROUND, Lane.AFFINITY_EFFICIENCY);
+        }
+        return mIo;
+    }
+
+    private ThreadLane startLane(String name, int priority, int affinity) {
+        ThreadLane lane = new ThreadLane(name, priority, affinity, this);
+        mThreadLanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * @throws IllegalStateException before the worker thread is running
+     */
+    public Lane engine() {
+        Lane lane = mEngine;
+        if (lane == null) {
+            throw new IllegalStateException("engine lane not attached");
+        }
+        return lane;
+    }
+
+    /**
+     * @throws IllegalStateException before the application has started
+     */
+    public Lane ui() {
+        Lane lane = mUi;
+        if (lane == null) {
+            throw new IllegalStateException("ui lane not attached");
+        }
+        return lane;
+    }
+
+    /**
+     * Called on the lane's own thread, which is tuned here.
+     */
+    public void attachEngine(Lane lane) {
+        mTuner.apply(lane);
+        mEngine = lane;
+    }
+
+    /**
+     * Called on the main thread, which is tuned here.
+     */
+    public void attachUi(Lane lane) {
+        mTuner.apply(lane);
+        mUi = lane;
+    }
+}
@@ -0,0 +1,140 @@
+package io.agora.ard.ktv.runtime;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * A named, long lived, single threaded queue of work in {@link KtvRuntime}.
+ * <p>
+ * Every task is stamped when it is posted; the time it then waits before running is recorded
+ * in {@code runtime.<name>.queue_us} and the time it runs in {@code runtime.<name>.run_us}.
+ * A periodic task is measured against the time it was due, so a lane that falls behind shows
+ * up as queue latency rather than as a slower period. Priority and affinity are hints applied
+ * to the lane's thread by the {@link ThreadTuner}.
+ */
+public abstract class Lane {
+    public static final int PRIORITY_URGENT_AUDIO = 0;
+    public static final int PRIORITY_DISPLAY = 1;
+    public static final int PRIORITY_DEFAULT = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    public static final int AFFINITY_ANY = 0;
+    public static final int AFFINITY_PERFORMANCE = 1; // big cores
+    public static final int AFFINITY_EFFICIENCY = 2; // little cores
+
+    static final long[] US_BOUNDS = new long[]{10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000, 200000};
+
+    /**
+     * Handle of a posted task.
+     */
+    public interface Task {
+        void cancel();
+    }
+
+    private final String mName;
+    private final int mPriority;
+    private final int mAffinity;
+
+    private final Histogram mQueueTime;
+    private final Histogram mRunTime;
+    private final Counter mTasks;
+
+    Lane(String name, int priority, int affinity) {
+        mName = name;
+        mPriority = priority;
+        mAffinity = affinity;
+        mQueueTime = Metrics.histogram("runtime." + name + ".queue_us", US_BOUNDS);
+        mRunTime = Metrics.histogram("runtime." + name + ".run_us", US_BOUNDS);
+        mTasks = Metrics.counter("runtime." + name + ".tasks");
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public int priority() {
+        return mPriority;
+    }
+
+    public int affinity() {
+        return mAffinity;
+    }
+
+    /**
+     * @return true on the lane's own thread
+     */
+    public abstract boolean isCurrent();
+
+    // runs task on the lane after delayMs, returns what cancel() needs
+    abstract Object post(Runnable task, long delayMs);
+
+    abstract void remove(Object token);
+
+    public Task execute(Runnable task) {
+        return schedule(task, 0);
+    }
+
+    public Task schedule(Runnable task, long delayMs) {
+        Timed timed = new Timed(task, System.nanoTime() + delayMs * 1000000L, 0);
+        timed.mToken = post(timed, delayMs);
+        return timed;
+    }
+
+    /**
+     * Runs {@code task} every {@code periodMs}, keeping to the original schedule (a late run
+     * does not push the following ones back) until the returned task is cancelled.
+     */
+    public Task scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        Timed timed = new Timed(task, System.nanoTime() + initialDelayMs * 1000000L, periodMs * 1000000L);
+        timed.mToken = post(timed, initialDelayMs);
+        return timed;
+    }
+
+    private final class Timed implements Runnable, Task {
+        private final Runnable mTask;
+        private final long mPeriodNs;
+        private long mDueNs;
+        private volatile Object mToken;
+        private volatile boolean mCancelled;
+
+        Timed(Runnable task, long dueNs, long periodNs) {
+            mTask = task;
+            mDueNs = dueNs;
+            mPeriodNs = periodNs;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            long start = System.nanoTime();
+            mQueueTime.record(Math.max(0, start - mDueNs) / 1000);
+            mTasks.inc();
+            try {
+                mTask.run();
+            } finally {
+                long end = System.nanoTime();
+                mRunTime.record((end - start) / 1000);
+                if (mPeriodNs > 0 && !mCancelled) {
+                    mDueNs += mPeriodNs;
+                    if (mDueNs < end) {
+                        // skip the runs that were missed instead of bursting through them
+                        mDueNs += ((end - mDueNs) / mPeriodNs + 1) * mPeriodNs;
+                    }
+                    mToken = post(this, (mDueNs - end) / 1000000L);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            Object token = mToken;
+            if (token != null) {
+                remove(token);
+            }
+        }
+    }
+}
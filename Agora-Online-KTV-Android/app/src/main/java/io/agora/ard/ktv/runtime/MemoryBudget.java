@@ -0,0 +1,214 @@
+package io.agora.ard.ktv.runtime;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * One heap budget shared by every cache, pool and buffer in the app that is big enough to
+ * matter.
+ * <p>
+ * Components {@link #register} with a priority and report their size; evictable ones can also
+ * give memory back. Lower priorities are shrunk first: diagnostics, then caches, then buffers
+ * that are only idle. {@link #PRIORITY_ESSENTIAL} components are only counted. Memory is
+ * reclaimed in three ways:
+ * <ul>
+ * <li>{@link #reserve}: a component about to allocate makes room by shrinking components of
+ * lower priority than its own, and learns whether the allocation fits</li>
+ * <li>{@link #enforce}: shrinks in priority order until usage is back within the budget</li>
+ * <li>{@link #trim}: under system memory pressure, empties every evictable component below a
+ * priority that rises with the pressure, then enforces the budget</li>
+ * </ul>
+ * Usage per component is published as {@code memory.<name>.bytes} gauges whenever the budget
+ * acts, and logged by {@link #dump}. Shrink callbacks run on the calling thread with the budget
+ * locked, so they must not call back into it.
+ */
+public final class MemoryBudget {
+    private static final MemoryBudget sInstance = new MemoryBudget();
+
+    public static final int PRIORITY_DIAGNOSTIC = 0;
+    public static final int PRIORITY_CACHE = 1;
+    public static final int PRIORITY_IDLE_BUFFER = 2;
+    public static final int PRIORITY_ESSENTIAL = 3;
+
+    public static final int PRESSURE_NONE = 0;
+    public static final int PRESSURE_MODERATE = 1; // drop diagnostics
+    public static final int PRESSURE_HIGH = 2; // and caches
+    public static final int PRESSURE_CRITICAL = 3; // and idle buffers
+
+    private static final long DEFAULT_BUDGET_BYTES = 32L << 20;
+
+    /**
+     * Something that holds memory; called with the budget locked.
+     */
+    public interface Component {
+        long sizeBytes();
+
+        /**
+         * Gives back at least {@code bytes} if it can, for evictable components.
+         *
+         * @return bytes actually released
+         */
+        long shrink(long bytes);
+    }
+
+    private static final class Entry {
+        final String name;
+        final int priority;
+        final boolean evictable;
+        final Component component;
+        final Gauge size;
+
+        Entry(String name, int priority, boolean evictable, Component component) {
+            this.name = name;
+            this.priority = priority;
+            this.evictable = evictable;
+            this.component = component;
+            this.size = Metrics.gauge("memory." + name + ".bytes");
+        }
+    }
+
+    // sorted by priority, registration order within one
+    private final List<Entry> mEntries = new ArrayList<>();
+    private long mBudgetBytes = DEFAULT_BUDGET_BYTES;
+
+    private final Gauge mUsed = Metrics.gauge("memory.used_bytes");
+    private final Gauge mBudget = Metrics.gauge("memory.budget_bytes");
+    private final Counter mShrunk = Metrics.counter("memory.shrunk_bytes");
+    private final Counter mTrims = Metrics.counter("memory.trims");
+    private final Counter mRefused = Metrics.counter("memory.reserve_refused");
+
+    private MemoryBudget() {
+        mBudget.set(DEFAULT_BUDGET_BYTES);
+    }
+
+    public static MemoryBudget get() {
+        return sInstance;
+    }
+
+    /**
+     * Adds a component, replacing one registered under the same name.
+     *
+     * @param priority  one of the {@code PRIORITY_} constants
+     * @param evictable whether {@link Component#shrink} may be called
+     */
+    public synchronized void register(String name, int priority, boolean evictable, Component component) {
+        unregister(name);
+        int at = 0;
+        while (at < mEntries.size() && mEntries.get(at).priority <= priority) {
+            at++;
+        }
+        mEntries.add(at, new Entry(name, priority, evictable, component));
+        enforce();
+    }
+
+    public synchronized void unregister(String name) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).name.equals(name)) {
+                mEntries.get(i).size.set(0);
+                mEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    public synchronized void setBudget(long bytes) {
+        mBudgetBytes = bytes;
+        mBudget.set(bytes);
+        enforce();
+    }
+
+    public synchronized long budgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public synchronized long usedBytes() {
+        long used = 0;
+        for (Entry e : mEntries) {
+            used += e.component.sizeBytes();
+        }
+        return used;
+    }
+
+    /**
+     * Makes room for an allocation of {@code bytes} by shrinking components below
+     * {@code priority}. The caller decides what to do when it does not fit; it should call
+     * {@link #enforce} after allocating anyway.
+     *
+     * @return true if the allocation fits in the budget
+     */
+    public synchronized boolean reserve(int priority, long bytes) {
+        long over = usedBytes() + bytes - mBudgetBytes;
+        over -= shrinkBelow(priority, over);
+        publish();
+        if (over > 0) {
+            mRefused.inc();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shrinks evictable components, lowest priority first, until usage is within the budget.
+     */
+    public synchronized void enforce() {
+        shrinkBelow(PRIORITY_ESSENTIAL, usedBytes() - mBudgetBytes);
+        publish();
+    }
+
+    /**
+     * Reacts to system memory pressure, see the class comment.
+     *
+     * @param pressure one of the {@code PRESSURE_} constants
+     */
+    public synchronized void trim(int pressure) {
+        if (pressure <= PRESSURE_NONE) {
+            enforce();
+            return;
+        }
+        mTrims.inc();
+        shrinkBelow(Math.min(pressure, PRIORITY_ESSENTIAL), Long.MAX_VALUE);
+        enforce();
+    }
+
+    private long shrinkBelow(int priority, long bytes) {
+        long freed = 0;
+        for (int i = 0; i < mEntries.size() && freed < bytes; i++) {
+            Entry e = mEntries.get(i);
+            if (e.priority >= priority) {
+                break;
+            }
+            if (e.evictable) {
+                freed += e.component.shrink(bytes == Long.MAX_VALUE ? Long.MAX_VALUE : bytes - freed);
+            }
+        }
+        mShrunk.add(freed);
+        return freed;
+    }
+
+    private void publish() {
+        long used = 0;
+        for (Entry e : mEntries) {
+            long size = e.component.sizeBytes();
+            e.size.set(size);
+            used += size;
+        }
+        mUsed.set(used);
+    }
+
+    public synchronized void dump(Logger log) {
+        publish();
+        StringBuilder sb = new StringBuilder("memory ").append(mUsed.get() >> 10).append(" of ")
+                .append(mBudgetBytes >> 10).append(" KB");
+        for (Entry e : mEntries) {
+            sb.append(", ").append(e.name).append('=').append(e.size.get() >> 10).append(" KB p")
+                    .append(e.priority).append(e.evictable ? " evictable" : "");
+        }
+        log.info(sb.toString());
+    }
+}
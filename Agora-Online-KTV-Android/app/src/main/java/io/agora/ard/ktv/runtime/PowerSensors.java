@@ -0,0 +1,30 @@
+package io.agora.ard.ktv.runtime;
+
+/**
+ * Reads the device's power state for {@link io.agora.ard.ktv.audio.QualityGovernor}. The
+ * default reports a cool device on mains power, so nothing is throttled on the JVM;
+ * {@link AndroidPowerSensors} is installed by the application.
+ */
+public interface PowerSensors {
+    int UNKNOWN = -1;
+
+    PowerSensors NONE = new PowerSensors() {
+        @Override
+        public void read(Reading out) {
+            out.batteryPercent = 100;
+            out.charging = true;
+            out.powerSave = false;
+            out.temperatureDeciC = UNKNOWN;
+        }
+    };
+
+    final class Reading {
+        public int batteryPercent;
+        public boolean charging;
+        public boolean powerSave;
+        // battery temperature in 0.1 degrees C, UNKNOWN if not reported
+        public int temperatureDeciC;
+    }
+
+    void read(Reading out);
+}
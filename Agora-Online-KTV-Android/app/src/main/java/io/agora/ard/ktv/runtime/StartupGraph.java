@@ -0,0 +1,316 @@
+package io.agora.ard.ktv.runtime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * A startup sequence as a dependency graph instead of a fixed order.
+ * <p>
+ * Each node names the nodes it needs. A <em>step</em> runs its body on a {@link Lane} as soon
+ * as those are done, so steps on different lanes run in parallel and nothing waits for work
+ * it does not depend on. An <em>async step</em> is done when {@link #complete} is called for it
+ * rather than when its body returns. An <em>event</em> has no body and is completed from
+ * outside (layout inflated, first frame drawn, permission granted). A <em>milestone</em> has
+ * no body either and is done with its last dependency, which makes "interactive" a node like
+ * any other. Work needed only after the first frame is simply a step depending on it.
+ * <p>
+ * Every node records a span from the moment it became ready to the moment it was done,
+ * relative to {@link #start()}. The end of each is exported as gauge
+ * {@code startup.<graph>.<node>_ms}, spans go to the {@link EventLog}, and the whole
+ * timeline is logged once the last node is done.
+ */
+public class StartupGraph {
+    private final static Logger log = LoggerFactory.getLogger(StartupGraph.class);
+
+    private static final EventLog.Event EV_SPAN = EventLog.event(EventLog.INFO, "startup span {s} {} .. {} us");
+
+    private final String mName;
+    private final Map<String, Node> mNodes = new LinkedHashMap<>();
+    private final Counter mFailures;
+    private long mStartNs;
+    private boolean mStarted;
+    private int mRemaining;
+
+    private final class Node {
+        final String name;
+        final Lane lane;
+        final Runnable body;
+        final boolean async;
+        final String[] deps;
+        final List<Node> dependents = new ArrayList<>();
+        final List<Runnable> callbacks = new ArrayList<>();
+        int waiting;
+        boolean ready;
+        boolean completeRequested;
+        boolean bodyReturned;
+        boolean done;
+        long readyNs;
+        long runNs;
+        long doneNs;
+
+        Node(String name, Lane lane, Runnable body, boolean async, String[] deps) {
+            this.name = name;
+            this.lane = lane;
+            this.body = body;
+            this.async = async;
+            this.deps = deps;
+        }
+    }
+
+    public StartupGraph(String name) {
+        mName = name;
+        mFailures = Metrics.counter("startup." + name + ".failures");
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    /**
+     * Runs {@code body} on {@code lane} once {@code deps} are done; done when it returns.
+     */
+    public StartupGraph step(String name, Lane lane, Runnable body, String... deps) {
+        return add(new Node(name, lane, body, false, deps));
+    }
+
+    /**
+     * Runs {@code body} on {@code lane} once {@code deps} are done; done on {@link #complete}.
+     */
+    public StartupGraph asyncStep(String name, Lane lane, Runnable body, String... deps) {
+        return add(new Node(name, lane, body, true, deps));
+    }
+
+    /**
+     * Something that happens outside the graph, done on {@link #complete}.
+     */
+    public StartupGraph event(String name) {
+        return add(new Node(name, null, null, true, new String[0]));
+    }
+
+    /**
+     * Done as soon as {@code deps} are.
+     */
+    public StartupGraph milestone(String name, String... deps) {
+        return add(new Node(name, null, null, false, deps));
+    }
+
+    private synchronized StartupGraph add(Node node) {
+        if (mStarted) {
+            throw new IllegalStateException("graph " + mName + " already started");
+        }
+        if (mNodes.containsKey(node.name)) {
+            throw new IllegalArgumentException("duplicate node " + node.name);
+        }
+        mNodes.put(node.name, node);
+        return this;
+    }
+
+    /**
+     * Resolves the graph and starts every node without dependencies.
+     *
+     * @throws IllegalArgumentException for an unknown dependency or a cycle
+     */
+    public void start() {
+        List<Node> roots = new ArrayList<>();
+        synchronized (this) {
+            for (Node node : mNodes.values()) {
+                for (String dep : node.deps) {
+                    Node d = mNodes.get(dep);
+                    if (d == null) {
+                        throw new IllegalArgumentException(node.name + " depends on unknown " + dep);
+                    }
+                    d.dependents.add(node);
+                    node.waiting++;
+                }
+            }
+            checkAcyclic();
+            mStarted = true;
+            mStartNs = System.nanoTime();
+            mRemaining = mNodes.size();
+            for (Node node : mNodes.values()) {
+                if (node.waiting == 0) {
+                    roots.add(node);
+                }
+            }
+        }
+        for (Node node : roots) {
+            ready(node);
+        }
+    }
+
+    // Kahn's algorithm on a copy of the counts
+    private void checkAcyclic() {
+        Map<Node, Integer> waiting = new LinkedHashMap<>();
+        List<Node> queue = new ArrayList<>();
+        for (Node node : mNodes.values()) {
+            waiting.put(node, node.deps.length);
+            if (node.deps.length == 0) {
+                queue.add(node);
+            }
+        }
+        int visited = 0;
+        while (!queue.isEmpty()) {
+            Node node = queue.remove(queue.size() - 1);
+            visited++;
+            for (Node d : node.dependents) {
+                int w = waiting.get(d) - 1;
+                waiting.put(d, w);
+                if (w == 0) {
+                    queue.add(d);
+                }
+            }
+        }
+        if (visited != mNodes.size()) {
+            throw new IllegalArgumentException("graph " + mName + " has a cycle");
+        }
+    }
+
+    private void ready(final Node node) {
+        boolean finishNow;
+        synchronized (this) {
+            node.ready = true;
+            node.readyNs = System.nanoTime();
+            finishNow = node.body == null && (!node.async || node.completeRequested);
+        }
+        if (node.body != null) {
+            node.lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runBody(node);
+                }
+            });
+        } else if (finishNow) {
+            finish(node);
+        }
+    }
+
+    private void runBody(Node node) {
+        node.runNs = System.nanoTime();
+        try {
+            node.body.run();
+        } catch (RuntimeException e) {
+            // dependents still run, a missing piece is easier to diagnose than a frozen start
+            mFailures.inc();
+            log.error("startup step " + mName + "." + node.name + " failed", e);
+        }
+        boolean finishNow;
+        synchronized (this) {
+            node.bodyReturned = true;
+            finishNow = !node.async || node.completeRequested;
+        }
+        if (finishNow) {
+            finish(node);
+        }
+    }
+
+    /**
+     * Marks an event or async step done. An async step completed while its body still runs
+     * is done when the body returns.
+     */
+    public void complete(String name) {
+        Node node;
+        boolean finishNow;
+        synchronized (this) {
+            node = mNodes.get(name);
+            if (node == null || !node.async) {
+                throw new IllegalArgumentException(name + " is not an event or async step of " + mName);
+            }
+            if (node.completeRequested) {
+                return;
+            }
+            node.completeRequested = true;
+            finishNow = node.ready && (node.body == null || node.bodyReturned);
+        }
+        if (finishNow) {
+            finish(node);
+        }
+    }
+
+    public synchronized boolean isDone(String name) {
+        Node node = mNodes.get(name);
+        return node != null && node.done;
+    }
+
+    /**
+     * Runs {@code callback} on the thread that finishes {@code name}, or right away if it is
+     * already done. Meant for bridging into another graph, keep it short.
+     */
+    public void whenDone(String name, Runnable callback) {
+        synchronized (this) {
+            Node node = mNodes.get(name);
+            if (node == null) {
+                throw new IllegalArgumentException("unknown node " + name);
+            }
+            if (!node.done) {
+                node.callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    private void finish(Node node) {
+        List<Node> next = new ArrayList<>();
+        List<Runnable> callbacks;
+        boolean last;
+        synchronized (this) {
+            if (node.done) {
+                return;
+            }
+            node.done = true;
+            node.doneNs = System.nanoTime();
+            for (Node d : node.dependents) {
+                if (--d.waiting == 0) {
+                    next.add(d);
+                }
+            }
+            callbacks = new ArrayList<>(node.callbacks);
+            node.callbacks.clear();
+            last = --mRemaining == 0;
+        }
+        long fromUs = (node.readyNs - mStartNs) / 1000;
+        long toUs = (node.doneNs - mStartNs) / 1000;
+        Gauge end = Metrics.gauge("startup." + mName + "." + node.name + "_ms");
+        end.set(toUs / 1000);
+        EventLog.log(EV_SPAN, mName + "." + node.name, fromUs, toUs);
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        for (Node d : next) {
+            ready(d);
+        }
+        if (last) {
+            log.info(timeline());
+        }
+    }
+
+    /**
+     * @return one line per node: ready .. done in ms since start, run time of the body, lane
+     */
+    public synchronized String timeline() {
+        StringBuilder sb = new StringBuilder("startup ").append(mName).append(':');
+        for (Node node : mNodes.values()) {
+            sb.append("\n  ").append(node.name);
+            if (!node.done) {
+                sb.append(node.ready ? " waiting" : " blocked");
+                continue;
+            }
+            sb.append(String.format(Locale.US, " %.1f .. %.1f ms", (node.readyNs - mStartNs) / 1e6, (node.doneNs - mStartNs) / 1e6));
+            if (node.body != null) {
+                sb.append(String.format(Locale.US, ", queued %.1f ms on %s", (node.runNs - node.readyNs) / 1e6, node.lane.name()));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package io.agora.ard.ktv.runtime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+
+/**
+ * A {@link Lane} with a daemon thread of its own, tuned by the runtime's {@link ThreadTuner}
+ * when it starts.
+ * <p>
+ * The executor keeps what a task throws in its future, where nobody looks, so every finished
+ * task is checked: a failure is logged and counted in {@code runtime.<name>.failed_tasks}.
+ * The lane carries on with the next task, and a periodic task keeps its schedule.
+ */
+public class ThreadLane extends Lane {
+    private final static Logger log = LoggerFactory.getLogger(ThreadLane.class);
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Counter mFailures;
+    private volatile Thread mThread;
+
+    ThreadLane(String name, int priority, int affinity, final KtvRuntime runtime) {
+        super(name, priority, affinity);
+        mFailures = Metrics.counter("runtime." + name + ".failed_tasks");
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mThread = Thread.currentThread();
+                        runtime.tuner().apply(ThreadLane.this);
+                        r.run();
+                    }
+                }, "lane-" + name());
+                t.setDaemon(true);
+                return t;
+            }
+        }) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                super.afterExecute(r, t);
+                checkFailure(r, t);
+            }
+        };
+        mExecutor.prestartCoreThread();
+    }
+
+    // every task here is a future that is done by now, get() does not block
+    private void checkFailure(Runnable r, Throwable t) {
+        if (t == null && r instanceof Future<?>) {
+            try {
+                ((Future<?>) r).get();
+            } catch (CancellationException ignored) {
+            } catch (ExecutionException e) {
+                t = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (t != null) {
+            mFailures.inc();
+            log.error("task failed on lane " + name(), t);
+        }
+    }
+
+    @Override
+    public boolean isCurrent() {
+        return Thread.currentThread() == mThread;
+    }
+
+    @Override
+    Object post(Runnable task, long delayMs) {
+        if (delayMs <= 0) {
+            return mExecutor.submit(task);
+        }
+        return mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    void remove(Object token) {
+        ((Future<?>) token).cancel(false);
+    }
+}
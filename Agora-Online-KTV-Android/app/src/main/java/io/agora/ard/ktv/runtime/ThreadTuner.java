@@ -0,0 +1,16 @@
+package io.agora.ard.ktv.runtime;
+
+/**
+ * Applies a {@link Lane}'s priority and affinity hints to the calling thread, which is the
+ * lane's thread. The default does nothing, so lanes run as plain threads on the JVM;
+ * {@link AndroidThreadTuner} is installed by the application.
+ */
+public interface ThreadTuner {
+    ThreadTuner NONE = new ThreadTuner() {
+        @Override
+        public void apply(Lane lane) {
+        }
+    };
+
+    void apply(Lane lane);
+}
@@ -0,0 +1,535 @@
+package io.agora.ard.ktv.sync;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import io.agora.ard.ktv.log.EventLog;
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Gauge;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.KtvPlayer;
+import io.agora.ard.ktv.runtime.Lane;
+
+/**
+ * Keeps the accompaniment of several singers in one room on the same beat.
+ * <p>
+ * The lead announces a song with a start time a little in the future, on its own clock, and
+ * from then on sends its playback position ({@code getCurrentPosition()}) twice a second.
+ * Followers ping the lead NTP style to learn the offset between the two clocks
+ * ({@link ClockOffsetEstimator}), start the song at the announced moment translated to their
+ * clock, and compare their own position with the lead's, extrapolated by the time the
+ * position message took.
+ * <p>
+ * The player can not seek, only pause, so a follower starts {@link #FOLLOW_EARLY_MS} early:
+ * opening a song takes a different time on every device, and starting early makes sure the
+ * follower ends up ahead, which a short pause fixes exactly. A follower that is behind anyway
+ * (joined mid-song, or a very slow open) is counted in {@code chorus.behind} and left as is.
+ * Errors within {@link #TOLERANCE_MS} are left alone; after a correction the position is
+ * given {@link #SETTLE_MS} to settle before the next one.
+ * <p>
+ * {@code chorus.align_error_ms} is the follower's position minus the lead's for every
+ * position message, {@code chorus.rtt_ms} the round trip of every exchange. All timing goes
+ * through {@link Clock}, and messages through a {@link ChorusTransport}, so the whole thing
+ * runs on one machine against {@code SimulatedChorusLink} in the unit test sources.
+ */
+public class ChorusSync implements ChorusTransport.Receiver {
+    private static final EventLog.Event EV_LEAD = EventLog.event(EventLog.INFO, "chorus: lead song {} starts in {} ms");
+    private static final EventLog.Event EV_FOLLOW = EventLog.event(EventLog.INFO, "chorus: follow song {} in {} ms, offset {} us");
+    private static final EventLog.Event EV_YIELD = EventLog.event(EventLog.INFO, "chorus: {} took the lead from us");
+    private static final EventLog.Event EV_HOLD = EventLog.event(EventLog.DEBUG, "chorus: ahead by {} ms, holding");
+    private static final EventLog.Event EV_BEHIND = EventLog.event(EventLog.WARN, "chorus: behind by {} ms");
+
+    public static final int ROLE_OFF = 0;
+    public static final int ROLE_LEAD = 1;
+    public static final int ROLE_FOLLOW = 2;
+
+    public static final long TICK_MS = 100;
+    public static final long POSITION_INTERVAL_MS = 500;
+    public static final long SONG_INTERVAL_MS = 2000; // song announcement repeated for late joiners
+    public static final long LEAD_IN_SONG_INTERVAL_MS = 200;
+    public static final long PING_INTERVAL_MS = 1000;
+    public static final long FAST_PING_INTERVAL_MS = 100; // until the offset is known
+    public static final long LEAD_IN_MS = 2000; // room for a follower that only learns of the lead now to sync
+    public static final long FOLLOW_EARLY_MS = 150;
+    public static final long TOLERANCE_MS = 20;
+    public static final long SETTLE_MS = 1500;
+    public static final long MAX_HOLD_MS = 2000;
+    private static final int MIN_SYNC_SAMPLES = 3;
+
+    private static final byte MSG_PING = 1;
+    private static final byte MSG_PONG = 2;
+    private static final byte MSG_SONG = 3;
+    private static final byte MSG_POSITION = 4;
+    private static final byte MSG_STOP = 5;
+    private static final int MAX_MESSAGE = 512;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long[] ERROR_BOUNDS_MS = new long[]{
+            -500, -200, -100, -60, -40, -20, -10, 0, 10, 20, 40, 60, 100, 200, 500};
+
+    public interface Clock {
+        long nowNs();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nowNs() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Called on the lane, for the room to do what it does around its own songs.
+     */
+    public interface Listener {
+        void onSongStarted(String url, boolean lead);
+
+        void onSongStopped();
+    }
+
+    private final int mSelfId;
+    private final ChorusTransport mTransport;
+    private final Clock mClock;
+    private final KtvPlayer mPlayer;
+    private final Lane mLane;
+    private volatile Listener mListener;
+
+    private final ClockOffsetEstimator mOffset = new ClockOffsetEstimator();
+    private final PlaybackClock mPosition = new PlaybackClock();
+    private final ByteBuffer mOut = ByteBuffer.allocate(MAX_MESSAGE);
+
+    private int mRole = ROLE_OFF;
+    private int mLeadId;
+    private int mSongSeq;
+    private int mSongId;
+    private String mSongUrl;
+    private long mSongStartLeadNs;
+    private boolean mSongScheduled;
+    private boolean mPlaying;
+    private boolean mHolding;
+    private Lane.Task mTickTask;
+    private Lane.Task mStartTask;
+    private Lane.Task mResumeTask;
+    private int mPingSeq;
+    private long mLastPingNs;
+    private long mLastPositionNs;
+    private long mLastSongNs;
+    private long mLastCorrectionNs;
+
+    private final Histogram mAlignError = Metrics.histogram("chorus.align_error_ms", ERROR_BOUNDS_MS);
+    private final Gauge mLastError = Metrics.gauge("chorus.last_error_ms");
+    private final Histogram mRtt = Metrics.histogram("chorus.rtt_ms", new long[]{10, 20, 50, 100, 200, 500, 1000});
+    private final Gauge mOffsetGauge = Metrics.gauge("chorus.offset_us");
+    private final Counter mHolds = Metrics.counter("chorus.holds");
+    private final Counter mBehind = Metrics.counter("chorus.behind");
+    private final Counter mLateStarts = Metrics.counter("chorus.late_starts");
+    private final Counter mBadMessages = Metrics.counter("chorus.bad_messages");
+
+    /**
+     * @param selfId tells this device's messages apart, must differ between devices
+     * @param lane   where the player is driven and the periodic work runs
+     */
+    public ChorusSync(int selfId, ChorusTransport transport, Clock clock, KtvPlayer player, Lane lane) {
+        mSelfId = selfId;
+        mTransport = transport;
+        mClock = clock;
+        mPlayer = player;
+        mLane = lane;
+        transport.setReceiver(this);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int role() {
+        return mRole;
+    }
+
+    public synchronized boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return offset to the lead's clock, valid once enough exchanges went through
+     */
+    public ClockOffsetEstimator offset() {
+        return mOffset;
+    }
+
+    /**
+     * Joins the chorus as a follower: plays whatever a lead in the room announces.
+     */
+    public synchronized void follow() {
+        if (mRole == ROLE_OFF) {
+            mTickTask = mLane.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, 0, TICK_MS);
+        }
+        mRole = ROLE_FOLLOW;
+    }
+
+    /**
+     * Starts {@code url} as the lead, {@link #LEAD_IN_MS} from now so the followers can be on
+     * time. A lead already in the room becomes a follower when it hears of this.
+     */
+    public synchronized void lead(String url) {
+        follow();
+        stopLocalLocked();
+        mRole = ROLE_LEAD;
+        mLeadId = mSelfId;
+        mSongId = (mSelfId << 8) ^ ++mSongSeq;
+        mSongUrl = url;
+        mSongStartLeadNs = mClock.nowNs() + LEAD_IN_MS * 1000000L;
+        sendSongLocked();
+        scheduleStartLocked(mSongId, LEAD_IN_MS);
+        EventLog.log(EV_LEAD, mSongId, LEAD_IN_MS);
+    }
+
+    /**
+     * Stops the current song, for everybody if this is the lead.
+     */
+    public void stopSong() {
+        boolean stopped;
+        synchronized (this) {
+            if (mRole == ROLE_LEAD && mSongUrl != null) {
+                mOut.clear();
+                mOut.put(MSG_STOP).putInt(mSelfId).putInt(mSongId);
+                sendLocked();
+            }
+            mSongUrl = null;
+            stopped = stopLocalLocked();
+        }
+        if (stopped) {
+            notifyStopped();
+        }
+    }
+
+    /**
+     * Leaves the chorus; the song keeps playing if it is already.
+     */
+    public synchronized void disable() {
+        if (mTickTask != null) {
+            mTickTask.cancel();
+            mTickTask = null;
+        }
+        if (mHolding) {
+            // the resume task is cancelled below, resume here or the song stays paused
+            mPlayer.pause();
+            mHolding = false;
+        }
+        cancelTasksLocked();
+        mRole = ROLE_OFF;
+        mLeadId = 0;
+        mSongUrl = null;
+        mSongScheduled = false;
+        mOffset.reset();
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (mRole == ROLE_OFF) {
+                return;
+            }
+            long now = mClock.nowNs();
+            if (mPlaying && !mHolding) {
+                int duration = mPlayer.getDuration();
+                mPosition.update((long) (mPlayer.getCurrentPosition() * duration), now);
+            }
+            if (mRole == ROLE_LEAD) {
+                if (mPlaying && mPosition.isRunning() && now - mLastPositionNs >= POSITION_INTERVAL_MS * 1000000L) {
+                    mLastPositionNs = now;
+                    mOut.clear();
+                    mOut.put(MSG_POSITION).putInt(mSelfId).putInt(mSongId).putLong(now).putLong(mPosition.positionMs(now));
+                    sendLocked();
+                }
+                // repeated quickly during the lead-in, a lost announcement would make a late start
+                long songInterval = now < mSongStartLeadNs ? LEAD_IN_SONG_INTERVAL_MS : SONG_INTERVAL_MS;
+                if (mSongUrl != null && now - mLastSongNs >= songInterval * 1000000L) {
+                    sendSongLocked();
+                }
+                return;
+            }
+            if (mLeadId != 0) {
+                long interval = mOffset.samples() < MIN_SYNC_SAMPLES ? FAST_PING_INTERVAL_MS : PING_INTERVAL_MS;
+                if (now - mLastPingNs >= interval * 1000000L) {
+                    mLastPingNs = now;
+                    mOut.clear();
+                    mOut.put(MSG_PING).putInt(mSelfId).putInt(mLeadId).putInt(++mPingSeq).putLong(now);
+                    sendLocked();
+                }
+            }
+            if (mSongUrl != null && !mSongScheduled && !mPlaying && mOffset.samples() >= MIN_SYNC_SAMPLES) {
+                scheduleFollowerStartLocked(now);
+            }
+        }
+    }
+
+    private void sendSongLocked() {
+        byte[] url = mSongUrl.getBytes(UTF_8);
+        if (url.length > MAX_MESSAGE - 32) {
+            return;
+        }
+        mLastSongNs = mClock.nowNs();
+        mOut.clear();
+        mOut.put(MSG_SONG).putInt(mSelfId).putInt(mSongId).putLong(mSongStartLeadNs)
+                .putShort((short) url.length).put(url);
+        sendLocked();
+    }
+
+    private void sendLocked() {
+        mTransport.send(mOut.array(), mOut.position());
+    }
+
+    // on the lead's clock the song starts at mSongStartLeadNs, on ours offset earlier
+    private void scheduleFollowerStartLocked(long now) {
+        long localStart = mSongStartLeadNs - mOffset.offsetNs() - FOLLOW_EARLY_MS * 1000000L;
+        long delayMs = (localStart - now) / 1000000L;
+        if (delayMs < 0) {
+            mLateStarts.inc();
+            delayMs = 0;
+        }
+        EventLog.log(EV_FOLLOW, mSongId, delayMs, mOffset.offsetNs() / 1000);
+        scheduleStartLocked(mSongId, delayMs);
+    }
+
+    private void scheduleStartLocked(final int songId, long delayMs) {
+        mSongScheduled = true;
+        mStartTask = mLane.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startLocal(songId);
+            }
+        }, delayMs);
+    }
+
+    private void startLocal(int songId) {
+        String url;
+        boolean lead;
+        synchronized (this) {
+            if (songId != mSongId || mSongUrl == null || mPlaying) {
+                return;
+            }
+            url = mSongUrl;
+            lead = mRole == ROLE_LEAD;
+            mPlayer.openAndPlay(url);
+            mPosition.reset();
+            mPlaying = true;
+            mHolding = false;
+            mLastCorrectionNs = mClock.nowNs();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSongStarted(url, lead);
+        }
+    }
+
+    private boolean stopLocalLocked() {
+        cancelTasksLocked();
+        mSongScheduled = false;
+        if (!mPlaying) {
+            return false;
+        }
+        if (mHolding) {
+            mPlayer.pause();
+            mHolding = false;
+        }
+        mPlayer.stop();
+        mPlaying = false;
+        mPosition.reset();
+        return true;
+    }
+
+    private void cancelTasksLocked() {
+        if (mStartTask != null) {
+            mStartTask.cancel();
+            mStartTask = null;
+        }
+        if (mResumeTask != null) {
+            mResumeTask.cancel();
+            mResumeTask = null;
+        }
+    }
+
+    private void notifyStopped() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSongStopped();
+        }
+    }
+
+    @Override
+    public void onMessage(byte[] message, long arrivalNs) {
+        try {
+            handle(ByteBuffer.wrap(message), arrivalNs);
+        } catch (BufferUnderflowException e) {
+            mBadMessages.inc();
+        }
+    }
+
+    private void handle(ByteBuffer in, long arrivalNs) {
+        byte type = in.get();
+        int from = in.getInt();
+        if (from == mSelfId) {
+            return;
+        }
+        switch (type) {
+            case MSG_PING:
+                onPing(from, in.getInt(), in.getInt(), in.getLong(), arrivalNs);
+                break;
+            case MSG_PONG: {
+                int to = in.getInt();
+                in.getInt(); // seq, only there to tell exchanges apart in a capture
+                onPong(from, to, in.getLong(), in.getLong(), in.getLong(), arrivalNs);
+                break;
+            }
+            case MSG_SONG: {
+                int songId = in.getInt();
+                long startLeadNs = in.getLong();
+                int length = in.getShort() & 0xFFFF;
+                if (length == 0 || length > in.remaining()) {
+                    mBadMessages.inc();
+                    return;
+                }
+                byte[] url = new byte[length];
+                in.get(url);
+                onSong(from, songId, startLeadNs, new String(url, UTF_8));
+                break;
+            }
+            case MSG_POSITION:
+                onPosition(from, in.getInt(), in.getLong(), in.getLong());
+                break;
+            case MSG_STOP:
+                onStop(from, in.getInt());
+                break;
+            default:
+                mBadMessages.inc();
+        }
+    }
+
+    private synchronized void onPing(int from, int to, int seq, long t1, long arrivalNs) {
+        if (to != mSelfId || mRole != ROLE_LEAD) {
+            return;
+        }
+        mOut.clear();
+        mOut.put(MSG_PONG).putInt(mSelfId).putInt(from).putInt(seq).putLong(t1).putLong(arrivalNs);
+        mOut.putLong(mClock.nowNs());
+        sendLocked();
+    }
+
+    // t1 and t4 are ours, t2 and t3 the lead's
+    private synchronized void onPong(int from, int to, long t1, long t2, long t3, long t4) {
+        if (to != mSelfId || from != mLeadId) {
+            return;
+        }
+        if (mOffset.add(t1, t2, t3, t4)) {
+            mRtt.record(((t4 - t1) - (t3 - t2)) / 1000000L);
+            mOffsetGauge.set(mOffset.offsetNs() / 1000);
+        }
+    }
+
+    private void onSong(int from, int songId, long startLeadNs, String url) {
+        boolean stopped = false;
+        synchronized (this) {
+            if (mRole == ROLE_OFF || (from == mLeadId && songId == mSongId)) {
+                return;
+            }
+            if (mRole == ROLE_LEAD) {
+                EventLog.log(EV_YIELD, from);
+                mRole = ROLE_FOLLOW;
+            }
+            if (from != mLeadId) {
+                mOffset.reset();
+                mLeadId = from;
+            }
+            stopped = stopLocalLocked();
+            mSongId = songId;
+            mSongUrl = url;
+            mSongStartLeadNs = startLeadNs;
+            if (mOffset.samples() >= MIN_SYNC_SAMPLES) {
+                scheduleFollowerStartLocked(mClock.nowNs());
+            }
+        }
+        if (stopped) {
+            notifyStopped();
+        }
+    }
+
+    private void onPosition(int from, int songId, long sentLeadNs, long positionMs) {
+        long error;
+        synchronized (this) {
+            if (mRole != ROLE_FOLLOW || from != mLeadId || songId != mSongId || !mPlaying || mHolding
+                    || !mPosition.isRunning() || mOffset.samples() < MIN_SYNC_SAMPLES) {
+                return;
+            }
+            long now = mClock.nowNs();
+            long sentLocal = sentLeadNs - mOffset.offsetNs();
+            long leadNow = positionMs + (now - sentLocal) / 1000000L;
+            error = mPosition.positionMs(now) - leadNow;
+            mAlignError.record(error);
+            mLastError.set(error);
+            if (now - mLastCorrectionNs < SETTLE_MS * 1000000L || Math.abs(error) <= TOLERANCE_MS) {
+                return;
+            }
+            mLastCorrectionNs = now;
+        }
+        if (error > 0) {
+            hold(songId, Math.min(error, MAX_HOLD_MS));
+        } else {
+            mBehind.inc();
+            EventLog.log(EV_BEHIND, -error);
+        }
+    }
+
+    private void hold(final int songId, long ms) {
+        mHolds.inc();
+        EventLog.log(EV_HOLD, ms);
+        mLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChorusSync.this) {
+                    if (mRole != ROLE_FOLLOW || songId != mSongId || !mPlaying || mHolding) {
+                        return;
+                    }
+                    mPlayer.pause();
+                    mHolding = true;
+                }
+            }
+        });
+        synchronized (this) {
+            mResumeTask = mLane.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ChorusSync.this) {
+                        if (songId != mSongId || !mHolding) {
+                            return;
+                        }
+                        mPlayer.pause();
+                        mHolding = false;
+                        mPosition.reset();
+                        mLastCorrectionNs = mClock.nowNs();
+                    }
+                }
+            }, ms);
+        }
+    }
+
+    private void onStop(int from, int songId) {
+        boolean stopped;
+        synchronized (this) {
+            if (from != mLeadId || songId != mSongId) {
+                return;
+            }
+            mSongUrl = null;
+            stopped = stopLocalLocked();
+        }
+        if (stopped) {
+            notifyStopped();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.agora.ard.ktv.sync;
+
+/**
+ * Carries {@link ChorusSync} messages to every other device in the room. Delivery is best
+ * effort: messages may be late, lost or reordered, and the sync copes with all three.
+ */
+public interface ChorusTransport {
+    interface Receiver {
+        /**
+         * @param arrivalNs local clock reading taken as early as the transport can
+         */
+        void onMessage(byte[] message, long arrivalNs);
+    }
+
+    /**
+     * Sends to everybody else; the message array may be reused once this returns.
+     */
+    void send(byte[] message, int length);
+
+    void setReceiver(Receiver receiver);
+}
@@ -0,0 +1,72 @@
+package io.agora.ard.ktv.sync;
+
+/**
+ * Offset of a remote clock against the local one from NTP style exchanges.
+ * <p>
+ * Each exchange gives four timestamps: request sent (t1, local), received (t2, remote), reply
+ * sent (t3, remote) and received (t4, local). Its offset is {@code ((t2 - t1) + (t3 - t4)) / 2}
+ * and its round trip delay {@code (t4 - t1) - (t3 - t2)}. The offset is exact if both ways
+ * take equally long, and off by at most half the delay otherwise, so out of the last
+ * {@link #WINDOW} exchanges the one with the smallest delay wins (the NTP clock filter):
+ * queueing only ever adds delay, and the quickest exchange is the least skewed one.
+ */
+public class ClockOffsetEstimator {
+    public static final int WINDOW = 8;
+
+    private final long[] mOffsets = new long[WINDOW];
+    private final long[] mDelays = new long[WINDOW];
+    private int mCount;
+    private int mNext;
+    private long mOffsetNs;
+    private long mDelayNs;
+
+    /**
+     * @return false for an exchange that can not be right (negative delay), which is dropped
+     */
+    public synchronized boolean add(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0) {
+            return false;
+        }
+        mOffsets[mNext] = ((t2 - t1) + (t3 - t4)) / 2;
+        mDelays[mNext] = delay;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount < WINDOW) {
+            mCount++;
+        }
+        int best = 0;
+        for (int i = 1; i < mCount; i++) {
+            if (mDelays[i] < mDelays[best]) {
+                best = i;
+            }
+        }
+        mOffsetNs = mOffsets[best];
+        mDelayNs = mDelays[best];
+        return true;
+    }
+
+    /**
+     * @return remote minus local clock
+     */
+    public synchronized long offsetNs() {
+        return mOffsetNs;
+    }
+
+    /**
+     * @return round trip of the exchange the offset comes from; half of it bounds the error
+     */
+    public synchronized long delayNs() {
+        return mDelayNs;
+    }
+
+    public synchronized int samples() {
+        return mCount;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+        mOffsetNs = 0;
+        mDelayNs = 0;
+    }
+}
@@ -0,0 +1,78 @@
+package io.agora.ard.ktv.sync;
+
+/**
+ * Media playback position extrapolated between coarse samples of the player position
+ * ({@code KTVKit.getCurrentPosition()} is only polled about once a second).
+ * <p>
+ * Small disagreements between a new sample and the extrapolation are slewed in, so consumers
+ * do not see the clock jump; large ones (seek, new song) re-anchor immediately.
+ * <p>
+ * This is the position the player reports, not what reaches the stream. KTVKit stamps MV
+ * frames when it pushes them and delays the song by its own audio buffer, both in native code;
+ * neither the frame timestamps nor the buffer depth reach Java, so the offset between MV video
+ * and song can not be measured against this clock.
+ */
+public class PlaybackClock {
+    private static final long SLEW_LIMIT_MS = 100;
+
+    private long mLastSampleMs = -1;
+    private long mAnchorPositionMs = -1;
+    private long mAnchorNs;
+    private boolean mRunning;
+
+    /**
+     * @param positionMs player position
+     * @param nowNs      {@link System#nanoTime()} when the position was read
+     */
+    public synchronized void update(long positionMs, long nowNs) {
+        if (mLastSampleMs < 0) {
+            mLastSampleMs = positionMs;
+            anchor(positionMs, nowNs);
+            return;
+        }
+        long predicted = positionAt(nowNs);
+        boolean running = positionMs != mLastSampleMs;
+        mLastSampleMs = positionMs;
+        if (running && mRunning && Math.abs(predicted - positionMs) < SLEW_LIMIT_MS) {
+            anchor((predicted + positionMs) / 2, nowNs);
+        } else {
+            anchor(positionMs, nowNs);
+        }
+        mRunning = running;
+    }
+
+    private void anchor(long positionMs, long nowNs) {
+        mAnchorPositionMs = positionMs;
+        mAnchorNs = nowNs;
+    }
+
+    private long positionAt(long nowNs) {
+        return mRunning ? mAnchorPositionMs + (nowNs - mAnchorNs) / 1000000L : mAnchorPositionMs;
+    }
+
+    /**
+     * Re-anchors on {@code positionMs} at once, without slewing, for when the clock is known to
+     * be stale (the app was cut off from the player's progress, e.g. during a reconnect).
+     */
+    public synchronized void resync(long positionMs, long nowNs) {
+        mLastSampleMs = positionMs;
+        anchor(positionMs, nowNs);
+    }
+
+    /**
+     * @return position in ms at the given time, -1 before the first sample
+     */
+    public synchronized long positionMs(long nowNs) {
+        return mAnchorPositionMs < 0 ? -1 : positionAt(nowNs);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized void reset() {
+        mLastSampleMs = -1;
+        mAnchorPositionMs = -1;
+        mRunning = false;
+    }
+}
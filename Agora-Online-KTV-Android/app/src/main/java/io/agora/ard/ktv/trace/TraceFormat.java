@@ -0,0 +1,67 @@
+package io.agora.ard.ktv.trace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Layout of an engine callback trace.
+ * <p>
+ * Header: {@link #MAGIC} (4 bytes, big endian), {@link #VERSION} (1 byte), wall clock start in
+ * ms (varint). Then one record per callback: type (1 byte), microseconds since the previous
+ * record on the monotonic clock (varint), then the callback's int arguments as zigzag varints
+ * and strings as a varint byte length plus UTF-8. A busy room costs a few bytes per callback.
+ */
+final class TraceFormat {
+    static final int MAGIC = 0x4B545243; // "KTRC"
+    static final int VERSION = 1;
+
+    static final int JOIN_CHANNEL_SUCCESS = 1; // channel, uid, elapsed
+    static final int USER_JOINED = 2; // uid, elapsed
+    static final int USER_OFFLINE = 3; // uid, reason
+    static final int FIRST_REMOTE_VIDEO_DECODED = 4; // uid, width, height, elapsed
+    static final int AUDIO_VOLUME_INDICATION = 5; // count, (uid, volume) * count, total
+    static final int PLAYER_STOPPED = 6; // no arguments
+    static final int CONNECTION_INTERRUPTED = 7; // no arguments
+    static final int CONNECTION_LOST = 8; // no arguments
+    static final int REJOIN_CHANNEL_SUCCESS = 9; // channel, uid, elapsed
+
+    private TraceFormat() {
+    }
+
+    /**
+     * @return the position after the varint
+     */
+    static int putVarLong(byte[] buf, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static int putInt(byte[] buf, int pos, int v) {
+        return putVarLong(buf, pos, (v << 1) ^ (v >> 31));
+    }
+
+    static int readInt(InputStream in) throws IOException {
+        int u = (int) readVarLong(in);
+        return (u >>> 1) ^ -(u & 1);
+    }
+}
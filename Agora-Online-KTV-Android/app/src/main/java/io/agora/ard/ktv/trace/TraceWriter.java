@@ -0,0 +1,254 @@
+package io.agora.ard.ktv.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.AGEventHandler;
+import io.agora.ard.ktv.model.ConnectionEventHandler;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+
+/**
+ * Writes every callback it sees to a {@link TraceFormat} file. Registered like any other
+ * {@link AGEventHandler} (see {@link io.agora.ard.ktv.model.MyEngineEventHandler#startTrace});
+ * player events are passed in through {@link #onPlayerStopped}.
+ * <p>
+ * A callback only encodes its record into a preallocated ring, under a lock that is never
+ * held across I/O; a periodic task on the runtime's I/O lane writes the ring out to the file.
+ * A record that does not fit the ring is counted in {@code trace.dropped}. A write error
+ * closes the trace and is counted in {@code trace.write_errors}, it never reaches the
+ * callback thread.
+ */
+public class TraceWriter implements AGEventHandler, ConnectionEventHandler {
+    private final static Logger log = LoggerFactory.getLogger(TraceWriter.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RING_BYTES = 1 << 18; // seconds of a busy room
+    private static final int MAX_RECORD_BYTES = 4096;
+    private static final long DRAIN_MS = 100;
+
+    private final File mFile;
+    private final OutputStream mOut;
+    private final byte[] mRing = new byte[RING_BYTES];
+    private final byte[] mRecord = new byte[MAX_RECORD_BYTES]; // encoded under the lock
+    private final Lane.Task mDrainTask;
+
+    // the lock guards the producer side; the I/O lane owns mReadPos and the stream
+    private volatile long mWritePos;
+    private volatile long mReadPos;
+    private volatile boolean mClosed;
+    private long mLastNs;
+
+    private final Counter mRecords = Metrics.counter("trace.records");
+    private final Counter mDropped = Metrics.counter("trace.dropped");
+    private final Counter mErrors = Metrics.counter("trace.write_errors");
+
+    public TraceWriter(File file) throws IOException {
+        mFile = file;
+        mOut = new FileOutputStream(file);
+        int n = 0;
+        mRecord[n++] = (byte) (TraceFormat.MAGIC >>> 24);
+        mRecord[n++] = (byte) (TraceFormat.MAGIC >>> 16);
+        mRecord[n++] = (byte) (TraceFormat.MAGIC >>> 8);
+        mRecord[n++] = (byte) TraceFormat.MAGIC;
+        mRecord[n++] = (byte) TraceFormat.VERSION;
+        n = TraceFormat.putVarLong(mRecord, n, System.currentTimeMillis());
+        mOut.write(mRecord, 0, n);
+        mLastNs = System.nanoTime();
+        mDrainTask = KtvRuntime.get().io().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, DRAIN_MS, DRAIN_MS);
+    }
+
+    public File file() {
+        return mFile;
+    }
+
+    // caller holds the lock, returns the offset after the record header, -1 once closed
+    private int begin(int type) {
+        if (mClosed) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        mRecord[0] = (byte) type;
+        int n = TraceFormat.putVarLong(mRecord, 1, (now - mLastNs) / 1000);
+        mLastNs = now;
+        return n;
+    }
+
+    // caller holds the lock
+    private void commit(int length) {
+        long write = mWritePos;
+        if (RING_BYTES - (write - mReadPos) < length) {
+            mDropped.inc();
+            return;
+        }
+        int at = (int) (write & (RING_BYTES - 1));
+        int first = Math.min(length, RING_BYTES - at);
+        System.arraycopy(mRecord, 0, mRing, at, first);
+        System.arraycopy(mRecord, first, mRing, 0, length - first);
+        mWritePos = write + length;
+        mRecords.inc();
+    }
+
+    // I/O lane only
+    private void drain() {
+        long read = mReadPos;
+        long write = mWritePos;
+        try {
+            while (read < write) {
+                int at = (int) (read & (RING_BYTES - 1));
+                int n = (int) Math.min(write - read, RING_BYTES - at);
+                mOut.write(mRing, at, n);
+                read += n;
+                mReadPos = read;
+            }
+        } catch (IOException e) {
+            mErrors.inc();
+            log.warn("trace " + mFile + " closed", e);
+            mClosed = true;
+            finish();
+        }
+    }
+
+    // I/O lane only
+    private void finish() {
+        mDrainTask.cancel();
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            mErrors.inc();
+        }
+    }
+
+    @Override
+    public synchronized void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+        writeJoin(TraceFormat.JOIN_CHANNEL_SUCCESS, channel, uid, elapsed);
+    }
+
+    @Override
+    public synchronized void onRejoinChannelSuccess(String channel, int uid, int elapsed) {
+        writeJoin(TraceFormat.REJOIN_CHANNEL_SUCCESS, channel, uid, elapsed);
+    }
+
+    // caller holds the lock
+    private void writeJoin(int type, String channel, int uid, int elapsed) {
+        int n = begin(type);
+        if (n < 0) {
+            return;
+        }
+        byte[] name = channel == null ? new byte[0] : channel.getBytes(UTF_8);
+        if (n + 10 + name.length + 10 > MAX_RECORD_BYTES) {
+            mDropped.inc();
+            return;
+        }
+        n = TraceFormat.putVarLong(mRecord, n, name.length);
+        System.arraycopy(name, 0, mRecord, n, name.length);
+        n += name.length;
+        n = TraceFormat.putInt(mRecord, n, uid);
+        n = TraceFormat.putInt(mRecord, n, elapsed);
+        commit(n);
+    }
+
+    @Override
+    public synchronized void onConnectionInterrupted() {
+        int n = begin(TraceFormat.CONNECTION_INTERRUPTED);
+        if (n >= 0) {
+            commit(n);
+        }
+    }
+
+    @Override
+    public synchronized void onConnectionLost() {
+        int n = begin(TraceFormat.CONNECTION_LOST);
+        if (n >= 0) {
+            commit(n);
+        }
+    }
+
+    @Override
+    public synchronized void onUserJoined(int uid, int elapsed) {
+        int n = begin(TraceFormat.USER_JOINED);
+        if (n >= 0) {
+            n = TraceFormat.putInt(mRecord, n, uid);
+            n = TraceFormat.putInt(mRecord, n, elapsed);
+            commit(n);
+        }
+    }
+
+    @Override
+    public synchronized void onUserOffline(int uid, int reason) {
+        int n = begin(TraceFormat.USER_OFFLINE);
+        if (n >= 0) {
+            n = TraceFormat.putInt(mRecord, n, uid);
+            n = TraceFormat.putInt(mRecord, n, reason);
+            commit(n);
+        }
+    }
+
+    @Override
+    public synchronized void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
+        int n = begin(TraceFormat.FIRST_REMOTE_VIDEO_DECODED);
+        if (n >= 0) {
+            n = TraceFormat.putInt(mRecord, n, uid);
+            n = TraceFormat.putInt(mRecord, n, width);
+            n = TraceFormat.putInt(mRecord, n, height);
+            n = TraceFormat.putInt(mRecord, n, elapsed);
+            commit(n);
+        }
+    }
+
+    @Override
+    public synchronized void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+        int n = begin(TraceFormat.AUDIO_VOLUME_INDICATION);
+        if (n < 0) {
+            return;
+        }
+        if (n + 5 + count * 10 + 5 > MAX_RECORD_BYTES) {
+            mDropped.inc();
+            return;
+        }
+        n = TraceFormat.putInt(mRecord, n, count);
+        for (int i = 0; i < count; i++) {
+            n = TraceFormat.putInt(mRecord, n, uids[i]);
+            n = TraceFormat.putInt(mRecord, n, volumes[i]);
+        }
+        n = TraceFormat.putInt(mRecord, n, totalVolume);
+        commit(n);
+    }
+
+    public synchronized void onPlayerStopped() {
+        int n = begin(TraceFormat.PLAYER_STOPPED);
+        if (n >= 0) {
+            commit(n);
+        }
+    }
+
+    /**
+     * Stops taking records; the I/O lane writes out what is left and closes the file.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        KtvRuntime.get().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                finish();
+            }
+        });
+    }
+}
@@ -1,23 +1,239 @@
 package io.agora.ard.ktv.ui;
 
+import android.app.ActivityManager;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.agora.ard.ktv.audio.KtvAudioPipeline;
+import io.agora.ard.ktv.audio.QualityGovernor;
+import io.agora.ard.ktv.catalog.SongCatalog;
+
+import io.agora.ard.ktv.model.ConstantApp;
 import io.agora.ard.ktv.model.WorkerThread;
+import io.agora.ard.ktv.runtime.AndroidPowerSensors;
+import io.agora.ard.ktv.runtime.AndroidThreadTuner;
+import io.agora.ard.ktv.runtime.HandlerLane;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.runtime.MemoryBudget;
+import io.agora.ard.ktv.runtime.StartupGraph;
 
 /**
  * Created by zhanxiaochao on 2018/9/5.
  */
 
 public class AGApplication extends Application {
+    private final static Logger log = LoggerFactory.getLogger(AGApplication.class);
+
+    // 启动流程的节点, 见 onCreate
+    public static final String STARTUP_PREFS = "prefs";
+    public static final String STARTUP_PERMISSIONS = "permissions";
+    public static final String STARTUP_FIRST_FRAME = "first_frame";
+    public static final String STARTUP_WORKER = "worker";
+    public static final String STARTUP_INTERACTIVE = "interactive";
+    public static final String STARTUP_CATALOG = "catalog";
+    public static final String STARTUP_GOVERNOR = "governor";
+
+    // 发热, 低电量或音频回调吃紧时逐级关掉可选的音频处理
+    private static final long GOVERNOR_PERIOD_MS = 2000;
+
+    // 缓存和缓冲区共用的堆预算, 占应用可用堆的比例, 低内存设备减半
+    private static final int MEMORY_BUDGET_DIVISOR = 4;
+    private static final int MEMORY_BUDGET_DIVISOR_LOW_RAM = 8;
+
+    // 曲库文件, 由 SongCatalogWriter 生成后下发
+    private static final String CATALOG_FILE = "songs.cat";
+
     private WorkerThread mWorKerThread;
-    public synchronized void initWorkerThread(){
-        if (mWorKerThread == null){
-            mWorKerThread = new WorkerThread(getApplicationContext());
+    private final StartupGraph mStartup = new StartupGraph("main");
+    private boolean mPrefsLoaded;
+    private int mUid;
+    private int mProfileIndex = ConstantApp.DEFAULT_PROFILE_IDX;
+    private volatile SongCatalog mCatalog;
+    private volatile QualityGovernor mGovernor;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        KtvRuntime.get().setTuner(new AndroidThreadTuner());
+        KtvRuntime.get().attachUi(new HandlerLane("ui", Lane.PRIORITY_DISPLAY, Lane.AFFINITY_ANY, Looper.getMainLooper()));
+        initMemoryBudget();
+
+        // 主界面只等首帧; 偏好设置在后台读, 引擎等权限和设置都到了再起, 都不挡首帧
+        mStartup.event(STARTUP_PERMISSIONS)
+                .event(STARTUP_FIRST_FRAME)
+                .step(STARTUP_PREFS, KtvRuntime.get().io(), new Runnable() {
+                    @Override
+                    public void run() {
+                        loadPreferences();
+                    }
+                })
+                .asyncStep(STARTUP_WORKER, KtvRuntime.get().ui(), new Runnable() {
+                    @Override
+                    public void run() {
+                        startWorkerThread();
+                    }
+                }, STARTUP_PREFS, STARTUP_PERMISSIONS)
+                .step(STARTUP_CATALOG, KtvRuntime.get().io(), new Runnable() {
+                    @Override
+                    public void run() {
+                        openCatalog();
+                    }
+                })
+                .step(STARTUP_GOVERNOR, KtvRuntime.get().io(), new Runnable() {
+                    @Override
+                    public void run() {
+                        startGovernor();
+                    }
+                }, STARTUP_WORKER)
+                .milestone(STARTUP_INTERACTIVE, STARTUP_FIRST_FRAME)
+                .start();
+    }
+
+    private void initMemoryBudget() {
+        ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return;
+        }
+        int divisor = am.isLowRamDevice() ? MEMORY_BUDGET_DIVISOR_LOW_RAM : MEMORY_BUDGET_DIVISOR;
+        MemoryBudget.get().setBudget(((long) am.getMemoryClass() << 20) / divisor);
+    }
+
+    // 系统内存吃紧时按优先级释放: 先诊断数据, 再缓存, 最后空闲的缓冲区
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int pressure;
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                pressure = MemoryBudget.PRESSURE_MODERATE;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                pressure = MemoryBudget.PRESSURE_HIGH;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                pressure = MemoryBudget.PRESSURE_CRITICAL;
+                break;
+            default:
+                pressure = MemoryBudget.PRESSURE_NONE;
+                break;
+        }
+        log.info("onTrimMemory " + level + ", pressure " + pressure);
+        MemoryBudget.get().trim(pressure);
+        MemoryBudget.get().dump(log);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryBudget.get().trim(MemoryBudget.PRESSURE_CRITICAL);
+        MemoryBudget.get().dump(log);
+    }
+
+    public StartupGraph startup() {
+        return mStartup;
+    }
+
+    private void startGovernor() {
+        final KtvAudioPipeline pipeline = getWorkerThread().audioPipeline();
+        mGovernor = new QualityGovernor(new AndroidPowerSensors(this), pipeline.load(), new QualityGovernor.Listener() {
+            @Override
+            public void onTierChanged(int tier) {
+                pipeline.applyQualityTier(tier);
+            }
+        });
+        mGovernor.start(KtvRuntime.get().io(), GOVERNOR_PERIOD_MS);
+    }
+
+    /**
+     * @return the audio quality governor, null until the worker is up
+     */
+    public QualityGovernor governor() {
+        return mGovernor;
+    }
+
+    // 只做映射, 不解析, 几乎不占堆
+    private void openCatalog() {
+        File file = new File(getFilesDir(), CATALOG_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            mCatalog = SongCatalog.open(file);
+        } catch (IOException e) {
+            log.warn("song catalogue unavailable " + file, e);
+        }
+    }
+
+    /**
+     * @return the song catalogue, null while it is being opened or if there is none
+     */
+    public SongCatalog catalog() {
+        return mCatalog;
+    }
+
+    private synchronized void loadPreferences() {
+        if (mPrefsLoaded) {
+            return;
+        }
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
+        mUid = pref.getInt(ConstantApp.PrefManager.PREF_PROPERTY_UID, 0);
+        int index = pref.getInt(ConstantApp.PrefManager.PREF_PROPERTY_PROFILE_IDX, ConstantApp.DEFAULT_PROFILE_IDX);
+        mProfileIndex = index > ConstantApp.VIDEO_PROFILES.length - 1 ? ConstantApp.DEFAULT_PROFILE_IDX : index;
+        mPrefsLoaded = true;
+    }
+
+    /**
+     * @return the saved video profile index, read on the I/O lane at startup
+     */
+    public synchronized int preferredProfileIndex() {
+        loadPreferences();
+        return mProfileIndex;
+    }
+
+    private synchronized void startWorkerThread() {
+        if (mWorKerThread == null) {
+            loadPreferences();
+            mWorKerThread = new WorkerThread(getApplicationContext(), mUid, new Runnable() {
+                @Override
+                public void run() {
+                    mStartup.complete(STARTUP_WORKER);
+                }
+            });
             mWorKerThread.start();
-            mWorKerThread.waitForReady();
         }
     }
+
+    public synchronized void initWorkerThread(){
+        startWorkerThread();
+        mWorKerThread.waitForReady();
+    }
+
+    /**
+     * @return the worker, waiting for it if it is still starting; null before the permissions
+     */
     public synchronized WorkerThread getWorkerThread(){
+        if (mWorKerThread == null && mStartup.isDone(STARTUP_PERMISSIONS)) {
+            // asked for before the startup graph got there
+            startWorkerThread();
+        }
+        if (mWorKerThread != null) {
+            mWorKerThread.waitForReady();
+        }
         return mWorKerThread;
     }
     public synchronized void deInitWorkerThread(){
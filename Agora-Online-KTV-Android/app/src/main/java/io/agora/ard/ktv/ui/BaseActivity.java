@@ -3,7 +3,6 @@ package io.agora.ard.ktv.ui;
 import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -41,29 +40,31 @@ public abstract class BaseActivity extends AppCompatActivity {
                     layout.getViewTreeObserver().removeGlobalOnLayoutListener(this);
                 }
                 initUIandEvent();
+                // 排在这一轮遍历(含绘制)之后执行
+                layout.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFirstFrame();
+                    }
+                });
             }
         });
 
 
     }
-    @Override
-    protected void onPostCreate(Bundle savedInstanceState) {
-        super.onPostCreate(savedInstanceState);
-
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (isFinishing()) {
-                    return;
-                }
-
-                boolean checkPermissionResult = checkSelfPermissions();
+    /**
+     * Runs once the first frame with the laid out content is drawn. Work the first frame does
+     * not need (the permission check among it) goes here instead of onCreate.
+     */
+    protected void onFirstFrame() {
+        if (isFinishing()) {
+            return;
+        }
+        checkSelfPermissions();
+    }
 
-                if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.M)) {
-                    // so far we do not use OnRequestPermissionsResultCallback
-                }
-            }
-        }, 500);
+    protected final AGApplication application() {
+        return (AGApplication) getApplication();
     }
 
     protected abstract void initUIandEvent();
@@ -91,7 +92,7 @@ public abstract class BaseActivity extends AppCompatActivity {
                 if (grantResults.length > 0
                         && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                     checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE, ConstantApp.PERMISSION_REQ_ID_WRITE_EXTERNAL_STORAGE);
-                    ((AGApplication) getApplication()).initWorkerThread();
+                    application().startup().complete(AGApplication.STARTUP_PERMISSIONS);
                 } else {
                     finish();
                 }
@@ -151,7 +152,7 @@ public abstract class BaseActivity extends AppCompatActivity {
         }
 
         if (Manifest.permission.CAMERA.equals(permission)) {
-            ((AGApplication) getApplication()).initWorkerThread();
+            application().startup().complete(AGApplication.STARTUP_PERMISSIONS);
         }
         return true;
     }
@@ -1,13 +1,20 @@
 package io.agora.ard.ktv.ui;
 
-import android.content.Intent;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.util.Log;
+import android.support.v7.app.AlertDialog;
+import android.view.Choreographer;
 import android.view.SurfaceView;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -15,15 +22,45 @@ import android.widget.TextView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Random;
+import java.util.Set;
 
 import io.agora.ard.ktv.R;
+import io.agora.ard.ktv.audio.Ducker;
+import io.agora.ard.ktv.audio.LatencyEstimator;
+import io.agora.ard.ktv.audio.LoudnessCache;
+import io.agora.ard.ktv.audio.LoudnessNormalizer;
+import io.agora.ard.ktv.audio.MeterReading;
+import io.agora.ard.ktv.audio.effect.VoiceEffects;
+import io.agora.ard.ktv.audio.effect.VoicePreset;
+import io.agora.ard.ktv.audio.record.PerformanceRecorder;
+import io.agora.ard.ktv.catalog.SongCatalog;
+import io.agora.ard.ktv.log.EventLog;
 import io.agora.ard.ktv.model.AGEventHandler;
+import io.agora.ard.ktv.model.AccompanyVolume;
+import io.agora.ard.ktv.model.AgoraKtvPlayer;
+import io.agora.ard.ktv.model.DataStreamChorusTransport;
+import io.agora.ard.ktv.model.KtvPlayer;
+import io.agora.ard.ktv.model.ReconnectManager;
+import io.agora.ard.ktv.model.RoomSwitcher;
+import io.agora.ard.ktv.model.StreamSubscriptions;
+import io.agora.ard.ktv.metrics.Metrics;
 import io.agora.ard.ktv.model.ConstantApp;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.runtime.MemoryBudget;
+import io.agora.ard.ktv.runtime.StartupGraph;
+import io.agora.ard.ktv.sync.ChorusSync;
+import io.agora.ard.ktv.sync.PlaybackClock;
+import io.agora.ard.ktv.trace.TraceWriter;
 
 import io.agora.ktvkit.IKTVKitEventHandler;
 import io.agora.ktvkit.KTVKit;
@@ -36,6 +73,16 @@ import io.agora.rtc.video.VideoCanvas;
 public class LiveRoomActivity extends BaseActivity implements AGEventHandler, SeekBar.OnSeekBarChangeListener {
     private final static Logger log = LoggerFactory.getLogger(LiveRoomActivity.class);
 
+    private static final EventLog.Event EV_VOICE_VOLUME = EventLog.event(EventLog.DEBUG, "voice volume {f}");
+    private static final EventLog.Event EV_ACCOMPANY_VOLUME = EventLog.event(EventLog.DEBUG, "accompany volume {f}");
+    private static final EventLog.Event EV_USER_JOINED = EventLog.event(EventLog.DEBUG, "onUserJoined {u} {}");
+
+    private static final int SONG_RESULTS = 20;
+    private static final String LOUDNESS_CACHE_FILE = "loudness.cache";
+    private static final int LOUDNESS_CACHE_SLOTS = 8192;
+    private static final int SUBSCRIBE_HIGH_MIN_DP = 180; // 短边小于这个的画面收小流
+    private static final int SUBSCRIBE_MAX_HIGH = 2; // 合唱时两个人都看得清
+
     Button playBtn;
     Button pauseBtn;
     Button changeAudioTrackBtn;
@@ -43,8 +90,12 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
     Button switchMediaButton;
     Button switchMuteButton;
     Button closeButton;
+    Button voicePresetButton;
+    Button recordButton;
+    Button latencyButton;
     TextView voiceVolumeView;
     TextView songVolumeView;
+    MeterView voiceMeterView;
     SeekBar voiceVolumeBar;
     SeekBar accompanyVolumeBar;
     VideoPlayerView xPlayerView;
@@ -55,33 +106,156 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
 
     private KTVKit mKTVKit = null;
 
-    private final ScheduledExecutorService mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+    private KtvPlayer mPlayer;
 
-    private Future<?> mScheduledFuture;
+    // 伴奏音量 = 滑动条 x 歌曲响度增益, 都通过播放器的伴奏音量生效
+    private AccompanyVolume mAccompanyVolume;
+    private LoudnessNormalizer mLoudness;
+    // 正在查响度的歌, 只在 UI 线程访问
+    private String mLoudnessUrl;
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
+    // 引擎的音频帧是否交给 app 自己处理; 只在没有 KTVKit 时, 见 WorkerThread#attachAudioPipeline
+    private boolean mAudioPipeline;
 
-        try {
-            mKTVKit = KTVKit.create(worker().getRtcEngine(), getApplicationContext(), new IKTVKitEventHandler() {
-                @Override
-                public void onPlayerStopped() {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
+    // 播放进度每秒刷新一次, 跑在共享的 UI 通道上
+    private Lane.Task mProgressTask;
 
-                            int duration = (mKTVKit.getDuration() / 1000);
+    private DataStreamChorusTransport mChorusTransport;
+    private ChorusSync mChorus;
 
-                            mMediaMetaArea.setText("Done, " + (int) Math.floor(mKTVKit.getCurrentPosition() * duration) + " " + duration);
-                        }
-                    });
+    // 合唱: 领唱和跟唱的歌由 ChorusSync 开始和停止, 这里只做房间自己的事
+    private final ChorusSync.Listener mChorusListener = new ChorusSync.Listener() {
+        @Override
+        public void onSongStarted(String url, boolean lead) {
+            doStartLoudness(url);
+        }
+
+        @Override
+        public void onSongStopped() {
+            mPlaybackClock.reset();
+        }
+    };
+
+    // 进房流程的节点, 见 onCreate
+    private static final String ROOM_LAYOUT = "layout";
+    private static final String ROOM_FIRST_FRAME = "first_frame";
+    private static final String ROOM_WORKER = "worker";
+    private static final String ROOM_JOIN = "join";
+    private static final String ROOM_JOINED = "joined";
+    private static final String ROOM_PLAYER = "player";
+    private static final String ROOM_INTERACTIVE = "interactive";
+
+    private StartupGraph mStartup;
+
+    // 当前房间, 房内切换时会变
+    private String mRoomName;
+
+    // onResume 到 onPause 之间, 只在 UI 线程访问
+    private boolean mResumed;
+
+    // 切房时摘下的远端画面, 下一个房间复用
+    private final List<SurfaceView> mSpareRemoteViews = new ArrayList<>();
+
+    // 重连期间报掉线的远端, 恢复时核对; 只在 UI 线程访问
+    private final Set<Integer> mOfflineWhileRecovering = new HashSet<>();
+
+    private final RoomSwitcher.Listener mRoomListener = new RoomSwitcher.Listener() {
+        @Override
+        public void onRoomJoined(String channel, long hopMs, int how) {
+            mStartup.complete(ROOM_JOINED);
+            if (how == RoomSwitcher.HOW_SWITCH) {
+                showLongToast("switched to " + channel + " in " + hopMs + " ms");
+            }
+        }
+    };
+
+    // 远端画面按可见大小收大流, 小流, 看不见就只收音频
+    private StreamSubscriptions mSubscriptions;
+    private final Rect mViewRect = new Rect();
+    private final Rect mCoverRect = new Rect();
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            doUpdateSubscriptions();
+        }
+    };
+
+    private File mRecordFile;
+
+    private final PlaybackClock mPlaybackClock = new PlaybackClock();
+    private final Ducker mDucker = new Ducker();
+
+    // 断网重连: 播放器和画面保持不动, 回到频道后重新对齐伴奏
+    private final ReconnectManager.Listener mReconnectListener = new ReconnectManager.Listener() {
+        @Override
+        public void onReconnecting(int attempt) {
+            if (attempt == 1) {
+                showLongToast("connection lost, reconnecting");
+            }
+        }
+
+        @Override
+        public void onRecovered(final long recoverMs) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // 重连期间掉线又没回来的, 这时再移除
+                    for (int uid : mOfflineWhileRecovering) {
+                        doRemoveRemoteUser(uid);
+                    }
+                    mOfflineWhileRecovering.clear();
+                    doResyncSong();
+                    mSubscriptions.reapply();
+                    showLongToast("reconnected in " + recoverMs + " ms");
                 }
             });
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
+        @Override
+        public void onGaveUp() {
+            showLongToast("could not reconnect, check the network and enter the room again");
+        }
+    };
+
+    // 电平表按屏幕刷新率读取, 音频线程只负责发布
+    private final Choreographer.FrameCallback mMeterFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            MeterReading voice = mAudioPipeline ? worker().audioPipeline().voiceMeter().exchange().poll() : null;
+            if (voice != null) {
+                voiceMeterView.update(voice);
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mRoomName = getIntent().getStringExtra(ConstantApp.ACTION_KEY_ROOM_NAME);
+
+        // 进房流程: 布局和首帧不等引擎, 加入频道等引擎, 播放器(KTVKit)放到首帧之后
+        mStartup = new StartupGraph("room")
+                .event(ROOM_LAYOUT)
+                .event(ROOM_FIRST_FRAME)
+                .event(ROOM_WORKER)
+                .event(ROOM_JOINED)
+                .step(ROOM_JOIN, KtvRuntime.get().ui(), new Runnable() {
+                    @Override
+                    public void run() {
+                        doJoinRoom();
+                    }
+                }, ROOM_WORKER, ROOM_LAYOUT)
+                .step(ROOM_PLAYER, KtvRuntime.get().ui(), new Runnable() {
+                    @Override
+                    public void run() {
+                        doCreatePlayer();
+                    }
+                }, ROOM_WORKER, ROOM_FIRST_FRAME)
+                .milestone(ROOM_INTERACTIVE, ROOM_FIRST_FRAME, ROOM_JOIN, ROOM_PLAYER);
+        mStartup.start();
+
         setContentView(R.layout.activity_live_room);
         // 相关控件的初始化
         playBtn = (Button) findViewById(R.id.play01);
@@ -90,6 +264,7 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         changeAudioTrackBtn = (Button) findViewById(R.id.change_audio_track);
         voiceVolumeView = (TextView) findViewById(R.id.voiceTextView);
         songVolumeView = (TextView) findViewById(R.id.songTextView);
+        voiceMeterView = (MeterView) findViewById(R.id.voice_meter);
         voiceVolumeBar = (SeekBar) findViewById(R.id.voiceSeekBar);
         voiceVolumeBar.setOnSeekBarChangeListener(this);
         switchMediaButton = (Button) findViewById(R.id.switch_media_file);
@@ -97,15 +272,50 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         accompanyVolumeBar = (SeekBar) findViewById(R.id.songSeekBar);
         accompanyVolumeBar.setOnSeekBarChangeListener(this);
         containerLayout = (FrameLayout) findViewById(R.id.xplay_view_container);
+        mSubscriptions = new StreamSubscriptions(new StreamSubscriptions.Applier() {
+            @Override
+            public void apply(int uid, int tier) {
+                worker().subscribeRemote(uid, tier);
+            }
+        }, (int) (SUBSCRIBE_HIGH_MIN_DP * getResources().getDisplayMetrics().density), SUBSCRIBE_MAX_HIGH);
+        containerLayout.getViewTreeObserver().addOnGlobalLayoutListener(mLayoutListener);
         closeButton = (Button) findViewById(R.id.close_ktv_room);
+        voicePresetButton = (Button) findViewById(R.id.voice_preset);
+        recordButton = (Button) findViewById(R.id.record);
+        latencyButton = (Button) findViewById(R.id.measure_latency);
 
         mMediaMetaArea = (TextView) findViewById(R.id.media_meta);
+        // 诊断: 长按进度文字, 抓取各环节音频 10 秒写入日志目录
+        mMediaMetaArea.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (!mAudioPipeline) {
+                    return false;
+                }
+                worker().audioPipeline().taps().armAll(10);
+                showLongToast("capturing audio taps for 10s");
+                return true;
+            }
+        });
 
         playBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // please input url which u need to open
-                mKTVKit.openAndPlayVideoFile("http://download.agora.io/usecase/ktv01.mp4");
+                // 有曲库就点歌, 没有就播默认的歌
+                if (application().catalog() != null) {
+                    doPromptPickSong();
+                } else {
+                    doPlaySong("http://download.agora.io/usecase/ktv01.mp4");
+                }
+            }
+        });
+
+        // 长按播放: 开关合唱
+        playBtn.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                doToggleChorus();
+                return true;
             }
         });
 
@@ -113,7 +323,7 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         pauseBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mKTVKit.pause();
+                mPlayer.pause();
             }
         });
 
@@ -121,7 +331,38 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         changeAudioTrackBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mKTVKit.switchAudioTrack();
+                mPlayer.switchAudioTrack();
+            }
+        });
+
+        // 人声音效切换
+        voicePresetButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                doSwitchVoicePreset();
+            }
+        });
+
+        // 录音, 长按为无损压缩格式
+        recordButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                doToggleRecord(false);
+            }
+        });
+        recordButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                doToggleRecord(true);
+                return true;
+            }
+        });
+
+        // 外放回路延迟测量, 需关闭耳机
+        latencyButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                doMeasureLatency();
             }
         });
 
@@ -138,8 +379,8 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         switchMediaButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mKTVKit.stopPlayVideoFile();
-                mKTVKit.openAndPlayVideoFile("http://download.agora.io/usecase/ktv02.mp4");
+                doStopSong();
+                doPlaySong("http://download.agora.io/usecase/ktv02.mp4");
             }
         });
 
@@ -147,97 +388,416 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         closeButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mKTVKit.stopPlayVideoFile();
-                worker().getRtcEngine().leaveChannel();
+                doStopSong();
+                worker().leaveChannel(mRoomName);
                 finish();
             }
         });
+        // 长按: 不退出房间直接切到另一个房间
+        closeButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                doPromptSwitchRoom();
+                return true;
+            }
+        });
         switchMuteButton.setTag(true);
         switchMuteButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 Object tag = switchMuteButton.getTag();
                 if (tag != null && (boolean) tag) {
-                    mKTVKit.muteLocalKtvVolume();
+                    mPlayer.muteLocal();
                     switchMuteButton.setTag(false);
                 } else {
-                    mKTVKit.unMuteLocalKtvVolume();
+                    mPlayer.unMuteLocal();
                     switchMuteButton.setTag(true);
                 }
             }
         });
 
-        mScheduledFuture = mScheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+        mStartup.complete(ROOM_LAYOUT);
+        application().startup().whenDone(AGApplication.STARTUP_WORKER, new Runnable() {
             @Override
             public void run() {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
+                mStartup.complete(ROOM_WORKER);
+            }
+        });
+    }
+
+    // 首帧之后再创建 KTVKit 和播放器
+    private void doCreatePlayer() {
+        if (isFinishing()) {
+            return;
+        }
+        try {
+            mKTVKit = KTVKit.create(worker().getRtcEngine(), getApplicationContext(), new IKTVKitEventHandler() {
+                @Override
+                public void onPlayerStopped() {
+                    TraceWriter trace = event().trace();
+                    if (trace != null) {
+                        trace.onPlayerStopped();
+                    }
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
 
-                        double currentPosition = mKTVKit.getCurrentPosition();
+                            int duration = (mPlayer.getDuration() / 1000);
 
-                        if (currentPosition > 0.99d && currentPosition < 1.01d) {
-                            return;
+                            mMediaMetaArea.setText("Done, " + (int) Math.floor(mPlayer.getCurrentPosition() * duration) + " " + duration);
                         }
+                    });
+                }
+            });
+            mPlayer = new AgoraKtvPlayer(mKTVKit);
+            mAccompanyVolume = new AccompanyVolume(mPlayer, (double) accompanyVolumeBar.getProgress() / (double) accompanyVolumeBar.getMax());
+            mLoudness = new LoudnessNormalizer(new LoudnessCache(new File(getFilesDir(), LOUDNESS_CACHE_FILE), LOUDNESS_CACHE_SLOTS));
+            mChorusTransport = new DataStreamChorusTransport(worker().getRtcEngine(), event().dispatcher());
+            mChorus = new ChorusSync(new Random().nextInt() | 1, mChorusTransport, ChorusSync.SYSTEM_CLOCK, mPlayer, KtvRuntime.get().ui());
+            mChorus.setListener(mChorusListener);
+        } catch (Exception e) {
+            // 没有 KTVKit 就没有 MV 和伴奏, 只能语音; 这时音频帧交给 app 自己处理 (音效, 录音, 延迟测量)
+            log.error("KTVKit not available, voice only", e);
+            mAudioPipeline = true;
+            worker().attachAudioPipeline(true);
+            doStartMeters();
+            doShowAudioButtons();
+            return;
+        }
+
+        if (isBroadcaster(getIntent().getIntExtra(ConstantApp.ACTION_KEY_CROLE, 0))) {
+            addXplayView();
+            isBroadcast = false;
+            doShowButtons(false);
+        } else {
+            isBroadcast = true;
+            clientRoleButtion.setText("上麦");
+        }
+        clientRoleButtion.setEnabled(true);
+
+        mProgressTask = KtvRuntime.get().ui().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+
+                double currentPosition = mPlayer.getCurrentPosition();
+
+                if (currentPosition > 0.99d && currentPosition < 1.01d) {
+                    return;
+                }
+
+                int duration = mPlayer.getDuration();
+                mPlaybackClock.update((long) (currentPosition * duration), System.nanoTime());
+
+                ((TextView) findViewById(R.id.media_meta)).setText((int) Math.floor((currentPosition * duration) / 1000) + " " + duration / 1000);
+            }
+        }, 0, 1000);
+    }
+
+    // 引擎就绪后配置并加入频道
+    private void doJoinRoom() {
+        if (isFinishing()) {
+            return;
+        }
+        event().addEventHandler(this);
+        worker().reconnect().setListener(mReconnectListener);
+        worker().rooms().setListener(mRoomListener);
+        int cRole = getIntent().getIntExtra(ConstantApp.ACTION_KEY_CROLE, 0);
+        if (cRole == 0) {
+            throw new RuntimeException("Should not reach here");
+        }
+
+        doConfigEngine(cRole);
+
+        worker().engine().setParameters(String.format(Locale.US, "{\"che.audio.profile\":{\"scenario\":%d}}", 1));
+        worker().engine().setParameters(String.format(Locale.US, "{\"che.audio.headset.monitoring,true\"}"));
+        worker().engine().setParameters(String.format(Locale.US, "{\"che.audio.enable.androidlowlatencymode,true\"}"));
+        worker().engine().enableInEarMonitoring(true);
+        worker().engine().enableAudioVolumeIndication(Ducker.INDICATION_MS, 3);
+        // 大厅里预加入过同一房间时直接沿用
+        worker().joinChannel(mRoomName, config().mUid);
+    }
+
+    private void doPromptSwitchRoom() {
+        if (mPlayer == null) {
+            return;
+        }
+        final EditText input = new EditText(this);
+        String next = worker().rooms().predictNext(mRoomName);
+        if (next != null) {
+            input.setText(next);
+            input.setSelection(next.length());
+        }
+        new AlertDialog.Builder(this)
+                .setMessage("switch to room")
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        doSwitchRoom(input.getText().toString().trim());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // 房内切房: 引擎, KTVKit 和画面都保留, 只换频道
+    private void doSwitchRoom(String roomName) {
+        if (roomName.isEmpty() || roomName.equals(mRoomName)) {
+            return;
+        }
+        doStopSong();
+        doStopRecord();
+        doRecycleRemoteViews();
+        mOfflineWhileRecovering.clear();
+        mSubscriptions.clear();
+        mRoomName = roomName;
+        getIntent().putExtra(ConstantApp.ACTION_KEY_ROOM_NAME, roomName);
+        ((TextView) findViewById(R.id.ktv_room_name)).setText(roomName);
+        worker().switchChannel(roomName);
+    }
+
+    private void doRecycleRemoteViews() {
+        for (int i = containerLayout.getChildCount() - 1; i >= 0; i--) {
+            View v = containerLayout.getChildAt(i);
+            if (v instanceof SurfaceView && !(v instanceof VideoPlayerView)) {
+                containerLayout.removeViewAt(i);
+                v.setTag(null);
+                mSpareRemoteViews.add((SurfaceView) v);
+            }
+        }
+    }
+
+    private void doPromptPickSong() {
+        final EditText input = new EditText(this);
+        input.setHint("title, artist, pinyin or initials");
+        new AlertDialog.Builder(this)
+                .setMessage("pick a song")
+                .setView(input)
+                .setPositiveButton(android.R.string.search_go, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        doShowSongs(input.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void doShowSongs(String query) {
+        final SongCatalog catalog = application().catalog();
+        final int[] songs = new int[SONG_RESULTS];
+        int count = catalog.search(query, songs);
+        if (count == 0) {
+            showLongToast("no song matches " + query);
+            return;
+        }
+        String[] items = new String[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = catalog.title(songs[i]) + " - " + catalog.artist(songs[i]);
+        }
+        new AlertDialog.Builder(this)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        doPlaySong(catalog.url(songs[which]));
+                    }
+                })
+                .show();
+    }
 
-                        int duration = mKTVKit.getDuration();
+    // 点歌: 同时查这首歌的响度
+    private void doPlaySong(String url) {
+        if (mChorus.role() != ChorusSync.ROLE_OFF) {
+            // 合唱中: 由领唱定开始时间, 大家一起开始
+            mChorus.lead(url);
+            return;
+        }
+        doStartLoudness(url);
+        mPlayer.openAndPlay(url);
+    }
 
-                        ((TextView) findViewById(R.id.media_meta)).setText((int) Math.floor((currentPosition * duration) / 1000) + " " + duration / 1000);
+    // 有分析结果的歌调到同一响度, 没有的保持原样; 结果在 io 线程回来
+    private void doStartLoudness(String url) {
+        mLoudnessUrl = url;
+        mLoudness.startSong(url, new LoudnessNormalizer.Listener() {
+            @Override
+            public void onSongGain(final String song, final float gain) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // 查的过程中又换了歌就不用了
+                        if (song.equals(mLoudnessUrl)) {
+                            mAccompanyVolume.setSongGain(gain);
+                        }
                     }
                 });
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        });
+    }
+
+    private void doStopSong() {
+        if (mPlayer == null) {
+            return;
+        }
+        if (mChorus.role() != ChorusSync.ROLE_OFF) {
+            mChorus.stopSong();
+            return;
+        }
+        mPlayer.stop();
+        mPlaybackClock.reset();
+    }
+
+    private void doToggleChorus() {
+        if (mChorus == null) {
+            return;
+        }
+        if (mChorus.role() == ChorusSync.ROLE_OFF) {
+            mChorus.follow();
+            showLongToast("chorus on, songs played here start for everybody in the room");
+        } else {
+            mChorus.disable();
+            showLongToast("chorus off");
+        }
+    }
+
+    // 断线期间播放器一直在走, 时钟直接对到播放器当前位置; 不清伴奏缓冲, 清了流里会断一下
+    private void doResyncSong() {
+        if (!isBroadcaster() || !mPlaybackClock.isRunning()) {
+            return;
+        }
+        int duration = mPlayer.getDuration();
+        mPlaybackClock.resync((long) (mPlayer.getCurrentPosition() * duration), System.nanoTime());
+    }
+
+    private void doSwitchVoicePreset() {
+        VoiceEffects effects = worker().audioPipeline().voiceEffects();
+        VoicePreset current = effects.getPreset();
+        int next = 0;
+        for (int i = 0; i < VoicePreset.ALL.length; i++) {
+            if (VoicePreset.ALL[i] == current) {
+                next = (i + 1) % VoicePreset.ALL.length;
+                break;
+            }
+        }
+        effects.setPreset(VoicePreset.ALL[next]);
+        voicePresetButton.setText(VoicePreset.ALL[next].name);
+    }
+
+    private void doToggleRecord(boolean compressed) {
+        PerformanceRecorder recorder = worker().audioPipeline().recorder();
+        if (recorder.isRecording()) {
+            doStopRecord();
+            return;
+        }
+        File dir = getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        String name = "ktv_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
+                + (compressed ? ".kwv" : ".wav");
+        mRecordFile = new File(dir, name);
+        try {
+            recorder.start(mRecordFile, compressed);
+            recordButton.setText("停止录音");
+        } catch (IOException e) {
+            log.error("can not start recording " + mRecordFile, e);
+            showLongToast("recording failed: " + e.getMessage());
+        }
+    }
+
+    private void doStopRecord() {
+        PerformanceRecorder recorder = worker().audioPipeline().recorder();
+        if (!recorder.isRecording()) {
+            return;
+        }
+        // 文件在 io 线程写完再提示
+        recorder.stop(new PerformanceRecorder.Listener() {
+            @Override
+            public void onRecordingFinished(File file, long droppedFrames) {
+                showLongToast("saved " + file + (droppedFrames > 0 ? ", " + droppedFrames + " frames dropped" : ""));
+            }
+        });
+        recordButton.setText("录音");
+    }
+
+    private void doToggleTrace() {
+        File stopped = event().stopTrace();
+        if (stopped != null) {
+            showLongToast("trace saved " + stopped);
+            return;
+        }
+        File dir = new File(getExternalFilesDir(null), "traces");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            showLongToast("can not create " + dir);
+            return;
+        }
+        File file = new File(dir, "callbacks_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".trc");
+        try {
+            event().startTrace(file);
+            showLongToast("tracing callbacks to " + file);
+        } catch (IOException e) {
+            log.error("can not start trace " + file, e);
+            showLongToast("trace failed: " + e.getMessage());
+        }
+    }
+
+    private void doMeasureLatency() {
+        boolean started = worker().measureLatency(new LatencyEstimator.Listener() {
+            @Override
+            public void onLatencyMeasured(int latencyMs, float confidence) {
+                if (latencyMs == LatencyEstimator.LATENCY_UNKNOWN) {
+                    // 超时: 保留上次的结果
+                    showLongToast("latency measurement timed out");
+                    return;
+                }
+                SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+                pref.edit()
+                        .putInt(ConstantApp.PrefManager.PREF_PROPERTY_LATENCY_MS + Build.MODEL, latencyMs)
+                        .putFloat(ConstantApp.PrefManager.PREF_PROPERTY_LATENCY_CONFIDENCE + Build.MODEL, confidence)
+                        .apply();
+                showLongToast(String.format(Locale.US, "round trip %d ms (confidence %.2f)", latencyMs, confidence));
+            }
+        });
+        if (!started) {
+            showLongToast("measurement already running");
+        }
     }
 
     // 观众角色切换
     private void doswitchBroadCast(boolean broadcaster) {
-        mKTVKit.resetAudioBuffer();
+        mPlayer.resetAudioBuffer();
 
         if (broadcaster) {
             removeViews();
-            worker().getRtcEngine().setClientRole(Constants.CLIENT_ROLE_AUDIENCE);
+            worker().engine().setClientRole(Constants.CLIENT_ROLE_AUDIENCE);
             clientRoleButtion.setText("上麦");
             doShowButtons(true);
-            mKTVKit.stopPlayVideoFile();
+            mPlayer.stop();
         } else {
             addXplayView();
-            worker().getRtcEngine().setClientRole(Constants.CLIENT_ROLE_BROADCASTER);
+            worker().engine().setClientRole(Constants.CLIENT_ROLE_BROADCASTER);
             clientRoleButtion.setText("下麦");
             doShowButtons(false);
         }
     }
 
-    // 初始化
+    // 初始化, 只做界面; 引擎和播放器相关的在 mStartup 的步骤里
     @Override
     protected void initUIandEvent() {
-        event().addEventHandler(this);
-        Intent i = getIntent();
-        int cRole = i.getIntExtra(ConstantApp.ACTION_KEY_CROLE, 0);
-        if (cRole == 0) {
-            throw new RuntimeException("Should not reach here");
-        }
-        String roomName = i.getStringExtra(ConstantApp.ACTION_KEY_ROOM_NAME);
-
-        doConfigEngine(cRole);
-
-        if (isBroadcaster(cRole)) {
-            addXplayView();
-            isBroadcast = false;
-            doShowButtons(false);
-        } else {
-            isBroadcast = true;
-            doShowButtons(true);
-            clientRoleButtion.setText("上麦");
-        }
-
-        worker().getRtcEngine().setParameters(String.format(Locale.US, "{\"che.audio.profile\":{\"scenario\":%d}}", 1));
-        worker().getRtcEngine().setParameters(String.format(Locale.US, "{\"che.audio.headset.monitoring,true\"}"));
-        worker().getRtcEngine().setParameters(String.format(Locale.US, "{\"che.audio.enable.androidlowlatencymode,true\"}"));
-        worker().getRtcEngine().enableInEarMonitoring(true);
-        worker().joinChannel(roomName, config().mUid);
+        // 播放器创建之前控制按钮不可用
+        doShowButtons(true);
+        clientRoleButtion.setEnabled(false);
 
         TextView textKtvRoomName = (TextView) findViewById(R.id.ktv_room_name);
-        textKtvRoomName.setText(roomName);
+        textKtvRoomName.setText(mRoomName);
+        // 诊断: 长按房间名, 开始/结束录制回调轨迹, 用于离线回放
+        textKtvRoomName.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                doToggleTrace();
+                return true;
+            }
+        });
     }
 
     private boolean isBroadcaster() {
@@ -249,19 +809,31 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
     }
 
     private void doConfigEngine(int cRole) {
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
-        int prefIndex = pref.getInt(ConstantApp.PrefManager.PREF_PROPERTY_PROFILE_IDX, ConstantApp.DEFAULT_PROFILE_IDX);
-        if (prefIndex > ConstantApp.VIDEO_PROFILES.length - 1) {
-            prefIndex = ConstantApp.DEFAULT_PROFILE_IDX;
-        }
-        int vProfile = ConstantApp.VIDEO_PROFILES[prefIndex];
+        int vProfile = ConstantApp.VIDEO_PROFILES[application().preferredProfileIndex()];
 
         worker().configEngine(cRole, vProfile);
     }
 
+    @Override
+    protected void onFirstFrame() {
+        super.onFirstFrame();
+        mStartup.complete(ROOM_FIRST_FRAME);
+    }
+
     @Override
     protected void deInitUIandEvent() {
         event().removeEventHandler(this);
+        worker().reconnect().setListener(null);
+        worker().rooms().setListener(null);
+    }
+
+    // 没有播放器时只显示 app 自己的音频功能, 主播才有
+    private void doShowAudioButtons() {
+        int visibility = isBroadcaster(getIntent().getIntExtra(ConstantApp.ACTION_KEY_CROLE, 0)) ? View.VISIBLE : View.INVISIBLE;
+        voiceMeterView.setVisibility(visibility);
+        voicePresetButton.setVisibility(visibility);
+        recordButton.setVisibility(visibility);
+        latencyButton.setVisibility(visibility);
     }
 
     // 控制按钮隐藏 显示
@@ -271,10 +843,15 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
         changeAudioTrackBtn.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
         voiceVolumeView.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
         songVolumeView.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
+        voiceMeterView.setVisibility(hide || !mAudioPipeline ? View.INVISIBLE : View.VISIBLE);
         voiceVolumeBar.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
         accompanyVolumeBar.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
         switchMediaButton.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
         switchMuteButton.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
+        // 音效, 录音和延迟测量要用引擎的音频帧, KTVKit 在时归它
+        voicePresetButton.setVisibility(hide || !mAudioPipeline ? View.INVISIBLE : View.VISIBLE);
+        recordButton.setVisibility(hide || !mAudioPipeline ? View.INVISIBLE : View.VISIBLE);
+        latencyButton.setVisibility(hide || !mAudioPipeline ? View.INVISIBLE : View.VISIBLE);
     }
 
     @Override
@@ -290,15 +867,51 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
                 if (isFinishing()) {
                     return;
                 }
-                SurfaceView surfaceView = RtcEngine.CreateRendererView(getApplicationContext());
-                containerLayout.addView(surfaceView);
-                surfaceView.setZOrderOnTop(true);
-                surfaceView.setZOrderMediaOverlay(true);
+                // 重连后同一个 uid 复用原来的画面
+                SurfaceView surfaceView = (SurfaceView) containerLayout.findViewWithTag(uid);
+                if (surfaceView == null && !mSpareRemoteViews.isEmpty()) {
+                    surfaceView = mSpareRemoteViews.remove(mSpareRemoteViews.size() - 1);
+                    surfaceView.setTag(uid);
+                    containerLayout.addView(surfaceView);
+                } else if (surfaceView == null) {
+                    surfaceView = RtcEngine.CreateRendererView(getApplicationContext());
+                    surfaceView.setTag(uid);
+                    containerLayout.addView(surfaceView);
+                    surfaceView.setZOrderOnTop(true);
+                    surfaceView.setZOrderMediaOverlay(true);
+                }
                 rtcEngine().setupRemoteVideo(new VideoCanvas(surfaceView, VideoCanvas.RENDER_MODE_ADAPTIVE, uid));
             }
         });
     }
 
+    // 每次布局后重新判断各远端画面的可见大小; 后加的画面盖在先加的上面
+    private void doUpdateSubscriptions() {
+        if (worker() == null) {
+            return;
+        }
+        int count = containerLayout.getChildCount();
+        for (int i = 0; i < count; i++) {
+            View v = containerLayout.getChildAt(i);
+            if (!(v instanceof SurfaceView) || v instanceof VideoPlayerView || !(v.getTag() instanceof Integer)) {
+                continue;
+            }
+            boolean visible = v.isShown() && v.getGlobalVisibleRect(mViewRect) && !isCovered(i, mViewRect);
+            mSubscriptions.update((Integer) v.getTag(), visible, mViewRect.width(), mViewRect.height());
+        }
+        mSubscriptions.commit();
+    }
+
+    private boolean isCovered(int index, Rect rect) {
+        for (int i = index + 1; i < containerLayout.getChildCount(); i++) {
+            View above = containerLayout.getChildAt(i);
+            if (above.isShown() && above.getGlobalVisibleRect(mCoverRect) && mCoverRect.contains(rect)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // 添加显示 view
     private void addXplayView() {
         xPlayerView = new VideoPlayerView(this, mKTVKit);
@@ -329,24 +942,59 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
     }
 
     @Override
-    public void onUserOffline(int uid, int reason) {
-        int index = -1;
-        int count = containerLayout.getChildCount();
-        for (int i = 0; i < count; i++) {
-            View v = containerLayout.getChildAt(i);
-            if (!(v instanceof VideoPlayerView)) {
-                index = i;
-                break;
+    public void onUserOffline(final int uid, int reason) {
+        // 重连期间对方只是看起来掉线, 画面留着, 恢复时再核对
+        final boolean recovering = worker().reconnect().isRecovering();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (recovering) {
+                    mOfflineWhileRecovering.add(uid);
+                } else {
+                    doRemoveRemoteUser(uid);
+                }
             }
-        }
-        if (index != -1) {
-            containerLayout.removeViewAt(index);
+        });
+    }
+
+    // 按 uid 摘下对方的画面, 留给后来的人复用
+    private void doRemoveRemoteUser(int uid) {
+        mSubscriptions.remove(uid);
+        View v = containerLayout.findViewWithTag(uid);
+        if (v instanceof SurfaceView && !(v instanceof VideoPlayerView)) {
+            containerLayout.removeView(v);
+            v.setTag(null);
+            mSpareRemoteViews.add((SurfaceView) v);
         }
     }
 
     @Override
-    public void onUserJoined(int uid, int elapsed) {
-        Log.d("heheda", "heelo");
+    public void onUserJoined(final int uid, int elapsed) {
+        EventLog.log(EV_USER_JOINED, uid, elapsed);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mOfflineWhileRecovering.remove(uid);
+            }
+        });
+    }
+
+    // 引擎回调线程; 有人在唱时把伴奏压低
+    @Override
+    public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+        float before = mDucker.gain();
+        final float gain = mDucker.onVolumes(uids, volumes, count, SystemClock.elapsedRealtime());
+        if (gain == before) {
+            return;
+        }
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mAccompanyVolume != null) {
+                    mAccompanyVolume.setDuckGain(gain);
+                }
+            }
+        });
     }
 
     @Override
@@ -363,12 +1011,64 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {
         if (seekBar != null && seekBar.equals(voiceVolumeBar)) {
-            mKTVKit.adjustVoiceVolume((double) seekBar.getProgress() / (double
+            mPlayer.adjustVoiceVolume((double) seekBar.getProgress() / (double
                     ) seekBar.getMax());
-            android.util.Log.v("zxc", "1111" + (double) seekBar.getProgress() / (double) seekBar.getMax());
+            EventLog.log(EV_VOICE_VOLUME, EventLog.bits((double) seekBar.getProgress() / (double) seekBar.getMax()));
         } else if (seekBar != null && seekBar.equals(accompanyVolumeBar)) {
-            mKTVKit.adjustAccompanyVolume((double) seekBar.getProgress() / (double) seekBar.getMax());
-            android.util.Log.v("zxc", "2222" + (double) seekBar.getProgress() / (double) seekBar.getMax());
+            mAccompanyVolume.setUserVolume((double) seekBar.getProgress() / (double) seekBar.getMax());
+            EventLog.log(EV_ACCOMPANY_VOLUME, EventLog.bits((double) seekBar.getProgress() / (double) seekBar.getMax()));
+        }
+    }
+
+    // 退到后台不再解码远端视频, 回来后按画面恢复
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mSubscriptions.setForeground(true);
+        doUpdateSubscriptions();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mSubscriptions.setForeground(false);
+        doUpdateSubscriptions();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        // 引擎没起来之前不碰 worker(), 就绪后再打开电平表
+        mStartup.whenDone(ROOM_WORKER, new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        doStartMeters();
+                    }
+                });
+            }
+        });
+    }
+
+    private void doStartMeters() {
+        if (!mResumed) {
+            return;
+        }
+        worker().audioPipeline().voiceMeter().setEnabled(mAudioPipeline);
+        Choreographer.getInstance().removeFrameCallback(mMeterFrameCallback);
+        Choreographer.getInstance().postFrameCallback(mMeterFrameCallback);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+        Choreographer.getInstance().removeFrameCallback(mMeterFrameCallback);
+        if (mStartup.isDone(ROOM_WORKER)) {
+            worker().audioPipeline().voiceMeter().setEnabled(false);
         }
     }
 
@@ -376,16 +1076,35 @@ public class LiveRoomActivity extends BaseActivity implements AGEventHandler, Se
     protected void onDestroy() {
         super.onDestroy();
 
-        if (mScheduledFuture != null) {
-            mScheduledFuture.cancel(true);
+        containerLayout.getViewTreeObserver().removeOnGlobalLayoutListener(mLayoutListener);
+
+        if (mProgressTask != null) {
+            mProgressTask.cancel();
         }
-        mScheduledExecutorService.shutdownNow();
 
-        mKTVKit.stopPlayVideoFile();
+        if (mChorus != null) {
+            mChorus.disable();
+            mChorusTransport.close();
+        }
+
+        if (mPlayer != null) {
+            mPlayer.stop();
+        }
 
-        worker().getRtcEngine().leaveChannel();
+        doStopRecord();
+        event().stopTrace();
+
+        worker().leaveChannel(mRoomName);
+
+        if (mKTVKit != null) {
+            KTVKit.destroy();
+        }
+        if (mAudioPipeline) {
+            worker().attachAudioPipeline(false);
+        }
 
-        KTVKit.destroy();
+        Metrics.dump(log);
+        MemoryBudget.get().dump(log);
     }
 }
 
@@ -158,6 +158,12 @@ public class MainActivity extends BaseActivity {
         });
     }
 
+    @Override
+    protected void onFirstFrame() {
+        super.onFirstFrame();
+        application().startup().complete(AGApplication.STARTUP_FIRST_FRAME);
+    }
+
     @Override
     protected void deInitUIandEvent() {
 
@@ -253,6 +259,13 @@ public class MainActivity extends BaseActivity {
 //    }
 
     public void onClickJoin(View view) {
+        // 选角色的同时以观众身份预加入, 进房时直接沿用
+        String room = ((EditText) findViewById(R.id.room_name)).getText().toString();
+        final boolean prejoined = application().startup().isDone(AGApplication.STARTUP_WORKER);
+        if (prejoined) {
+            worker().prejoinChannel(room, config().mUid);
+        }
+
         // show dialog to choose role
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage(R.string.msg_choose_role);
@@ -269,6 +282,15 @@ public class MainActivity extends BaseActivity {
             }
         });
 
+        builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                if (prejoined) {
+                    worker().rooms().cancelPrejoin();
+                }
+            }
+        });
+
         AlertDialog dialog = builder.create();
         dialog.show();
     }
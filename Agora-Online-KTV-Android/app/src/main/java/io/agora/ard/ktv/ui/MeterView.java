@@ -0,0 +1,74 @@
+package io.agora.ard.ktv.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Arrays;
+
+import io.agora.ard.ktv.audio.MeterReading;
+
+/**
+ * Level bar with peak tick on the left, coarse spectrum on the right.
+ */
+public class MeterView extends View {
+    private static final float RANGE_DB = 60f;
+
+    private final Paint mLevelPaint = new Paint();
+    private final Paint mPeakPaint = new Paint();
+    private final Paint mBandPaint = new Paint();
+
+    private float mRmsDb = MeterReading.FLOOR_DB;
+    private float mPeakDb = MeterReading.FLOOR_DB;
+    private final float[] mBandsDb = new float[MeterReading.BANDS];
+
+    public MeterView(Context context) {
+        this(context, null);
+    }
+
+    public MeterView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mLevelPaint.setColor(Color.rgb(0x4C, 0xAF, 0x50));
+        mPeakPaint.setColor(Color.rgb(0xF4, 0x43, 0x36));
+        mBandPaint.setColor(Color.rgb(0x21, 0x96, 0xF3));
+        Arrays.fill(mBandsDb, MeterReading.FLOOR_DB);
+    }
+
+    /**
+     * Copies the reading, call on the UI thread.
+     */
+    public void update(MeterReading reading) {
+        mRmsDb = reading.rmsDb;
+        mPeakDb = reading.peakDb;
+        System.arraycopy(reading.bandsDb, 0, mBandsDb, 0, MeterReading.BANDS);
+        invalidate();
+    }
+
+    private static float fraction(float db) {
+        float f = (db + RANGE_DB) / RANGE_DB;
+        return f < 0f ? 0f : (f > 1f ? 1f : f);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float width = getWidth();
+        float height = getHeight();
+        float levelWidth = width * 0.4f;
+
+        canvas.drawRect(0, 0, levelWidth * fraction(mRmsDb), height, mLevelPaint);
+        float peakX = levelWidth * fraction(mPeakDb);
+        canvas.drawRect(Math.max(0, peakX - 2), 0, peakX, height, mPeakPaint);
+
+        float bandsLeft = levelWidth + 8;
+        float bandWidth = (width - bandsLeft) / MeterReading.BANDS;
+        for (int b = 0; b < MeterReading.BANDS; b++) {
+            float top = height * (1f - fraction(mBandsDb[b]));
+            float left = bandsLeft + b * bandWidth;
+            canvas.drawRect(left, top, left + bandWidth - 1, height, mBandPaint);
+        }
+    }
+}
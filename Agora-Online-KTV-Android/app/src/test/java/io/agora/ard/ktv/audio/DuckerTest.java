@@ -0,0 +1,73 @@
+package io.agora.ard.ktv.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DuckerTest {
+    private static final float DEPTH = (float) Math.pow(10, -Ducker.DEFAULT_DEPTH_DB / 20);
+    private static final int LOUD = 120;
+
+    private final Ducker mDucker = new Ducker();
+    private final int[] mUids = new int[2];
+    private final int[] mVolumes = new int[2];
+    private long mNowMs = 1000;
+
+    // one indication with the local user and one remote user
+    private float tick(int localVolume, int remoteVolume) {
+        mUids[0] = 0;
+        mVolumes[0] = localVolume;
+        mUids[1] = 42;
+        mVolumes[1] = remoteVolume;
+        mNowMs += Ducker.INDICATION_MS;
+        return mDucker.onVolumes(mUids, mVolumes, 2, mNowMs);
+    }
+
+    @Test
+    public void remoteSingerDucksAtOnce() {
+        assertEquals(1f, tick(0, 0), 1e-6);
+        assertEquals(DEPTH, tick(0, LOUD), 1e-6);
+        assertEquals(DEPTH, tick(0, LOUD), 1e-6);
+    }
+
+    @Test
+    public void localLevelDoesNotKey() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1f, tick(255, 0), 1e-6);
+        }
+    }
+
+    @Test
+    public void quietRemoteDoesNotKey() {
+        assertEquals(1f, tick(0, Ducker.VOICE_THRESHOLD - 1), 1e-6);
+    }
+
+    @Test
+    public void comesBackAfterTheHold() {
+        tick(0, LOUD);
+        // held through short pauses between phrases
+        assertEquals(DEPTH, tick(0, 0), 1e-6);
+        assertEquals(DEPTH, tick(0, 0), 1e-6);
+
+        float previous = DEPTH;
+        int steps = 0;
+        float gain;
+        while ((gain = tick(0, 0)) < 1f) {
+            // rises step by step, never jumps back to full
+            assertEquals(true, gain > previous);
+            previous = gain;
+            steps++;
+        }
+        // 6 dB at 6 dB/s is five indications, the fifth is back at full
+        assertEquals(4, steps);
+    }
+
+    @Test
+    public void disabledOrZeroDepthNeverDucks() {
+        mDucker.setEnabled(false);
+        assertEquals(1f, tick(0, LOUD), 1e-6);
+        mDucker.setEnabled(true);
+        mDucker.setDepthDb(0f);
+        assertEquals(1f, tick(0, LOUD), 1e-6);
+    }
+}
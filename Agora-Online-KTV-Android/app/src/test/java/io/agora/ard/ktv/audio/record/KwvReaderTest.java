@@ -0,0 +1,127 @@
+package io.agora.ard.ktv.audio.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KwvReaderTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = CHANNELS * 2;
+    private static final int BLOCK_FRAMES = 480; // 10 ms, as the engine hands them out
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("kwv", ".kwv");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recordingReadsBackBitExact() throws Exception {
+        byte[] pcm = song(3 * SAMPLE_RATE + 123);
+        record(pcm);
+
+        KwvReader reader = new KwvReader(mFile);
+        try {
+            assertEquals(SAMPLE_RATE, reader.sampleRate());
+            assertEquals(CHANNELS, reader.channels());
+            assertEquals(pcm.length / FRAME_BYTES, reader.frames());
+            assertArrayEquals(pcm, readAll(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void truncatedFileFails() throws Exception {
+        record(song(SAMPLE_RATE));
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() - 100);
+        } finally {
+            raf.close();
+        }
+
+        KwvReader reader = new KwvReader(mFile);
+        try {
+            readAll(reader);
+            fail("read a truncated recording");
+        } catch (IOException expected) {
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void wavIsRejected() throws Exception {
+        record(song(BLOCK_FRAMES), false);
+        new KwvReader(mFile).close();
+    }
+
+    private void record(byte[] pcm) throws Exception {
+        record(pcm, true);
+    }
+
+    private void record(byte[] pcm, boolean compressed) throws Exception {
+        PerformanceRecorder recorder = new PerformanceRecorder(SAMPLE_RATE, CHANNELS, 1 << 20);
+        recorder.start(mFile, compressed);
+        byte[] block = new byte[BLOCK_FRAMES * FRAME_BYTES];
+        for (int off = 0; off < pcm.length; off += block.length) {
+            int n = Math.min(block.length, pcm.length - off);
+            System.arraycopy(pcm, off, block, 0, n);
+            recorder.write(block, n / FRAME_BYTES, CHANNELS);
+        }
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long[] dropped = new long[1];
+        recorder.stop(new PerformanceRecorder.Listener() {
+            @Override
+            public void onRecordingFinished(File file, long droppedFrames) {
+                dropped[0] = droppedFrames;
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(0, dropped[0]);
+    }
+
+    private static byte[] readAll(KwvReader reader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] pcm = new byte[reader.maxBlockBytes()];
+        int frames;
+        while ((frames = reader.read(pcm)) > 0) {
+            out.write(pcm, 0, frames * reader.channels() * 2);
+        }
+        return out.toByteArray();
+    }
+
+    // a tone with some noise on top, different on the two channels
+    private static byte[] song(int frames) {
+        Random random = new Random(7);
+        short[] samples = new short[frames * CHANNELS];
+        for (int i = 0; i < frames; i++) {
+            double tone = 6000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE);
+            samples[2 * i] = (short) (tone + random.nextGaussian() * 300);
+            samples[2 * i + 1] = (short) (-tone / 2 + random.nextGaussian() * 300);
+        }
+        return LosslessCodecTest.toBytes(samples);
+    }
+}
@@ -0,0 +1,71 @@
+package io.agora.ard.ktv.audio.record;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LosslessCodecTest {
+    private static final int FRAMES = 4096;
+
+    @Test
+    public void noiseRoundTrips() {
+        Random random = new Random(1);
+        byte[] pcm = new byte[FRAMES * 4];
+        random.nextBytes(pcm);
+        assertRoundTrip(2, pcm, FRAMES);
+    }
+
+    @Test
+    public void fullScaleSquareRoundTrips() {
+        short[] samples = new short[FRAMES * 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (i / 7) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        assertRoundTrip(2, toBytes(samples), FRAMES);
+    }
+
+    @Test
+    public void sineCompresses() {
+        short[] samples = new short[FRAMES];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / 48000.0));
+        }
+        int size = assertRoundTrip(1, toBytes(samples), FRAMES);
+        assertTrue("encoded to " + size + " bytes", size < FRAMES * 2 / 2);
+    }
+
+    @Test
+    public void silenceAndShortBlocksRoundTrip() {
+        assertRoundTrip(1, new byte[FRAMES * 2], FRAMES);
+        for (int frames = 1; frames <= 5; frames++) {
+            Random random = new Random(frames);
+            byte[] pcm = new byte[frames * 4];
+            random.nextBytes(pcm);
+            assertRoundTrip(2, pcm, frames);
+        }
+    }
+
+    private static int assertRoundTrip(int channels, byte[] pcm, int frames) {
+        LosslessCodec codec = new LosslessCodec(channels, FRAMES);
+        byte[] encoded = new byte[LosslessCodec.maxEncodedBytes(channels, frames)];
+        int size = codec.encode(pcm, frames, encoded);
+        assertTrue(size <= encoded.length);
+
+        byte[] decoded = new byte[frames * channels * 2];
+        new LosslessCodec(channels, FRAMES).decode(encoded, frames, decoded);
+        assertArrayEquals(pcm, decoded);
+        return size;
+    }
+
+    static byte[] toBytes(short[] samples) {
+        byte[] pcm = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,91 @@
+package io.agora.ard.ktv.audio.record;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new PcmRing(1000);
+    }
+
+    @Test
+    public void wrapsAround() {
+        PcmRing ring = new PcmRing(16);
+        byte[] out = new byte[16];
+        for (int round = 0; round < 10; round++) {
+            byte[] in = {(byte) round, 1, 2, 3, 4, 5, 6, (byte) -round};
+            assertTrue(ring.offer(in, in.length));
+            assertTrue(ring.offer(in, 3));
+            assertEquals(11, ring.available());
+            assertEquals(8, ring.drain(out, 8));
+            assertArrayEquals(in, Arrays.copyOf(out, 8));
+            assertEquals(3, ring.drain(out, 16));
+            assertEquals(round, out[0]);
+            assertEquals(0, ring.available());
+        }
+    }
+
+    @Test
+    public void refusesWhatDoesNotFit() {
+        PcmRing ring = new PcmRing(16);
+        byte[] in = new byte[10];
+        assertTrue(ring.offer(in, 10));
+        assertFalse(ring.offer(in, 7));
+        assertEquals(10, ring.available());
+        assertTrue(ring.offer(in, 6));
+        assertFalse(ring.offer(in, 1));
+
+        ring.skipAll();
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.drain(new byte[16], 16));
+        assertTrue(ring.offer(in, 10));
+    }
+
+    @Test
+    public void producerAndConsumerThreadsKeepOrder() throws Exception {
+        final PcmRing ring = new PcmRing(1024);
+        final int total = 4000000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] block = new byte[96];
+                int next = 0;
+                while (next < total) {
+                    int n = Math.min(1 + next % block.length, total - next);
+                    for (int i = 0; i < n; i++) {
+                        block[i] = (byte) (next + i);
+                    }
+                    if (ring.offer(block, n)) {
+                        next += n;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        byte[] out = new byte[200];
+        String error = null;
+        int expected = 0;
+        while (expected < total) {
+            int n = ring.drain(out, out.length);
+            for (int i = 0; i < n; i++, expected++) {
+                if (error == null && out[i] != (byte) expected) {
+                    error = "byte " + expected + " was " + out[i];
+                }
+            }
+        }
+        producer.join();
+        assertNull(error);
+        assertEquals(0, ring.available());
+    }
+}
@@ -0,0 +1,107 @@
+package io.agora.ard.ktv.catalog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SongCatalogTest {
+    private static final int QING_HUA_CI = 0;
+    private static final int DAO_XIANG = 1;
+    private static final int QI_LI_XIANG = 2;
+    private static final int HOTEL_CALIFORNIA = 3;
+    private static final int HELLO = 4;
+
+    private File mFile;
+    private SongCatalog mCatalog;
+
+    @Before
+    public void setUp() throws IOException {
+        SongCatalogWriter writer = new SongCatalogWriter();
+        writer.add("青花瓷", "周杰伦", "qhc.mp3", 90, "qing hua ci", "zhou jie lun");
+        writer.add("稻香", "周杰伦", "dx.mp3", 95, "dao xiang", "zhou jie lun");
+        writer.add("七里香", "周杰伦", "qlx.mp3", 80, "qi li xiang", "zhou jie lun");
+        writer.add("Hotel California", "Eagles", "hc.mp3", 70, null, null);
+        writer.add("Hello", "Adele", "hello.mp3", 85, null, null);
+        mFile = File.createTempFile("catalog", ".bin");
+        writer.write(mFile);
+        mCatalog = SongCatalog.open(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void songsReadBack() {
+        assertEquals(5, mCatalog.size());
+        assertEquals("青花瓷", mCatalog.title(QING_HUA_CI));
+        assertEquals("周杰伦", mCatalog.artist(QING_HUA_CI));
+        assertEquals("hc.mp3", mCatalog.url(HOTEL_CALIFORNIA));
+        assertEquals(85, mCatalog.popularity(HELLO));
+    }
+
+    @Test
+    public void normalizeKeepsLettersAndDigitsOnly() {
+        assertEquals("hotelcalifornia2", SongCatalog.normalize(" Hotel-California (2)"));
+        assertEquals("周杰伦", SongCatalog.normalize("周 杰伦!"));
+        assertEquals("", SongCatalog.normalize(null));
+    }
+
+    @Test
+    public void prefixFindsTitlesArtistsAndPinyinByPopularity() {
+        assertArrayEquals(new int[]{DAO_XIANG, QING_HUA_CI, QI_LI_XIANG}, prefix("周杰"));
+        assertArrayEquals(new int[]{DAO_XIANG, QING_HUA_CI, QI_LI_XIANG}, prefix("zjl"));
+        assertArrayEquals(new int[]{DAO_XIANG, QING_HUA_CI, QI_LI_XIANG}, prefix("Zhou Jie"));
+        assertArrayEquals(new int[]{QI_LI_XIANG}, prefix("qlx"));
+        assertArrayEquals(new int[]{HELLO, HOTEL_CALIFORNIA}, prefix("h"));
+        assertArrayEquals(new int[]{HOTEL_CALIFORNIA}, prefix("hc"));
+        assertArrayEquals(new int[0], prefix("xyz"));
+        assertArrayEquals(new int[0], prefix(""));
+    }
+
+    @Test
+    public void prefixStopsWhenOutIsFull() {
+        int[] out = new int[2];
+        assertEquals(2, mCatalog.prefixSearch("zhou", out));
+        assertArrayEquals(new int[]{DAO_XIANG, QING_HUA_CI}, out);
+    }
+
+    @Test
+    public void fuzzyForgivesATypo() {
+        int[] out = new int[5];
+        int n = mCatalog.fuzzySearch("hotel califronia", out);
+        assertTrue(n > 0);
+        assertEquals(HOTEL_CALIFORNIA, out[0]);
+
+        n = mCatalog.fuzzySearch("adel", out);
+        assertTrue(n > 0);
+        assertEquals(HELLO, out[0]);
+    }
+
+    @Test
+    public void searchPutsPrefixMatchesFirstWithoutDuplicates() {
+        int[] out = new int[5];
+        int n = mCatalog.search("hel", out);
+        assertTrue(n >= 1);
+        assertEquals(HELLO, out[0]);
+        int[] found = Arrays.copyOf(out, n);
+        Arrays.sort(found);
+        for (int i = 1; i < found.length; i++) {
+            assertTrue("duplicate " + found[i], found[i] != found[i - 1]);
+        }
+    }
+
+    private int[] prefix(String query) {
+        int[] out = new int[5];
+        return Arrays.copyOf(out, mCatalog.prefixSearch(query, out));
+    }
+}
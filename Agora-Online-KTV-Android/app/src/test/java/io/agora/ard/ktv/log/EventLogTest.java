@@ -0,0 +1,144 @@
+package io.agora.ard.ktv.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// the log is process wide, so every test uses its own directory and events
+public class EventLogTest {
+    private final Counter mDropped = Metrics.counter("log.dropped");
+    private final Counter mWritten = Metrics.counter("log.written");
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("eventlog", "");
+        mDir.delete();
+        EventLog.setLevel(EventLog.DEBUG);
+        EventLog.open(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void formatsPlaceholders() throws Exception {
+        EventLog.Event e = EventLog.event(EventLog.WARN, "fmt {} {u} {f} {s} {braces}");
+        long written = mWritten.get();
+        EventLog.log(e, "ref", -5, 0xFFFFFFFFL & -2);
+        EventLog.log(EventLog.event(EventLog.INFO, "fmt {} {u} {f}"), -7, -1, EventLog.bits(0.5));
+
+        List<String> lines = awaitLines(written + 2, "fmt");
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("\\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d W fmt -5 4294967294 0\\.0 ref \\{braces}"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" I fmt -7 4294967295 0.5"));
+    }
+
+    @Test
+    public void levelFilters() throws Exception {
+        EventLog.Event debug = EventLog.event(EventLog.DEBUG, "filtered {}");
+        EventLog.Event info = EventLog.event(EventLog.INFO, "filtered {}");
+        EventLog.setLevel(EventLog.INFO);
+        long written = mWritten.get();
+        EventLog.log(debug, 1);
+        EventLog.log(info, 2);
+
+        List<String> lines = awaitLines(written + 1, "filtered");
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("filtered 2"));
+    }
+
+    @Test
+    public void everyEventIsWrittenOrCountedAsDropped() throws Exception {
+        final EventLog.Event e = EventLog.event(EventLog.INFO, "burst {} {}");
+        final int threads = 4;
+        final int perThread = 5000;
+        long written = mWritten.get();
+        long dropped = mDropped.get();
+
+        Thread[] loggers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            loggers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        EventLog.log(e, id, i);
+                    }
+                }
+            });
+            loggers[t].start();
+        }
+        for (Thread t : loggers) {
+            t.join();
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mWritten.get() - written + mDropped.get() - dropped < threads * perThread
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long lost = mDropped.get() - dropped;
+        List<String> lines = awaitLines(written + threads * perThread - lost, "burst");
+        assertEquals(threads * perThread, lines.size() + lost);
+
+        // each thread's events keep their order
+        int[] next = new int[threads];
+        for (String line : lines) {
+            String[] f = line.split(" ");
+            int id = Integer.parseInt(f[3]);
+            int i = Integer.parseInt(f[4]);
+            assertTrue(line, i >= next[id]);
+            next[id] = i + 1;
+        }
+    }
+
+    // waits until the writer has got to at least `count` lines, returns those containing `marker`
+    private List<String> awaitLines(long count, String marker) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mWritten.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        // the writer counts a batch before flushing it
+        Thread.sleep(100);
+        List<String> lines = new ArrayList<>();
+        File file = new File(mDir, "events.log");
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains(" " + marker + " ")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,96 @@
+package io.agora.ard.ktv.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EngineEventDispatcherTest {
+
+    private static class Recorder implements AGEventHandler {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onFirstRemoteVideoDecoded(int uid, int width, int height, int elapsed) {
+            events.add("video " + uid);
+        }
+
+        @Override
+        public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+            events.add("join " + channel);
+        }
+
+        @Override
+        public void onUserOffline(int uid, int reason) {
+            events.add("offline " + uid);
+        }
+
+        @Override
+        public void onUserJoined(int uid, int elapsed) {
+            events.add("joined " + uid);
+        }
+
+        @Override
+        public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+        }
+    }
+
+    @Test
+    public void lateHandlerGetsTheUsersReplayed() {
+        EngineEventDispatcher dispatcher = new EngineEventDispatcher();
+        dispatcher.onJoinChannelSuccess("room", 1, 0);
+        dispatcher.onUserJoined(7, 0);
+        dispatcher.onUserJoined(8, 0);
+        dispatcher.onFirstRemoteVideoDecoded(8, 640, 360, 0);
+        dispatcher.onUserOffline(7, 0);
+
+        Recorder handler = new Recorder();
+        dispatcher.addEventHandler(handler);
+        assertEquals("[joined 8, video 8]", handler.events.toString());
+
+        dispatcher.onLeaveChannel();
+        Recorder later = new Recorder();
+        dispatcher.addEventHandler(later);
+        assertEquals(0, later.events.size());
+    }
+
+    // the engine thread reports a user leaving while the new handler is still being replayed to
+    @Test
+    public void callbackDuringReplayIsDeliveredAfterIt() throws Exception {
+        final EngineEventDispatcher dispatcher = new EngineEventDispatcher();
+        dispatcher.onUserJoined(7, 0);
+        dispatcher.onUserJoined(8, 0);
+
+        final Recorder other = new Recorder();
+        dispatcher.addEventHandler(other);
+        other.events.clear();
+
+        Recorder handler = new Recorder() {
+            @Override
+            public void onUserJoined(int uid, int elapsed) {
+                super.onUserJoined(uid, elapsed);
+                if (uid == 7) {
+                    Thread engine = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatcher.onUserOffline(7, 0);
+                        }
+                    });
+                    engine.start();
+                    try {
+                        // returns at once, the dispatcher holds no lock while calling us
+                        engine.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        dispatcher.addEventHandler(handler);
+
+        assertEquals("[joined 7, joined 8, offline 7]", handler.events.toString());
+        assertEquals("[offline 7]", other.events.toString());
+    }
+}
@@ -0,0 +1,196 @@
+package io.agora.ard.ktv.sim;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.runtime.KtvRuntime;
+import io.agora.ard.ktv.runtime.Lane;
+import io.agora.ard.ktv.sync.ChorusSync;
+
+/**
+ * Runs a chorus on one machine: a lead and some followers, each with its own
+ * {@link SimulatedPlayer} and a clock that is off by a fixed amount and drifts, talking over a
+ * {@link SimulatedChorusLink}. Every song takes a random time to open on each device, as it
+ * does for real.
+ * <p>
+ * The players share the JVM's real clock, so the true alignment error can be sampled directly
+ * and compared with what the followers believe: {@code sim.chorus.true_error_ms} over whole
+ * songs, {@code sim.chorus.settled_error_ms} from {@link #SETTLED_AFTER_MS} into each song.
+ * The summary gives the p50 and p99 of the absolute error for both and the share of samples
+ * off by {@link #BAD_ERROR_MS} or more, the ones a listener hears as two singers.
+ * All devices run on one lane. Example:
+ * {@code ChorusSimulator --seconds=40 --song-seconds=20 --followers=2 --delay-ms=40
+ * --jitter-ms=30 --loss-pct=10 --skew-ms=3700 --drift-ppm=50 --open-ms=300}
+ */
+public class ChorusSimulator {
+    private final static Logger log = LoggerFactory.getLogger(ChorusSimulator.class);
+
+    private static final long SETTLED_AFTER_MS = 5000;
+    private static final long[] ERROR_BOUNDS_MS = new long[]{
+            -500, -200, -100, -60, -40, -20, -10, 0, 10, 20, 40, 60, 100, 200, 500};
+    private static final long[] ABS_ERROR_BOUNDS_MS = new long[]{10, 20, 40, 60, 100, 200, 500};
+    private static final long BAD_ERROR_MS = 100;
+
+    private int mSeconds = 40;
+    private int mSongSeconds = 20;
+    private int mFollowers = 2;
+    private int mDelayMs = 40;
+    private int mJitterMs = 30;
+    private int mLossPct = 10;
+    private int mSkewMs = 3700;
+    private int mDriftPpm = 50;
+    private int mOpenMs = 300;
+    private long mSeed = 1;
+
+    private final Histogram mTrueError = Metrics.histogram("sim.chorus.true_error_ms", ERROR_BOUNDS_MS);
+    private final Histogram mSettledError = Metrics.histogram("sim.chorus.settled_error_ms", ERROR_BOUNDS_MS);
+    private final Histogram mTrueAbsError = Metrics.histogram("sim.chorus.true_abs_error_ms", ABS_ERROR_BOUNDS_MS);
+    private final Histogram mSettledAbsError = Metrics.histogram("sim.chorus.settled_abs_error_ms", ABS_ERROR_BOUNDS_MS);
+    private long mTrueBad;
+    private long mSettledBad;
+
+    public static void main(String[] args) throws InterruptedException {
+        ChorusSimulator sim = new ChorusSimulator();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            if (kv.length != 2) {
+                continue;
+            }
+            int v = Integer.parseInt(kv[1]);
+            switch (kv[0]) {
+                case "seconds":
+                    sim.mSeconds = v;
+                    break;
+                case "song-seconds":
+                    sim.mSongSeconds = v;
+                    break;
+                case "followers":
+                    sim.mFollowers = v;
+                    break;
+                case "delay-ms":
+                    sim.mDelayMs = v;
+                    break;
+                case "jitter-ms":
+                    sim.mJitterMs = v;
+                    break;
+                case "loss-pct":
+                    sim.mLossPct = v;
+                    break;
+                case "skew-ms":
+                    sim.mSkewMs = v;
+                    break;
+                case "drift-ppm":
+                    sim.mDriftPpm = v;
+                    break;
+                case "open-ms":
+                    sim.mOpenMs = v;
+                    break;
+                case "seed":
+                    sim.mSeed = v;
+                    break;
+                default:
+                    log.warn("unknown option " + arg);
+            }
+        }
+        sim.run();
+    }
+
+    // a device clock: off by skewNs, running fast or slow by driftPpm
+    private static ChorusSync.Clock deviceClock(final long skewNs, final int driftPpm) {
+        final long origin = System.nanoTime();
+        return new ChorusSync.Clock() {
+            @Override
+            public long nowNs() {
+                long now = System.nanoTime();
+                return now + skewNs + (now - origin) / 1000000L * driftPpm;
+            }
+        };
+    }
+
+    public void run() throws InterruptedException {
+        Random random = new Random(mSeed);
+        SimulatedChorusLink link = new SimulatedChorusLink(mDelayMs, mJitterMs, mLossPct / 100d, mSeed);
+        Lane lane = KtvRuntime.get().io();
+        int songMs = mSongSeconds * 1000;
+
+        SimulatedPlayer leadPlayer = new SimulatedPlayer(songMs * 2);
+        ChorusSync.Clock leadClock = ChorusSync.SYSTEM_CLOCK;
+        ChorusSync lead = new ChorusSync(1, link.endpoint(leadClock), leadClock, leadPlayer, lane);
+        lead.follow();
+
+        SimulatedPlayer[] players = new SimulatedPlayer[mFollowers];
+        ChorusSync[] followers = new ChorusSync[mFollowers];
+        long[] skews = new long[mFollowers];
+        for (int i = 0; i < mFollowers; i++) {
+            // followers on both sides of the lead's clock
+            skews[i] = (i % 2 == 0 ? 1 : -1) * (i + 1) * mSkewMs * 1000000L;
+            ChorusSync.Clock clock = deviceClock(skews[i], (i % 2 == 0 ? 1 : -1) * mDriftPpm);
+            players[i] = new SimulatedPlayer(songMs * 2);
+            followers[i] = new ChorusSync(100 + i, link.endpoint(clock), clock, players[i], lane);
+            followers[i].follow();
+        }
+
+        long start = System.nanoTime();
+        long end = start + mSeconds * 1000000000L;
+        int song = 0;
+        long songEnd = 0;
+        long songStart = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            if (now >= songEnd) {
+                if (song > 0) {
+                    lead.stopSong();
+                }
+                leadPlayer.setOpenDelayMs(random.nextInt(mOpenMs + 1));
+                for (SimulatedPlayer p : players) {
+                    p.setOpenDelayMs(random.nextInt(mOpenMs + 1));
+                }
+                lead.lead("song-" + ++song);
+                songStart = now + ChorusSync.LEAD_IN_MS * 1000000L;
+                songEnd = songStart + songMs * 1000000L;
+            }
+            if (leadPlayer.isPlaying() && leadPlayer.positionMs() > 0) {
+                for (SimulatedPlayer p : players) {
+                    if (p.positionMs() > 0) {
+                        long error = p.positionMs() - leadPlayer.positionMs();
+                        boolean bad = Math.abs(error) >= BAD_ERROR_MS;
+                        mTrueError.record(error);
+                        mTrueAbsError.record(Math.abs(error));
+                        mTrueBad += bad ? 1 : 0;
+                        if (now - songStart > SETTLED_AFTER_MS * 1000000L) {
+                            mSettledError.record(error);
+                            mSettledAbsError.record(Math.abs(error));
+                            mSettledBad += bad ? 1 : 0;
+                        }
+                    }
+                }
+            }
+            Thread.sleep(50);
+        }
+        lead.stopSong();
+
+        for (int i = 0; i < mFollowers; i++) {
+            // offset is lead minus follower; the follower's clock is ahead by its skew
+            long estimated = followers[i].offset().offsetNs();
+            log.info(String.format("follower %d: offset %.2f ms, estimated %.2f ms, round trip %.2f ms",
+                    i, -skews[i] / 1e6, estimated / 1e6, followers[i].offset().delayNs() / 1e6));
+        }
+        log.info(String.format("%d songs, %d followers, delay %d ms, jitter %d ms, loss %d%%, open up to %d ms",
+                song, mFollowers, mDelayMs, mJitterMs, mLossPct, mOpenMs));
+        report("true error", mTrueAbsError, mTrueBad);
+        report("settled error", mSettledAbsError, mSettledBad);
+        Metrics.dump(log);
+        link.shutdown();
+    }
+
+    // percentiles are bucket upper bounds, so "p99 200" reads "99% within 200 ms"
+    private static void report(String what, Histogram abs, long bad) {
+        long count = abs.count();
+        log.info(String.format("%s: p50 %d ms, p99 %d ms, %.1f%% of %d samples off by %d ms or more",
+                what, abs.percentile(50), abs.percentile(99), count > 0 ? 100d * bad / count : 0d, count, BAD_ERROR_MS));
+    }
+}
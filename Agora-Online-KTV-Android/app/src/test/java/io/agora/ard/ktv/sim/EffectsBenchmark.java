@@ -0,0 +1,162 @@
+package io.agora.ard.ktv.sim;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import io.agora.ard.ktv.audio.AudioChain;
+import io.agora.ard.ktv.audio.AudioProcessor;
+import io.agora.ard.ktv.audio.effect.Compressor;
+import io.agora.ard.ktv.audio.effect.EffectSlot;
+import io.agora.ard.ktv.audio.effect.Equalizer;
+import io.agora.ard.ktv.audio.effect.Reverb;
+import io.agora.ard.ktv.audio.effect.VoiceEffects;
+import io.agora.ard.ktv.audio.effect.VoicePreset;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.ConstantApp;
+
+/**
+ * Times each vocal effect on its own at the engine's block size, then the stacks the presets
+ * build, so what stacking costs is known before a low end phone finds out. The reverb is
+ * timed at every comb count the {@link io.agora.ard.ktv.audio.QualityGovernor} uses, a
+ * bypassed {@link EffectSlot} shows what an effect that is off still costs, and the last run
+ * switches presets every 100 ms the way the preset button does. Per block times go to
+ * {@code sim.effects.<case>.block_us}. Example: {@code EffectsBenchmark --blocks=20000}
+ */
+public class EffectsBenchmark {
+    private final static Logger log = LoggerFactory.getLogger(EffectsBenchmark.class);
+
+    private static final int WARMUP_BLOCKS = 2000;
+    private static final int VOICE_BLOCKS = 500; // 5 s of singing, played in a loop
+
+    private int mBlocks = 20000;
+
+    public static void main(String[] args) {
+        EffectsBenchmark bench = new EffectsBenchmark();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            if (kv.length == 2 && kv[0].equals("blocks")) {
+                bench.mBlocks = Integer.parseInt(kv[1]);
+            } else {
+                log.warn("unknown option " + arg);
+            }
+        }
+        bench.run();
+    }
+
+    public void run() {
+        int rate = ConstantApp.AUDIO_SAMPLE_RATE;
+        int channels = ConstantApp.AUDIO_CHANNELS;
+        int count = ConstantApp.AUDIO_SAMPLES_PER_CALL;
+        int frames = count / channels;
+        float[] voice = voice(VOICE_BLOCKS * count, rate);
+        StringBuilder sb = new StringBuilder("voice effects, ").append(frames).append(" frames per block:");
+
+        Equalizer eq = new Equalizer(rate, channels);
+        eq.configure(VoicePreset.STUDIO.lowDb, VoicePreset.STUDIO.presenceDb, VoicePreset.STUDIO.airDb);
+        time(sb, "eq", eq, voice);
+
+        Compressor compressor = new Compressor(rate);
+        compressor.configure(VoicePreset.STUDIO.thresholdDb, VoicePreset.STUDIO.ratio, 5f, 120f,
+                VoicePreset.STUDIO.makeupDb, -1f);
+        time(sb, "compressor", compressor, voice);
+
+        for (int combs : new int[]{Reverb.maxCombs(), Reverb.maxCombs() / 2, 0}) {
+            Reverb reverb = new Reverb(rate);
+            reverb.configure(VoicePreset.HALL.roomSize, VoicePreset.HALL.damping, VoicePreset.HALL.wet, 1f);
+            reverb.setCombCount(combs);
+            time(sb, "reverb_" + combs, reverb, voice);
+        }
+
+        time(sb, "slot_off", new EffectSlot(new Reverb(rate), count), voice);
+
+        for (VoicePreset preset : VoicePreset.ALL) {
+            AudioChain chain = new AudioChain("sim_" + preset.name);
+            VoiceEffects effects = new VoiceEffects(rate, channels, count);
+            effects.install(chain);
+            effects.setPreset(preset);
+            time(sb, "preset_" + preset.name, chain(chain), voice, null);
+        }
+
+        AudioChain chain = new AudioChain("sim_switching");
+        VoiceEffects effects = new VoiceEffects(rate, channels, count);
+        effects.install(chain);
+        time(sb, "switching", chain(chain), voice, effects);
+
+        log.info(sb.toString());
+        Metrics.dump(log);
+    }
+
+    // a preset's stack as one processor, the chain's own stage timing included
+    private static AudioProcessor chain(final AudioChain chain) {
+        return new AudioProcessor() {
+            @Override
+            public void process(float[] data, int frames, int channels) {
+                chain.process(data, frames, channels);
+            }
+
+            @Override
+            public void reset() {
+                chain.reset();
+            }
+        };
+    }
+
+    private void time(StringBuilder sb, String name, AudioProcessor processor, float[] voice) {
+        time(sb, name, processor, voice, null);
+    }
+
+    /**
+     * @param switching if not null, gets the next preset every 10 blocks
+     */
+    private void time(StringBuilder sb, String name, AudioProcessor processor, float[] voice, VoiceEffects switching) {
+        int channels = ConstantApp.AUDIO_CHANNELS;
+        int count = ConstantApp.AUDIO_SAMPLES_PER_CALL;
+        int frames = count / channels;
+        double blockUs = 1e6 * frames / ConstantApp.AUDIO_SAMPLE_RATE;
+        float[] block = new float[count];
+        long[] blockNs = new long[mBlocks];
+        Histogram time = Metrics.histogram("sim.effects." + name + ".block_us", AudioChain.BLOCK_US_BOUNDS);
+
+        long total = 0;
+        for (int b = 0; b < WARMUP_BLOCKS + mBlocks; b++) {
+            if (switching != null && b % 10 == 0) {
+                switching.setPreset(VoicePreset.ALL[(b / 10) % VoicePreset.ALL.length]);
+            }
+            System.arraycopy(voice, (b % VOICE_BLOCKS) * count, block, 0, count);
+            long start = System.nanoTime();
+            processor.process(block, frames, channels);
+            long ns = System.nanoTime() - start;
+            if (b >= WARMUP_BLOCKS) {
+                time.record(ns / 1000);
+                total += ns;
+                blockNs[b - WARMUP_BLOCKS] = ns;
+            }
+        }
+        double us = total / 1e3 / mBlocks;
+        Arrays.sort(blockNs);
+        double p99 = blockNs[(int) (mBlocks * 0.99)] / 1e3;
+        sb.append(String.format("\n  %-14s %7.2f us per block (%.2f%% of the period), p99 %7.2f us (%.2f%%)",
+                name, us, 100 * us / blockUs, p99, 100 * p99 / blockUs));
+    }
+
+    // phrases of a sung vowel with vibrato and breath, pauses in between, the same on both sides
+    private static float[] voice(int count, int rate) {
+        Random random = new Random(30);
+        float[] pcm = new float[count];
+        double phase = 0;
+        for (int i = 0; i < count / 2; i++) {
+            double t = i / (double) rate;
+            double envelope = (t % 2.5) < 2 ? Math.min(1, (t % 2.5) * 20) : 0;
+            phase += 2 * Math.PI * 196 * (1 + 0.015 * Math.sin(2 * Math.PI * 5.5 * t)) / rate;
+            double v = envelope * (0.4 * Math.sin(phase) + 0.15 * Math.sin(2 * phase) + 0.08 * Math.sin(3 * phase))
+                    + 0.01 * random.nextGaussian();
+            pcm[2 * i] = (float) v;
+            pcm[2 * i + 1] = (float) v;
+        }
+        return pcm;
+    }
+}
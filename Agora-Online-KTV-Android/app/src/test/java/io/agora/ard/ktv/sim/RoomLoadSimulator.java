@@ -0,0 +1,178 @@
+package io.agora.ard.ktv.sim;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.EngineEventDispatcher;
+
+/**
+ * Drives a {@link SimulatedEngine} with a busy room: users join up to the target size, then
+ * keep joining and leaving at the churn rate, each with a first video frame shortly after the
+ * join, while volume indications arrive at a fixed interval. The registered handlers are
+ * {@link SimulatedRoomHandler}s.
+ * <p>
+ * Reports dispatcher throughput, callback and UI lane queue latency (metrics
+ * {@code sim.callback_queue_us}, {@code sim.ui_queue_us}) and heap per simulated user. Run
+ * from a JVM with the app classes and slf4j on the class path:
+ * {@code RoomLoadSimulator --users=500 --seconds=10 --churn=200 --volume-ms=200 --handlers=2}
+ */
+public class RoomLoadSimulator {
+    private final static Logger log = LoggerFactory.getLogger(RoomLoadSimulator.class);
+
+    private static final int SPEAKERS_PER_INDICATION = 3;
+
+    private int mUsers = 200;
+    private int mSeconds = 10;
+    private int mChurnPerSecond = 100;
+    private int mVolumeIntervalMs = 200;
+    private int mHandlers = 2;
+    private long mSeed = 1;
+
+
+    public static void main(String[] args) throws InterruptedException {
+        RoomLoadSimulator sim = new RoomLoadSimulator();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            if (kv.length != 2) {
+                continue;
+            }
+            int v = Integer.parseInt(kv[1]);
+            switch (kv[0]) {
+                case "users":
+                    sim.mUsers = v;
+                    break;
+                case "seconds":
+                    sim.mSeconds = v;
+                    break;
+                case "churn":
+                    sim.mChurnPerSecond = v;
+                    break;
+                case "volume-ms":
+                    sim.mVolumeIntervalMs = v;
+                    break;
+                case "handlers":
+                    sim.mHandlers = v;
+                    break;
+                case "seed":
+                    sim.mSeed = v;
+                    break;
+                default:
+                    log.warn("unknown option " + arg);
+            }
+        }
+        sim.run();
+    }
+
+    public void run() throws InterruptedException {
+        EngineEventDispatcher dispatcher = new EngineEventDispatcher();
+        SimulatedEngine engine = new SimulatedEngine(dispatcher, 50);
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        List<SimulatedRoomHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < mHandlers; i++) {
+            SimulatedRoomHandler h = new SimulatedRoomHandler(ui);
+            handlers.add(h);
+            dispatcher.addEventHandler(h);
+        }
+
+        long heapBefore = usedHeap();
+        Counter events = Metrics.counter("engine.events");
+        long eventsBefore = events.get();
+        engine.joinChannel("sim", 1);
+
+        Random random = new Random(mSeed);
+        List<Integer> present = new ArrayList<>();
+        int nextUid = 1000;
+        long[] firstFrameDue = new long[0];
+        int[] firstFrameUid = new int[0];
+        int pendingFrames = 0;
+        int[] speakerUids = new int[SPEAKERS_PER_INDICATION];
+        int[] speakerVolumes = new int[SPEAKERS_PER_INDICATION];
+
+        long start = System.nanoTime();
+        long end = start + mSeconds * 1000000000L;
+        long nextVolumeNs = start;
+        double churnCredit = 0;
+        long lastNs = start;
+        long peakHeap = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            churnCredit += (now - lastNs) / 1e9 * mChurnPerSecond;
+            lastNs = now;
+            while (churnCredit >= 1) {
+                churnCredit -= 1;
+                // ramp up to the room size first, then keep it there with joins and leaves
+                if (present.size() < mUsers) {
+                    int uid = nextUid++;
+                    present.add(uid);
+                    engine.remoteJoin(uid, (int) ((now - start) / 1000000L));
+                    if (pendingFrames == firstFrameDue.length) {
+                        firstFrameDue = Arrays.copyOf(firstFrameDue, pendingFrames * 2 + 16);
+                        firstFrameUid = Arrays.copyOf(firstFrameUid, pendingFrames * 2 + 16);
+                    }
+                    firstFrameDue[pendingFrames] = now + (100 + random.nextInt(400)) * 1000000L;
+                    firstFrameUid[pendingFrames++] = uid;
+                } else if (!present.isEmpty()) {
+                    int uid = present.remove(random.nextInt(present.size()));
+                    engine.remoteLeave(uid, random.nextInt(3) == 0 ? 1 : 0);
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < pendingFrames; i++) {
+                if (firstFrameDue[i] <= now) {
+                    engine.remoteFirstFrame(firstFrameUid[i], 640, 360, 0);
+                } else {
+                    firstFrameDue[kept] = firstFrameDue[i];
+                    firstFrameUid[kept++] = firstFrameUid[i];
+                }
+            }
+            pendingFrames = kept;
+            if (now >= nextVolumeNs && !present.isEmpty()) {
+                int count = Math.min(SPEAKERS_PER_INDICATION, present.size());
+                for (int i = 0; i < count; i++) {
+                    speakerUids[i] = present.get(random.nextInt(present.size()));
+                    speakerVolumes[i] = random.nextInt(256);
+                }
+                engine.volumeIndication(speakerUids, speakerVolumes, count, random.nextInt(256));
+                nextVolumeNs = now + mVolumeIntervalMs * 1000000L;
+            }
+            if (present.size() >= mUsers && peakHeap == 0) {
+                engine.drain();
+                peakHeap = usedHeap();
+            }
+            Thread.sleep(1);
+        }
+        engine.drain();
+        ui.shutdown();
+        ui.awaitTermination(10, TimeUnit.SECONDS);
+        long elapsedNs = System.nanoTime() - start;
+        if (peakHeap == 0) {
+            peakHeap = usedHeap();
+        }
+        long dispatched = events.get() - eventsBefore;
+
+        log.info(String.format("room of %d users, %d handlers, %d s: %d callbacks, %.0f callbacks/s, %d ui tasks",
+                present.size(), mHandlers, mSeconds, dispatched, dispatched / (elapsedNs / 1e9), Metrics.counter("sim.ui_tasks").get()));
+        log.info(String.format("heap %d KB before, %d KB at full room, %.1f KB per user",
+                heapBefore / 1024, peakHeap / 1024, (peakHeap - heapBefore) / 1024d / Math.max(1, mUsers)));
+        Metrics.dump(log);
+        engine.shutdown();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
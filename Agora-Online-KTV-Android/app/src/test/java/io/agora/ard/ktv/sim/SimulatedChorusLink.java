@@ -0,0 +1,112 @@
+package io.agora.ard.ktv.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.sync.ChorusSync;
+import io.agora.ard.ktv.sync.ChorusTransport;
+
+/**
+ * Local stand-in for the channel's data stream between devices: every message reaches every
+ * other endpoint after a fixed delay plus random jitter, drawn separately per receiver so the
+ * two directions of an exchange are not symmetric and messages can overtake each other, and
+ * a share of messages is lost. Each endpoint stamps arrivals with its own {@link
+ * ChorusSync.Clock}, which lets a driver give every device a different clock.
+ */
+public class SimulatedChorusLink {
+    private final long mDelayMs;
+    private final long mJitterMs;
+    private final double mLoss;
+    private final Random mRandom;
+    private final List<Endpoint> mEndpoints = new ArrayList<>();
+    private final ScheduledExecutorService mWire;
+
+    private final Counter mSent = Metrics.counter("sim.chorus.sent");
+    private final Counter mLost = Metrics.counter("sim.chorus.lost");
+
+    /**
+     * @param jitterMs mean of the exponentially distributed extra delay
+     * @param loss     share of messages dropped per receiver, 0..1
+     */
+    public SimulatedChorusLink(long delayMs, long jitterMs, double loss, long seed) {
+        mDelayMs = delayMs;
+        mJitterMs = jitterMs;
+        mLoss = loss;
+        mRandom = new Random(seed);
+        mWire = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sim-chorus-link");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized ChorusTransport endpoint(ChorusSync.Clock clock) {
+        Endpoint endpoint = new Endpoint(clock);
+        mEndpoints.add(endpoint);
+        return endpoint;
+    }
+
+    public void shutdown() {
+        mWire.shutdownNow();
+    }
+
+    private synchronized void broadcast(Endpoint from, byte[] message, int length) {
+        mSent.inc();
+        for (final Endpoint to : mEndpoints) {
+            if (to == from) {
+                continue;
+            }
+            if (mRandom.nextDouble() < mLoss) {
+                mLost.inc();
+                continue;
+            }
+            // capped so one unlucky draw does not stall a whole run
+            double jitter = Math.min(-Math.log(1 - mRandom.nextDouble()) * mJitterMs, 8 * mJitterMs);
+            long delayUs = mDelayMs * 1000 + (long) (jitter * 1000);
+            final byte[] copy = Arrays.copyOf(message, length);
+            mWire.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    to.deliver(copy);
+                }
+            }, delayUs, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private final class Endpoint implements ChorusTransport {
+        private final ChorusSync.Clock mClock;
+        private volatile Receiver mReceiver;
+
+        Endpoint(ChorusSync.Clock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void send(byte[] message, int length) {
+            broadcast(this, message, length);
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            mReceiver = receiver;
+        }
+
+        void deliver(byte[] message) {
+            Receiver receiver = mReceiver;
+            if (receiver != null) {
+                receiver.onMessage(message, mClock.nowNs());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package io.agora.ard.ktv.sim;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.EngineApi;
+import io.agora.ard.ktv.model.EngineEventDispatcher;
+
+/**
+ * JVM stand-in for the RTC engine. Like the real one it delivers every callback on a single
+ * callback thread; the {@code remote*} methods let a driver play the other users in the room,
+ * {@link #dropConnection} and {@link #restoreConnection} the network.
+ * {@code sim.callback_queue_us} is the time a callback waited on that thread,
+ * {@code sim.dispatch_us} the time the app's handlers took for it.
+ */
+public class SimulatedEngine implements EngineApi {
+    private static final long[] US_BOUNDS = new long[]{10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000, 200000};
+
+    private final EngineEventDispatcher mDispatcher;
+    private final ScheduledExecutorService mCallbackThread;
+    private final int mJoinDelayMs;
+
+    private volatile String mChannel;
+    private volatile int mClientRole;
+    private volatile boolean mInEarMonitoring;
+    private volatile int mVolumeIndicationMs;
+    private volatile boolean mOffline;
+    private volatile boolean mJoinPending;
+    private volatile int mUid;
+
+    private final Histogram mCallbackQueue = Metrics.histogram("sim.callback_queue_us", US_BOUNDS);
+    private final Histogram mDispatchTime = Metrics.histogram("sim.dispatch_us", US_BOUNDS);
+
+    public SimulatedEngine(EngineEventDispatcher dispatcher, int joinDelayMs) {
+        mDispatcher = dispatcher;
+        mJoinDelayMs = joinDelayMs;
+        mCallbackThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sim-engine-callback");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public EngineEventDispatcher dispatcher() {
+        return mDispatcher;
+    }
+
+    @Override
+    public void joinChannel(final String channel, final int uid) {
+        mChannel = channel;
+        mUid = uid;
+        if (mOffline) {
+            mJoinPending = true;
+            return;
+        }
+        scheduleJoin(channel, uid, false);
+    }
+
+    private void scheduleJoin(final String channel, final int uid, final boolean rejoin) {
+        mCallbackThread.schedule(new Callback() {
+            @Override
+            void dispatch() {
+                if (mOffline || !channel.equals(mChannel)) {
+                    return;
+                }
+                if (rejoin) {
+                    mDispatcher.onRejoinChannelSuccess(channel, uid, mJoinDelayMs);
+                } else {
+                    mDispatcher.onJoinChannelSuccess(channel, uid, mJoinDelayMs);
+                }
+            }
+        }, mJoinDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void leaveChannel() {
+        mChannel = null;
+        mJoinPending = false;
+        mDispatcher.onLeaveChannel();
+    }
+
+    /**
+     * The network goes away: interrupted at once, lost after {@code lostAfterMs} unless it is
+     * back by then. Joins made while offline complete once it is restored.
+     */
+    public void dropConnection(final long lostAfterMs) {
+        mOffline = true;
+        mCallbackThread.execute(new Callback() {
+            @Override
+            void dispatch() {
+                mDispatcher.onConnectionInterrupted();
+            }
+        });
+        mCallbackThread.schedule(new Callback() {
+            @Override
+            void dispatch() {
+                if (mOffline) {
+                    mDispatcher.onConnectionLost();
+                }
+            }
+        }, lostAfterMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param engineRejoins true if the engine's own retry gets back in, as it does for short
+     *                      drops; false leaves it to the app
+     */
+    public void restoreConnection(boolean engineRejoins) {
+        mOffline = false;
+        String channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+        if (mJoinPending) {
+            mJoinPending = false;
+            scheduleJoin(channel, mUid, false);
+        } else if (engineRejoins) {
+            scheduleJoin(channel, mUid, true);
+        }
+    }
+
+    @Override
+    public void setClientRole(int role) {
+        mClientRole = role;
+    }
+
+    @Override
+    public void setParameters(String parameters) {
+    }
+
+    @Override
+    public void enableInEarMonitoring(boolean enabled) {
+        mInEarMonitoring = enabled;
+    }
+
+    @Override
+    public void enableAudioVolumeIndication(int intervalMs, int smooth) {
+        mVolumeIndicationMs = intervalMs;
+    }
+
+    public String channel() {
+        return mChannel;
+    }
+
+    public int clientRole() {
+        return mClientRole;
+    }
+
+    public void remoteJoin(final int uid, final int elapsed) {
+        mCallbackThread.execute(new Callback() {
+            @Override
+            void dispatch() {
+                mDispatcher.onUserJoined(uid, elapsed);
+            }
+        });
+    }
+
+    public void remoteLeave(final int uid, final int reason) {
+        mCallbackThread.execute(new Callback() {
+            @Override
+            void dispatch() {
+                mDispatcher.onUserOffline(uid, reason);
+            }
+        });
+    }
+
+    public void remoteFirstFrame(final int uid, final int width, final int height, final int elapsed) {
+        mCallbackThread.execute(new Callback() {
+            @Override
+            void dispatch() {
+                mDispatcher.onFirstRemoteVideoDecoded(uid, width, height, elapsed);
+            }
+        });
+    }
+
+    /**
+     * The arrays are copied, the caller may reuse them.
+     */
+    public void volumeIndication(int[] uids, int[] volumes, final int count, final int totalVolume) {
+        final int[] u = new int[count];
+        final int[] v = new int[count];
+        System.arraycopy(uids, 0, u, 0, count);
+        System.arraycopy(volumes, 0, v, 0, count);
+        mCallbackThread.execute(new Callback() {
+            @Override
+            void dispatch() {
+                mDispatcher.onAudioVolumeIndication(u, v, count, totalVolume);
+            }
+        });
+    }
+
+    /**
+     * Waits until every callback queued so far has been dispatched.
+     */
+    public void drain() throws InterruptedException {
+        final Object done = new Object();
+        final boolean[] flag = new boolean[1];
+        mCallbackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (done) {
+                    flag[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        synchronized (done) {
+            while (!flag[0]) {
+                done.wait();
+            }
+        }
+    }
+
+    public void shutdown() {
+        mCallbackThread.shutdownNow();
+    }
+
+    private abstract class Callback implements Runnable {
+        private final long mQueuedNs = System.nanoTime();
+
+        abstract void dispatch();
+
+        @Override
+        public final void run() {
+            long start = System.nanoTime();
+            mCallbackQueue.record((start - mQueuedNs) / 1000);
+            dispatch();
+            mDispatchTime.record((System.nanoTime() - start) / 1000);
+        }
+    }
+}
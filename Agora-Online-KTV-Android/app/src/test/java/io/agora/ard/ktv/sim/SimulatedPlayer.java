@@ -0,0 +1,108 @@
+package io.agora.ard.ktv.sim;
+
+import io.agora.ard.ktv.model.KtvPlayer;
+
+/**
+ * JVM stand-in for the song player: no media, just a position that advances in real time,
+ * starting {@link #setOpenDelayMs open delay} after {@link #openAndPlay}.
+ */
+public class SimulatedPlayer implements KtvPlayer {
+    private final int mDurationMs;
+    private volatile int mOpenDelayMs;
+
+    private String mUrl;
+    private long mStartNs;
+    private long mPausedAtNs;
+    private boolean mPlaying;
+
+    public SimulatedPlayer(int durationMs) {
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * @param openDelayMs time the next {@link #openAndPlay} takes to get the song going
+     */
+    public void setOpenDelayMs(int openDelayMs) {
+        mOpenDelayMs = openDelayMs;
+    }
+
+    @Override
+    public synchronized void openAndPlay(String url) {
+        mUrl = url;
+        mStartNs = System.nanoTime() + mOpenDelayMs * 1000000L;
+        mPlaying = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mUrl = null;
+        mPlaying = false;
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (mUrl == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (mPlaying) {
+            mPausedAtNs = now;
+        } else {
+            mStartNs += now - mPausedAtNs;
+        }
+        mPlaying = !mPlaying;
+    }
+
+    @Override
+    public void switchAudioTrack() {
+    }
+
+    @Override
+    public synchronized double getCurrentPosition() {
+        if (mUrl == null) {
+            return 0d;
+        }
+        long now = mPlaying ? System.nanoTime() : mPausedAtNs;
+        return Math.max(0d, Math.min(1d, (now - mStartNs) / 1e6 / mDurationMs));
+    }
+
+    @Override
+    public int getDuration() {
+        return mDurationMs;
+    }
+
+    @Override
+    public void adjustVoiceVolume(double volume) {
+    }
+
+    @Override
+    public void adjustAccompanyVolume(double volume) {
+    }
+
+    @Override
+    public void muteLocal() {
+    }
+
+    @Override
+    public void unMuteLocal() {
+    }
+
+    @Override
+    public void resetAudioBuffer() {
+    }
+
+    public synchronized boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return the true position in ms, to check what a sync believes against
+     */
+    public synchronized long positionMs() {
+        if (mUrl == null) {
+            return 0;
+        }
+        long now = mPlaying ? System.nanoTime() : mPausedAtNs;
+        return Math.max(0, (now - mStartNs) / 1000000L);
+    }
+}
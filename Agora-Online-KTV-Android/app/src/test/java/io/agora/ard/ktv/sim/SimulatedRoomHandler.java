@@ -0,0 +1,110 @@
+package io.agora.ard.ktv.sim;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import io.agora.ard.ktv.metrics.Counter;
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.AGEventHandler;
+
+/**
+ * Handler that does what the room activity does with engine callbacks: per uid state on the
+ * callback thread and view work posted to a single UI lane. The time posted work waits on
+ * the lane is {@code sim.ui_queue_us}.
+ */
+public class SimulatedRoomHandler implements AGEventHandler {
+    private final ExecutorService mUi;
+    private final Map<Integer, RemoteUser> mUsers = new HashMap<>();
+
+    private final Histogram mUiQueue = Metrics.histogram("sim.ui_queue_us",
+            new long[]{10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000, 200000});
+    private final Counter mUiTasks = Metrics.counter("sim.ui_tasks");
+
+    // what the room activity keeps per remote user
+    private static final class RemoteUser {
+        final int uid;
+        int volume;
+        boolean rendered;
+
+        RemoteUser(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * @param ui single threaded, stands in for the main looper
+     */
+    public SimulatedRoomHandler(ExecutorService ui) {
+        mUi = ui;
+    }
+
+    public int userCount() {
+        synchronized (mUsers) {
+            return mUsers.size();
+        }
+    }
+
+    private void post(final Runnable work) {
+        final long queued = System.nanoTime();
+        mUi.execute(new Runnable() {
+            @Override
+            public void run() {
+                mUiQueue.record((System.nanoTime() - queued) / 1000);
+                mUiTasks.inc();
+                work.run();
+            }
+        });
+    }
+
+    @Override
+    public void onFirstRemoteVideoDecoded(final int uid, int width, int height, int elapsed) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mUsers) {
+                    RemoteUser user = mUsers.get(uid);
+                    if (user != null) {
+                        user.rendered = true;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+    }
+
+    @Override
+    public void onUserOffline(final int uid, int reason) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mUsers) {
+                    mUsers.remove(uid);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onUserJoined(int uid, int elapsed) {
+        synchronized (mUsers) {
+            mUsers.put(uid, new RemoteUser(uid));
+        }
+    }
+
+    @Override
+    public void onAudioVolumeIndication(int[] uids, int[] volumes, int count, int totalVolume) {
+        synchronized (mUsers) {
+            for (int i = 0; i < count; i++) {
+                RemoteUser user = mUsers.get(uids[i]);
+                if (user != null) {
+                    user.volume = volumes[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.agora.ard.ktv.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockOffsetEstimatorTest {
+    private static final long MS = 1000000L;
+    private static final long OFFSET = 250 * MS; // remote ahead of local
+
+    private final ClockOffsetEstimator mEstimator = new ClockOffsetEstimator();
+
+    // one exchange sent at local time t1, taking up and down to get through
+    private boolean exchange(long t1, long up, long down) {
+        long t2 = t1 + up + OFFSET;
+        long t3 = t2 + 1 * MS;
+        long t4 = t3 - OFFSET + down;
+        return mEstimator.add(t1, t2, t3, t4);
+    }
+
+    @Test
+    public void symmetricExchangeIsExact() {
+        assertTrue(exchange(0, 20 * MS, 20 * MS));
+        assertEquals(OFFSET, mEstimator.offsetNs());
+        assertEquals(40 * MS, mEstimator.delayNs());
+    }
+
+    @Test
+    public void quickestExchangeWins() {
+        exchange(0, 80 * MS, 10 * MS);
+        exchange(100 * MS, 5 * MS, 7 * MS);
+        exchange(200 * MS, 10 * MS, 90 * MS);
+        assertEquals(3, mEstimator.samples());
+        assertEquals(12 * MS, mEstimator.delayNs());
+        assertEquals(OFFSET - 1 * MS, mEstimator.offsetNs());
+        // the error is bounded by half the winning delay
+        assertTrue(Math.abs(mEstimator.offsetNs() - OFFSET) <= mEstimator.delayNs() / 2);
+    }
+
+    @Test
+    public void oldExchangesLeaveTheWindow() {
+        exchange(0, 1 * MS, 1 * MS);
+        for (int i = 1; i < ClockOffsetEstimator.WINDOW; i++) {
+            exchange(i * 100 * MS, 30 * MS, 10 * MS);
+        }
+        assertEquals(2 * MS, mEstimator.delayNs());
+
+        exchange(1000 * MS, 30 * MS, 10 * MS);
+        assertEquals(ClockOffsetEstimator.WINDOW, mEstimator.samples());
+        assertEquals(40 * MS, mEstimator.delayNs());
+        assertEquals(OFFSET + 10 * MS, mEstimator.offsetNs());
+    }
+
+    @Test
+    public void negativeDelayIsDropped() {
+        exchange(0, 10 * MS, 10 * MS);
+        assertFalse(mEstimator.add(0, OFFSET, OFFSET + 50 * MS, 10 * MS));
+        assertEquals(1, mEstimator.samples());
+        assertEquals(OFFSET, mEstimator.offsetNs());
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        exchange(0, 10 * MS, 10 * MS);
+        mEstimator.reset();
+        assertEquals(0, mEstimator.samples());
+        assertEquals(0, mEstimator.offsetNs());
+        exchange(0, 30 * MS, 30 * MS);
+        assertEquals(60 * MS, mEstimator.delayNs());
+    }
+}
@@ -0,0 +1,199 @@
+package io.agora.ard.ktv.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.agora.ard.ktv.metrics.Histogram;
+import io.agora.ard.ktv.metrics.Metrics;
+import io.agora.ard.ktv.model.EngineEventDispatcher;
+import io.agora.ard.ktv.sim.SimulatedRoomHandler;
+
+/**
+ * Feeds a {@link TraceWriter} file back into an {@link EngineEventDispatcher}, on the calling
+ * thread, either keeping the recorded gaps or back to back. At original speed
+ * {@code trace.replay_lateness_us} shows how far behind schedule each callback was delivered.
+ * <p>
+ * As a benchmark: {@code TraceReplayer <trace> [--fast] [--loops=N] [--handlers=N]} replays into
+ * {@link SimulatedRoomHandler}s and reports callbacks per second.
+ */
+public class TraceReplayer {
+    private final static Logger log = LoggerFactory.getLogger(TraceReplayer.class);
+
+    public interface PlayerListener {
+        void onPlayerStopped();
+    }
+
+    private final EngineEventDispatcher mDispatcher;
+    private PlayerListener mPlayerListener;
+    private int[] mUids = new int[8];
+    private int[] mVolumes = new int[8];
+
+    private final Histogram mLateness = Metrics.histogram("trace.replay_lateness_us",
+            new long[]{10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000});
+
+    public TraceReplayer(EngineEventDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public void setPlayerListener(PlayerListener listener) {
+        mPlayerListener = listener;
+    }
+
+    /**
+     * @param realTime keep the recorded timing instead of replaying as fast as possible
+     * @return callbacks replayed
+     */
+    public long replay(File file, boolean realTime) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            int magic = (in.read() << 24) | (in.read() << 16) | (in.read() << 8) | in.read();
+            int version = in.read();
+            if (magic != TraceFormat.MAGIC || version != TraceFormat.VERSION) {
+                throw new IOException("not a callback trace " + file + " " + Integer.toHexString(magic) + " v" + version);
+            }
+            TraceFormat.readVarLong(in); // wall clock start, informational
+            long records = 0;
+            long startNs = System.nanoTime();
+            long dueUs = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                dueUs += TraceFormat.readVarLong(in);
+                if (realTime) {
+                    long dueNs = startNs + dueUs * 1000;
+                    long wait;
+                    while ((wait = dueNs - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    mLateness.record((System.nanoTime() - dueNs) / 1000);
+                }
+                dispatch(type, in);
+                records++;
+            }
+            return records;
+        } catch (EOFException e) {
+            throw new IOException("truncated trace " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void dispatch(int type, InputStream in) throws IOException {
+        switch (type) {
+            case TraceFormat.JOIN_CHANNEL_SUCCESS:
+            case TraceFormat.REJOIN_CHANNEL_SUCCESS: {
+                byte[] name = new byte[(int) TraceFormat.readVarLong(in)];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = (byte) in.read();
+                }
+                int uid = TraceFormat.readInt(in);
+                int elapsed = TraceFormat.readInt(in);
+                if (type == TraceFormat.JOIN_CHANNEL_SUCCESS) {
+                    mDispatcher.onJoinChannelSuccess(new String(name, "UTF-8"), uid, elapsed);
+                } else {
+                    mDispatcher.onRejoinChannelSuccess(new String(name, "UTF-8"), uid, elapsed);
+                }
+                break;
+            }
+            case TraceFormat.CONNECTION_INTERRUPTED:
+                mDispatcher.onConnectionInterrupted();
+                break;
+            case TraceFormat.CONNECTION_LOST:
+                mDispatcher.onConnectionLost();
+                break;
+            case TraceFormat.USER_JOINED: {
+                int uid = TraceFormat.readInt(in);
+                mDispatcher.onUserJoined(uid, TraceFormat.readInt(in));
+                break;
+            }
+            case TraceFormat.USER_OFFLINE: {
+                int uid = TraceFormat.readInt(in);
+                mDispatcher.onUserOffline(uid, TraceFormat.readInt(in));
+                break;
+            }
+            case TraceFormat.FIRST_REMOTE_VIDEO_DECODED: {
+                int uid = TraceFormat.readInt(in);
+                int width = TraceFormat.readInt(in);
+                int height = TraceFormat.readInt(in);
+                mDispatcher.onFirstRemoteVideoDecoded(uid, width, height, TraceFormat.readInt(in));
+                break;
+            }
+            case TraceFormat.AUDIO_VOLUME_INDICATION: {
+                int count = TraceFormat.readInt(in);
+                if (mUids.length < count) {
+                    mUids = new int[count];
+                    mVolumes = new int[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    mUids[i] = TraceFormat.readInt(in);
+                    mVolumes[i] = TraceFormat.readInt(in);
+                }
+                mDispatcher.onAudioVolumeIndication(mUids, mVolumes, count, TraceFormat.readInt(in));
+                break;
+            }
+            case TraceFormat.PLAYER_STOPPED:
+                if (mPlayerListener != null) {
+                    mPlayerListener.onPlayerStopped();
+                }
+                break;
+            default:
+                throw new IOException("unknown trace record " + type);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReplayer <trace> [--fast] [--loops=N] [--handlers=N]");
+            return;
+        }
+        File file = new File(args[0]);
+        boolean fast = false;
+        int loops = 1;
+        int handlers = 2;
+        for (int i = 1; i < args.length; i++) {
+            if ("--fast".equals(args[i])) {
+                fast = true;
+            } else if (args[i].startsWith("--loops=")) {
+                loops = Integer.parseInt(args[i].substring(8));
+            } else if (args[i].startsWith("--handlers=")) {
+                handlers = Integer.parseInt(args[i].substring(11));
+            }
+        }
+
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        EngineEventDispatcher dispatcher = new EngineEventDispatcher();
+        List<SimulatedRoomHandler> room = new ArrayList<>();
+        for (int i = 0; i < handlers; i++) {
+            SimulatedRoomHandler h = new SimulatedRoomHandler(ui);
+            room.add(h);
+            dispatcher.addEventHandler(h);
+        }
+        TraceReplayer replayer = new TraceReplayer(dispatcher);
+        long records = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            records += replayer.replay(file, !fast);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        ui.shutdown();
+        ui.awaitTermination(10, TimeUnit.SECONDS);
+        log.info(String.format("replayed %d callbacks in %.1f ms, %.0f callbacks/s, %d users left",
+                records, elapsedNs / 1e6, records / (elapsedNs / 1e9), room.get(0).userCount()));
+        Metrics.dump(log);
+    }
+}
@@ -0,0 +1,166 @@
+package io.agora.ard.ktv.analysis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Command line tool that analyses a song library and writes a {@link SongSidecar} next to
+ * every song:
+ * <pre>
+ * BatchAnalyzer [--threads=N] [--force] &lt;file or directory&gt;...
+ * </pre>
+ * Directories are searched recursively for .wav and .pcm files. Songs are spread over a
+ * fork/join pool of N threads (all cores by default) and each song splits its own per hop
+ * work on the same pool, so a few long songs still keep every core busy. Sidecars already
+ * written by this analyser version are kept unless --force is given.
+ * <p>
+ * The summary ends with a digest of all sidecar checksums in path order; it is the same for
+ * any thread count, which is how to check a change did not alter results.
+ */
+public class BatchAnalyzer {
+    private final static Logger log = LoggerFactory.getLogger(BatchAnalyzer.class);
+
+    private final SongAnalyzer mAnalyzer = new SongAnalyzer();
+    private final List<File> mSongs;
+    private final boolean mForce;
+    private final int[] mCrcs;
+    private final long[] mAudioMs;
+    private final boolean[] mAnalyzed;
+    private final String[] mErrors;
+
+    private BatchAnalyzer(List<File> songs, boolean force) {
+        mSongs = songs;
+        mForce = force;
+        mCrcs = new int[songs.size()];
+        mAudioMs = new long[songs.size()];
+        mAnalyzed = new boolean[songs.size()];
+        mErrors = new String[songs.size()];
+    }
+
+    private static void collect(File file, List<File> out) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collect(child, out);
+                }
+            }
+            return;
+        }
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".wav") || name.endsWith(".pcm")) {
+            out.add(file);
+        }
+    }
+
+    private void process(int i) {
+        File song = mSongs.get(i);
+        File sidecar = SongSidecar.fileFor(song);
+        try {
+            if (!mForce && sidecar.lastModified() >= song.lastModified()) {
+                SongSidecar existing = SongSidecar.open(sidecar);
+                if (existing.analyzerVersion() == SongAnalyzer.VERSION) {
+                    mCrcs[i] = existing.crc();
+                    mAudioMs[i] = existing.durationMs();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // unreadable or older format, analyse again
+        }
+        try {
+            long start = System.nanoTime();
+            SongAnalysis a = mAnalyzer.analyze(song);
+            SongSidecar.write(sidecar, a, SongAnalyzer.VERSION);
+            mCrcs[i] = SongSidecar.open(sidecar).crc();
+            mAudioMs[i] = a.durationMs();
+            mAnalyzed[i] = true;
+            log.info(String.format("%s: %d s, %.1f LUFS, %.1f BPM, %d beats, %d sections (%d vocal), %.0f%% voiced, crc %08x, %d ms",
+                    song, a.durationMs() / 1000, a.integratedLufs(), a.bpm(), a.beatCount(),
+                    a.sectionCount(), a.vocalSections(), a.voicedShare() * 100, mCrcs[i],
+                    (System.nanoTime() - start) / 1000000));
+        } catch (IOException e) {
+            mErrors[i] = e.getMessage();
+            log.warn(song + ": " + e.getMessage());
+        }
+    }
+
+    private final class SongsTask extends RecursiveAction {
+        private final int mFrom;
+        private final int mTo;
+
+        SongsTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                process(mFrom);
+                return;
+            }
+            int half = (mFrom + mTo) >>> 1;
+            invokeAll(new SongsTask(mFrom, half), new SongsTask(half, mTo));
+        }
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean force = false;
+        List<File> songs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.equals("--force")) {
+                force = true;
+            } else {
+                collect(new File(arg), songs);
+            }
+        }
+        if (songs.isEmpty()) {
+            log.error("usage: BatchAnalyzer [--threads=N] [--force] <file or directory>...");
+            return;
+        }
+        Collections.sort(songs);
+
+        BatchAnalyzer batch = new BatchAnalyzer(songs, force);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        try {
+            pool.invoke(batch.new SongsTask(0, songs.size()));
+        } finally {
+            pool.shutdown();
+        }
+        double minutes = (System.nanoTime() - start) / 60e9;
+
+        int analyzed = 0;
+        int failed = 0;
+        long audioMs = 0;
+        CRC32 digest = new CRC32();
+        for (int i = 0; i < songs.size(); i++) {
+            if (batch.mErrors[i] != null) {
+                failed++;
+                continue;
+            }
+            if (batch.mAnalyzed[i]) {
+                analyzed++;
+                audioMs += batch.mAudioMs[i];
+            }
+            int crc = batch.mCrcs[i];
+            digest.update(new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc});
+        }
+        log.info(String.format("%d songs: %d analysed, %d up to date, %d failed; %.1f min of audio in %.2f min on %d threads, %.1f songs/min/core, digest %08x",
+                songs.size(), analyzed, songs.size() - analyzed - failed, failed, audioMs / 60000d,
+                minutes, threads, analyzed / minutes / threads, digest.getValue()));
+    }
+}
@@ -0,0 +1,135 @@
+package io.agora.ard.ktv.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.agora.ard.ktv.audio.Pcm;
+
+/**
+ * A song as 16-bit PCM, read block by block as interleaved floats: a RIFF/WAVE file (plain or
+ * extensible PCM), or headerless engine format, 48 kHz stereo little endian, for any other
+ * name.
+ */
+public class PcmFile implements Closeable {
+    private final InputStream mIn;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final long mFrames;
+    private byte[] mBytes = new byte[0];
+    private long mRead;
+
+    private PcmFile(InputStream in, int sampleRate, int channels, long frames) {
+        mIn = in;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrames = frames;
+    }
+
+    public static PcmFile open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            if (!file.getName().toLowerCase().endsWith(".wav")) {
+                return new PcmFile(in, 48000, 2, file.length() / 4);
+            }
+            if (readInt(in) != 0x46464952 || readInt(in) < 0 || readInt(in) != 0x45564157) { // RIFF, size, WAVE
+                throw new IOException("not a wave file " + file);
+            }
+            int rate = 0;
+            int channels = 0;
+            while (true) {
+                int id = readInt(in);
+                long size = readInt(in) & 0xFFFFFFFFL;
+                if (id == 0x20746d66) { // "fmt "
+                    int format = readShort(in);
+                    channels = readShort(in);
+                    rate = readInt(in);
+                    skip(in, 6); // byte rate, block align
+                    int bits = readShort(in);
+                    if ((format != 1 && format != 0xFFFE) || bits != 16) {
+                        throw new IOException("only 16-bit PCM is supported, format " + format + " bits " + bits + " " + file);
+                    }
+                    skip(in, size - 16 + (size & 1));
+                } else if (id == 0x61746164) { // "data"
+                    if (channels <= 0) {
+                        throw new IOException("data before fmt in " + file);
+                    }
+                    long frames = Math.min(size, file.length()) / (2 * channels);
+                    return new PcmFile(in, rate, channels, frames);
+                } else {
+                    skip(in, size + (size & 1));
+                }
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static int readShort(InputStream in) throws IOException {
+        int a = in.read();
+        int b = in.read();
+        if ((a | b) < 0) {
+            throw new EOFException();
+        }
+        return a | (b << 8);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        return readShort(in) | (readShort(in) << 16);
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                throw new EOFException();
+            }
+            n -= s;
+        }
+    }
+
+    public int sampleRate() {
+        return mSampleRate;
+    }
+
+    public int channels() {
+        return mChannels;
+    }
+
+    public long frames() {
+        return mFrames;
+    }
+
+    /**
+     * @return frames read into dst, 0 at the end
+     */
+    public int read(float[] dst, int maxFrames) throws IOException {
+        int frames = (int) Math.min(maxFrames, mFrames - mRead);
+        int bytes = frames * mChannels * 2;
+        if (mBytes.length < bytes) {
+            mBytes = new byte[bytes];
+        }
+        int got = 0;
+        while (got < bytes) {
+            int n = mIn.read(mBytes, got, bytes - got);
+            if (n < 0) {
+                break;
+            }
+            got += n;
+        }
+        frames = got / (mChannels * 2);
+        Pcm.toFloat(mBytes, frames * mChannels, dst);
+        mRead += frames;
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
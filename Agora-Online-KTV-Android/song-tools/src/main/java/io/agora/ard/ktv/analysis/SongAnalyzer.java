@@ -0,0 +1,463 @@
+package io.agora.ard.ktv.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import io.agora.ard.ktv.audio.Fft;
+import io.agora.ard.ktv.audio.LoudnessMeter;
+
+/**
+ * Offline analysis of one song: integrated loudness, a reference pitch contour, tempo and beat
+ * grid, and vocal / instrumental sections.
+ * <p>
+ * The file is decoded once, front to back: the 48 kHz signal feeds a {@link LoudnessMeter}
+ * and is low passed and decimated to 16 kHz mid (L+R) and side (L-R). Per 10 ms hop work runs
+ * as fork/join tasks over fixed ranges of hops, so it splits the same way however many
+ * threads the pool has, and every hop is computed from the decimated signal alone:
+ * <ul>
+ * <li>pitch: YIN on mid, 80..1000 Hz, gated at -50 dBFS</li>
+ * <li>onset strength: positive log spectral flux of mid</li>
+ * <li>vocal likelihood: share of 200..3500 Hz energy in mid rather than side, since the lead
+ * vocal is mixed to the centre</li>
+ * </ul>
+ * Tempo (onset autocorrelation with a 120 BPM prior), beats (dynamic programming against
+ * that tempo) and sections are then derived sequentially from the per hop arrays. The same
+ * input therefore always gives the same {@link SongAnalysis}, bit for bit.
+ * <p>
+ * Uses {@link ForkJoinPool}, so this is for the JVM batch tool ({@link BatchAnalyzer}); the
+ * app only reads the results through {@link SongSidecar}.
+ */
+public class SongAnalyzer {
+    /**
+     * Bump when results change; sidecars of older versions are recomputed.
+     */
+    public static final int VERSION = 1;
+
+    public static final int SAMPLE_RATE = 48000;
+    static final int HOP_MS = 10;
+
+    private static final int DECIMATION = 3;
+    private static final int RATE = SAMPLE_RATE / DECIMATION;
+    private static final int HOP = RATE * HOP_MS / 1000;
+    private static final int FRAME = 512;
+    private static final int LEAF_HOPS = 256;
+    private static final int READ_FRAMES = SAMPLE_RATE / 10;
+
+    private static final int YIN_WINDOW = 256;
+    private static final int TAU_MIN = RATE / 1000;
+    private static final int TAU_MAX = RATE / 80;
+    private static final float YIN_THRESHOLD = 0.15f;
+    private static final float GATE = (float) Math.pow(10, -50 / 20d);
+
+    private static final int VOCAL_LOW_BIN = 200 * FRAME / RATE;
+    private static final int VOCAL_HIGH_BIN = 3500 * FRAME / RATE;
+    private static final float VOCAL_MID_SHARE = 0.6f;
+
+    private static final int LAG_MIN = 30; // 200 BPM
+    private static final int LAG_MAX = 100; // 60 BPM
+    private static final int LAG_PRIOR = 50; // 120 BPM
+    private static final float BEAT_TIGHTNESS = 100f;
+
+    private static final int SECTION_WINDOW_HOPS = 200;
+    private static final float SECTION_VOCAL_SHARE = 0.4f;
+    private static final int SECTION_MIN_HOPS = 400;
+
+    private static final float[] FIR = lowPass(33, 7000d / SAMPLE_RATE);
+    private static final float[] HANN = hann(FRAME);
+
+    private static float[] lowPass(int taps, double cutoff) {
+        double[] h = new double[taps];
+        double sum = 0;
+        for (int i = 0; i < taps; i++) {
+            double x = i - (taps - 1) / 2d;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            h[i] = sinc * (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (taps - 1)));
+            sum += h[i];
+        }
+        float[] out = new float[taps];
+        for (int i = 0; i < taps; i++) {
+            out[i] = (float) (h[i] / sum);
+        }
+        return out;
+    }
+
+    private static float[] hann(int n) {
+        float[] w = new float[n];
+        for (int i = 0; i < n; i++) {
+            w[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+        }
+        return w;
+    }
+
+    /**
+     * Analyses on the calling fork/join pool, or the common pool from any other thread.
+     */
+    public SongAnalysis analyze(File file) throws IOException {
+        PcmFile pcm = PcmFile.open(file);
+        try {
+            if (pcm.sampleRate() != SAMPLE_RATE || pcm.channels() < 1 || pcm.channels() > 2) {
+                throw new IOException("need 48 kHz mono or stereo, got " + pcm.sampleRate()
+                        + " Hz " + pcm.channels() + " ch: " + file);
+            }
+            return analyze(pcm);
+        } finally {
+            pcm.close();
+        }
+    }
+
+    private SongAnalysis analyze(PcmFile pcm) throws IOException {
+        int channels = pcm.channels();
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, channels, READ_FRAMES * channels);
+        int length = (int) (pcm.frames() / DECIMATION);
+        float[] mid = new float[length];
+        float[] side = new float[length];
+        float[] block = new float[READ_FRAMES * channels];
+        int taps = FIR.length;
+        float[] histMid = new float[taps];
+        float[] histSide = new float[taps];
+        int pos = 0;
+        long in = 0;
+        int out = 0;
+        int n;
+        while ((n = pcm.read(block, READ_FRAMES)) > 0) {
+            meter.add(block, n, channels);
+            for (int i = 0; i < n; i++) {
+                float l = block[i * channels];
+                float r = channels == 2 ? block[i * channels + 1] : l;
+                histMid[pos] = 0.5f * (l + r);
+                histSide[pos] = 0.5f * (l - r);
+                pos = pos + 1 == taps ? 0 : pos + 1;
+                if (++in % DECIMATION == 0 && out < length) {
+                    float m = 0;
+                    float s = 0;
+                    for (int k = 0, j = pos; k < taps; k++, j = j + 1 == taps ? 0 : j + 1) {
+                        m += FIR[k] * histMid[j];
+                        s += FIR[k] * histSide[j];
+                    }
+                    mid[out] = m;
+                    side[out] = s;
+                    out++;
+                }
+            }
+        }
+
+        int hops = out >= FRAME ? (out - FRAME) / HOP + 1 : 0;
+        Hops result = new Hops(mid, side, hops);
+        HopTask task = new HopTask(result, 0, hops);
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+
+        float[] onset = normalizeOnsets(result.flux);
+        int lag = tempoLag(onset);
+        float bpm = 60f * 1000 / HOP_MS / refineLag(onset, lag);
+        int[] beats = beats(onset, lag);
+        int[] sections = sections(result.pitch, result.vocalShare);
+        int count = sections.length / 2;
+        int[] starts = new int[count];
+        int[] kinds = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = sections[i * 2] * HOP_MS;
+            kinds[i] = sections[i * 2 + 1];
+        }
+        int durationMs = (int) (in * 1000 / SAMPLE_RATE);
+        return new SongAnalysis(durationMs, meter.integratedLufs(), bpm, HOP_MS, result.pitch,
+                beats, starts, kinds);
+    }
+
+    private static final class Hops {
+        final float[] mid;
+        final float[] side;
+        final short[] pitch;
+        final float[] flux;
+        final float[] vocalShare;
+
+        Hops(float[] mid, float[] side, int hops) {
+            this.mid = mid;
+            this.side = side;
+            pitch = new short[hops];
+            flux = new float[hops];
+            vocalShare = new float[hops];
+        }
+    }
+
+    private static final class HopTask extends RecursiveAction {
+        private final Hops mHops;
+        private final int mFrom;
+        private final int mTo;
+
+        HopTask(Hops hops, int from, int to) {
+            mHops = hops;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > LEAF_HOPS) {
+                // split at multiples of LEAF_HOPS so the ranges never depend on timing
+                int half = mFrom + ((mTo - mFrom) / LEAF_HOPS / 2) * LEAF_HOPS;
+                if (half == mFrom) {
+                    half += LEAF_HOPS;
+                }
+                invokeAll(new HopTask(mHops, mFrom, half), new HopTask(mHops, half, mTo));
+                return;
+            }
+            Fft fft = new Fft(FRAME);
+            float[] re = new float[FRAME];
+            float[] im = new float[FRAME];
+            float[] diff = new float[TAU_MAX + 2];
+            float[] prev = new float[FRAME / 2];
+            float[] cur = new float[FRAME / 2];
+            if (mFrom > 0) {
+                bandEnergy(fft, mHops.mid, (mFrom - 1) * HOP, re, im, prev);
+            }
+            for (int t = mFrom; t < mTo; t++) {
+                int start = t * HOP;
+                mHops.pitch[t] = pitch(mHops.mid, start, diff);
+
+                float midBand = bandEnergy(fft, mHops.mid, start, re, im, cur);
+                float flux = 0;
+                if (t > 0) {
+                    for (int k = 1; k < cur.length; k++) {
+                        float d = cur[k] - prev[k];
+                        if (d > 0) {
+                            flux += d;
+                        }
+                    }
+                }
+                mHops.flux[t] = flux;
+                float[] swap = prev;
+                prev = cur;
+                cur = swap;
+
+                float sideBand = bandEnergy(fft, mHops.side, start, re, im, null);
+                float total = midBand + sideBand;
+                mHops.vocalShare[t] = total > 1e-9f ? midBand / total : 0f;
+            }
+        }
+    }
+
+    /**
+     * @return energy between the vocal band bins, after optionally storing the log magnitude
+     * spectrum
+     */
+    private static float bandEnergy(Fft fft, float[] x, int start, float[] re, float[] im, float[] logMag) {
+        for (int i = 0; i < FRAME; i++) {
+            re[i] = x[start + i] * HANN[i];
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+        float band = 0;
+        for (int k = 0; k < FRAME / 2; k++) {
+            float power = re[k] * re[k] + im[k] * im[k];
+            if (k >= VOCAL_LOW_BIN && k <= VOCAL_HIGH_BIN) {
+                band += power;
+            }
+            if (logMag != null) {
+                logMag[k] = (float) Math.log(1 + 100 * Math.sqrt(power));
+            }
+        }
+        return band;
+    }
+
+    /**
+     * YIN over one window.
+     *
+     * @return MIDI note x 100, 0 if unvoiced
+     */
+    private static short pitch(float[] x, int start, float[] diff) {
+        float energy = 0;
+        for (int i = 0; i < YIN_WINDOW; i++) {
+            float v = x[start + i];
+            energy += v * v;
+        }
+        if (Math.sqrt(energy / YIN_WINDOW) < GATE) {
+            return 0;
+        }
+        float running = 0;
+        int best = -1;
+        for (int tau = 1; tau <= TAU_MAX + 1; tau++) {
+            float d = 0;
+            for (int i = 0; i < YIN_WINDOW; i++) {
+                float delta = x[start + i] - x[start + i + tau];
+                d += delta * delta;
+            }
+            running += d;
+            diff[tau] = running > 0 ? d * tau / running : 1f;
+        }
+        for (int tau = TAU_MIN; tau <= TAU_MAX; tau++) {
+            if (diff[tau] < YIN_THRESHOLD) {
+                while (tau + 1 <= TAU_MAX && diff[tau + 1] < diff[tau]) {
+                    tau++;
+                }
+                best = tau;
+                break;
+            }
+        }
+        if (best < 0) {
+            return 0;
+        }
+        float a = diff[best - 1];
+        float b = diff[best];
+        float c = diff[best + 1];
+        float denom = a - 2 * b + c;
+        float period = best + (denom > 0 ? 0.5f * (a - c) / denom : 0f);
+        double midi = 69 + 12 * Math.log(RATE / period / 440d) / Math.log(2);
+        return (short) Math.round(midi * 100);
+    }
+
+    /**
+     * Flux minus its one second moving average, half wave rectified.
+     */
+    private static float[] normalizeOnsets(float[] flux) {
+        int n = flux.length;
+        float[] onset = new float[n];
+        int half = 50;
+        double sum = 0;
+        int lo = 0;
+        int hi = 0;
+        for (int t = 0; t < n; t++) {
+            while (hi < n && hi <= t + half) {
+                sum += flux[hi++];
+            }
+            while (lo < t - half) {
+                sum -= flux[lo++];
+            }
+            float v = flux[t] - (float) (sum / (hi - lo));
+            onset[t] = v > 0 ? v : 0;
+        }
+        return onset;
+    }
+
+    /**
+     * @return beat period in hops, from onset autocorrelation weighted by a log-Gaussian around
+     * 120 BPM
+     */
+    private static int tempoLag(float[] onset) {
+        int best = LAG_PRIOR;
+        double bestScore = 0;
+        for (int lag = LAG_MIN; lag <= LAG_MAX; lag++) {
+            double ac = autocorrelation(onset, lag);
+            double octaves = Math.log((double) lag / LAG_PRIOR) / Math.log(2);
+            double score = ac * Math.exp(-0.5 * octaves * octaves);
+            if (score > bestScore) {
+                bestScore = score;
+                best = lag;
+            }
+        }
+        return best;
+    }
+
+    private static double autocorrelation(float[] onset, int lag) {
+        double ac = 0;
+        for (int t = lag; t < onset.length; t++) {
+            ac += onset[t] * onset[t - lag];
+        }
+        return ac;
+    }
+
+    /**
+     * @return the period with a parabola through the autocorrelation around {@code lag}, for
+     * a BPM finer than whole hops
+     */
+    private static float refineLag(float[] onset, int lag) {
+        double a = autocorrelation(onset, lag - 1);
+        double b = autocorrelation(onset, lag);
+        double c = autocorrelation(onset, lag + 1);
+        double denom = a - 2 * b + c;
+        return denom < 0 ? (float) (lag + 0.5 * (a - c) / denom) : lag;
+    }
+
+    /**
+     * Ellis' dynamic programming beat tracker: every hop scores its onset plus the best
+     * earlier beat, penalised by how far the gap is from the period.
+     *
+     * @return beat times in ms
+     */
+    private static int[] beats(float[] onset, int period) {
+        int n = onset.length;
+        if (n == 0) {
+            return new int[0];
+        }
+        float[] score = new float[n];
+        int[] back = new int[n];
+        for (int t = 0; t < n; t++) {
+            float best = 0;
+            int from = -1;
+            for (int p = t - 2 * period; p <= t - period / 2; p++) {
+                if (p < 0) {
+                    continue;
+                }
+                double gap = Math.log((double) (t - p) / period);
+                float s = score[p] - (float) (BEAT_TIGHTNESS * gap * gap);
+                if (from < 0 || s > best) {
+                    best = s;
+                    from = p;
+                }
+            }
+            score[t] = onset[t] + (from >= 0 ? Math.max(best, 0) : 0);
+            back[t] = from >= 0 && best > 0 ? from : -1;
+        }
+        int last = n - 1;
+        for (int t = Math.max(0, n - period); t < n; t++) {
+            if (score[t] > score[last]) {
+                last = t;
+            }
+        }
+        int count = 0;
+        for (int t = last; t >= 0; t = back[t]) {
+            count++;
+        }
+        int[] beats = new int[count];
+        for (int t = last, i = count - 1; t >= 0; t = back[t], i--) {
+            beats[i] = t * HOP_MS + FRAME * 1000 / RATE / 2;
+        }
+        return beats;
+    }
+
+    /**
+     * @return (start hop, kind) pairs
+     */
+    private static int[] sections(short[] pitch, float[] vocalShare) {
+        int n = pitch.length;
+        int[] vocal = new int[n + 1];
+        for (int t = 0; t < n; t++) {
+            vocal[t + 1] = vocal[t] + (pitch[t] != 0 && vocalShare[t] > VOCAL_MID_SHARE ? 1 : 0);
+        }
+        int[] runs = new int[n * 2 + 2];
+        int count = 0;
+        int half = SECTION_WINDOW_HOPS / 2;
+        for (int t = 0; t < n; t++) {
+            int lo = Math.max(0, t - half);
+            int hi = Math.min(n, t + half);
+            int kind = vocal[hi] - vocal[lo] > SECTION_VOCAL_SHARE * (hi - lo)
+                    ? SongAnalysis.SECTION_VOCAL : SongAnalysis.SECTION_INSTRUMENTAL;
+            if (count == 0 || runs[count * 2 - 1] != kind) {
+                runs[count * 2] = t;
+                runs[count * 2 + 1] = kind;
+                count++;
+            }
+        }
+        // fold runs too short to be a section into the one before
+        int merged = 0;
+        for (int i = 0; i < count; i++) {
+            int end = i + 1 < count ? runs[(i + 1) * 2] : n;
+            boolean tooShort = end - runs[i * 2] < SECTION_MIN_HOPS;
+            if (merged > 0 && (tooShort || runs[merged * 2 - 1] == runs[i * 2 + 1])) {
+                continue;
+            }
+            runs[merged * 2] = runs[i * 2];
+            runs[merged * 2 + 1] = runs[i * 2 + 1];
+            merged++;
+        }
+        int[] out = new int[merged * 2];
+        System.arraycopy(runs, 0, out, 0, out.length);
+        return out;
+    }
+}